@@ -0,0 +1,148 @@
+package com.veda.emaxil.benchmark;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基准测试使用的 Redis 及 依赖 StringRedisTemplate 的 Bean
+ * 指定 -Demaxil.benchmark.redis=host:port 时使用已有的 Redis 的 emaxil.benchmark.redis.database 库 (默认 15),
+ * 否则在空闲端口上启动一个不持久化的 redis-server 进程, 可执行文件由 -Demaxil.benchmark.redis-server 指定 默认从 PATH 中查找
+ * 基准测试会清空所使用的库, 不要指向存有业务数据的 Redis
+ */
+final class BenchmarkRedis implements AutoCloseable {
+
+    private static final long START_TIMEOUT_MILLIS = 10000L;
+
+    private final Process process;
+    private final AnnotationConfigApplicationContext context;
+
+    private BenchmarkRedis(Process process, AnnotationConfigApplicationContext context) {
+        this.process = process;
+        this.context = context;
+    }
+
+    /**
+     * 连接 Redis 并创建 beanClasses 的 Bean, 它们的 @Autowired 字段由 Spring 注入
+     * @param beanClasses 依赖 StringRedisTemplate 的 Bean
+     * @return BenchmarkRedis
+     */
+    static BenchmarkRedis start(Class<?>... beanClasses) {
+        String address = System.getProperty("emaxil.benchmark.redis");
+        Process process = null;
+        String host = "127.0.0.1";
+        int port;
+        int database = 0;
+        if (StrUtil.isNotBlank(address)) {
+            host = StrUtil.subBefore(address, ":", true);
+            port = Integer.parseInt(StrUtil.subAfter(address, ":", true));
+            database = Integer.getInteger("emaxil.benchmark.redis.database", 15);
+        } else {
+            port = freePort();
+            process = spawn(System.getProperty("emaxil.benchmark.redis-server", "redis-server"), port);
+        }
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(host, port);
+        configuration.setDatabase(database);
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(configuration);
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.registerBean(LettuceConnectionFactory.class, () -> connectionFactory);
+        context.registerBean(StringRedisTemplate.class, () -> new StringRedisTemplate(connectionFactory));
+        for (Class<?> beanClass : beanClasses) {
+            context.registerBean(beanClass);
+        }
+        BenchmarkRedis benchmarkRedis = new BenchmarkRedis(process, context);
+        try {
+            context.refresh();
+            benchmarkRedis.flush();
+        } catch (RuntimeException e) {
+            benchmarkRedis.close();
+            throw e;
+        }
+        return benchmarkRedis;
+    }
+
+    <T> T getBean(Class<T> beanClass) {
+        return context.getBean(beanClass);
+    }
+
+    StringRedisTemplate getStringRedisTemplate() {
+        return context.getBean(StringRedisTemplate.class);
+    }
+
+    /**
+     * 清空所使用的库
+     */
+    void flush() {
+        getStringRedisTemplate().execute((RedisConnection connection) -> {
+            connection.flushDb();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        if (Objects.nonNull(process)) {
+            process.destroy();
+            try {
+                process.waitFor(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Process spawn(String redisServer, int port) {
+        Process process;
+        try {
+            process = new ProcessBuilder(redisServer, "--port", String.valueOf(port), "--bind", "127.0.0.1",
+                    "--save", "", "--appendonly", "no", "--loglevel", "warning")
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+        } catch (IOException e) {
+            throw new IllegalStateException(StrUtil.format("start {} failed, install redis or set -Demaxil.benchmark.redis=host:port", redisServer), e);
+        }
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException(StrUtil.format("{} exited with code:{}", redisServer, process.exitValue()));
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return process;
+            } catch (IOException e) {
+                sleep();
+            }
+        }
+        process.destroyForcibly();
+        throw new IllegalStateException(StrUtil.format("{} not ready on port:{}", redisServer, port));
+    }
+
+    private static int freePort() {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException("find free port failed", e);
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("waiting redis-server interrupted", e);
+        }
+    }
+}
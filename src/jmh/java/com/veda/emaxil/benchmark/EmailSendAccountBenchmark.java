@@ -0,0 +1,112 @@
+package com.veda.emaxil.benchmark;
+
+import com.veda.emaxil.core.EmaxilCore;
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.restrict.RestrictServiceLocalImpl;
+import com.veda.emaxil.core.service.EmailSendAccountService;
+import com.veda.emaxil.core.service.EmailSendConfigService;
+import com.veda.emaxil.core.service.EmailSendTaskService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EmaxilCore 占用 和 释放发送账户的吞吐量, 不访问 Redis
+ * 每个方法以固定的线程数并发执行, accountCount 小于线程数时 多余的线程挂起等待账户被释放
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailSendAccountBenchmark {
+
+    @Param({"1", "16", "256"})
+    private int accountCount;
+
+    private AnnotationConfigApplicationContext context;
+    private EmaxilCore<AbstractAccount, SmtpEmail> emaxilCore;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        List<EmailSendAccount<AbstractAccount>> emailSendAccounts = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            emailSendAccounts.add(new EmailSendAccount<>("bench-" + i, null, null, Collections.emptyList()));
+        }
+        EmailSendConfig emailSendConfig = new EmailSendConfig();
+        emailSendConfig.setThreadPoolSize(1);
+        context = new AnnotationConfigApplicationContext();
+        context.registerBean(RestrictServiceLocalImpl.class);
+        context.registerBean(EmailSendAccountService.class, () -> (EmailSendAccountService<AbstractAccount>) () -> emailSendAccounts);
+        context.registerBean(EmailSendConfigService.class, () -> new EmailSendConfigService() {
+            @Override
+            public EmailSendConfig select() {
+                return emailSendConfig;
+            }
+
+            @Override
+            public void update(EmailSendConfig emailSendConfig) {
+            }
+        });
+        context.registerBean(EmailSendTaskService.class, NoopEmailSendTaskService::new);
+        context.registerBean(EmaxilCore.class);
+        context.refresh();
+        emaxilCore = context.getBean(EmaxilCore.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public EmailSendAccount<AbstractAccount> threads1() {
+        return claimAndRelease();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public EmailSendAccount<AbstractAccount> threads4() {
+        return claimAndRelease();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public EmailSendAccount<AbstractAccount> threads16() {
+        return claimAndRelease();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public EmailSendAccount<AbstractAccount> threads64() {
+        return claimAndRelease();
+    }
+
+    private EmailSendAccount<AbstractAccount> claimAndRelease() {
+        EmailSendAccount<AbstractAccount> emailSendAccount = emaxilCore.claimEmailSendAccount();
+        emaxilCore.releaseEmailSendAccount(emailSendAccount, true);
+        return emailSendAccount;
+    }
+
+    private static class NoopEmailSendTaskService implements EmailSendTaskService<SmtpEmail> {
+        @Override
+        public EmailSendTask<SmtpEmail> select(String id) {
+            return null;
+        }
+
+        @Override
+        public void insert(EmailSendTask<SmtpEmail> emailSendTask) {
+        }
+
+        @Override
+        public void update(EmailSendTask<SmtpEmail> emailSendTask) {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.veda.emaxil.benchmark;
+
+import com.alibaba.fastjson.JSON;
+import com.veda.emaxil.core.entity.EmailSendTaskDTO;
+import com.veda.emaxil.util.RedisMessageQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 队列消息的 fastjson 编解码耗时, 不访问 Redis
+ * 生产时 EmailSendTaskDTO 先编码为字符串 再作为 QueueValue 的值编码一次, 消费时按相反顺序解码两次
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    private EmailSendTaskDTO emailSendTaskDTO;
+    private String emailSendTaskDTOJson;
+    private RedisMessageQueue.QueueValue queueValue;
+    private String queueValueJson;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        emailSendTaskDTO = new EmailSendTaskDTO();
+        emailSendTaskDTO.setId("c5d5b2a4e3f84c1c9a7de0f1a2b3c4d5");
+        emailSendTaskDTO.setPriority(1);
+        emailSendTaskDTO.setStatus(0);
+        emailSendTaskDTO.setRetryLimit(3);
+        emailSendTaskDTOJson = JSON.toJSONString(emailSendTaskDTO);
+        queueValue = new RedisMessageQueue.QueueValue(emailSendTaskDTOJson, System.currentTimeMillis());
+        queueValueJson = JSON.toJSONString(queueValue);
+    }
+
+    @Benchmark
+    public String encodeEmailSendTaskDTO() {
+        return JSON.toJSONString(emailSendTaskDTO);
+    }
+
+    @Benchmark
+    public EmailSendTaskDTO decodeEmailSendTaskDTO() {
+        return JSON.parseObject(emailSendTaskDTOJson, EmailSendTaskDTO.class);
+    }
+
+    @Benchmark
+    public String encodeQueueValue() {
+        return JSON.toJSONString(queueValue);
+    }
+
+    @Benchmark
+    public RedisMessageQueue.QueueValue decodeQueueValue() {
+        return JSON.parseObject(queueValueJson, RedisMessageQueue.QueueValue.class);
+    }
+
+    /**
+     * 生产一个任务的完整编码
+     */
+    @Benchmark
+    public String encodeMessage() {
+        return JSON.toJSONString(new RedisMessageQueue.QueueValue(JSON.toJSONString(emailSendTaskDTO), System.currentTimeMillis()));
+    }
+
+    /**
+     * 消费一个任务的完整解码
+     */
+    @Benchmark
+    public EmailSendTaskDTO decodeMessage() {
+        return JSON.parseObject(JSON.parseObject(queueValueJson, RedisMessageQueue.QueueValue.class).getValue(), EmailSendTaskDTO.class);
+    }
+}
@@ -0,0 +1,108 @@
+package com.veda.emaxil.benchmark;
+
+import com.alibaba.fastjson.JSON;
+import com.veda.emaxil.core.entity.EmailSendTaskDTO;
+import com.veda.emaxil.util.RedisMessageQueue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RedisMessageQueue 推送, 出队 和 ACK 的吞吐量, 消息为 ID 各不相同的 EmailSendTaskDTO
+ * 同一批次推送的消息时间戳相同, ID 不同才能在 ACK 有序集合中成为不同的成员
+ * add: 每次推送一个消息
+ * addBatch: 每次通过管道推送 BATCH_SIZE 个消息, 吞吐量按消息数量计算
+ * addGetAck: 推送一个消息 取出一个消息 并 ACK, 多线程时取出的可能是其它线程推送的消息
+ * getAckBatch: 每次取出最多 BATCH_SIZE 个消息 并批量 ACK, 队列在每轮开始前预先填充
+ * 多线程下的吞吐量通过 -t 指定线程数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RedisMessageQueueBenchmark {
+
+    private static final String QUEUE_NAME = "bench-queue";
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * getAckBatch 每轮开始前 预先填充的消息数量, 需大于一轮中能取出的数量 否则队列取空后的结果偏高
+     */
+    private static final int PREFILL_SIZE = 500000;
+
+    private BenchmarkRedis benchmarkRedis;
+    private RedisMessageQueue redisMessageQueue;
+
+    private final AtomicLong sequence = new AtomicLong(0L);
+    private List<String> batchValues;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkRedis = BenchmarkRedis.start(RedisMessageQueue.class);
+        redisMessageQueue = benchmarkRedis.getBean(RedisMessageQueue.class);
+        batchValues = newValues(BATCH_SIZE);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetQueue(BenchmarkParams params) {
+        benchmarkRedis.flush();
+        if (params.getBenchmark().endsWith("getAckBatch")) {
+            for (int i = 0; i < PREFILL_SIZE; i += BATCH_SIZE * 10) {
+                redisMessageQueue.addValues(QUEUE_NAME, newValues(BATCH_SIZE * 10));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkRedis.close();
+    }
+
+    @Benchmark
+    public RedisMessageQueue.QueueValue add() {
+        return redisMessageQueue.addValue(QUEUE_NAME, newValue());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<RedisMessageQueue.QueueValue> addBatch() {
+        return redisMessageQueue.addValues(QUEUE_NAME, batchValues);
+    }
+
+    @Benchmark
+    public int addGetAck() {
+        redisMessageQueue.addValue(QUEUE_NAME, newValue());
+        List<RedisMessageQueue.QueueValue> queueValues = redisMessageQueue.getValues(QUEUE_NAME, 1, 0L);
+        return redisMessageQueue.ackValues(QUEUE_NAME, queueValues);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int getAckBatch() {
+        List<RedisMessageQueue.QueueValue> queueValues = redisMessageQueue.getValues(QUEUE_NAME, BATCH_SIZE, 0L);
+        return redisMessageQueue.ackValues(QUEUE_NAME, queueValues);
+    }
+
+    private List<String> newValues(int count) {
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(newValue());
+        }
+        return values;
+    }
+
+    private String newValue() {
+        EmailSendTaskDTO emailSendTaskDTO = new EmailSendTaskDTO();
+        emailSendTaskDTO.setId(String.valueOf(sequence.incrementAndGet()));
+        emailSendTaskDTO.setPriority(1);
+        emailSendTaskDTO.setStatus(0);
+        emailSendTaskDTO.setRetryLimit(3);
+        return JSON.toJSONString(emailSendTaskDTO);
+    }
+}
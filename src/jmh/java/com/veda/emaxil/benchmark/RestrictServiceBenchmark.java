@@ -0,0 +1,97 @@
+package com.veda.emaxil.benchmark;
+
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.restrict.RestrictServiceRedisImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RestrictServiceRedisImpl.canSend 的吞吐量, 每次调用是一次 Lua 脚本往返
+ * allowed: 所有限制规则都未达上限, 脚本检验后 ZADD 一条发送记录
+ * rejected: 第一条限制规则已达上限, 脚本只检验 并查找需要滑出窗口的记录 计算下次可用时间
+ * restrictCount 为账户的限制规则数量, 脚本对每条规则执行一次 ZCOUNT
+ * 多线程下的吞吐量通过 -t 指定线程数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RestrictServiceBenchmark {
+
+    private static final long REJECTED_LIMIT = 100L;
+
+    @Param({"1", "4"})
+    private int restrictCount;
+
+    private BenchmarkRedis benchmarkRedis;
+    private RestrictServiceRedisImpl<AbstractAccount, SmtpEmail> restrictService;
+
+    private EmailSendAccount<AbstractAccount> allowedAccount;
+    private EmailSendAccount<AbstractAccount> rejectedAccount;
+
+    private final AtomicLong sequence = new AtomicLong(0L);
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        benchmarkRedis = BenchmarkRedis.start(RestrictServiceRedisImpl.class);
+        restrictService = benchmarkRedis.getBean(RestrictServiceRedisImpl.class);
+        allowedAccount = newAccount("bench-allowed", Long.MAX_VALUE);
+        rejectedAccount = newAccount("bench-rejected", REJECTED_LIMIT);
+    }
+
+    /**
+     * 每轮开始前清空统计数据, 避免 allowed 账户的 zSet 无限增长, 并使 rejected 账户重新达到上限
+     */
+    @Setup(Level.Iteration)
+    public void resetStatistic() {
+        benchmarkRedis.flush();
+        for (long i = 0; i < REJECTED_LIMIT; i++) {
+            restrictService.canSend(rejectedAccount, newTask());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkRedis.close();
+    }
+
+    @Benchmark
+    public boolean allowed() {
+        return restrictService.canSend(allowedAccount, newTask());
+    }
+
+    @Benchmark
+    public boolean rejected() {
+        return restrictService.canSend(rejectedAccount, newTask());
+    }
+
+    private EmailSendTask<SmtpEmail> newTask() {
+        return new EmailSendTask<>(String.valueOf(sequence.incrementAndGet()), 0);
+    }
+
+    /**
+     * 第一条规则为 1 小时内最多 limitValue 封, 其余规则为 较长时间范围内不会达到的上限
+     */
+    private EmailSendAccount<AbstractAccount> newAccount(String id, long limitValue) {
+        List<EmailSendRestrict> restricts = new ArrayList<>(restrictCount);
+        for (int i = 0; i < restrictCount; i++) {
+            EmailSendRestrict restrict = new EmailSendRestrict();
+            restrict.setTimeValue(i + 1L);
+            restrict.setTimeUnit(TimeUnit.HOURS);
+            restrict.setTimeType(i % 2 == 0 ? EmailSendRestrict.TimeTypeEnum.RANGE_TIME : EmailSendRestrict.TimeTypeEnum.POINT_TIME);
+            restrict.setLimitValue(i == 0 ? limitValue : Long.MAX_VALUE);
+            restrict.setLimitType(EmailSendRestrict.LimitTypeEnum.COUNT_LIMIT);
+            restricts.add(restrict);
+        }
+        EmailSendAccount<AbstractAccount> emailSendAccount = new EmailSendAccount<>(id, null, null, restricts);
+        emailSendAccount.setEnable(true);
+        return emailSendAccount;
+    }
+}
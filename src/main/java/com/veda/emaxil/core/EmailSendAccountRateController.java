@@ -0,0 +1,345 @@
+package com.veda.emaxil.core;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendConfig;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 邮件发送账户 发送许可 与 自适应速率控制器
+ * 记录每个账户进行中的发送数量, 达到并发上限时 账户继续被占用 直到有发送完成, 与 EmailSendAccountScheduler 一起决定账户何时可再被占用
+ * 开启 adaptiveRate 后 按服务商对每次发送的响应 以 AIMD 调整每个账户的发送速率 和 并发上限:
+ * 发送成功时 速率和并发上限缓慢增加, 被限流 (如 421 450 响应) 或近期平均耗时明显变长时 按 adaptiveDecreaseFactor 成倍减小
+ * 账户被占用后 以速率对应的间隔释放回调度器, 因此服务商实际能承受的速率越高的账户 越频繁地被选中
+ * 速率只在本节点内控制, 多个节点时 每个节点各自探测
+ * @param <A> 账户
+ */
+@Slf4j
+public class EmailSendAccountRateController<A extends AbstractAccount> {
+
+    /**
+     * 同一账户两次减小之间的最短间隔 毫秒, 避免同一批进行中的发送 连续多次减小
+     */
+    private static final long DECREASE_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * 开始检测响应变慢前 需要的成功发送次数
+     */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    /**
+     * 平均耗时的指数加权系数
+     */
+    private static final double LATENCY_EWMA_ALPHA = 0.1;
+
+    /**
+     * 平均耗时高于基准耗时时 基准耗时向其靠近的系数, 服务商持续变慢时 基准耗时逐渐跟随
+     */
+    private static final double LATENCY_BASELINE_ALPHA = 0.01;
+
+    /**
+     * 异常信息中 SMTP 响应码的位置: 开头 或 空白之后的三位数字, 后跟空格 横线 或结尾
+     */
+    private static final Pattern REPLY_CODE_PATTERN = Pattern.compile("(?:^|\\s)([245]\\d\\d)(?:[\\s-]|$)");
+
+    /**
+     * 不含响应码时 表示被限流的关键字
+     */
+    private static final String[] THROTTLE_KEYWORDS = {"rate limit", "too many", "throttl", "try again later"};
+
+    private final Map<String, AccountRate> accountRates = new ConcurrentHashMap<>();
+
+    private volatile boolean isAdaptive = false;
+    private volatile double rateInitial = 10D;
+    private volatile double rateMin = 0.1D;
+    private volatile double rateMax = 100D;
+    private volatile double rateIncrease = 5D;
+    private volatile double decreaseFactor = 0.5D;
+    private volatile double slowLatencyRatio = 3D;
+    private volatile Set<String> throttleCodes = Collections.emptySet();
+
+    /**
+     * 发送结果对账户速率的影响
+     */
+    public enum Signal {
+        /**
+         * 发送成功, 增加速率
+         */
+        SUCCESS,
+        /**
+         * 发送成功 但该账户近期的平均耗时明显高于其基准耗时, 或发送超时, 减小速率
+         */
+        SLOW,
+        /**
+         * 被服务商限流, 减小速率
+         */
+        THROTTLED,
+        /**
+         * 与账户速率无关的失败 如收件人不存在, 不调整
+         */
+        FAILURE
+    }
+
+    /**
+     * 读取自适应速率的配置, 未配置的项使用默认值
+     * @param emailSendConfig 邮件发送配置
+     */
+    public void configure(EmailSendConfig emailSendConfig) {
+        isAdaptive = Boolean.TRUE.equals(emailSendConfig.getAdaptiveRate());
+        rateMin = positive(emailSendConfig.getAdaptiveRateMin(), 0.1D);
+        rateMax = Math.max(rateMin, positive(emailSendConfig.getAdaptiveRateMax(), 100D));
+        rateInitial = Math.max(rateMin, Math.min(rateMax, positive(emailSendConfig.getAdaptiveRateInitial(), 10D)));
+        rateIncrease = positive(emailSendConfig.getAdaptiveRateIncrease(), 5D);
+        Double factor = emailSendConfig.getAdaptiveDecreaseFactor();
+        decreaseFactor = Objects.isNull(factor) || factor <= 0D || factor >= 1D ? 0.5D : factor;
+        slowLatencyRatio = Objects.isNull(emailSendConfig.getAdaptiveSlowLatencyRatio()) ? 3D : emailSendConfig.getAdaptiveSlowLatencyRatio();
+        Set<String> codes = new HashSet<>();
+        for (String code : StrUtil.split(StrUtil.nullToEmpty(emailSendConfig.getAdaptiveThrottleCodes()), ',')) {
+            if (StrUtil.isNotBlank(code)) {
+                codes.add(code.trim());
+            }
+        }
+        throttleCodes = codes;
+        if (isAdaptive) {
+            log.info("adaptive rate enabled, initial:{}/s min:{}/s max:{}/s throttle codes:{}", rateInitial, rateMin, rateMax, codes);
+        }
+    }
+
+    public boolean isAdaptive() {
+        return isAdaptive;
+    }
+
+    /**
+     * 验证限制通过后 获取账户的一个发送许可
+     * @param emailSendAccount 已占用的账户
+     * @param maxConcurrency 账户同时进行的最大发送数量, 开启自适应速率时 实际上限在 1 和该值之间调整
+     * @return 账户应被释放回调度器的可用时间戳 毫秒, 达到并发上限 账户需继续被占用时 返回 -1
+     */
+    public long acquire(EmailSendAccount<A> emailSendAccount, int maxConcurrency) {
+        AccountRate accountRate = getAccountRate(emailSendAccount);
+        long now = System.currentTimeMillis();
+        synchronized (accountRate) {
+            accountRate.maxConcurrency = Math.max(1, maxConcurrency);
+            accountRate.inFlight++;
+            if (isAdaptive) {
+                accountRate.nextPermitAt = Math.max(accountRate.nextPermitAt, now) + accountRate.getIntervalMillis();
+            }
+            if (accountRate.inFlight >= getConcurrencyLimit(accountRate)) {
+                accountRate.isHeld = true;
+                return -1L;
+            }
+            return isAdaptive ? accountRate.nextPermitAt : 0L;
+        }
+    }
+
+    /**
+     * 归还账户的发送许可
+     * @param emailSendAccount 发送账户
+     * @return 账户因达到并发上限被继续占用 且现在可以释放时 返回其可用时间戳 毫秒, 否则返回 -1
+     */
+    public long release(EmailSendAccount<A> emailSendAccount) {
+        AccountRate accountRate = accountRates.get(emailSendAccount.getId());
+        if (Objects.isNull(accountRate)) {
+            log.warn("emailSendAccount:{} has no send permit, ignore release", emailSendAccount.getId());
+            return -1L;
+        }
+        synchronized (accountRate) {
+            accountRate.inFlight = Math.max(0, accountRate.inFlight - 1);
+            // 并发上限减小后 进行中的发送可能仍超过上限, 降到上限以下才释放
+            if (!accountRate.isHeld || accountRate.inFlight >= getConcurrencyLimit(accountRate)) {
+                return -1L;
+            }
+            accountRate.isHeld = false;
+            return isAdaptive ? accountRate.nextPermitAt : 0L;
+        }
+    }
+
+    /**
+     * 记录一次发送的结果, 开启自适应速率时 以 AIMD 调整账户的速率和并发上限
+     * 成功时 速率增加 rateIncrease / 速率, 持续成功时 每秒约增加 rateIncrease, 并发上限每成功 并发上限 次增加 1
+     * 被限流或变慢时 速率和并发上限乘以 decreaseFactor, 同一账户每 DECREASE_INTERVAL_MILLIS 最多减小一次
+     * @param emailSendAccount 发送账户
+     * @param latencyNanos 发送耗时 纳秒
+     * @param error 发送失败的异常, 成功时为 null
+     * @return 发送结果的分类
+     */
+    public Signal record(EmailSendAccount<A> emailSendAccount, long latencyNanos, Throwable error) {
+        if (!isAdaptive) {
+            return Objects.isNull(error) ? Signal.SUCCESS : classify(error);
+        }
+        AccountRate accountRate = getAccountRate(emailSendAccount);
+        double latencyMillis = latencyNanos / 1000000D;
+        Signal signal;
+        synchronized (accountRate) {
+            if (Objects.isNull(error)) {
+                accountRate.recordLatency(latencyMillis);
+                signal = accountRate.isSlow() ? Signal.SLOW : Signal.SUCCESS;
+            } else {
+                signal = classify(error);
+            }
+            long now = System.currentTimeMillis();
+            if (Signal.SUCCESS.equals(signal)) {
+                accountRate.rate = Math.min(rateMax, accountRate.rate + rateIncrease / accountRate.rate);
+                accountRate.concurrency = Math.min(accountRate.maxConcurrency, accountRate.concurrency + 1D / Math.floor(accountRate.concurrency));
+            } else if (!Signal.FAILURE.equals(signal) && now - accountRate.lastDecreaseAt >= DECREASE_INTERVAL_MILLIS) {
+                accountRate.lastDecreaseAt = now;
+                accountRate.rate = Math.max(rateMin, accountRate.rate * decreaseFactor);
+                accountRate.concurrency = Math.max(1D, accountRate.concurrency * decreaseFactor);
+                // 之后的发送 按减小后的速率重新计算间隔
+                accountRate.nextPermitAt = Math.max(accountRate.nextPermitAt, now + accountRate.getIntervalMillis());
+                log.warn("emailSendAccount:{} {}, rate decrease to {}/s concurrency:{}", emailSendAccount.getId(), signal,
+                        String.format("%.2f", accountRate.rate), (int) accountRate.concurrency);
+            }
+        }
+        if (!Signal.SUCCESS.equals(signal)) {
+            EmaxilMetrics.counter("emaxil.account.rate.signal", "account", EmaxilMetrics.accountTag(emailSendAccount),
+                    "signal", signal.name().toLowerCase()).increment();
+        }
+        return signal;
+    }
+
+    /**
+     * 按异常及其原因中的 SMTP 响应码 或关键字 分类发送失败
+     * 响应码在 adaptiveThrottleCodes 中 或含有限流关键字时 为 THROTTLED, 连接或读取超时 为 SLOW, 其余为 FAILURE
+     * @param error 发送失败的异常
+     * @return 发送结果的分类
+     */
+    public Signal classify(Throwable error) {
+        Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable cause = error; Objects.nonNull(cause) && visited.add(cause); cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException) {
+                return Signal.SLOW;
+            }
+            String message = cause.getMessage();
+            if (StrUtil.isBlank(message)) {
+                continue;
+            }
+            Matcher matcher = REPLY_CODE_PATTERN.matcher(message);
+            while (matcher.find()) {
+                if (throttleCodes.contains(matcher.group(1))) {
+                    return Signal.THROTTLED;
+                }
+            }
+            String lowerCaseMessage = message.toLowerCase();
+            for (String keyword : THROTTLE_KEYWORDS) {
+                if (lowerCaseMessage.contains(keyword)) {
+                    return Signal.THROTTLED;
+                }
+            }
+        }
+        return Signal.FAILURE;
+    }
+
+    /**
+     * @param emailSendAccount 发送账户
+     * @return 账户当前的发送速率 每秒, 未开启自适应速率 或账户还未发送时 返回初始速率
+     */
+    public double getRate(EmailSendAccount<A> emailSendAccount) {
+        AccountRate accountRate = accountRates.get(emailSendAccount.getId());
+        return Objects.isNull(accountRate) ? rateInitial : accountRate.rate;
+    }
+
+    /**
+     * @param emailSendAccount 发送账户
+     * @return 账户当前的并发上限, 账户还未发送时 返回 1
+     */
+    public int getConcurrencyLimit(EmailSendAccount<A> emailSendAccount) {
+        AccountRate accountRate = accountRates.get(emailSendAccount.getId());
+        if (Objects.isNull(accountRate)) {
+            return 1;
+        }
+        synchronized (accountRate) {
+            return getConcurrencyLimit(accountRate);
+        }
+    }
+
+    /**
+     * @param emailSendAccount 发送账户
+     * @return 账户进行中的发送数量
+     */
+    public int getInFlight(EmailSendAccount<A> emailSendAccount) {
+        AccountRate accountRate = accountRates.get(emailSendAccount.getId());
+        if (Objects.isNull(accountRate)) {
+            return 0;
+        }
+        synchronized (accountRate) {
+            return accountRate.inFlight;
+        }
+    }
+
+    private int getConcurrencyLimit(AccountRate accountRate) {
+        return isAdaptive ? Math.min(accountRate.maxConcurrency, (int) accountRate.concurrency) : accountRate.maxConcurrency;
+    }
+
+    private AccountRate getAccountRate(EmailSendAccount<A> emailSendAccount) {
+        AccountRate accountRate = accountRates.get(emailSendAccount.getId());
+        if (Objects.nonNull(accountRate)) {
+            return accountRate;
+        }
+        return accountRates.computeIfAbsent(emailSendAccount.getId(), id -> {
+            AccountRate newAccountRate = new AccountRate(rateInitial);
+            String accountTag = EmaxilMetrics.accountTag(emailSendAccount);
+            if (isAdaptive && !EmaxilMetrics.OTHER.equals(accountTag)) {
+                EmaxilMetrics.gauge("emaxil.account.rate", newAccountRate, value -> value.rate, "account", accountTag);
+                EmaxilMetrics.gauge("emaxil.account.concurrency", newAccountRate, value -> Math.floor(value.concurrency), "account", accountTag);
+            }
+            return newAccountRate;
+        });
+    }
+
+    private static double positive(Double value, double defaultValue) {
+        return Objects.isNull(value) || value <= 0D ? defaultValue : value;
+    }
+
+    /**
+     * 单个账户的发送速率 并发上限 进行中的发送数量, 以及该账户是否因达到并发上限 而被继续占用
+     */
+    private final class AccountRate {
+        private volatile double rate;
+        private volatile double concurrency = 1D;
+        private int maxConcurrency = 1;
+        private int inFlight = 0;
+        private boolean isHeld = false;
+        private long nextPermitAt = 0L;
+        private long lastDecreaseAt = 0L;
+        private double latencyEwmaMillis = 0D;
+        private double latencyBaselineMillis = 0D;
+        private int latencySamples = 0;
+
+        private AccountRate(double rate) {
+            this.rate = rate;
+        }
+
+        private long getIntervalMillis() {
+            return (long) (TimeUnit.SECONDS.toMillis(1) / rate);
+        }
+
+        /**
+         * 以指数加权平均耗时 与 基准耗时 (平均耗时的最小值) 比较, 单次发送的耗时波动不会被视为变慢
+         */
+        private boolean isSlow() {
+            return slowLatencyRatio > 1D && latencySamples >= MIN_LATENCY_SAMPLES
+                    && latencyEwmaMillis > latencyBaselineMillis * slowLatencyRatio;
+        }
+
+        private void recordLatency(double latencyMillis) {
+            latencyEwmaMillis = latencySamples == 0 ? latencyMillis
+                    : latencyEwmaMillis + LATENCY_EWMA_ALPHA * (latencyMillis - latencyEwmaMillis);
+            latencySamples++;
+            if (latencySamples == MIN_LATENCY_SAMPLES || latencyEwmaMillis < latencyBaselineMillis) {
+                latencyBaselineMillis = latencyEwmaMillis;
+            } else if (latencySamples > MIN_LATENCY_SAMPLES) {
+                latencyBaselineMillis += LATENCY_BASELINE_ALPHA * (latencyEwmaMillis - latencyBaselineMillis);
+            }
+        }
+    }
+}
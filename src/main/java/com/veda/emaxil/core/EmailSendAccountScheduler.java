@@ -0,0 +1,250 @@
+package com.veda.emaxil.core;
+
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 邮件发送账户调度器
+ * 每个空闲的账户以 (最早可用时间, 序号) 排序放在一个并发跳表中, 线程无需全局锁 通过移除跳表中的第一个到期账户来占用它
+ * 没有到期的账户时 线程挂起到第一个账户的可用时间, 账户被释放时 唤醒一个等待的线程
+ * 账户使用完后 以其下次可用时间释放, 立即可用的账户排在已到期账户的后面 因此多个账户会被轮流使用
+ * 同一时刻 每个账户在本节点只会被一个线程占用
+ * 重新加载账户时 空闲的账户立即被替换或移除, 被占用的账户 在释放时被替换或移除, 同一账户ID 在调度中始终只有一个实例
+ * @param <A> 账户
+ */
+@Slf4j
+public class EmailSendAccountScheduler<A extends AbstractAccount> {
+
+    /**
+     * 单次挂起的最长时间 毫秒, 防止唤醒信号丢失时 线程长时间挂起
+     */
+    private static final long MAX_PARK_MILLIS = 1000L;
+
+    private final ConcurrentSkipListSet<Slot<A>> slots = new ConcurrentSkipListSet<>(
+            Comparator.<Slot<A>>comparingLong(slot -> slot.dueAt).thenComparingLong(slot -> slot.sequence));
+
+    /**
+     * 被占用的账户ID 与 被占用的账户实例
+     */
+    private final Map<String, EmailSendAccount<A>> claimedAccounts = new ConcurrentHashMap<>();
+
+    /**
+     * 等待替换的账户ID 与 新的账户实例, 账户被释放 或被占用时 以新实例代替
+     */
+    private final Map<String, EmailSendAccount<A>> replacedAccounts = new ConcurrentHashMap<>();
+
+    /**
+     * 等待移除的账户ID, 账户被释放 或被占用时 不再加入调度
+     */
+    private final Set<String> removedAccounts = ConcurrentHashMap.newKeySet();
+
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong sequence = new AtomicLong(0L);
+
+    /**
+     * 将账户加入调度, 可用的账户立即可被占用, 不可用的账户在其下次可用时间后才可被占用
+     * @param emailSendAccount 发送账户
+     */
+    public void schedule(EmailSendAccount<A> emailSendAccount) {
+        // 被占用时移除 但尚未释放的账户 重新加入时 在释放时替换, 避免同一账户ID 同时有两个实例
+        if (removedAccounts.contains(emailSendAccount.getId())) {
+            replace(emailSendAccount);
+            return;
+        }
+        addSlot(emailSendAccount, getDueAt(emailSendAccount));
+    }
+
+    /**
+     * 占用一个已到期的账户, 没有时 挂起等待直到有账户到期
+     * @param timeoutMillis 最长等待时间 毫秒, 小于 0 表示一直等待
+     * @return 占用的账户, 超时或被中断时返回 null
+     */
+    public EmailSendAccount<A> claim(long timeoutMillis) {
+        long deadline = timeoutMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
+        Thread current = Thread.currentThread();
+        while (true) {
+            Slot<A> slot = firstSlot();
+            long now = System.currentTimeMillis();
+            if (Objects.nonNull(slot) && slot.dueAt <= now) {
+                if (slots.remove(slot)) {
+                    EmailSendAccount<A> emailSendAccount = reloaded(slot.emailSendAccount);
+                    if (Objects.isNull(emailSendAccount)) {
+                        continue;
+                    }
+                    claimedAccounts.put(emailSendAccount.getId(), emailSendAccount);
+                    // 仍有到期的账户时 继续唤醒下一个等待的线程
+                    Slot<A> next = firstSlot();
+                    if (Objects.nonNull(next) && next.dueAt <= now) {
+                        signal();
+                    }
+                    return emailSendAccount;
+                }
+                // 被其它线程抢先占用 重新获取
+                continue;
+            }
+            if (now >= deadline) {
+                return null;
+            }
+            long parkMillis = Math.min(deadline - now, MAX_PARK_MILLIS);
+            if (Objects.nonNull(slot)) {
+                parkMillis = Math.min(parkMillis, slot.dueAt - now);
+            }
+            waiters.add(current);
+            // 登记后再次检查 避免错过登记前释放的账户
+            if (firstSlot() == slot) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(parkMillis));
+            }
+            waiters.remove(current);
+            if (current.isInterrupted()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 释放占用的账户, 按账户ID 释放被占用的实例, 账户在占用期间被替换时 以新实例加入调度, 被移除时 不再加入调度
+     * @param emailSendAccount 发送账户
+     * @param dueAt 账户下次可用的时间戳 毫秒, 不大于当前时间表示立即可用
+     */
+    public void release(EmailSendAccount<A> emailSendAccount, long dueAt) {
+        EmailSendAccount<A> claimedAccount = claimedAccounts.remove(emailSendAccount.getId());
+        if (Objects.isNull(claimedAccount)) {
+            log.warn("emailSendAccount:{} is not claimed, ignore release", emailSendAccount.getId());
+            return;
+        }
+        EmailSendAccount<A> reloadedAccount = reloaded(claimedAccount);
+        if (Objects.nonNull(reloadedAccount)) {
+            addSlot(reloadedAccount, reloadedAccount == claimedAccount ? dueAt : Math.max(dueAt, getDueAt(reloadedAccount)));
+        }
+    }
+
+    /**
+     * 以新实例替换 调度中相同ID的账户, 账户空闲时立即替换, 被占用时 在释放时替换
+     * @param emailSendAccount 新的发送账户实例
+     */
+    public void replace(EmailSendAccount<A> emailSendAccount) {
+        String id = emailSendAccount.getId();
+        removedAccounts.remove(id);
+        replacedAccounts.put(id, emailSendAccount);
+        for (Slot<A> slot : slots) {
+            if (id.equals(slot.emailSendAccount.getId()) && slot.emailSendAccount != emailSendAccount && slots.remove(slot)) {
+                if (replacedAccounts.remove(id, emailSendAccount)) {
+                    addSlot(emailSendAccount, Math.max(slot.dueAt, getDueAt(emailSendAccount)));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 将账户移出调度, 账户空闲时立即移除, 被占用时 在释放时移除
+     * @param emailSendAccount 发送账户
+     */
+    public void remove(EmailSendAccount<A> emailSendAccount) {
+        String id = emailSendAccount.getId();
+        replacedAccounts.remove(id);
+        removedAccounts.add(id);
+        for (Slot<A> slot : slots) {
+            if (id.equals(slot.emailSendAccount.getId()) && slots.remove(slot)) {
+                removedAccounts.remove(id);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 将已被标记为可用 但仍在等待可用时间的空闲账户 调整为立即可用
+     * 用于定期更新账户状态后 提前唤醒等待的线程
+     */
+    public void refresh() {
+        long now = System.currentTimeMillis();
+        for (Slot<A> slot : slots) {
+            if (slot.dueAt > now && slot.emailSendAccount.isEnable() && slots.remove(slot)) {
+                addSlot(slot.emailSendAccount, now);
+            }
+        }
+    }
+
+    /**
+     * @return 空闲 (未被占用) 的账户数量
+     */
+    public int getIdleCount() {
+        return slots.size();
+    }
+
+    /**
+     * @return 最早的空闲账户的可用时间戳, 没有空闲账户时返回 0
+     */
+    public long getNextDueAt() {
+        Slot<A> slot = firstSlot();
+        return Objects.isNull(slot) ? 0L : slot.dueAt;
+    }
+
+    /**
+     * 空闲账户 被占用前 或被占用的账户 释放时, 应用等待中的替换 或移除
+     * @param emailSendAccount 调度中的账户实例
+     * @return 当前的账户实例, 已被移除时返回 null
+     */
+    private EmailSendAccount<A> reloaded(EmailSendAccount<A> emailSendAccount) {
+        if (replacedAccounts.isEmpty() && removedAccounts.isEmpty()) {
+            return emailSendAccount;
+        }
+        String id = emailSendAccount.getId();
+        if (removedAccounts.remove(id)) {
+            log.info("emailSendAccount:{} removed from schedule", id);
+            return null;
+        }
+        EmailSendAccount<A> replacedAccount = replacedAccounts.remove(id);
+        return Objects.isNull(replacedAccount) ? emailSendAccount : replacedAccount;
+    }
+
+    private static long getDueAt(EmailSendAccount<?> emailSendAccount) {
+        return emailSendAccount.isEnable() ? 0L : emailSendAccount.getNextEnableAt();
+    }
+
+    private void addSlot(EmailSendAccount<A> emailSendAccount, long dueAt) {
+        slots.add(new Slot<>(emailSendAccount, dueAt, sequence.incrementAndGet()));
+        signal();
+    }
+
+    private void signal() {
+        Thread waiter = waiters.poll();
+        if (Objects.nonNull(waiter)) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private Slot<A> firstSlot() {
+        try {
+            return slots.isEmpty() ? null : slots.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private static final class Slot<A extends AbstractAccount> {
+        private final EmailSendAccount<A> emailSendAccount;
+        private final long dueAt;
+        private final long sequence;
+
+        Slot(EmailSendAccount<A> emailSendAccount, long dueAt, long sequence) {
+            this.emailSendAccount = emailSendAccount;
+            this.dueAt = dueAt;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.veda.emaxil.core;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 邮件发送账户 的不可变快照
+ * 重新加载账户时 创建新的快照并整体替换, 读取账户的线程不需要加锁, 同一个快照中的账户列表 在读取过程中不会变化
+ * @param <A> 账户
+ */
+public final class EmailSendAccountSnapshot<A extends AbstractAccount> {
+
+    /**
+     * 本地版本号, 每次账户发生变化时加一
+     */
+    @Getter
+    private final long version;
+
+    /**
+     * 加载时 EmailSendAccountService.selectVersion 返回的版本号, 未提供时为 null
+     */
+    @Getter
+    private final Long sourceVersion;
+
+    @Getter
+    private final List<EmailSendAccount<A>> emailSendAccounts;
+
+    private final Map<String, EmailSendAccount<A>> emailSendAccountsById;
+
+    /**
+     * @param version 本地版本号
+     * @param sourceVersion 账户持久化的版本号
+     * @param emailSendAccounts 发送账户列表, 账户ID 不能重复
+     */
+    public EmailSendAccountSnapshot(long version, Long sourceVersion, List<EmailSendAccount<A>> emailSendAccounts) {
+        Map<String, EmailSendAccount<A>> emailSendAccountsById = new LinkedHashMap<>(emailSendAccounts.size() * 2);
+        for (EmailSendAccount<A> emailSendAccount : emailSendAccounts) {
+            if (Objects.nonNull(emailSendAccountsById.put(emailSendAccount.getId(), emailSendAccount))) {
+                throw new IllegalArgumentException(StrUtil.format("duplicate emailSendAccount id:{}", emailSendAccount.getId()));
+            }
+        }
+        this.version = version;
+        this.sourceVersion = sourceVersion;
+        this.emailSendAccounts = Collections.unmodifiableList(new ArrayList<>(emailSendAccounts));
+        this.emailSendAccountsById = Collections.unmodifiableMap(emailSendAccountsById);
+    }
+
+    public static <A extends AbstractAccount> EmailSendAccountSnapshot<A> empty() {
+        return new EmailSendAccountSnapshot<>(0L, null, Collections.emptyList());
+    }
+
+    /**
+     * @param id 账户ID
+     * @return 快照中该ID的账户, 不存在时返回 null
+     */
+    public EmailSendAccount<A> get(String id) {
+        return emailSendAccountsById.get(id);
+    }
+
+    /**
+     * @param emailSendAccount 发送账户
+     * @return 该账户实例 是否为快照中的实例, 被重新加载替换 或移除的旧实例 返回 false
+     */
+    public boolean contains(EmailSendAccount<A> emailSendAccount) {
+        return emailSendAccountsById.get(emailSendAccount.getId()) == emailSendAccount;
+    }
+
+    public int size() {
+        return emailSendAccounts.size();
+    }
+}
@@ -1,27 +1,36 @@
 package com.veda.emaxil.core;
 
+import cn.hutool.core.util.StrUtil;
 import com.veda.emaxil.core.entity.AbstractAccount;
 import com.veda.emaxil.core.entity.AbstractEmail;
 import com.veda.emaxil.core.entity.EmailSendAccount;
 import com.veda.emaxil.core.entity.EmailSendConfig;
+import com.veda.emaxil.core.entity.EmailSendRestrict;
 import com.veda.emaxil.core.restrict.RestrictService;
 import com.veda.emaxil.core.service.EmailSendAccountService;
 import com.veda.emaxil.core.service.EmailSendConfigService;
 import com.veda.emaxil.core.service.EmailSendTaskService;
+import com.veda.emaxil.util.TimerWheel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class EmaxilCore<A extends AbstractAccount, E extends AbstractEmail> {
@@ -42,13 +51,23 @@ public class EmaxilCore<A extends AbstractAccount, E extends AbstractEmail> {
     @Autowired
     private EmailSendTaskService<E> emailSendTaskService;
 
-    // 邮件发送配置
+    // 邮件发送配置, 重新加载时整体替换
     private volatile EmailSendConfig emailSendConfig;
-    private ReentrantReadWriteLock emailSendConfigLock = new ReentrantReadWriteLock(true);
 
-    // 邮件发送账户
-    private final List<EmailSendAccount<A>> emailSendAccounts = new ArrayList<>();
-    private volatile int emailSendAccountCurrentPointIndex = 0;
+    // 邮件发送配置变化的监听者
+    private final List<Consumer<EmailSendConfig>> emailSendConfigListeners = new CopyOnWriteArrayList<>();
+
+    // 邮件发送账户 的不可变快照, 重新加载时整体替换
+    @Getter
+    private volatile EmailSendAccountSnapshot<A> emailSendAccountSnapshot = EmailSendAccountSnapshot.empty();
+
+    // 邮件发送账户调度器
+    @Getter
+    private final EmailSendAccountScheduler<A> emailSendAccountScheduler = new EmailSendAccountScheduler<>();
+
+    // 邮件发送账户 发送许可 与 自适应速率
+    @Getter
+    private final EmailSendAccountRateController<A> emailSendAccountRateController = new EmailSendAccountRateController<>();
 
     // 邮件发送线程池
     @Getter
@@ -58,70 +77,285 @@ public class EmaxilCore<A extends AbstractAccount, E extends AbstractEmail> {
     @Getter
     private ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
 
+    // 账户重新可用定时器 独占的线程, 不与 scheduledExecutor 上的队列维护 和 ACK 续期等 Redis 操作互相延迟
+    private final ScheduledExecutorService enableTimerExecutor = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("emaxil-enable-timer-"));
+
+    // 不可用账户的下次可用时间未知时 重新检验的间隔 毫秒
+    private static final long UNKNOWN_ENABLE_DELAY_MILLIS = 1000L;
+
+    // 账户重新可用定时器的刻度 毫秒 和 槽位数量
+    private static final long ENABLE_TIMER_TICK_MILLIS = 50L;
+    private static final int ENABLE_TIMER_WHEEL_SIZE = 512;
+
+    // 不可用账户 在其下次可用时间重新检验的定时器
+    private final TimerWheel<EmailSendAccount<A>> emailSendAccountEnableTimer = new TimerWheel<>(ENABLE_TIMER_TICK_MILLIS, ENABLE_TIMER_WHEEL_SIZE);
+
+    // 已登记到定时器的账户实例 与 其最近登记的到期时间, 到期时间未变化时 不重复登记
+    private final Map<EmailSendAccount<A>, Long> emailSendAccountEnableDueAts = new ConcurrentHashMap<>();
+
     // 清理统计数据的时间间隔 毫秒
-    private Long deleteEmailSendAccountStatisticMillisInterval;
+    private volatile Long deleteEmailSendAccountStatisticMillisInterval;
 
     @PostConstruct
     public void initialized(){
         loadEmailSendConfig();
+        emailSendAccountRateController.configure(getEmailSendConfig());
         initEmailSendThreadPool();
         loadEmailSendAccounts();
         autoUpdateEmailSendAccountEnable();
         autoDeleteEmailSendAccountStatistic();
+        autoReload();
+        bindMetrics();
+    }
+
+    /**
+     * 停止周期执行 和 邮件发送线程池, 常驻线程池的消费者被中断后退出
+     */
+    @PreDestroy
+    public void close() {
+        scheduledExecutor.shutdownNow();
+        enableTimerExecutor.shutdownNow();
+        if (Objects.nonNull(emailSendThreadPool)) {
+            emailSendThreadPool.shutdown();
+        }
     }
 
     public EmailSendConfig getEmailSendConfig() {
-        try {
-            emailSendConfigLock.readLock().lock();
-            return emailSendConfig;
-        } finally {
-            emailSendConfigLock.readLock().unlock();
+        return emailSendConfig;
+    }
+
+    /**
+     * 保存 并立即应用新的邮件发送配置, 见 applyEmailSendConfig
+     * @param emailSendConfig 邮件发送配置
+     */
+    public void updateEmailSendConfig(EmailSendConfig emailSendConfig) {
+        emailSendConfigService.update(emailSendConfig);
+        applyEmailSendConfig(emailSendConfig);
+    }
+
+    /**
+     * 从 EmailSendConfigService 重新加载邮件发送配置, 与当前配置不同时 应用新的配置
+     * @return 配置是否变化
+     */
+    public synchronized boolean reloadEmailSendConfig() {
+        EmailSendConfig loadedConfig = emailSendConfigService.select();
+        if (Objects.isNull(loadedConfig) || loadedConfig.equals(emailSendConfig)) {
+            return false;
         }
+        applyEmailSendConfig(loadedConfig);
+        return true;
     }
 
     /**
-     * 获取下一个可用的邮件发送账户
-     * 所有的邮件发送账户构成一个圆圈, 每次新的线程需要获取邮件发送账户时
-     * 获取的都是 emailSendAccountCurrentPointIndex 指向的下个可用账户
-     * 确保多线程发送邮件使用的发送账户大体是均匀分布的
-     * @return 可用的邮件发送账户
+     * 注册邮件发送配置变化的监听者, 在新配置生效后 于修改配置的线程中调用
+     * @param listener 监听者
+     */
+    public void addEmailSendConfigListener(Consumer<EmailSendConfig> listener) {
+        emailSendConfigListeners.add(listener);
+    }
+
+    /**
+     * @return 当前快照中的所有邮件发送账户, 不可修改
      */
-    public EmailSendAccount<A> getEmailSendAccount(){
-        // 如果找不到可用账户 其余未获取可用账户的线程将会卡在此处等待可用账户
-        synchronized (emailSendAccounts) {
-            EmailSendAccount<A> emailSendAccount = getNextEnableEmailSendAccount();
-            if (Objects.nonNull(emailSendAccount)) {
-                return emailSendAccount;
+    public List<EmailSendAccount<A>> getEmailSendAccounts() {
+        return emailSendAccountSnapshot.getEmailSendAccounts();
+    }
+
+    /**
+     * 从 EmailSendAccountService 重新加载邮件发送账户, 与当前快照比较后 发布新的快照, 不需要停止发送 或清空队列
+     * 新增的账户 检验启用状态后加入调度; 移除的账户 空闲时立即移出调度, 被占用时 在释放后移出;
+     * 账户配置 服务商 或限制规则 变化的账户 以新实例替换, 其已发送的统计数据 和 自适应速率保留
+     * 账户配置 A 未重写 equals 时 每次加载都视为变化, 应通过 EmailSendAccountService.selectVersion 避免重复替换
+     * 加载的账户为空时 保留当前快照
+     * @return 账户是否变化
+     */
+    public synchronized boolean reloadEmailSendAccounts() {
+        EmailSendAccountSnapshot<A> currentSnapshot = emailSendAccountSnapshot;
+        Long sourceVersion = emailSendAccountService.selectVersion();
+        if (Objects.nonNull(sourceVersion) && sourceVersion.equals(currentSnapshot.getSourceVersion())) {
+            return false;
+        }
+        List<EmailSendAccount<A>> loadedAccounts = emailSendAccountService.selectAllEnabled();
+        if (loadedAccounts.isEmpty()) {
+            log.warn("no enabled email send account loaded, keep snapshot version:{}", currentSnapshot.getVersion());
+            return false;
+        }
+        EmailSendAccountSnapshot<A> loadedSnapshot = new EmailSendAccountSnapshot<>(currentSnapshot.getVersion() + 1, sourceVersion, loadedAccounts);
+        List<EmailSendAccount<A>> emailSendAccounts = new ArrayList<>(loadedAccounts.size());
+        List<EmailSendAccount<A>> addedAccounts = new ArrayList<>();
+        List<EmailSendAccount<A>> replacedAccounts = new ArrayList<>();
+        List<EmailSendAccount<A>> removedAccounts = new ArrayList<>();
+        for (EmailSendAccount<A> loadedAccount : loadedAccounts) {
+            EmailSendAccount<A> currentAccount = currentSnapshot.get(loadedAccount.getId());
+            if (Objects.isNull(currentAccount)) {
+                addedAccounts.add(loadedAccount);
+            } else if (isSameEmailSendAccount(currentAccount, loadedAccount)) {
+                // 未变化的账户 保留当前实例 及其启用状态
+                emailSendAccounts.add(currentAccount);
+                continue;
+            } else {
+                replacedAccounts.add(loadedAccount);
             }
-            while (true) {
-                // 未找到可用的发送账户 立即尝试更新账户状态
-                restrictService.updateEmailSendAccountEnable(emailSendAccounts, false);
-                emailSendAccount = getNextEnableEmailSendAccount();
-                if (Objects.nonNull(emailSendAccount)) {
-                    // 如果找到可用的 返回账户
-                    return emailSendAccount;
-                } else {
-                    // 否则 休眠一段时间后重试
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        log.error("waiting enabled email send account interrupted");
-                    }
-                }
+            emailSendAccounts.add(loadedAccount);
+        }
+        for (EmailSendAccount<A> currentAccount : currentSnapshot.getEmailSendAccounts()) {
+            if (Objects.isNull(loadedSnapshot.get(currentAccount.getId()))) {
+                removedAccounts.add(currentAccount);
             }
+        }
+        boolean isChanged = !addedAccounts.isEmpty() || !replacedAccounts.isEmpty() || !removedAccounts.isEmpty();
+        long version = isChanged ? currentSnapshot.getVersion() + 1 : currentSnapshot.getVersion();
+        List<EmailSendAccount<A>> newAccounts = new ArrayList<>(addedAccounts);
+        newAccounts.addAll(replacedAccounts);
+        if (!newAccounts.isEmpty()) {
+            restrictService.updateEmailSendAccountEnable(newAccounts, false);
+        }
+        // 先发布新的快照 再调整调度, 此后被占用的旧实例 在释放时被替换或移除
+        emailSendAccountSnapshot = new EmailSendAccountSnapshot<>(version, sourceVersion, emailSendAccounts);
+        if (!isChanged) {
+            return false;
+        }
+        addedAccounts.forEach(emailSendAccountScheduler::schedule);
+        replacedAccounts.forEach(emailSendAccountScheduler::replace);
+        removedAccounts.forEach(emailSendAccountScheduler::remove);
+        newAccounts.forEach(this::scheduleEmailSendAccountEnable);
+        bindUtilizationMetrics(newAccounts);
+        updateDeleteEmailSendAccountStatisticMillisInterval();
+        log.info("email send account snapshot version:{} accounts:{} added:{} replaced:{} removed:{}", version,
+                emailSendAccounts.size(), addedAccounts.size(), replacedAccounts.size(), removedAccounts.size());
+        return true;
+    }
+
+    /**
+     * 占用一个可用的邮件发送账户, 使用后必须通过 releaseEmailSendAccount 释放
+     * 所有账户都不可用时 挂起等待直到最早的账户到达其下次可用时间, 或有账户被释放
+     * 账户按释放顺序轮流被占用 确保多线程发送邮件使用的发送账户大体是均匀分布的
+     * @return 可用的邮件发送账户
+     */
+    public EmailSendAccount<A> claimEmailSendAccount(){
+        long startNanos = System.nanoTime();
+        EmailSendAccount<A> emailSendAccount = emailSendAccountScheduler.claim(-1);
+        EmaxilMetrics.record(EmaxilMetrics.histogramTimer("emaxil.account.claim"), startNanos);
+        if (Objects.isNull(emailSendAccount)) {
+            throw new IllegalStateException("waiting enabled email send account interrupted");
+        }
+        return emailSendAccount;
+    }
+
+    /**
+     * 释放占用的邮件发送账户
+     * 账户不可发送时 在其下次可用时间之前 不会再被占用, 下次可用时间未知时 在 UNKNOWN_ENABLE_DELAY_MILLIS 后重新检验
+     * @param emailSendAccount 邮件发送账户
+     * @param isSendable 账户当前是否仍可发送
+     */
+    public void releaseEmailSendAccount(EmailSendAccount<A> emailSendAccount, boolean isSendable){
+        long dueAt = 0L;
+        if (!isSendable) {
+            dueAt = emailSendAccount.getNextEnableAt() > 0 ? emailSendAccount.getNextEnableAt()
+                    : System.currentTimeMillis() + UNKNOWN_ENABLE_DELAY_MILLIS;
+            scheduleEmailSendAccountEnable(emailSendAccount);
+        }
+        emailSendAccountScheduler.release(emailSendAccount, dueAt);
+    }
+
+    /**
+     * 验证限制通过后 获取账户的一个发送许可 代替 releaseEmailSendAccount(emailSendAccount, true), 发送结束后必须通过 releaseSendPermit 归还
+     * 账户进行中的发送数量未达到并发上限时 立即释放该账户, 开启自适应速率时 在按其速率计算的下次发送时间之前 不会再被占用
+     * 达到并发上限时 账户继续被占用 直到有发送完成
+     * @param emailSendAccount 已占用的邮件发送账户
+     * @param maxConcurrency 账户同时进行的最大发送数量
+     */
+    public void acquireSendPermit(EmailSendAccount<A> emailSendAccount, int maxConcurrency) {
+        long dueAt = emailSendAccountRateController.acquire(emailSendAccount, maxConcurrency);
+        if (dueAt >= 0) {
+            emailSendAccountScheduler.release(emailSendAccount, dueAt);
+        }
+    }
 
+    /**
+     * 归还账户的发送许可, 账户因达到并发上限被继续占用时 释放该账户
+     * @param emailSendAccount 邮件发送账户
+     */
+    public void releaseSendPermit(EmailSendAccount<A> emailSendAccount) {
+        long dueAt = emailSendAccountRateController.release(emailSendAccount);
+        if (dueAt >= 0) {
+            emailSendAccountScheduler.release(emailSendAccount, dueAt);
         }
     }
 
     /**
      * 定期自动更新邮件发送账户的状态
+     * 不可用的账户在其下次可用时间 由定时器在独占的线程上重新检验, 同一刻度到期的账户一起检验; 每 60s 检验所有不可用的账户 作为兜底
      */
     public void autoUpdateEmailSendAccountEnable() {
         scheduledExecutor.scheduleAtFixedRate(() -> {
-            synchronized (emailSendAccounts) {
+            try {
+                List<EmailSendAccount<A>> emailSendAccounts = getEmailSendAccounts();
                 restrictService.updateEmailSendAccountEnable(emailSendAccounts, true);
+                // 仍不可用的账户 按新的下次可用时间重新登记
+                emailSendAccounts.forEach(this::scheduleEmailSendAccountEnable);
+                // 重新可用的账户 立即唤醒等待的线程
+                emailSendAccountScheduler.refresh();
+            } catch (Exception e) {
+                log.error("update emailSendAccount enable failed", e);
             }
         }, 60, 60, TimeUnit.SECONDS);
+        enableTimerExecutor.scheduleAtFixedRate(this::updateDueEmailSendAccountEnable,
+                ENABLE_TIMER_TICK_MILLIS, ENABLE_TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 重新检验 到达下次可用时间的不可用账户, 所有到期的账户在一次调用中检验
+     * 检验后仍不可用的账户 (如其它节点在此期间发送过) 按新的下次可用时间重新登记, 已被替换或移除的账户 不再检验
+     */
+    private void updateDueEmailSendAccountEnable() {
+        long now = System.currentTimeMillis();
+        EmailSendAccountSnapshot<A> snapshot = emailSendAccountSnapshot;
+        List<EmailSendAccount<A>> expiredAccounts = emailSendAccountEnableTimer.advance(now);
+        // 登记的到期时间已过 才移除, 之后可以按新的下次可用时间重新登记
+        expiredAccounts.forEach(emailSendAccount -> emailSendAccountEnableDueAts.computeIfPresent(emailSendAccount,
+                (account, dueAt) -> dueAt <= now ? null : dueAt));
+        List<EmailSendAccount<A>> dueAccounts = expiredAccounts.stream()
+                .filter(emailSendAccount -> !emailSendAccount.isEnable() && emailSendAccount.getNextEnableAt() <= now)
+                .filter(snapshot::contains)
+                .distinct()
+                .collect(Collectors.toList());
+        if (dueAccounts.isEmpty()) {
+            return;
+        }
+        try {
+            restrictService.updateEmailSendAccountEnable(dueAccounts, true);
+        } catch (Exception e) {
+            log.error(StrUtil.format("update {} due emailSendAccount enable failed", dueAccounts.size()), e);
+            dueAccounts.forEach(emailSendAccount -> scheduleEmailSendAccountEnable(emailSendAccount, now + UNKNOWN_ENABLE_DELAY_MILLIS));
+            return;
+        }
+        dueAccounts.forEach(this::scheduleEmailSendAccountEnable);
+        emailSendAccountScheduler.refresh();
+    }
+
+    /**
+     * 不可用 且下次可用时间已知的账户 登记到定时器中, 在该时间重新检验
+     * @param emailSendAccount 邮件发送账户
+     */
+    private void scheduleEmailSendAccountEnable(EmailSendAccount<A> emailSendAccount) {
+        if (!emailSendAccount.isEnable() && emailSendAccount.getNextEnableAt() > 0) {
+            scheduleEmailSendAccountEnable(emailSendAccount, emailSendAccount.getNextEnableAt());
+        }
+    }
+
+    /**
+     * 每个账户实例 只保留最近登记的到期时间, 与已登记的到期时间相同时 不再添加到定时器
+     * 每次拒绝 和 60s 兜底检验都会重新登记 长时间不可用的账户, 不去重时 定时器中会堆积大量相同的元素
+     * @param emailSendAccount 邮件发送账户
+     * @param dueAt 到期时间戳 毫秒
+     */
+    private void scheduleEmailSendAccountEnable(EmailSendAccount<A> emailSendAccount, long dueAt) {
+        Long previousDueAt = emailSendAccountEnableDueAts.put(emailSendAccount, dueAt);
+        if (Objects.isNull(previousDueAt) || previousDueAt != dueAt) {
+            emailSendAccountEnableTimer.schedule(emailSendAccount, dueAt);
+        }
     }
 
     /**
@@ -129,35 +363,112 @@ public class EmaxilCore<A extends AbstractAccount, E extends AbstractEmail> {
      */
     public void autoDeleteEmailSendAccountStatistic() {
         scheduledExecutor.scheduleAtFixedRate(() -> {
-            synchronized (emailSendAccounts) {
-                long beforeTimestamps = System.currentTimeMillis() - deleteEmailSendAccountStatisticMillisInterval;
-                restrictService.deleteEmailSendAccountStatistic(emailSendAccounts, beforeTimestamps);
-            }
+            long beforeTimestamps = System.currentTimeMillis() - deleteEmailSendAccountStatisticMillisInterval;
+            restrictService.deleteEmailSendAccountStatistic(getEmailSendAccounts(), beforeTimestamps);
         }, 24, 24, TimeUnit.HOURS);
     }
 
-    private EmailSendAccount<A> getNextEnableEmailSendAccount(){
-        int size = emailSendAccounts.size();
-        int sizeOut = size + emailSendAccountCurrentPointIndex + 1;
-        // 确保只遍历数组一圈
-        for (int i = emailSendAccountCurrentPointIndex + 1; i < sizeOut; i++) {
-            EmailSendAccount<A> emailSendAccount = emailSendAccounts.get(i < size ? i : i - size);
-            // 如果找到可用的直接返回
-            if (emailSendAccount.isEnable()) {
-                emailSendAccountCurrentPointIndex = i;
-                return emailSendAccount;
+    /**
+     * reloadIntervalMillis 大于 0 时 定期重新加载邮件发送配置 和 邮件发送账户
+     */
+    private void autoReload() {
+        Long reloadIntervalMillis = getEmailSendConfig().getReloadIntervalMillis();
+        if (Objects.isNull(reloadIntervalMillis) || reloadIntervalMillis <= 0) {
+            return;
+        }
+        scheduledExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                reloadEmailSendConfig();
+            } catch (Exception e) {
+                log.error("reload emailSendConfig failed", e);
+            }
+            try {
+                reloadEmailSendAccounts();
+            } catch (Exception e) {
+                log.error("reload emailSendAccounts failed", e);
+            }
+        }, reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 注册账户调度, 发送线程池 和 每个账户每条限制规则的使用比例 仪表
+     */
+    private void bindMetrics() {
+        EmaxilMetrics.gauge("emaxil.account.idle", emailSendAccountScheduler, EmailSendAccountScheduler::getIdleCount);
+        EmaxilMetrics.gauge("emaxil.account.enabled", this,
+                core -> core.getEmailSendAccounts().stream().filter(EmailSendAccount::isEnable).count());
+        EmaxilMetrics.gauge("emaxil.account.snapshot.version", this, core -> core.getEmailSendAccountSnapshot().getVersion());
+        EmaxilMetrics.gauge("emaxil.executor.active", emailSendThreadPool, ThreadPoolTaskExecutor::getActiveCount);
+        EmaxilMetrics.gauge("emaxil.executor.size", emailSendThreadPool, ThreadPoolTaskExecutor::getCorePoolSize);
+        bindUtilizationMetrics(getEmailSendAccounts());
+    }
+
+    /**
+     * 注册账户每条限制规则的使用比例 仪表, 超出账户标签数量上限的账户 不注册使用比例
+     * 仪表按账户ID 读取当前快照中的账户, 账户被替换后 同一仪表读取新实例, 被移除后 返回 NaN
+     * @param emailSendAccounts 发送账户列表
+     */
+    private void bindUtilizationMetrics(List<EmailSendAccount<A>> emailSendAccounts) {
+        for (EmailSendAccount<A> emailSendAccount : emailSendAccounts) {
+            String accountTag = EmaxilMetrics.accountTag(emailSendAccount);
+            if (EmaxilMetrics.OTHER.equals(accountTag)) {
+                continue;
+            }
+            String id = emailSendAccount.getId();
+            for (EmailSendRestrict restrict : emailSendAccount.getRestricts()) {
+                String restrictTag = EmaxilMetrics.restrictTag(restrict);
+                EmaxilMetrics.gauge("emaxil.restrict.utilization", this, core -> core.getUtilization(id, restrictTag),
+                        "account", accountTag, "provider", EmaxilMetrics.providerTag(emailSendAccount),
+                        "restrict", restrictTag);
             }
         }
-        return null;
     }
 
+    private double getUtilization(String emailSendAccountId, String restrictTag) {
+        EmailSendAccount<A> emailSendAccount = emailSendAccountSnapshot.get(emailSendAccountId);
+        if (Objects.nonNull(emailSendAccount)) {
+            for (EmailSendRestrict restrict : emailSendAccount.getRestricts()) {
+                if (restrictTag.equals(EmaxilMetrics.restrictTag(restrict))) {
+                    return restrictService.getUtilization(emailSendAccount, restrict);
+                }
+            }
+        }
+        return Double.NaN;
+    }
 
     private void loadEmailSendConfig() {
-        try {
-            emailSendConfigLock.writeLock().lock();
-            emailSendConfig = emailSendConfigService.select();
-        } finally {
-            emailSendConfigLock.writeLock().unlock();
+        emailSendConfig = emailSendConfigService.select();
+    }
+
+    /**
+     * 应用新的邮件发送配置: 替换当前配置, 重新配置自适应速率, 调整邮件发送线程池的大小, 并通知监听者
+     * 每次读取配置的设置 (如重试, 单账户并发上限) 随之生效, 线程池大小变化时 POOL 模式的消费者线程随之增减, 不需要清空队列
+     * 队列 执行模式 优先级 等其它设置 只在启动时读取
+     * @param emailSendConfig 邮件发送配置
+     */
+    private synchronized void applyEmailSendConfig(EmailSendConfig emailSendConfig) {
+        if (Objects.isNull(emailSendConfig.getThreadPoolSize()) || emailSendConfig.getThreadPoolSize() <= 0) {
+            throw new IllegalArgumentException("threadPoolSize must be positive");
+        }
+        this.emailSendConfig = emailSendConfig;
+        emailSendAccountRateController.configure(emailSendConfig);
+        resizeEmailSendThreadPool(emailSendConfig.getThreadPoolSize());
+        emailSendConfigListeners.forEach(listener -> listener.accept(emailSendConfig));
+        log.info("email send config applied threadPoolSize:{}", emailSendConfig.getThreadPoolSize());
+    }
+
+    /**
+     * 调整邮件发送线程池的核心 和 最大线程数, 始终保持 核心线程数 不大于 最大线程数
+     * 减少时 多余的线程在其任务 (常驻的消费者) 退出后 空闲超时回收; 队列容量只在创建时设置
+     * @param threadPoolSize 线程池大小
+     */
+    private void resizeEmailSendThreadPool(int threadPoolSize) {
+        if (threadPoolSize > emailSendThreadPool.getMaxPoolSize()) {
+            emailSendThreadPool.setMaxPoolSize(threadPoolSize);
+            emailSendThreadPool.setCorePoolSize(threadPoolSize);
+        } else {
+            emailSendThreadPool.setCorePoolSize(threadPoolSize);
+            emailSendThreadPool.setMaxPoolSize(threadPoolSize);
         }
     }
 
@@ -172,14 +483,31 @@ public class EmaxilCore<A extends AbstractAccount, E extends AbstractEmail> {
     }
 
     private void loadEmailSendAccounts() {
-        emailSendAccounts.addAll(emailSendAccountService.selectAllEnabled());
+        Long sourceVersion = emailSendAccountService.selectVersion();
+        List<EmailSendAccount<A>> emailSendAccounts = emailSendAccountService.selectAllEnabled();
         if (emailSendAccounts.isEmpty()) {
             throw new IllegalStateException("no enabled email send account loaded");
         }
+        emailSendAccountSnapshot = new EmailSendAccountSnapshot<>(1L, sourceVersion, emailSendAccounts);
         // 立即检验所有账户的启用状态
         restrictService.updateEmailSendAccountEnable(emailSendAccounts, false);
+        emailSendAccounts.forEach(emailSendAccountScheduler::schedule);
+        emailSendAccounts.forEach(this::scheduleEmailSendAccountEnable);
+        updateDeleteEmailSendAccountStatisticMillisInterval();
+    }
+
+    /**
+     * @return 两个账户的账户配置 服务商 和 限制规则 是否都相同
+     */
+    private boolean isSameEmailSendAccount(EmailSendAccount<A> emailSendAccount, EmailSendAccount<A> other) {
+        return Objects.equals(emailSendAccount.getAccount(), other.getAccount())
+                && Objects.equals(emailSendAccount.getProvider(), other.getProvider())
+                && Objects.equals(emailSendAccount.getRestricts(), other.getRestricts());
+    }
+
+    private void updateDeleteEmailSendAccountStatisticMillisInterval() {
         // 计算最长的统计时间间隔 * 2 作为 删除历史统计数据的间隔
-        deleteEmailSendAccountStatisticMillisInterval = emailSendAccounts.stream()
+        deleteEmailSendAccountStatisticMillisInterval = getEmailSendAccounts().stream()
                 .map(emailSendAccount -> emailSendAccount.getRestricts().stream()
                         .map(restrict -> restrict.getTimeUnit().toMillis(restrict.getTimeValue()))
                         .max(Long::compare).orElse(0L))
@@ -0,0 +1,177 @@
+package com.veda.emaxil.core;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendRestrict;
+import com.veda.emaxil.core.entity.EmailServiceProvider;
+import io.micrometer.core.instrument.*;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * 邮件发送服务的 Micrometer 指标
+ * 默认注册到 Metrics.globalRegistry, Spring Boot Actuator 自动配置的 MeterRegistry 会加入其中, 非 Spring 管理的类也可以直接使用
+ * 计时器和计数器按 名称 + 标签 缓存, 热点路径上只有一次 Map 查找
+ * 账户标签最多有 maxAccountTags 个不同的值, 超出后的账户统一使用 other, 账户级别的指标不发布直方图 避免时间序列数量失控
+ */
+public final class EmaxilMetrics {
+
+    public static final String UNKNOWN = "unknown";
+    public static final String OTHER = "other";
+
+    private static volatile MeterRegistry registry = Metrics.globalRegistry;
+
+    /**
+     * 账户标签 最多的不同取值数量
+     */
+    private static volatile int maxAccountTags = 100;
+
+    private static final Set<String> taggedAccounts = ConcurrentHashMap.newKeySet();
+
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private EmaxilMetrics() {
+    }
+
+    /**
+     * 替换使用的 MeterRegistry, 已缓存的计时器和计数器会被清空
+     * @param meterRegistry MeterRegistry
+     */
+    public static void setRegistry(MeterRegistry meterRegistry) {
+        if (Objects.isNull(meterRegistry)) {
+            throw new IllegalArgumentException("meterRegistry can not be null");
+        }
+        registry = meterRegistry;
+        timers.clear();
+        counters.clear();
+        taggedAccounts.clear();
+    }
+
+    public static MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public static void setMaxAccountTags(int maxAccountTags) {
+        EmaxilMetrics.maxAccountTags = Math.max(0, maxAccountTags);
+    }
+
+    /**
+     * 账户标签, 前 maxAccountTags 个出现的账户使用其ID, 之后的账户使用 other
+     * @param emailSendAccount 发送账户
+     * @return 标签值
+     */
+    public static String accountTag(EmailSendAccount<?> emailSendAccount) {
+        if (Objects.isNull(emailSendAccount) || StrUtil.isBlank(emailSendAccount.getId())) {
+            return UNKNOWN;
+        }
+        String id = emailSendAccount.getId();
+        if (taggedAccounts.contains(id)) {
+            return id;
+        }
+        if (taggedAccounts.size() < maxAccountTags && taggedAccounts.add(id)) {
+            return id;
+        }
+        return OTHER;
+    }
+
+    /**
+     * 服务商标签, 未设置服务商 或 服务商名称时 使用 unknown
+     * @param emailSendAccount 发送账户
+     * @return 标签值
+     */
+    public static String providerTag(EmailSendAccount<?> emailSendAccount) {
+        EmailServiceProvider provider = Objects.isNull(emailSendAccount) ? null : emailSendAccount.getProvider();
+        return Objects.isNull(provider) || StrUtil.isBlank(provider.getName()) ? UNKNOWN : provider.getName();
+    }
+
+    /**
+     * 限制规则标签 如 RANGE_TIME:1:HOURS
+     * @param restrict 限制规则
+     * @return 标签值
+     */
+    public static String restrictTag(EmailSendRestrict restrict) {
+        return StrUtil.format("{}:{}:{}", restrict.getTimeType(), restrict.getTimeValue(), restrict.getTimeUnit());
+    }
+
+    /**
+     * 发布百分位直方图的计时器, 标签的取值必须是有限的
+     * @param name 名称
+     * @param tags 标签 键值交替
+     * @return Timer
+     */
+    public static Timer histogramTimer(String name, String... tags) {
+        return timers.computeIfAbsent(key(name, tags), key -> Timer.builder(name).tags(tags)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    /**
+     * 不发布直方图的计时器, 用于带账户标签等 取值较多的指标
+     * @param name 名称
+     * @param tags 标签 键值交替
+     * @return Timer
+     */
+    public static Timer timer(String name, String... tags) {
+        return timers.computeIfAbsent(key(name, tags), key -> Timer.builder(name).tags(tags).register(registry));
+    }
+
+    public static Counter counter(String name, String... tags) {
+        return counters.computeIfAbsent(key(name, tags), key -> Counter.builder(name).tags(tags).register(registry));
+    }
+
+    /**
+     * 记录从 startNanos 到现在的耗时
+     * @param timer 计时器
+     * @param startNanos System.nanoTime
+     */
+    public static void record(Timer timer, long startNanos) {
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 注册仪表, 仪表只弱引用 obj, obj 被回收后 仪表的值为 NaN
+     * @param name 名称
+     * @param obj 被观察的对象
+     * @param function 取值函数
+     * @param tags 标签 键值交替
+     */
+    public static <T> void gauge(String name, T obj, ToDoubleFunction<T> function, String... tags) {
+        Gauge.builder(name, obj, function).tags(tags).register(registry);
+    }
+
+    /**
+     * 注册由累计值计算的计数器, 如对象中已有的 LongAdder
+     * @param name 名称
+     * @param obj 被观察的对象
+     * @param function 取值函数
+     * @param tags 标签 键值交替
+     */
+    public static <T> void functionCounter(String name, T obj, ToDoubleFunction<T> function, String... tags) {
+        FunctionCounter.builder(name, obj, function).tags(tags).register(registry);
+    }
+
+    /**
+     * 注册由累计次数 和 累计耗时计算的计时器, 如对象中已有的 LongAdder
+     * @param name 名称
+     * @param obj 被观察的对象
+     * @param countFunction 累计次数
+     * @param totalTimeFunction 累计耗时
+     * @param totalTimeUnit 累计耗时的单位
+     * @param tags 标签 键值交替
+     */
+    public static <T> void functionTimer(String name, T obj, ToLongFunction<T> countFunction, ToDoubleFunction<T> totalTimeFunction,
+                                         TimeUnit totalTimeUnit, String... tags) {
+        FunctionTimer.builder(name, obj, countFunction, totalTimeFunction, totalTimeUnit).tags(tags).register(registry);
+    }
+
+    private static String key(String name, String... tags) {
+        return tags.length == 0 ? name : name + '|' + String.join(",", tags);
+    }
+}
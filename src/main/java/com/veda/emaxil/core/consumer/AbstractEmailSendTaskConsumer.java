@@ -2,8 +2,10 @@ package com.veda.emaxil.core.consumer;
 
 import cn.hutool.core.util.StrUtil;
 import com.veda.emaxil.core.EmaxilCore;
+import com.veda.emaxil.core.EmaxilMetrics;
 import com.veda.emaxil.core.entity.AbstractAccount;
 import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendConfig;
 import com.veda.emaxil.core.entity.EmailSendTask;
 import com.veda.emaxil.core.entity.AbstractEmail;
 import com.veda.emaxil.core.sender.AbstractEmailSender;
@@ -13,6 +15,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.annotation.PostConstruct;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static com.veda.emaxil.core.entity.EmailSendTask.StatusEnum.*;
 
@@ -31,11 +37,58 @@ public abstract class AbstractEmailSendTaskConsumer<A extends AbstractAccount, E
     @Autowired
     private EmaxilCore<A, E> emaxilCore;
 
+    @Getter
     @Autowired
     private AbstractEmailSender<A, E> emailSender;
 
+    /**
+     * 常驻线程池的消费者线程 当前数量 与 目标数量
+     */
+    private final AtomicInteger poolConsumerCount = new AtomicInteger(0);
+    private volatile int poolConsumerTarget = 0;
+
+    /**
+     * 在 EmaxilCore 的邮件发送线程池中 按 threadPoolSize 创建常驻的消费者线程, 每个消费者线程循环执行 各自创建的一次消费
+     * 线程池关闭时 消费者线程被中断后退出; threadPoolSize 被修改时 补足新增的消费者线程, 减少时 多余的消费者线程在本次消费返回后退出
+     * @param consumeOnceFactory 为每个消费者线程 创建一次消费, 队列为空时 一次消费最多等待一段时间后返回
+     */
+    protected void startPoolConsumers(Supplier<Runnable> consumeOnceFactory) {
+        final Runnable consumer = () -> {
+            Runnable consumeOnce = consumeOnceFactory.get();
+            while (!Thread.currentThread().isInterrupted()) {
+                int count = poolConsumerCount.get();
+                if (count > poolConsumerTarget) {
+                    if (poolConsumerCount.compareAndSet(count, count - 1)) {
+                        return;
+                    }
+                    continue;
+                }
+                consumeOnce.run();
+            }
+            poolConsumerCount.decrementAndGet();
+        };
+        resizePoolConsumers(consumer, emaxilCore.getEmailSendConfig().getThreadPoolSize());
+        emaxilCore.addEmailSendConfigListener(emailSendConfig -> resizePoolConsumers(consumer, emailSendConfig.getThreadPoolSize()));
+    }
+
+    private synchronized void resizePoolConsumers(Runnable consumer, int threadPoolSize) {
+        poolConsumerTarget = threadPoolSize;
+        while (poolConsumerCount.get() < threadPoolSize) {
+            poolConsumerCount.incrementAndGet();
+            emaxilCore.getEmailSendThreadPool().execute(consumer);
+        }
+    }
+
+    /**
+     * @return 常驻线程池的消费者线程数量
+     */
+    public int getPoolConsumerCount() {
+        return poolConsumerCount.get();
+    }
+
     /**
      * 消费邮件发送任务 需要自行选择账户 判断能否发送 调用 Sender 发送，并更新邮件发送状态 和 相关统计数据
+     * 每次消费只发送一次, 发送失败 且未超过重试次数时 通过 retryLater 延迟重试, 不占用当前消费者线程
      * @param emailSendTask 邮件发送任务
      */
     void consume(EmailSendTask<E> emailSendTask) {
@@ -46,64 +99,165 @@ public abstract class AbstractEmailSendTaskConsumer<A extends AbstractAccount, E
                 (SEND_FAILURE.equals(emailSendTask.getStatus()) && emailSendTask.getRetryCount() >= emailSendTask.getRetryLimit())) {
             return;
         }
+        // 发送失败过的任务 本次为一次重试
+        if (SEND_FAILURE.equals(emailSendTask.getStatus())) {
+            emailSendTask.setRetryCount(emailSendTask.getRetryCount() + 1);
+        }
         // 获取可用账户
         EmailSendAccount<A> sendableEmailSendAccount = getSendableEmailSendAccount(emailSendTask);
         // 开始发送邮件
-        for (int i = 0; i < emailSendTask.getRetryLimit() + 1; i++) {
-            emailSendTask.setRetryCount(i);
-            try {
-                // 标记任务状态为 发送中
-                emailSendTask.setStatus(SENDING);
-                emailSendTaskService.update(emailSendTask);
-                // 调用发送实现 进行发送
-                emailSender.send(sendableEmailSendAccount.getAccount(), emailSendTask.getEmail());
-                // 标记任务状态为 发送成功
-                emailSendTask.setStatus(SEND_SUCCESS);
-                emailSendTaskService.update(emailSendTask);
-                log.info("email:{} send success", emailSendTask.getId());
-                return;
-            } catch (Exception e) {
-                if (i == 0) {
-                    log.error(StrUtil.format("email:{} send failure", emailSendTask.getId()), e);
-                } else {
-                    log.error(StrUtil.format("email:{} retry:{} send failure", emailSendTask.getId(), i), e);
-                }
-                // 标记任务状态为 发送失败
-                emailSendTask.setStatus(SEND_FAILURE);
-                emailSendTask.setErrorMessage(e.getMessage());
-                emailSendTaskService.update(emailSendTask);
+        long sendStartNanos = 0L;
+        boolean isSending = false;
+        try {
+            // 标记任务状态为 发送中
+            emailSendTask.setStatus(SENDING);
+            emailSendTaskService.update(emailSendTask);
+            // 调用发送实现 进行发送
+            sendStartNanos = System.nanoTime();
+            isSending = true;
+            emailSender.send(sendableEmailSendAccount.getAccount(), emailSendTask.getEmail());
+            isSending = false;
+            recordSend(sendableEmailSendAccount, sendStartNanos, null);
+            updateSendSuccess(emailSendTask);
+        } catch (Exception e) {
+            if (isSending) {
+                recordSend(sendableEmailSendAccount, sendStartNanos, e);
+            }
+            if (emailSendTask.getRetryCount() == 0) {
+                log.error(StrUtil.format("email:{} send failure", emailSendTask.getId()), e);
+            } else {
+                log.error(StrUtil.format("email:{} retry:{} send failure", emailSendTask.getId(), emailSendTask.getRetryCount()), e);
+            }
+            // 标记任务状态为 发送失败
+            emailSendTask.setStatus(SEND_FAILURE);
+            emailSendTask.setErrorMessage(e.getMessage());
+            emailSendTaskService.update(emailSendTask);
+            if (emailSendTask.getRetryCount() < emailSendTask.getRetryLimit()) {
+                long delayMillis = getRetryDelayMillis(emailSendTask.getRetryCount() + 1);
+                retryLater(emailSendTask, delayMillis);
+                log.info("email:{} retry:{} after:{}ms", emailSendTask.getId(), emailSendTask.getRetryCount() + 1, delayMillis);
+            }
+        } finally {
+            emaxilCore.releaseSendPermit(sendableEmailSendAccount);
+        }
+    }
+
+    /**
+     * 标记任务状态为 发送成功
+     * 邮件已被服务商接受, 状态写入失败时 (如 GROUP_COMMIT 的批次写入失败或超时) 只记录日志 不作为发送失败处理, 避免重复发送
+     * @param emailSendTask 邮件发送任务
+     */
+    protected void updateSendSuccess(EmailSendTask<E> emailSendTask) {
+        emailSendTask.setStatus(SEND_SUCCESS);
+        try {
+            emailSendTaskService.update(emailSendTask);
+        } catch (Exception e) {
+            log.error(StrUtil.format("email:{} send success, update status failed", emailSendTask.getId()), e);
+            return;
+        }
+        log.info("email:{} send success", emailSendTask.getId());
+    }
+
+    /**
+     * 将发送失败的任务 延迟 delayMillis 后重新交给消费者
+     * @param emailSendTask 邮件发送任务
+     * @param delayMillis 延迟时间 毫秒
+     */
+    protected abstract void retryLater(EmailSendTask<E> emailSendTask, long delayMillis);
+
+    /**
+     * 计算第 retryNumber 次重试前的延迟时间
+     * 以 retryBaseDelayMillis 为基数指数增长 不超过 retryMaxDelayMillis, 并按 retryJitter 随机减少一部分
+     * @param retryNumber 第几次重试 从 1 开始
+     * @return 延迟时间 毫秒
+     */
+    protected long getRetryDelayMillis(int retryNumber) {
+        EmailSendConfig emailSendConfig = emaxilCore.getEmailSendConfig();
+        long baseDelayMillis = Objects.isNull(emailSendConfig.getRetryBaseDelayMillis()) ? 5000L : emailSendConfig.getRetryBaseDelayMillis();
+        long maxDelayMillis = Objects.isNull(emailSendConfig.getRetryMaxDelayMillis()) ? 600000L : emailSendConfig.getRetryMaxDelayMillis();
+        double jitter = Objects.isNull(emailSendConfig.getRetryJitter()) ? 0D : Math.max(0D, Math.min(1D, emailSendConfig.getRetryJitter()));
+        long delayMillis = maxDelayMillis;
+        int shift = Math.max(0, retryNumber - 1);
+        if (shift < 62 && baseDelayMillis <= (maxDelayMillis >> shift)) {
+            delayMillis = baseDelayMillis << shift;
+        }
+        return delayMillis - (long) (delayMillis * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * 验证账户的限制规则, 记录验证耗时 和 被拒绝的次数
+     * @param emailSendAccount 发送账户
+     * @param emailSendTask 邮件发送任务
+     * @return 是否可以发送
+     */
+    protected boolean canSend(EmailSendAccount<A> emailSendAccount, EmailSendTask<E> emailSendTask) {
+        long startNanos = System.nanoTime();
+        String result = "error";
+        try {
+            boolean canSend = emaxilCore.getRestrictService().canSend(emailSendAccount, emailSendTask);
+            result = canSend ? "allowed" : "rejected";
+            return canSend;
+        } finally {
+            EmaxilMetrics.record(EmaxilMetrics.histogramTimer("emaxil.restrict.can.send",
+                    "provider", EmaxilMetrics.providerTag(emailSendAccount), "result", result), startNanos);
+            if (!"allowed".equals(result)) {
+                EmaxilMetrics.counter("emaxil.restrict.rejected", "account", EmaxilMetrics.accountTag(emailSendAccount), "result", result).increment();
             }
         }
     }
 
     /**
-     * 获取可发送邮件的邮件发送账户
+     * 同一账户同时进行的最大发送数量
+     * 开启自适应速率时为 maxConcurrencyPerAccount, 否则不限制 每个线程验证限制后立即释放账户
+     * @return 最大发送数量
+     */
+    protected int getMaxConcurrencyPerAccount() {
+        if (!emaxilCore.getEmailSendAccountRateController().isAdaptive()) {
+            return Integer.MAX_VALUE;
+        }
+        Integer maxConcurrencyPerAccount = emaxilCore.getEmailSendConfig().getMaxConcurrencyPerAccount();
+        return Objects.isNull(maxConcurrencyPerAccount) ? 1 : Math.max(1, maxConcurrencyPerAccount);
+    }
+
+    /**
+     * 记录一次发送的耗时 和 结果, 按服务商发布直方图, 按账户只计数
+     * 并交给 EmailSendAccountRateController 调整该账户的发送速率
+     * @param emailSendAccount 发送账户
+     * @param startNanos 开始发送的 System.nanoTime
+     * @param error 发送失败的异常, 成功时为 null
+     */
+    protected void recordSend(EmailSendAccount<A> emailSendAccount, long startNanos, Throwable error) {
+        emaxilCore.getEmailSendAccountRateController().record(emailSendAccount, System.nanoTime() - startNanos, error);
+        String outcome = Objects.isNull(error) ? "success" : "failure";
+        EmaxilMetrics.record(EmaxilMetrics.histogramTimer("emaxil.send",
+                "provider", EmaxilMetrics.providerTag(emailSendAccount), "outcome", outcome), startNanos);
+        EmaxilMetrics.counter("emaxil.send.account", "account", EmaxilMetrics.accountTag(emailSendAccount), "outcome", outcome).increment();
+    }
+
+    /**
+     * 获取可发送邮件的邮件发送账户, 并获取一个该账户的发送许可 发送结束后需通过 EmaxilCore.releaseSendPermit 归还
+     * 从调度器中占用一个到期的账户 验证限制后释放, 验证期间 本节点的其它线程不会使用该账户
      * @param emailSendTask 邮件发送任务
      * @return EmailSendAccount<A>
      */
     private EmailSendAccount<A> getSendableEmailSendAccount(EmailSendTask<E> emailSendTask){
-        boolean canSend = false;
-        EmailSendAccount<A> emailSendAccount = null;
-        while (!canSend) {
-            emailSendAccount = emaxilCore.getEmailSendAccount();
-            // 每个节点 同一时刻 一个发送账户只能有一个消费者 判断能否发送
-            synchronized (emailSendAccount) {
-                // 账户可用
-                if (!emailSendAccount.isEnable()) {
-                    log.warn("emailSendAccount: {} is disabled", emailSendAccount.getId());
-                }
-                // 验证限制
-                else if(!emaxilCore.getRestrictService().canSend(emailSendAccount, emailSendTask)) {
-                    // 标记当前账户为不可用
-                    emailSendAccount.setEnable(false);
-                    log.warn("emailSendAccount: {} is disabled", emailSendAccount.getId());
+        while (true) {
+            EmailSendAccount<A> emailSendAccount = emaxilCore.claimEmailSendAccount();
+            boolean canSend = false;
+            try {
+                // 验证限制, 不通过时 限制器会标记账户为不可用 并记录其下次可用时间
+                canSend = canSend(emailSendAccount, emailSendTask);
+                if (canSend) {
+                    return emailSendAccount;
                 }
-                else {
-                    // 验证通过
-                    canSend = true;
+                log.warn("emailSendAccount: {} is disabled", emailSendAccount.getId());
+            } finally {
+                if (canSend) {
+                    emaxilCore.acquireSendPermit(emailSendAccount, getMaxConcurrencyPerAccount());
+                } else {
+                    emaxilCore.releaseEmailSendAccount(emailSendAccount, false);
                 }
             }
         }
-        return emailSendAccount;
     }
 }
@@ -0,0 +1,107 @@
+package com.veda.emaxil.core.consumer;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.EmaxilMetrics;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendConfig;
+import com.veda.emaxil.core.entity.EmailSendTask;
+import com.veda.emaxil.util.RingBuffer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于本地环形缓冲区 实现的消费者, 适用于不使用 Redis 的单节点部署
+ * 任务只保存在本节点的内存中, 节点退出时未完成的任务 由 LocalEmailSendTaskProducer 在下次启动时 通过 EmailSendTaskService 重新加载
+ * 本地队列不区分优先级 按生产顺序消费
+ * @param <A> 账户
+ * @param <E> 邮件
+ */
+@Slf4j
+public class LocalEmailSendTaskConsumer<A extends AbstractAccount, E extends AbstractEmail> extends AbstractEmailSendTaskConsumer<A, E> {
+
+    /**
+     * 队列为空时 每次等待的时长 毫秒
+     */
+    private static final long QUEUE_WAIT_MILLIS = 60000L;
+
+    /**
+     * 到期的重试任务 放入时缓冲区已满 再次尝试的间隔 毫秒
+     */
+    private static final long REQUEUE_RETRY_MILLIS = 1000L;
+
+    /**
+     * 消费失败 (如持久化服务不可用) 的任务 重新放回队列前的延迟 毫秒, 与 Redis 模式下未 ACK 的消息超时后重新入队相对应
+     */
+    private static final long CONSUME_FAILURE_DELAY_MILLIS = 30000L;
+
+    /**
+     * 任务队列, LocalEmailSendTaskProducer 向其中放入任务
+     */
+    @Getter
+    private RingBuffer<EmailSendTask<E>> ringBuffer;
+
+    @PostConstruct
+    public void registerConsumer() {
+        EmailSendConfig emailSendConfig = getEmaxilCore().getEmailSendConfig();
+        final int prefetchSize = Objects.isNull(emailSendConfig.getPrefetchSize()) ? 1 : Math.max(1, emailSendConfig.getPrefetchSize());
+        int capacity = Objects.isNull(emailSendConfig.getLocalQueueCapacity()) ? 65536 : emailSendConfig.getLocalQueueCapacity();
+        RingBuffer.WaitStrategy waitStrategy = StrUtil.isBlank(emailSendConfig.getLocalWaitStrategy()) ?
+                RingBuffer.WaitStrategy.BLOCKING : RingBuffer.WaitStrategy.valueOf(emailSendConfig.getLocalWaitStrategy().trim().toUpperCase());
+        ringBuffer = new RingBuffer<>(capacity, waitStrategy);
+        EmaxilMetrics.gauge("emaxil.queue.depth", ringBuffer, RingBuffer::size, "lane", "local");
+        // 按线程池的核心数创建消费者线程 这些消费者 常驻 线程池, 线程池关闭时 已取出的任务在下次启动时 重新加载
+        startPoolConsumers(() -> {
+            List<EmailSendTask<E>> emailSendTasks = new ArrayList<>(prefetchSize);
+            return () -> {
+                try {
+                    // 每次取出一小批连续的任务 逐个消费
+                    emailSendTasks.clear();
+                    ringBuffer.drainTo(emailSendTasks, prefetchSize, QUEUE_WAIT_MILLIS);
+                    for (EmailSendTask<E> emailSendTask : emailSendTasks) {
+                        consumeTask(emailSendTask);
+                    }
+                } catch (Exception e) {
+                    log.error("email send task local queue consume failed", e);
+                }
+            };
+        });
+        log.info("email send task local queue capacity:{} waitStrategy:{}", ringBuffer.capacity(), waitStrategy);
+    }
+
+    /**
+     * 延迟 delayMillis 后 将任务重新放回本地队列
+     * @param emailSendTask 邮件发送任务
+     * @param delayMillis 延迟时间 毫秒
+     */
+    @Override
+    protected void retryLater(EmailSendTask<E> emailSendTask, long delayMillis) {
+        getEmaxilCore().getScheduledExecutor().schedule(() -> requeue(emailSendTask), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void consumeTask(EmailSendTask<E> emailSendTask) {
+        try {
+            consume(emailSendTask);
+        } catch (Exception e) {
+            log.error(StrUtil.format("email send task:{} consume failed", emailSendTask.getId()), e);
+            retryLater(emailSendTask, CONSUME_FAILURE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * 在周期执行线程池中调用 不能阻塞, 缓冲区已满时 稍后再次尝试
+     * @param emailSendTask 邮件发送任务
+     */
+    private void requeue(EmailSendTask<E> emailSendTask) {
+        if (!ringBuffer.offer(emailSendTask)) {
+            log.warn("email send task local queue is full, requeue task:{} later", emailSendTask.getId());
+            retryLater(emailSendTask, REQUEUE_RETRY_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.veda.emaxil.core.consumer;
+
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson.JSON;
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.sender.BlockingReactiveEmailSender;
+import com.veda.emaxil.core.sender.ReactiveEmailSender;
+import com.veda.emaxil.core.service.EmailSendTaskService;
+import com.veda.emaxil.util.MessageQueue;
+import com.veda.emaxil.util.PriorityMessageQueue;
+import com.veda.emaxil.util.ReactiveRedisMessageQueue;
+import com.veda.emaxil.util.RedisMessageQueue;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.veda.emaxil.core.entity.EmailSendTask.StatusEnum.*;
+
+/**
+ * 基于 ReactiveRedisMessageQueue 实现的响应式消费者
+ * 出队 验证限制 发送 更新任务状态 ACK 串联为一个非阻塞的管道, 同时处理的任务数量由 reactiveConcurrency 限制, 不再为每个进行中的任务占用一个线程
+ * 同一账户同时进行的发送数量 由 maxConcurrencyPerAccount 限制
+ * RestrictService 和 EmailSendTaskService 的调用是阻塞的, 在 boundedElastic 线程上执行
+ * 未配置 ReactiveEmailSender 时 使用 BlockingReactiveEmailSender 适配 AbstractEmailSender
+ * 与 RedisMqEmailSendTaskConsumer 使用相同的任务队列, 只支持 emaxil.queue.type 为 list 的队列
+ * @param <A> 账户
+ * @param <E> 邮件
+ */
+@Slf4j
+public class ReactiveRedisMqEmailSendTaskConsumer<A extends AbstractAccount, E extends AbstractEmail> extends AbstractEmailSendTaskConsumer<A, E> {
+
+    @Autowired
+    private MessageQueue messageQueue;
+
+    @Autowired
+    private ReactiveRedisMessageQueue reactiveRedisMessageQueue;
+
+    @Autowired(required = false)
+    private ReactiveEmailSender<A, E> reactiveEmailSender;
+
+    /**
+     * 每次出队的最大数量
+     */
+    private static final int MAX_DEQUEUE_SIZE = 64;
+
+    /**
+     * 队列为空时 再次出队前的等待时间 毫秒, 连续为空时翻倍 直到 IDLE_MAX_MILLIS
+     */
+    private static final long IDLE_MIN_MILLIS = 50L;
+    private static final long IDLE_MAX_MILLIS = 1000L;
+
+    /**
+     * 没有到期的账户时 再次占用前的等待时间范围 毫秒
+     */
+    private static final long ACCOUNT_WAIT_MIN_MILLIS = 20L;
+    private static final long ACCOUNT_WAIT_MAX_MILLIS = 1000L;
+
+    /**
+     * 按任务优先级划分通道的任务队列
+     */
+    @Getter
+    private PriorityMessageQueue priorityMessageQueue;
+
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+
+    /**
+     * 已出队 尚未消费结束的消息数量
+     */
+    private final AtomicInteger inFlightCount = new AtomicInteger(0);
+
+    private Disposable consumer;
+
+    @PostConstruct
+    public void registerConsumer() {
+        EmailSendConfig emailSendConfig = getEmaxilCore().getEmailSendConfig();
+        final int concurrency = Objects.isNull(emailSendConfig.getReactiveConcurrency()) ? 256 : Math.max(1, emailSendConfig.getReactiveConcurrency());
+        if (Objects.isNull(reactiveEmailSender)) {
+            reactiveEmailSender = new BlockingReactiveEmailSender<>(getEmailSender());
+        }
+        priorityMessageQueue = RedisMqEmailSendTaskConsumer.createPriorityMessageQueue(messageQueue, emailSendConfig);
+        // 只出队 flatMap 空闲并发数量的消息, 出队的消息都能立即开始消费 并启动心跳, 不会在本地等待到 ACK 超时后 被重新入队
+        consumer = Mono.defer(() -> {
+                    int dequeueSize = Math.min(concurrency - inFlightCount.get(), MAX_DEQUEUE_SIZE);
+                    if (dequeueSize <= 0) {
+                        return Mono.delay(Duration.ofMillis(IDLE_MIN_MILLIS)).then(Mono.<List<RedisMessageQueue.QueueValue>>empty());
+                    }
+                    return reactiveRedisMessageQueue.getValues(priorityMessageQueue.getLaneOrder(), dequeueSize)
+                            .onErrorResume(e -> {
+                                log.error("email send task queue dequeue failed", e);
+                                return Mono.just(Collections.emptyList());
+                            });
+                })
+                .flatMapMany(queueValues -> {
+                    if (queueValues.isEmpty()) {
+                        long idleMillis = Math.min(IDLE_MAX_MILLIS, IDLE_MIN_MILLIS << Math.min(idleCount.getAndIncrement(), 10));
+                        return Mono.delay(Duration.ofMillis(idleMillis)).thenMany(Flux.<RedisMessageQueue.QueueValue>empty());
+                    }
+                    idleCount.set(0);
+                    inFlightCount.addAndGet(queueValues.size());
+                    priorityMessageQueue.recordDequeued(queueValues);
+                    return Flux.fromIterable(queueValues);
+                })
+                .repeat()
+                .flatMap(this::consumeValue, concurrency)
+                .subscribe();
+        RedisMqEmailSendTaskConsumer.scheduleQueueMaintenance(getEmaxilCore().getScheduledExecutor(), priorityMessageQueue);
+        RedisMqEmailSendTaskConsumer.bindQueueMetrics(priorityMessageQueue);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (Objects.nonNull(consumer)) {
+            consumer.dispose();
+        }
+    }
+
+    /**
+     * 将任务放入其优先级通道的延迟队列中, 到期后由定时任务推送回通道
+     * @param emailSendTask 邮件发送任务
+     * @param delayMillis 延迟时间 毫秒
+     */
+    @Override
+    protected void retryLater(EmailSendTask<E> emailSendTask, long delayMillis) {
+        priorityMessageQueue.addDelayedValue(emailSendTask.getPriority(), JSON.toJSONString(EmailSendTaskDTO.of(emailSendTask)), delayMillis);
+    }
+
+    /**
+     * 消费单个队列消息, 消费期间定期延长 ACK 截止时间, 消费成功后 ACK
+     * @param queueValue 队列值
+     * @return 消费结果 消费失败的消息不进行 ACK, 超时后会重新回到队列中
+     */
+    private Mono<Void> consumeValue(RedisMessageQueue.QueueValue queueValue) {
+        return Mono.defer(() -> {
+            // 先解析消息 解析失败时不启动心跳, 消息超时后重新入队
+            EmailSendTaskDTO emailSendTaskDTO = JSON.parseObject(queueValue.getValue(), EmailSendTaskDTO.class);
+            long heartbeatMillis = Math.max(1000L, reactiveRedisMessageQueue.getAckTimeoutMillis() / 3);
+            // 心跳的生命周期 与消费过程绑定, 消费结束 出错或被取消时 都会停止心跳
+            return Mono.using(() -> Flux.interval(Duration.ofMillis(heartbeatMillis))
+                            .concatMap(i -> reactiveRedisMessageQueue.extendValue(queueValue)
+                                    .onErrorResume(e -> {
+                                        log.error(StrUtil.format("email send task:{} extend failed", queueValue.getValue()), e);
+                                        return Mono.just(false);
+                                    }))
+                            .subscribe(),
+                    heartbeat -> consume(emailSendTaskDTO.getId()).then(reactiveRedisMessageQueue.ackValue(queueValue)),
+                    Disposable::dispose);
+        }).onErrorResume(e -> {
+            log.error(StrUtil.format("email send task:{} consume failed", queueValue.getValue()), e);
+            return Mono.empty();
+        }).doFinally(signal -> inFlightCount.decrementAndGet()).then();
+    }
+
+    /**
+     * 消费邮件发送任务, 与 AbstractEmailSendTaskConsumer.consume 的处理相同
+     * @param emailSendTaskId 邮件发送任务ID
+     * @return 消费结果
+     */
+    private Mono<Void> consume(String emailSendTaskId) {
+        EmailSendTaskService<E> emailSendTaskService = getEmaxilCore().getEmailSendTaskService();
+        return blocking(() -> emailSendTaskService.select(emailSendTaskId)).flatMap(emailSendTask -> {
+            // 如果邮件已经发送成功 或发送失败 且 超过重试次数 不进行处理
+            if (SEND_SUCCESS.equals(emailSendTask.getStatus()) ||
+                    (SEND_FAILURE.equals(emailSendTask.getStatus()) && emailSendTask.getRetryCount() >= emailSendTask.getRetryLimit())) {
+                return Mono.empty();
+            }
+            // 发送失败过的任务 本次为一次重试
+            if (SEND_FAILURE.equals(emailSendTask.getStatus())) {
+                emailSendTask.setRetryCount(emailSendTask.getRetryCount() + 1);
+            }
+            return claimSendableEmailSendAccount(emailSendTask)
+                    .flatMap(emailSendAccount -> send(emailSendAccount, emailSendTask));
+        });
+    }
+
+    /**
+     * 使用账户发送邮件 并更新任务状态, 发送失败 且未超过重试次数时 放入延迟队列
+     * 无论发送结果如何 都会归还账户的发送许可
+     * @param emailSendAccount 已占用发送许可的账户
+     * @param emailSendTask 邮件发送任务
+     * @return 发送结果
+     */
+    private Mono<Void> send(EmailSendAccount<A> emailSendAccount, EmailSendTask<E> emailSendTask) {
+        EmailSendTaskService<E> emailSendTaskService = getEmaxilCore().getEmailSendTaskService();
+        return blocking(() -> {
+                    // 标记任务状态为 发送中
+                    emailSendTask.setStatus(SENDING);
+                    emailSendTaskService.update(emailSendTask);
+                    return emailSendTask;
+                })
+                .then(Mono.defer(() -> {
+                    long startNanos = System.nanoTime();
+                    return reactiveEmailSender.send(emailSendAccount.getAccount(), emailSendTask.getEmail())
+                            .doOnSuccess(ignored -> recordSend(emailSendAccount, startNanos, null))
+                            .doOnError(e -> recordSend(emailSendAccount, startNanos, e));
+                }))
+                .then(blocking(() -> {
+                    updateSendSuccess(emailSendTask);
+                    return emailSendTask;
+                }))
+                .onErrorResume(e -> {
+                    if (emailSendTask.getRetryCount() == 0) {
+                        log.error(StrUtil.format("email:{} send failure", emailSendTask.getId()), e);
+                    } else {
+                        log.error(StrUtil.format("email:{} retry:{} send failure", emailSendTask.getId(), emailSendTask.getRetryCount()), e);
+                    }
+                    return blocking(() -> {
+                        // 标记任务状态为 发送失败
+                        emailSendTask.setStatus(SEND_FAILURE);
+                        emailSendTask.setErrorMessage(e.getMessage());
+                        emailSendTaskService.update(emailSendTask);
+                        return emailSendTask;
+                    }).flatMap(failedTask -> {
+                        if (failedTask.getRetryCount() >= failedTask.getRetryLimit()) {
+                            return Mono.just(failedTask);
+                        }
+                        long delayMillis = getRetryDelayMillis(failedTask.getRetryCount() + 1);
+                        return reactiveRedisMessageQueue.addDelayedValue(priorityMessageQueue.getLaneName(failedTask.getPriority()),
+                                JSON.toJSONString(EmailSendTaskDTO.of(failedTask)), delayMillis)
+                                .doOnSuccess(queueValue -> log.info("email:{} retry:{} after:{}ms",
+                                        failedTask.getId(), failedTask.getRetryCount() + 1, delayMillis))
+                                .thenReturn(failedTask);
+                    });
+                })
+                .doFinally(signal -> getEmaxilCore().releaseSendPermit(emailSendAccount))
+                .then();
+    }
+
+    /**
+     * 占用一个可发送该任务的账户, 并获取一个该账户的发送许可
+     * 没有到期的账户时 延迟到最早的账户到期后再次尝试, 不阻塞线程
+     * @param emailSendTask 邮件发送任务
+     * @return 可发送的账户
+     */
+    private Mono<EmailSendAccount<A>> claimSendableEmailSendAccount(EmailSendTask<E> emailSendTask) {
+        return Mono.defer(() -> {
+            EmailSendAccount<A> emailSendAccount = getEmaxilCore().getEmailSendAccountScheduler().claim(0);
+            if (Objects.isNull(emailSendAccount)) {
+                return Mono.<EmailSendAccount<A>>empty();
+            }
+            return blocking(() -> {
+                boolean canSend = false;
+                try {
+                    // 验证限制, 不通过时 限制器会标记账户为不可用 并记录其下次可用时间
+                    canSend = canSend(emailSendAccount, emailSendTask);
+                    if (canSend) {
+                        getEmaxilCore().acquireSendPermit(emailSendAccount, getMaxConcurrencyPerAccount());
+                        return emailSendAccount;
+                    }
+                    log.warn("emailSendAccount: {} is disabled", emailSendAccount.getId());
+                    return null;
+                } finally {
+                    if (!canSend) {
+                        getEmaxilCore().releaseEmailSendAccount(emailSendAccount, false);
+                    }
+                }
+            });
+        }).repeatWhenEmpty(attempts -> attempts.concatMap(attempt -> Mono.delay(Duration.ofMillis(getAccountWaitMillis()))));
+    }
+
+    /**
+     * 响应式消费者 无论是否开启自适应速率 都以 maxConcurrencyPerAccount 限制同一账户同时进行的发送数量
+     * @return 最大发送数量
+     */
+    @Override
+    protected int getMaxConcurrencyPerAccount() {
+        Integer maxConcurrencyPerAccount = getEmaxilCore().getEmailSendConfig().getMaxConcurrencyPerAccount();
+        return Objects.isNull(maxConcurrencyPerAccount) ? 1 : Math.max(1, maxConcurrencyPerAccount);
+    }
+
+    /**
+     * @return 没有可占用的账户时 再次尝试前的等待时间 毫秒
+     */
+    private long getAccountWaitMillis() {
+        long nextDueAt = getEmaxilCore().getEmailSendAccountScheduler().getNextDueAt();
+        if (nextDueAt <= 0) {
+            // 所有账户都被占用 等待进行中的发送完成
+            return ACCOUNT_WAIT_MIN_MILLIS;
+        }
+        return Math.max(ACCOUNT_WAIT_MIN_MILLIS, Math.min(ACCOUNT_WAIT_MAX_MILLIS, nextDueAt - System.currentTimeMillis()));
+    }
+
+    /**
+     * 在 boundedElastic 线程上执行阻塞的调用
+     * @param callable 阻塞的调用
+     * @param <T> 返回值
+     * @return 调用结果
+     */
+    private static <T> Mono<T> blocking(Callable<T> callable) {
+        return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+    }
+}
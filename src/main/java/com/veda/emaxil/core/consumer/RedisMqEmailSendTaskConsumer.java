@@ -2,13 +2,24 @@ package com.veda.emaxil.core.consumer;
 
 import cn.hutool.core.util.StrUtil;
 import com.alibaba.fastjson.JSON;
+import com.veda.emaxil.core.EmaxilMetrics;
 import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.util.MessageQueue;
+import com.veda.emaxil.util.PermitDispatcher;
+import com.veda.emaxil.util.PriorityMessageQueue;
 import com.veda.emaxil.util.RedisMessageQueue;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
 
 /**
  * 基于RedisMQ 实现的消费者
@@ -19,39 +30,271 @@ import javax.annotation.PostConstruct;
 public class RedisMqEmailSendTaskConsumer<A extends AbstractAccount, E extends AbstractEmail> extends AbstractEmailSendTaskConsumer<A, E> {
 
     @Autowired
-    private RedisMessageQueue redisMessageQueue;
+    private MessageQueue messageQueue;
 
-    private static final String QUEUE_NAME = "email-send-task-queue";
+    public static final String QUEUE_NAME = "email-send-task-queue";
+
+    /**
+     * 队列为空时 每次阻塞等待的时长 毫秒
+     */
+    private static final long QUEUE_WAIT_MILLIS = 60000L;
+
+    /**
+     * 超时未 ACK 消息的清理间隔 秒
+     */
+    private static final long ACK_CLEAN_INTERVAL_SECONDS = 30L;
+
+    /**
+     * 各优先级通道积压数量的刷新间隔 秒, 消费者都在阻塞等待时 也能保持统计数据更新
+     */
+    private static final long LANE_STATS_INTERVAL_SECONDS = 5L;
+
+    /**
+     * 将到期的重试任务 推送回任务队列的间隔 毫秒
+     */
+    private static final long RETRY_PUMP_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * VIRTUAL 执行模式下 每次出队的最大数量
+     */
+    private static final int VIRTUAL_MAX_DEQUEUE_SIZE = 64;
+
+    /**
+     * 按任务优先级划分通道的任务队列, 可通过 getLaneStats 获取各通道的积压数量和等待时间
+     */
+    @Getter
+    private PriorityMessageQueue priorityMessageQueue;
+
+    /**
+     * VIRTUAL 执行模式下 处理任务的执行器
+     */
+    private ExecutorService taskExecutor;
+
+    /**
+     * 延长进行中消息 ACK 截止时间的心跳 独占的线程, 不排在 EmaxilCore 周期执行线程池上的队列维护 和 账户重新加载之后
+     * 心跳延迟超过 ACK 超时时间时 消息会被重新入队 重复发送
+     */
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("emaxil-ack-heartbeat-"));
+
+    /**
+     * 消费者的执行模式
+     */
+    public enum ExecutionMode {
+        /**
+         * threadPoolSize 个消费者常驻 EmaxilCore 的邮件发送线程池, 每个消费者线程依次处理预取的任务
+         */
+        POOL,
+        /**
+         * 每个进行中的任务使用一个虚拟线程, 同时处理的任务数量由 virtualConcurrency 个许可限制, 需要 Java 21 及以上
+         * 虚拟线程不可用时 退化为 threadPoolSize 个平台线程, 同时处理的任务数量不超过 threadPoolSize
+         */
+        VIRTUAL,
+    }
 
     @PostConstruct
     public void registerConsumer() {
-        ThreadPoolTaskExecutor emailSendThreadPool = getEmaxilCore().getEmailSendThreadPool();
         EmailSendConfig emailSendConfig = getEmaxilCore().getEmailSendConfig();
-        final Runnable consumer = () ->{
-            while (true) {
-                String value = null;
-                try {
-                    RedisMessageQueue.QueueValue queueValue = redisMessageQueue.getValue(QUEUE_NAME);
-                    value = queueValue.getValue();
-                    // 将获取的值转换为 EmailSendTaskDTO
-                    EmailSendTaskDTO emailSendTaskDTO = JSON.parseObject(queueValue.getValue(), EmailSendTaskDTO.class);
-                    // 将DTO 转换为 EmailSendTask<E>
-                    EmailSendTask<E> emailSendTask = new EmailSendTask<>(emailSendTaskDTO.getId(), emailSendTaskDTO.getPriority());
-                    emailSendTask.setStatus(EmailSendTask.StatusEnum.values()[emailSendTaskDTO.getStatus()]);
-                    emailSendTask.setRetryCount(emailSendTaskDTO.getRetryCount());
-                    emailSendTask.setRetryLimit(emailSendTaskDTO.getRetryLimit());
-                    // 消费者消费消息 EmailSendTask<E>
-                    consume(emailSendTask);
+        priorityMessageQueue = createPriorityMessageQueue(messageQueue, emailSendConfig);
+        ExecutionMode executionMode = StrUtil.isBlank(emailSendConfig.getExecutionMode()) ?
+                ExecutionMode.POOL : ExecutionMode.valueOf(emailSendConfig.getExecutionMode().trim().toUpperCase());
+        if (ExecutionMode.VIRTUAL == executionMode) {
+            registerVirtualConsumer(emailSendConfig);
+        } else {
+            registerPoolConsumer(emailSendConfig);
+        }
+        scheduleQueueMaintenance(getEmaxilCore().getScheduledExecutor(), priorityMessageQueue);
+        bindQueueMetrics(priorityMessageQueue);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (Objects.nonNull(taskExecutor)) {
+            taskExecutor.shutdownNow();
+        }
+        heartbeatExecutor.shutdownNow();
+    }
+
+    private void registerPoolConsumer(EmailSendConfig emailSendConfig) {
+        final int prefetchSize = Objects.isNull(emailSendConfig.getPrefetchSize()) ? 1 : Math.max(1, emailSendConfig.getPrefetchSize());
+        // 按线程池的核心数创建消费者线程 这些消费者 常驻 线程池
+        startPoolConsumers(() -> () -> {
+            try {
+                // 每次按优先级策略预取一小批任务 逐个消费后 批量 ACK
+                List<RedisMessageQueue.QueueValue> queueValues = priorityMessageQueue.getValues(prefetchSize, QUEUE_WAIT_MILLIS);
+                List<RedisMessageQueue.QueueValue> consumedValues = new ArrayList<>(queueValues.size());
+                for (RedisMessageQueue.QueueValue queueValue : queueValues) {
+                    if (consumeValue(queueValue)) {
+                        consumedValues.add(queueValue);
+                    }
+                }
+                if (!consumedValues.isEmpty()) {
                     // 消费者 进行 ACK 确认 消息消费成功
-                    redisMessageQueue.ackValue(QUEUE_NAME, queueValue);
-                } catch (Exception e) {
-                    log.error(StrUtil.format("email send task:{} consume failed", value), e);
+                    priorityMessageQueue.ackValues(consumedValues);
                 }
+            } catch (Exception e) {
+                log.error("email send task queue consume failed", e);
             }
-        };
-        // 按线程池的核心数创建消费者线程 这些消费者 常驻 线程池
-        for (Integer i = 0; i < emailSendConfig.getThreadPoolSize(); i++) {
-            emailSendThreadPool.execute(consumer);
+        });
+    }
+
+    /**
+     * 一个分发线程 按可用的许可数量出队, 每个任务交给一个新的虚拟线程处理, 处理完成后 ACK 并归还许可
+     * 分发线程只在有许可时出队, 出队的任务不会在本地排队等待
+     * 虚拟线程不可用时 使用固定大小的平台线程池, 许可数量不超过 threadPoolSize, 避免创建上千个平台线程
+     */
+    private void registerVirtualConsumer(EmailSendConfig emailSendConfig) {
+        int concurrency = Objects.isNull(emailSendConfig.getVirtualConcurrency()) ? 1000 : Math.max(1, emailSendConfig.getVirtualConcurrency());
+        taskExecutor = newVirtualThreadPerTaskExecutor();
+        if (Objects.isNull(taskExecutor)) {
+            concurrency = Math.min(concurrency, emailSendConfig.getThreadPoolSize());
+            log.warn("virtual thread is not available on java {}, fall back to {} platform threads",
+                    System.getProperty("java.version"), concurrency);
+            // 额外的一个线程 用于分发
+            taskExecutor = Executors.newFixedThreadPool(concurrency + 1, new CustomizableThreadFactory("emaxil-task-"));
+        }
+        taskExecutor.execute(new PermitDispatcher<>(concurrency, VIRTUAL_MAX_DEQUEUE_SIZE,
+                maxCount -> priorityMessageQueue.getValues(maxCount, QUEUE_WAIT_MILLIS),
+                taskExecutor,
+                queueValue -> {
+                    try {
+                        if (consumeValue(queueValue)) {
+                            priorityMessageQueue.ackValues(Collections.singletonList(queueValue));
+                        }
+                    } catch (Exception e) {
+                        log.error(StrUtil.format("email send task:{} ack failed", queueValue.getValue()), e);
+                    }
+                }));
+        log.info("email send task consumer run in virtual mode, concurrency:{}", concurrency);
+    }
+
+    /**
+     * 将任务放入其优先级通道的延迟队列中, 到期后由定时任务推送回通道
+     * @param emailSendTask 邮件发送任务
+     * @param delayMillis 延迟时间 毫秒
+     */
+    @Override
+    protected void retryLater(EmailSendTask<E> emailSendTask, long delayMillis) {
+        priorityMessageQueue.addDelayedValue(emailSendTask.getPriority(), JSON.toJSONString(EmailSendTaskDTO.of(emailSendTask)), delayMillis);
+    }
+
+    /**
+     * 按邮件发送配置 创建任务队列的优先级通道, 生产者与消费者使用相同的配置
+     * @param messageQueue 消息队列
+     * @param emailSendConfig 邮件发送配置
+     * @return 优先级消息队列
+     */
+    public static PriorityMessageQueue createPriorityMessageQueue(MessageQueue messageQueue, EmailSendConfig emailSendConfig) {
+        int levels = Objects.isNull(emailSendConfig.getPriorityLevels()) ? 1 : Math.max(1, emailSendConfig.getPriorityLevels());
+        PriorityMessageQueue.Policy policy = StrUtil.isBlank(emailSendConfig.getPriorityPolicy()) ?
+                PriorityMessageQueue.Policy.STRICT : PriorityMessageQueue.Policy.valueOf(emailSendConfig.getPriorityPolicy().trim().toUpperCase());
+        int[] weights = null;
+        if (StrUtil.isNotBlank(emailSendConfig.getPriorityWeights())) {
+            List<String> weightValues = StrUtil.splitTrim(emailSendConfig.getPriorityWeights(), ',');
+            weights = new int[weightValues.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = Integer.parseInt(weightValues.get(i));
+            }
+        }
+        long maxWaitMillis = Objects.isNull(emailSendConfig.getPriorityMaxWaitMillis()) ? 10000L : emailSendConfig.getPriorityMaxWaitMillis();
+        return new PriorityMessageQueue(messageQueue, QUEUE_NAME, levels, policy, weights, maxWaitMillis);
+    }
+
+    /**
+     * 注册任务队列各通道的 积压数量, 最近等待时间, 累计出队数量 和 未 ACK 数量 指标
+     * @param priorityMessageQueue 任务队列
+     */
+    static void bindQueueMetrics(PriorityMessageQueue priorityMessageQueue) {
+        for (String laneName : priorityMessageQueue.getLaneNames()) {
+            // 积压数量 和 等待时间 取自 refreshLaneDepths 和 出队时记录的通道统计, 不额外访问 Redis
+            EmaxilMetrics.gauge("emaxil.queue.depth", priorityMessageQueue, queue -> getLaneStat(queue, laneName).getDepth(), "lane", laneName);
+            EmaxilMetrics.gauge("emaxil.queue.wait", priorityMessageQueue, queue -> getLaneStat(queue, laneName).getLastWaitMillis(), "lane", laneName);
+            EmaxilMetrics.functionCounter("emaxil.queue.dequeued", priorityMessageQueue, queue -> getLaneStat(queue, laneName).getDequeued(), "lane", laneName);
+            EmaxilMetrics.gauge("emaxil.queue.ack.size", priorityMessageQueue, queue -> queue.ackSize(laneName), "lane", laneName);
+        }
+    }
+
+    private static PriorityMessageQueue.LaneStat getLaneStat(PriorityMessageQueue priorityMessageQueue, String laneName) {
+        return priorityMessageQueue.getLaneStats().get(priorityMessageQueue.getLaneNames().indexOf(laneName));
+    }
+
+    /**
+     * 定期维护任务队列: 将超时未 ACK 的消息重新放回队列, 刷新各通道的积压数量, 将到期的重试任务推送回通道
+     * 多个节点同时维护也是安全的
+     * @param scheduledExecutor 周期执行线程池
+     * @param priorityMessageQueue 任务队列
+     */
+    static void scheduleQueueMaintenance(ScheduledExecutorService scheduledExecutor, PriorityMessageQueue priorityMessageQueue) {
+        scheduledExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                priorityMessageQueue.ackClean();
+            } catch (Exception e) {
+                log.error("email send task queue ack clean failed", e);
+            }
+        }, ACK_CLEAN_INTERVAL_SECONDS, ACK_CLEAN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        scheduledExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                priorityMessageQueue.refreshLaneDepths();
+            } catch (Exception e) {
+                log.error("email send task queue refresh lane depths failed", e);
+            }
+        }, LANE_STATS_INTERVAL_SECONDS, LANE_STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        scheduledExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                priorityMessageQueue.pumpDelayedValues();
+            } catch (Exception e) {
+                log.error("email send task queue pump delayed values failed", e);
+            }
+        }, RETRY_PUMP_INTERVAL_MILLIS, RETRY_PUMP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 通过反射创建 每个任务一个虚拟线程的执行器, 以便在 Java 8 下编译
+     * @return 执行器, 虚拟线程不可用时 返回 null
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "emaxil-virtual-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 消费单个队列消息
+     * @param queueValue 队列值
+     * @return 是否消费成功 消费失败的消息不进行 ACK, 超时后会重新回到队列中
+     */
+    private boolean consumeValue(RedisMessageQueue.QueueValue queueValue) {
+        // 消费期间 每 1/3 ACK 超时时间 延长一次截止时间, 避免发送较慢的邮件被重新入队 重复发送
+        long heartbeatMillis = Math.max(1000L, priorityMessageQueue.getAckTimeoutMillis() / 3);
+        ScheduledFuture<?> heartbeat = heartbeatExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                priorityMessageQueue.extendValue(queueValue);
+            } catch (Exception e) {
+                log.error(StrUtil.format("email send task:{} extend failed", queueValue.getValue()), e);
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        try {
+            // 将获取的值转换为 EmailSendTaskDTO
+            EmailSendTaskDTO emailSendTaskDTO = JSON.parseObject(queueValue.getValue(), EmailSendTaskDTO.class);
+            // 将DTO 转换为 EmailSendTask<E>
+            EmailSendTask<E> emailSendTask = new EmailSendTask<>(emailSendTaskDTO.getId(), emailSendTaskDTO.getPriority());
+            emailSendTask.setStatus(EmailSendTask.StatusEnum.values()[emailSendTaskDTO.getStatus()]);
+            emailSendTask.setRetryCount(emailSendTaskDTO.getRetryCount());
+            emailSendTask.setRetryLimit(emailSendTaskDTO.getRetryLimit());
+            // 消费者消费消息 EmailSendTask<E>
+            consume(emailSendTask);
+            return true;
+        } catch (Exception e) {
+            log.error(StrUtil.format("email send task:{} consume failed", queueValue.getValue()), e);
+            return false;
+        } finally {
+            heartbeat.cancel(false);
         }
     }
 }
@@ -0,0 +1,39 @@
+package com.veda.emaxil.core.entity;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 邮件活动中的一封邮件, 只包含活动ID 收件人 和 收件人的变量
+ * 正文在发送前 由 CampaignEmailSender 根据活动模板渲染
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class CampaignEmail extends AbstractEmail {
+
+    /**
+     * 邮件活动ID
+     */
+    private String campaignId;
+    /**
+     * 收件人
+     */
+    private List<String> to = new ArrayList<>();
+    /**
+     * 替换模板中 ${name} 的变量
+     */
+    private Map<String, String> variables = new HashMap<>();
+
+    public static CampaignEmail of(String campaignId, List<String> to, Map<String, String> variables) {
+        CampaignEmail campaignEmail = new CampaignEmail();
+        campaignEmail.setCampaignId(campaignId);
+        campaignEmail.setTo(to);
+        campaignEmail.setVariables(variables);
+        return campaignEmail;
+    }
+}
@@ -0,0 +1,27 @@
+package com.veda.emaxil.core.entity;
+
+import lombok.Data;
+
+/**
+ * 邮件附件的引用, 附件内容按内容哈希存储在 AttachmentStore 中 多封邮件共用
+ */
+@Data
+public class EmailAttachment {
+
+    /**
+     * 附件内容的 SHA-256 哈希 十六进制
+     */
+    private String hash;
+    /**
+     * 附件文件名
+     */
+    private String fileName;
+    /**
+     * 附件类型 如 application/pdf
+     */
+    private String contentType;
+    /**
+     * 附件大小 字节
+     */
+    private long size;
+}
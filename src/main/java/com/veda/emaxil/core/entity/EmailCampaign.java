@@ -0,0 +1,47 @@
+package com.veda.emaxil.core.entity;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 邮件活动, 同一活动的所有邮件共用的发件人 主题 和 正文模板, 只存储一份
+ * 主题和正文中的 ${name} 在发送前 替换为收件人的变量, 活动创建后不应再修改
+ */
+@Data
+public class EmailCampaign {
+
+    /**
+     * 标识邮件活动的 ID
+     */
+    private String id;
+    /**
+     * 发件人地址, 为空时使用发送账户的发件人
+     */
+    private String from;
+    /**
+     * 抄送
+     */
+    private List<String> cc = new ArrayList<>();
+    /**
+     * 密送
+     */
+    private List<String> bcc = new ArrayList<>();
+    /**
+     * 主题模板
+     */
+    private String subject;
+    /**
+     * 正文模板
+     */
+    private String content;
+    /**
+     * 正文是否为 HTML, 为 HTML 时 替换的变量会被转义
+     */
+    private boolean html = false;
+    /**
+     * 附件, 只包含引用 内容存储在 AttachmentStore 中
+     */
+    private List<EmailAttachment> attachments = new ArrayList<>();
+}
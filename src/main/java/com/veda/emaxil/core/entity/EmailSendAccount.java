@@ -35,4 +35,9 @@ public class EmailSendAccount<A extends AbstractAccount> {
      */
     @Setter
     private volatile boolean isEnable = false;
+    /**
+     * 当前邮件发送服务不可用时 预计重新可用的时间戳 毫秒, 0 表示未知
+     */
+    @Setter
+    private volatile long nextEnableAt = 0L;
 }
@@ -4,5 +4,107 @@ import lombok.Data;
 
 @Data
 public class EmailSendConfig {
+    /**
+     * 邮件发送线程池的大小, 即 POOL 模式下常驻的消费者线程数量, 通过 EmaxilCore.updateEmailSendConfig 修改时 立即生效
+     */
     private Integer threadPoolSize;
+    /**
+     * 定期重新加载 发送账户 和 发送配置 的间隔 毫秒, 0 表示不定期加载 只通过 EmaxilCore 的 reload 方法加载, 只在启动时读取
+     */
+    private Long reloadIntervalMillis = 0L;
+    /**
+     * 每个消费者线程 每次从队列中预取的任务数量
+     */
+    private Integer prefetchSize = 1;
+    /**
+     * RedisMqEmailSendTaskConsumer 的执行模式 POOL 或 VIRTUAL, 见 RedisMqEmailSendTaskConsumer.ExecutionMode
+     */
+    private String executionMode = "POOL";
+    /**
+     * VIRTUAL 执行模式下 同时处理的最大任务数量
+     */
+    private Integer virtualConcurrency = 1000;
+    /**
+     * 本地队列模式下 环形缓冲区的容量, 向上取整为 2 的幂
+     */
+    private Integer localQueueCapacity = 65536;
+    /**
+     * 本地队列模式下 缓冲区满或空时的等待策略 BUSY_SPIN YIELDING SLEEPING 或 BLOCKING, 见 RingBuffer.WaitStrategy
+     */
+    private String localWaitStrategy = "BLOCKING";
+    /**
+     * 本地队列模式下 缓冲区满时 生产者最长的等待时间 毫秒, 超时后生产失败
+     */
+    private Long localOfferTimeoutMillis = 60000L;
+    /**
+     * 响应式消费者 同时处理的最大任务数量
+     */
+    private Integer reactiveConcurrency = 256;
+    /**
+     * 响应式消费者 每个发送账户同时进行的最大发送数量, 达到后该账户暂停被占用 直到有发送完成
+     * 开启 adaptiveRate 时 也是常驻线程池消费者的上限, 实际上限在 1 和该值之间自适应调整
+     */
+    private Integer maxConcurrencyPerAccount = 4;
+    /**
+     * 是否按服务商的响应 以 AIMD 自适应调整每个账户的发送速率 和 并发数量, 见 EmailSendAccountRateController
+     */
+    private Boolean adaptiveRate = false;
+    /**
+     * 自适应速率下 每个账户的初始 最小 和 最大发送速率 每秒
+     */
+    private Double adaptiveRateInitial = 10D;
+    private Double adaptiveRateMin = 0.1D;
+    private Double adaptiveRateMax = 100D;
+    /**
+     * 持续发送成功时 每个账户的速率每秒约增加的值
+     */
+    private Double adaptiveRateIncrease = 5D;
+    /**
+     * 被限流 或响应变慢时 账户的速率和并发数量 乘以该比例, 0 到 1 之间
+     */
+    private Double adaptiveDecreaseFactor = 0.5D;
+    /**
+     * 账户近期的平均耗时 超过其基准耗时的倍数时 视为响应变慢, 不大于 1 时不检测
+     */
+    private Double adaptiveSlowLatencyRatio = 3D;
+    /**
+     * 视为被服务商限流的 SMTP 响应码 以逗号分隔
+     */
+    private String adaptiveThrottleCodes = "421,450,451,452";
+    /**
+     * 批量生产任务时 每个分块的邮件数量, 每个分块批量持久化一次 批量入队一次
+     */
+    private Integer produceChunkSize = 1000;
+    /**
+     * 邮件发送失败的最大重试次数 生产任务时使用
+     */
+    private Integer retryLimit = 0;
+    /**
+     * 第一次重试前的延迟时间 毫秒, 之后每次重试的延迟翻倍
+     */
+    private Long retryBaseDelayMillis = 5000L;
+    /**
+     * 重试延迟时间的上限 毫秒
+     */
+    private Long retryMaxDelayMillis = 600000L;
+    /**
+     * 重试延迟的随机抖动比例 0 到 1 之间, 实际延迟在 [延迟 * (1 - 比例), 延迟] 中随机, 避免同时失败的任务同时重试
+     */
+    private Double retryJitter = 0.5;
+    /**
+     * 任务队列的优先级数量, 任务优先级数值越小越优先 0 为最高, 超出范围的归入最低优先级
+     */
+    private Integer priorityLevels = 3;
+    /**
+     * 优先级出队策略 STRICT 或 WEIGHTED, 见 PriorityMessageQueue.Policy
+     */
+    private String priorityPolicy = "STRICT";
+    /**
+     * WEIGHTED 策略下各优先级的权重 以逗号分隔 如 8,4,1, 为空时 相邻优先级的权重依次减半
+     */
+    private String priorityWeights;
+    /**
+     * STRICT 策略下 低优先级队列有积压时 最长未被服务的时间 毫秒, 超过后临时提升 避免饥饿
+     */
+    private Long priorityMaxWaitMillis = 10000L;
 }
@@ -30,4 +30,19 @@ public class EmailSendTaskDTO {
      * 邮件发送失败的最大重试次数
      */
     private Integer retryLimit = 0;
+
+    /**
+     * 由邮件发送任务 构建队列中存储的数据
+     * @param emailSendTask 邮件发送任务
+     * @return EmailSendTaskDTO
+     */
+    public static EmailSendTaskDTO of(EmailSendTask<?> emailSendTask) {
+        EmailSendTaskDTO emailSendTaskDTO = new EmailSendTaskDTO();
+        emailSendTaskDTO.setId(emailSendTask.getId());
+        emailSendTaskDTO.setPriority(emailSendTask.getPriority());
+        emailSendTaskDTO.setStatus(emailSendTask.getStatus().ordinal());
+        emailSendTaskDTO.setRetryCount(emailSendTask.getRetryCount());
+        emailSendTaskDTO.setRetryLimit(emailSendTask.getRetryLimit());
+        return emailSendTaskDTO;
+    }
 }
@@ -7,4 +7,9 @@ import lombok.Data;
  */
 @Data
 public class EmailServiceProvider {
+
+    /**
+     * 服务商名称 如 163, 同时作为监控指标的 provider 标签
+     */
+    private String name;
 }
@@ -0,0 +1,85 @@
+package com.veda.emaxil.core.entity;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量生产邮件发送任务的结果
+ * 只保留失败的分块, 成功的分块只计入总数
+ */
+@Data
+public class ProduceResult {
+
+    /**
+     * 输入的邮件数量
+     */
+    private long total;
+    /**
+     * 已持久化 并放入队列的任务数量
+     */
+    private long produced;
+    /**
+     * 失败的邮件数量
+     */
+    private long failed;
+    /**
+     * 分块数量
+     */
+    private int chunkCount;
+    /**
+     * 有失败的分块
+     */
+    private final List<Chunk> failedChunks = new ArrayList<>();
+    /**
+     * 总耗时 毫秒
+     */
+    private long elapsedMillis;
+
+    /**
+     * 记录一个分块的结果
+     * @param chunk 分块
+     */
+    public void addChunk(Chunk chunk) {
+        total += chunk.getSize();
+        produced += chunk.getProduced();
+        failed += chunk.getFailed();
+        chunkCount++;
+        if (chunk.getFailed() > 0) {
+            failedChunks.add(chunk);
+        }
+    }
+
+    /**
+     * 单个分块的结果
+     */
+    @Data
+    public static class Chunk {
+        /**
+         * 分块序号 从 0 开始
+         */
+        private final int index;
+        /**
+         * 分块中的邮件数量
+         */
+        private final int size;
+        /**
+         * 已持久化 并放入队列的任务数量
+         */
+        private int produced;
+        /**
+         * 失败的邮件数量, 包括为 null 的邮件
+         */
+        private int failed;
+        /**
+         * 已持久化 但未能放入队列的任务ID, 这些任务处于未发送状态 可由调用方重新放入队列
+         */
+        private List<String> unqueuedTaskIds = Collections.emptyList();
+        /**
+         * 失败原因
+         */
+        private String errorMessage;
+    }
+}
@@ -0,0 +1,49 @@
+package com.veda.emaxil.core.entity;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * 通过 SMTP 协议发送邮件的账户配置
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class SmtpAccount extends AbstractAccount {
+
+    /**
+     * SMTP 服务器地址 如 smtp.163.com
+     */
+    private String host;
+    /**
+     * SMTP 服务器端口, SSL 一般为 465, STARTTLS 一般为 25 或 587
+     */
+    private int port = 25;
+    /**
+     * 登录用户名
+     */
+    private String username;
+    /**
+     * 登录密码 或 授权码
+     */
+    private String password;
+    /**
+     * 发件人地址, 为空时使用 username
+     */
+    private String from;
+    /**
+     * 是否使用 SSL 连接
+     */
+    private boolean ssl = false;
+    /**
+     * 是否使用 STARTTLS
+     */
+    private boolean startTls = false;
+    /**
+     * 建立连接的超时时间 毫秒
+     */
+    private int connectTimeoutMillis = 10000;
+    /**
+     * 读写的超时时间 毫秒
+     */
+    private int timeoutMillis = 30000;
+}
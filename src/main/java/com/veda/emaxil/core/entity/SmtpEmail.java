@@ -0,0 +1,48 @@
+package com.veda.emaxil.core.entity;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 通过 SMTP 协议发送的邮件
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class SmtpEmail extends AbstractEmail {
+
+    /**
+     * 发件人地址, 为空时使用发送账户的发件人
+     */
+    private String from;
+    /**
+     * 收件人
+     */
+    private List<String> to = new ArrayList<>();
+    /**
+     * 抄送
+     */
+    private List<String> cc = new ArrayList<>();
+    /**
+     * 密送
+     */
+    private List<String> bcc = new ArrayList<>();
+    /**
+     * 主题
+     */
+    private String subject;
+    /**
+     * 正文
+     */
+    private String content;
+    /**
+     * 正文是否为 HTML
+     */
+    private boolean html = false;
+    /**
+     * 附件, 只包含引用 内容存储在 AttachmentStore 中
+     */
+    private List<EmailAttachment> attachments = new ArrayList<>();
+}
@@ -1,6 +1,15 @@
 package com.veda.emaxil.core.producer;
 
 import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.ProduceResult;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * 生产者接口
@@ -8,9 +17,120 @@ import com.veda.emaxil.core.entity.AbstractEmail;
  */
 public interface AbstractEmailSendTaskProducer<E extends AbstractEmail> {
 
+    /**
+     * 批量生产的默认分块大小
+     */
+    int DEFAULT_CHUNK_SIZE = 1000;
+
     /**
      * 生产邮件发送任务
      * @param email 邮件
      */
     void produce(E email);
+
+    /**
+     * 按优先级生产邮件发送任务
+     * @param email 邮件
+     * @param priority 优先级 数值越小越优先 0 为最高
+     */
+    void produce(E email, int priority);
+
+    /**
+     * 批量生产邮件发送任务 按最低优先级处理
+     * @param emails 邮件
+     * @return 生产结果
+     */
+    default ProduceResult produceAll(Iterable<E> emails) {
+        return produceAll(emails, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * 批量生产邮件发送任务 按最低优先级处理, 邮件流只被遍历一次 不会全部加载到内存中
+     * @param emails 邮件
+     * @return 生产结果
+     */
+    default ProduceResult produceAll(Stream<E> emails) {
+        return produceAll(emails, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * 按优先级批量生产邮件发送任务
+     * @param emails 邮件
+     * @param priority 优先级 数值越小越优先 0 为最高
+     * @param listener 每个分块完成后的回调 按分块顺序调用, 可以为 null
+     * @return 生产结果
+     */
+    default ProduceResult produceAll(Stream<E> emails, int priority, Consumer<ProduceResult.Chunk> listener) {
+        if (Objects.isNull(emails)) {
+            throw new IllegalArgumentException("emails can not be null");
+        }
+        return produceAll(emails::iterator, priority, listener);
+    }
+
+    /**
+     * 按优先级批量生产邮件发送任务
+     * 按 DEFAULT_CHUNK_SIZE 分块 逐个调用 produce, 实现可覆盖为 每个分块批量持久化 批量入队
+     * 单个分块失败不影响其它分块, 失败情况记录在返回结果中
+     * @param emails 邮件
+     * @param priority 优先级 数值越小越优先 0 为最高
+     * @param listener 每个分块完成后的回调 按分块顺序调用, 可以为 null
+     * @return 生产结果
+     */
+    default ProduceResult produceAll(Iterable<E> emails, int priority, Consumer<ProduceResult.Chunk> listener) {
+        if (Objects.isNull(emails)) {
+            throw new IllegalArgumentException("emails can not be null");
+        }
+        long start = System.currentTimeMillis();
+        ProduceResult result = new ProduceResult();
+        Iterator<E> iterator = emails.iterator();
+        for (int index = 0; iterator.hasNext(); index++) {
+            List<E> chunkEmails = nextChunk(iterator, DEFAULT_CHUNK_SIZE);
+            ProduceResult.Chunk chunk = new ProduceResult.Chunk(index, chunkEmails.size());
+            for (E email : chunkEmails) {
+                try {
+                    produce(email, priority);
+                    chunk.setProduced(chunk.getProduced() + 1);
+                } catch (RuntimeException e) {
+                    chunk.setFailed(chunk.getFailed() + 1);
+                    chunk.setErrorMessage(e.getMessage());
+                }
+            }
+            completeChunk(result, chunk, listener);
+        }
+        result.setElapsedMillis(System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 从迭代器中取出下一个分块
+     * @param iterator 迭代器
+     * @param chunkSize 分块大小
+     * @param <T> 元素
+     * @return 分块 迭代器已结束时为空列表
+     */
+    static <T> List<T> nextChunk(Iterator<T> iterator, int chunkSize) {
+        List<T> chunk = new ArrayList<>(chunkSize);
+        while (chunk.size() < chunkSize && iterator.hasNext()) {
+            chunk.add(iterator.next());
+        }
+        return chunk;
+    }
+
+    /**
+     * 记录分块结果 并通知回调, 回调抛出的异常不影响后续分块
+     * @param result 生产结果
+     * @param chunk 分块结果
+     * @param listener 回调 可以为 null
+     */
+    static void completeChunk(ProduceResult result, ProduceResult.Chunk chunk, Consumer<ProduceResult.Chunk> listener) {
+        result.addChunk(chunk);
+        if (Objects.isNull(listener)) {
+            return;
+        }
+        try {
+            listener.accept(chunk);
+        } catch (RuntimeException e) {
+            LoggerFactory.getLogger(AbstractEmailSendTaskProducer.class).error("produce chunk:{} listener failed", chunk.getIndex(), e);
+        }
+    }
 }
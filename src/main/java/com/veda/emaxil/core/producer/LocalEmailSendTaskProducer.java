@@ -0,0 +1,172 @@
+package com.veda.emaxil.core.producer;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.EmaxilCore;
+import com.veda.emaxil.core.consumer.LocalEmailSendTaskConsumer;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendConfig;
+import com.veda.emaxil.core.entity.EmailSendTask;
+import com.veda.emaxil.core.entity.ProduceResult;
+import com.veda.emaxil.core.service.EmailSendTaskService;
+import com.veda.emaxil.core.service.UnfinishedEmailSendTaskService;
+import com.veda.emaxil.util.RingBuffer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 基于本地环形缓冲区 实现的生产者, 与 LocalEmailSendTaskConsumer 配合使用
+ * 持久化邮件发送任务后 将其放入消费者的环形缓冲区, 缓冲区满时 等待最多 localOfferTimeoutMillis 对调用方施加背压
+ * 启动时 通过 UnfinishedEmailSendTaskService 重新加载未完成的任务, 因此只适用于单节点部署, 未提供其 Bean 时 注入失败 应用无法启动
+ * @param <E> 邮件
+ */
+@Slf4j
+public class LocalEmailSendTaskProducer<E extends AbstractEmail> implements AbstractEmailSendTaskProducer<E> {
+
+    @Autowired
+    private EmailSendTaskService<E> emailSendTaskService;
+
+    @Autowired
+    private UnfinishedEmailSendTaskService<E> unfinishedEmailSendTaskService;
+
+    @Autowired
+    private EmaxilCore<?, E> emaxilCore;
+
+    @Autowired
+    private LocalEmailSendTaskConsumer<?, E> localEmailSendTaskConsumer;
+
+    private RingBuffer<EmailSendTask<E>> ringBuffer;
+
+    @PostConstruct
+    public void initialized() {
+        ringBuffer = localEmailSendTaskConsumer.getRingBuffer();
+        reloadUnfinishedTasks();
+    }
+
+    /**
+     * 未指定优先级的任务 按最低优先级处理
+     * @param email 邮件
+     */
+    @Override
+    public void produce(E email) {
+        produce(email, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 本地队列按生产顺序消费, 优先级只记录在任务中
+     * @param email 邮件
+     * @param priority 优先级 数值越小越优先 0 为最高
+     */
+    @Override
+    public void produce(E email, int priority) {
+        if (Objects.isNull(email)) {
+            throw new IllegalArgumentException("email can not be null");
+        }
+        EmailSendTask<E> emailSendTask = newEmailSendTask(email, priority);
+        // 先持久化 再放入队列中, 放入失败的任务 会在下次启动时重新加载
+        emailSendTaskService.insert(emailSendTask);
+        offer(emailSendTask);
+        log.debug("produce email send task:{} priority:{}", emailSendTask.getId(), emailSendTask.getPriority());
+    }
+
+    /**
+     * 按 produceChunkSize 分块, 每个分块通过 insertAll 批量持久化后 依次放入环形缓冲区
+     * 持久化失败时 整个分块失败; 放入缓冲区超时时 分块中剩余的任务ID 记录在 unqueuedTaskIds 中, 这些任务会在下次启动时重新加载
+     * @param emails 邮件
+     * @param priority 优先级 数值越小越优先 0 为最高
+     * @param listener 每个分块完成后的回调 按分块顺序调用, 可以为 null
+     * @return 生产结果
+     */
+    @Override
+    public ProduceResult produceAll(Iterable<E> emails, int priority, Consumer<ProduceResult.Chunk> listener) {
+        if (Objects.isNull(emails)) {
+            throw new IllegalArgumentException("emails can not be null");
+        }
+        Integer produceChunkSize = emaxilCore.getEmailSendConfig().getProduceChunkSize();
+        int chunkSize = Objects.isNull(produceChunkSize) || produceChunkSize <= 0 ? DEFAULT_CHUNK_SIZE : produceChunkSize;
+        long start = System.currentTimeMillis();
+        ProduceResult result = new ProduceResult();
+        Iterator<E> iterator = emails.iterator();
+        for (int index = 0; iterator.hasNext(); index++) {
+            List<E> chunkEmails = AbstractEmailSendTaskProducer.nextChunk(iterator, chunkSize);
+            ProduceResult.Chunk chunk = new ProduceResult.Chunk(index, chunkEmails.size());
+            List<EmailSendTask<E>> emailSendTasks = new ArrayList<>(chunkEmails.size());
+            for (E email : chunkEmails) {
+                if (Objects.isNull(email)) {
+                    chunk.setFailed(chunk.getFailed() + 1);
+                    chunk.setErrorMessage("email can not be null");
+                } else {
+                    emailSendTasks.add(newEmailSendTask(email, priority));
+                }
+            }
+            if (!emailSendTasks.isEmpty()) {
+                produceChunk(chunk, emailSendTasks);
+            }
+            AbstractEmailSendTaskProducer.completeChunk(result, chunk, listener);
+        }
+        result.setElapsedMillis(System.currentTimeMillis() - start);
+        log.info("produce {} email send tasks in {} chunks, produced:{} failed:{} cost:{}ms",
+                result.getTotal(), result.getChunkCount(), result.getProduced(), result.getFailed(), result.getElapsedMillis());
+        return result;
+    }
+
+    private void produceChunk(ProduceResult.Chunk chunk, List<EmailSendTask<E>> emailSendTasks) {
+        try {
+            emailSendTaskService.insertAll(emailSendTasks);
+        } catch (RuntimeException e) {
+            log.error("produce chunk:{} insert {} email send tasks failed", chunk.getIndex(), emailSendTasks.size(), e);
+            chunk.setFailed(chunk.getFailed() + emailSendTasks.size());
+            chunk.setErrorMessage(e.getMessage());
+            return;
+        }
+        for (int i = 0; i < emailSendTasks.size(); i++) {
+            try {
+                offer(emailSendTasks.get(i));
+            } catch (IllegalStateException e) {
+                List<EmailSendTask<E>> unqueued = emailSendTasks.subList(i, emailSendTasks.size());
+                chunk.setFailed(chunk.getFailed() + unqueued.size());
+                chunk.setUnqueuedTaskIds(unqueued.stream().map(EmailSendTask::getId).collect(Collectors.toList()));
+                chunk.setErrorMessage(e.getMessage());
+                log.error("produce chunk:{} offer {} email send tasks failed", chunk.getIndex(), unqueued.size(), e);
+                return;
+            }
+            chunk.setProduced(chunk.getProduced() + 1);
+        }
+    }
+
+    private EmailSendTask<E> newEmailSendTask(E email, int priority) {
+        EmailSendConfig emailSendConfig = emaxilCore.getEmailSendConfig();
+        int levels = Objects.isNull(emailSendConfig.getPriorityLevels()) ? 1 : Math.max(1, emailSendConfig.getPriorityLevels());
+        EmailSendTask<E> emailSendTask = new EmailSendTask<>(IdUtil.fastSimpleUUID(), Math.max(0, Math.min(priority, levels - 1)));
+        emailSendTask.setEmail(email);
+        emailSendTask.setStatus(EmailSendTask.StatusEnum.UN_SEND);
+        emailSendTask.setRetryLimit(Objects.isNull(emailSendConfig.getRetryLimit()) ? 0 : emailSendConfig.getRetryLimit());
+        return emailSendTask;
+    }
+
+    private void offer(EmailSendTask<E> emailSendTask) {
+        Long offerTimeoutMillis = emaxilCore.getEmailSendConfig().getLocalOfferTimeoutMillis();
+        if (!ringBuffer.offer(emailSendTask, Objects.isNull(offerTimeoutMillis) ? 60000L : offerTimeoutMillis)) {
+            throw new IllegalStateException(StrUtil.format("email send task local queue is full, offer task:{} timeout", emailSendTask.getId()));
+        }
+    }
+
+    /**
+     * 重新加载上次退出前未完成的任务
+     */
+    private void reloadUnfinishedTasks() {
+        List<EmailSendTask<E>> emailSendTasks = unfinishedEmailSendTaskService.selectAllUnfinished();
+        for (EmailSendTask<E> emailSendTask : emailSendTasks) {
+            offer(emailSendTask);
+        }
+        log.info("reload {} unfinished email send tasks", emailSendTasks.size());
+    }
+}
@@ -0,0 +1,186 @@
+package com.veda.emaxil.core.producer;
+
+import cn.hutool.core.util.IdUtil;
+import com.alibaba.fastjson.JSON;
+import com.veda.emaxil.core.EmaxilCore;
+import com.veda.emaxil.core.consumer.RedisMqEmailSendTaskConsumer;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendConfig;
+import com.veda.emaxil.core.entity.EmailSendTask;
+import com.veda.emaxil.core.entity.EmailSendTaskDTO;
+import com.veda.emaxil.core.entity.ProduceResult;
+import com.veda.emaxil.core.service.EmailSendTaskService;
+import com.veda.emaxil.util.MessageQueue;
+import com.veda.emaxil.util.PriorityMessageQueue;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 基于RedisMQ 实现的生产者
+ * 持久化邮件发送任务后 将其推送到任务优先级对应的队列通道中, 由 RedisMqEmailSendTaskConsumer 消费
+ * @param <E> 邮件
+ */
+@Slf4j
+public class RedisMqEmailSendTaskProducer<E extends AbstractEmail> implements AbstractEmailSendTaskProducer<E> {
+
+    @Autowired
+    private MessageQueue messageQueue;
+
+    @Autowired
+    private EmailSendTaskService<E> emailSendTaskService;
+
+    @Autowired
+    private EmaxilCore<?, E> emaxilCore;
+
+    private PriorityMessageQueue priorityMessageQueue;
+
+    @PostConstruct
+    public void initialized() {
+        priorityMessageQueue = RedisMqEmailSendTaskConsumer.createPriorityMessageQueue(messageQueue, emaxilCore.getEmailSendConfig());
+    }
+
+    /**
+     * 未指定优先级的任务 按最低优先级处理
+     * @param email 邮件
+     */
+    @Override
+    public void produce(E email) {
+        produce(email, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void produce(E email, int priority) {
+        if (Objects.isNull(email)) {
+            throw new IllegalArgumentException("email can not be null");
+        }
+        EmailSendTask<E> emailSendTask = newEmailSendTask(email, priority);
+        // 先持久化 再推送到队列中
+        emailSendTaskService.insert(emailSendTask);
+        priorityMessageQueue.addValue(emailSendTask.getPriority(), JSON.toJSONString(EmailSendTaskDTO.of(emailSendTask)));
+        log.info("produce email send task:{} priority:{}", emailSendTask.getId(), emailSendTask.getPriority());
+    }
+
+    /**
+     * 按 produceChunkSize 分块, 每个分块通过 insertAll 批量持久化, 通过一次 pipeline 批量推送到队列中
+     * 当前分块入队的同时 持久化下一个分块, 入队由单个线程按分块顺序执行, 最多只有一个分块在等待入队
+     * 持久化失败时 整个分块失败; 持久化成功 但入队失败时 分块中的任务ID 记录在 unqueuedTaskIds 中, 这些任务处于未发送状态
+     * @param emails 邮件
+     * @param priority 优先级 数值越小越优先 0 为最高
+     * @param listener 每个分块完成后的回调 按分块顺序在入队线程中调用, 可以为 null
+     * @return 生产结果
+     */
+    @Override
+    public ProduceResult produceAll(Iterable<E> emails, int priority, Consumer<ProduceResult.Chunk> listener) {
+        if (Objects.isNull(emails)) {
+            throw new IllegalArgumentException("emails can not be null");
+        }
+        Integer produceChunkSize = emaxilCore.getEmailSendConfig().getProduceChunkSize();
+        int chunkSize = Objects.isNull(produceChunkSize) || produceChunkSize <= 0 ? DEFAULT_CHUNK_SIZE : produceChunkSize;
+        long start = System.currentTimeMillis();
+        ProduceResult result = new ProduceResult();
+        Iterator<E> iterator = emails.iterator();
+        ExecutorService enqueueExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("emaxil-produce-"));
+        Future<?> enqueuing = null;
+        try {
+            for (int index = 0; iterator.hasNext(); index++) {
+                List<E> chunkEmails = AbstractEmailSendTaskProducer.nextChunk(iterator, chunkSize);
+                ProduceResult.Chunk chunk = new ProduceResult.Chunk(index, chunkEmails.size());
+                List<EmailSendTask<E>> emailSendTasks = new ArrayList<>(chunkEmails.size());
+                for (E email : chunkEmails) {
+                    if (Objects.isNull(email)) {
+                        chunk.setFailed(chunk.getFailed() + 1);
+                        chunk.setErrorMessage("email can not be null");
+                    } else {
+                        emailSendTasks.add(newEmailSendTask(email, priority));
+                    }
+                }
+                boolean isInserted = insertChunk(chunk, emailSendTasks);
+                awaitEnqueue(enqueuing);
+                enqueuing = enqueueExecutor.submit(() -> {
+                    if (isInserted) {
+                        enqueueChunk(chunk, emailSendTasks);
+                    }
+                    AbstractEmailSendTaskProducer.completeChunk(result, chunk, listener);
+                });
+            }
+            awaitEnqueue(enqueuing);
+        } finally {
+            enqueueExecutor.shutdown();
+        }
+        result.setElapsedMillis(System.currentTimeMillis() - start);
+        log.info("produce {} email send tasks in {} chunks, produced:{} failed:{} cost:{}ms",
+                result.getTotal(), result.getChunkCount(), result.getProduced(), result.getFailed(), result.getElapsedMillis());
+        return result;
+    }
+
+    private boolean insertChunk(ProduceResult.Chunk chunk, List<EmailSendTask<E>> emailSendTasks) {
+        if (emailSendTasks.isEmpty()) {
+            return false;
+        }
+        try {
+            emailSendTaskService.insertAll(emailSendTasks);
+            return true;
+        } catch (RuntimeException e) {
+            log.error("produce chunk:{} insert {} email send tasks failed", chunk.getIndex(), emailSendTasks.size(), e);
+            chunk.setFailed(chunk.getFailed() + emailSendTasks.size());
+            chunk.setErrorMessage(e.getMessage());
+            return false;
+        }
+    }
+
+    private void enqueueChunk(ProduceResult.Chunk chunk, List<EmailSendTask<E>> emailSendTasks) {
+        List<String> values = emailSendTasks.stream()
+                .map(emailSendTask -> JSON.toJSONString(EmailSendTaskDTO.of(emailSendTask)))
+                .collect(Collectors.toList());
+        try {
+            priorityMessageQueue.addValues(emailSendTasks.get(0).getPriority(), values);
+            chunk.setProduced(emailSendTasks.size());
+            log.debug("produce chunk:{} with {} email send tasks", chunk.getIndex(), emailSendTasks.size());
+        } catch (RuntimeException e) {
+            log.error("produce chunk:{} enqueue {} email send tasks failed", chunk.getIndex(), emailSendTasks.size(), e);
+            chunk.setFailed(chunk.getFailed() + emailSendTasks.size());
+            chunk.setUnqueuedTaskIds(emailSendTasks.stream().map(EmailSendTask::getId).collect(Collectors.toList()));
+            chunk.setErrorMessage(e.getMessage());
+        }
+    }
+
+    private void awaitEnqueue(Future<?> enqueuing) {
+        if (Objects.isNull(enqueuing)) {
+            return;
+        }
+        try {
+            enqueuing.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("produce email send tasks failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("produce email send tasks interrupted", e);
+        }
+    }
+
+    /**
+     * 超出范围的优先级归入最低优先级
+     */
+    private EmailSendTask<E> newEmailSendTask(E email, int priority) {
+        EmailSendConfig emailSendConfig = emaxilCore.getEmailSendConfig();
+        int laneCount = priorityMessageQueue.getLaneNames().size();
+        EmailSendTask<E> emailSendTask = new EmailSendTask<>(IdUtil.fastSimpleUUID(), Math.max(0, Math.min(priority, laneCount - 1)));
+        emailSendTask.setEmail(email);
+        emailSendTask.setStatus(EmailSendTask.StatusEnum.UN_SEND);
+        emailSendTask.setRetryLimit(Objects.isNull(emailSendConfig.getRetryLimit()) ? 0 : emailSendConfig.getRetryLimit());
+        return emailSendTask;
+    }
+}
@@ -1,6 +1,7 @@
 package com.veda.emaxil.core.restrict;
 
 import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendRestrict;
 import com.veda.emaxil.core.entity.EmailSendTask;
 import com.veda.emaxil.core.entity.AbstractAccount;
 import com.veda.emaxil.core.entity.AbstractEmail;
@@ -35,4 +36,14 @@ public interface RestrictService<A extends AbstractAccount, E extends AbstractEm
      * @return 是否可以发送
      */
     boolean canSend(EmailSendAccount<A> emailSendAccount, EmailSendTask<E> emailSendTask);
+
+    /**
+     * 发送账户 在该限制规则的当前统计范围内 已发送数量 占限制数值的比例, 供监控使用
+     * @param emailSendAccount 发送账户
+     * @param restrict 发送账户的限制规则
+     * @return 0 ~ 1 之间的比例, 不支持时返回 NaN
+     */
+    default double getUtilization(EmailSendAccount<A> emailSendAccount, EmailSendRestrict restrict) {
+        return Double.NaN;
+    }
 }
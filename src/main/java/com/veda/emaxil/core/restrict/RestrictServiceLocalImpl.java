@@ -0,0 +1,342 @@
+package com.veda.emaxil.core.restrict;
+
+import com.veda.emaxil.core.entity.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于 本地内存 实现的限制器, 适用于只部署单个节点的情况, 无需任何 Redis 往返
+ * 每个发送账户的每条限制规则 在首次使用时预分配一个统计窗口, 之后的判断和记录都不会产生新的对象分配:
+ * RANGE_TIME 使用容量为 limitValue 的 long 环形数组 记录最近的发送时间戳, 环满且最旧的记录仍在时间范围内 即表示已达上限
+ * POINT_TIME 使用 当前时间段起点 + 计数器 记录当前时间段内的发送数量, 跨过时间点时计数器归零
+ * @param <A> 账户详情
+ * @param <E> 邮件详情
+ */
+@Slf4j
+public class RestrictServiceLocalImpl<A extends AbstractAccount, E extends AbstractEmail> implements RestrictService<A, E> {
+
+    /**
+     * 发送账户ID 与 其统计数据
+     */
+    private final ConcurrentHashMap<String, AccountStatistic> accountStatistics = new ConcurrentHashMap<>();
+
+    /**
+     * 更新邮件发送账户的可用状态
+     * 直接使用本地统计窗口计算每个账户当前是否可发送 并更改对应的 isEnable 状态
+     * @param emailSendAccounts 发送账户列表
+     * @param isPassEnabled     是否对当前可用的邮件发送账户进行跳过 只处理不可用的
+     */
+    @Override
+    public void updateEmailSendAccountEnable(List<EmailSendAccount<A>> emailSendAccounts, boolean isPassEnabled) {
+        long now = System.currentTimeMillis();
+        for (EmailSendAccount<A> emailSendAccount : emailSendAccounts) {
+            if (isPassEnabled && emailSendAccount.isEnable()) {
+                continue;
+            }
+            AccountStatistic accountStatistic = getAccountStatistic(emailSendAccount);
+            long nextEnableAt;
+            synchronized (accountStatistic) {
+                nextEnableAt = accountStatistic.enableAt(now);
+            }
+            emailSendAccount.setNextEnableAt(nextEnableAt);
+            emailSendAccount.setEnable(nextEnableAt == 0L);
+        }
+    }
+
+    /**
+     * 删除 beforeTimestamps 之前时间的 邮件发送账户 统计数据
+     * 环形数组中过期的记录会被新的记录覆盖, 因此这里只释放 最后一次发送早于 beforeTimestamps 的账户的整个统计窗口
+     * @param emailSendAccounts 发送账户列表
+     * @param beforeTimestamps  需要删除该时间戳 之前的统计数据
+     */
+    @Override
+    public void deleteEmailSendAccountStatistic(List<EmailSendAccount<A>> emailSendAccounts, long beforeTimestamps) {
+        for (EmailSendAccount<A> emailSendAccount : emailSendAccounts) {
+            AccountStatistic accountStatistic = accountStatistics.get(emailSendAccount.getId());
+            if (Objects.isNull(accountStatistic)) {
+                continue;
+            }
+            synchronized (accountStatistic) {
+                if (accountStatistic.lastRecordAt < beforeTimestamps
+                        && accountStatistics.remove(emailSendAccount.getId(), accountStatistic)) {
+                    log.info("delete emailSendAccount:{} statistic", emailSendAccount.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前 发送账户 是否可以发送 该邮件任务
+     * 在该账户的统计数据上加锁 验证所有限制规则, 如果不符合 标记该账户为不可用 并记录其下次可用时间, 返回 false
+     * 如果符合 则在所有统计窗口中记录本次发送, 返回 true
+     * @param emailSendAccount 发送账户
+     * @param emailSendTask    邮件任务
+     * @return 是否可以发送
+     */
+    @Override
+    public boolean canSend(EmailSendAccount<A> emailSendAccount, EmailSendTask<E> emailSendTask) {
+        AccountStatistic accountStatistic = getAccountStatistic(emailSendAccount);
+        long nextEnableAt;
+        synchronized (accountStatistic) {
+            long now = System.currentTimeMillis();
+            nextEnableAt = accountStatistic.enableAt(now);
+            if (nextEnableAt == 0L) {
+                accountStatistic.record(now);
+                return true;
+            }
+        }
+        emailSendAccount.setNextEnableAt(nextEnableAt);
+        emailSendAccount.setEnable(false);
+        log.info("set emailSendAccount:{} disable", emailSendAccount.getId());
+        return false;
+    }
+
+    /**
+     * 从本地统计窗口中 计算该限制规则的使用比例
+     * @param emailSendAccount 发送账户
+     * @param restrict 发送账户的限制规则
+     * @return 0 ~ 1 之间的比例, 规则不属于该账户时返回 NaN
+     */
+    @Override
+    public double getUtilization(EmailSendAccount<A> emailSendAccount, EmailSendRestrict restrict) {
+        AccountStatistic accountStatistic = getAccountStatistic(emailSendAccount);
+        int index = accountStatistic.restricts.indexOf(restrict);
+        if (index < 0) {
+            return Double.NaN;
+        }
+        long count;
+        synchronized (accountStatistic) {
+            count = accountStatistic.windows[index].count(System.currentTimeMillis());
+        }
+        return restrict.getLimitValue() <= 0 ? 1D : Math.min(1D, (double) count / restrict.getLimitValue());
+    }
+
+    /**
+     * 获取账户的统计数据, 按账户ID 保存, 重新加载账户时 限制规则相同的新实例 继续使用原统计数据
+     * 限制规则变化时 重新创建, 未变化的规则 复制其原统计窗口, 已发送的记录不会因替换账户而丢失
+     * @param emailSendAccount 发送账户
+     * @return 统计数据
+     */
+    private AccountStatistic getAccountStatistic(EmailSendAccount<A> emailSendAccount) {
+        List<EmailSendRestrict> restricts = emailSendAccount.getRestricts();
+        AccountStatistic accountStatistic = accountStatistics.get(emailSendAccount.getId());
+        if (Objects.nonNull(accountStatistic) && accountStatistic.isSameRestricts(restricts)) {
+            return accountStatistic;
+        }
+        return accountStatistics.compute(emailSendAccount.getId(), (id, current) -> {
+            if (Objects.isNull(current)) {
+                return new AccountStatistic(restricts, null);
+            }
+            if (current.isSameRestricts(restricts)) {
+                return current;
+            }
+            synchronized (current) {
+                log.info("emailSendAccount:{} restricts changed, rebuild statistic", id);
+                return new AccountStatistic(restricts, current);
+            }
+        });
+    }
+
+    /**
+     * 单个发送账户的统计数据 由 每条限制规则对应的统计窗口 组成
+     * 非线程安全 需要调用方在该对象上加锁
+     */
+    private static final class AccountStatistic {
+
+        private final List<EmailSendRestrict> restricts;
+        private final RestrictWindow[] windows;
+        private long lastRecordAt = 0L;
+
+        /**
+         * @param restricts 限制规则
+         * @param previous 限制规则变化前的统计数据, 相同规则的统计窗口 复制到新的统计数据中, 可为空
+         */
+        AccountStatistic(List<EmailSendRestrict> restricts, AccountStatistic previous) {
+            this.restricts = restricts;
+            this.windows = new RestrictWindow[restricts.size()];
+            for (int i = 0; i < windows.length; i++) {
+                EmailSendRestrict restrict = restricts.get(i);
+                int previousIndex = Objects.isNull(previous) ? -1 : previous.restricts.indexOf(restrict);
+                if (previousIndex >= 0) {
+                    windows[i] = previous.windows[previousIndex].copy();
+                    continue;
+                }
+                long windowMillis = restrict.getTimeUnit().toMillis(restrict.getTimeValue());
+                switch (restrict.getTimeType()) {
+                    case RANGE_TIME:
+                        windows[i] = new RangeTimeWindow(windowMillis, restrict.getLimitValue());
+                        break;
+                    case POINT_TIME:
+                        windows[i] = new PointTimeWindow(windowMillis, restrict.getLimitValue());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("un support restrict timeType:" + restrict.getTimeType());
+                }
+            }
+            if (Objects.nonNull(previous)) {
+                lastRecordAt = previous.lastRecordAt;
+            }
+        }
+
+        boolean isSameRestricts(List<EmailSendRestrict> restricts) {
+            return this.restricts == restricts || this.restricts.equals(restricts);
+        }
+
+        /**
+         * 所有规则均可发送时返回 0, 否则返回 所有规则都重新可发送的时间戳
+         */
+        long enableAt(long now) {
+            long enableAt = 0L;
+            for (RestrictWindow window : windows) {
+                enableAt = Math.max(enableAt, window.enableAt(now));
+            }
+            return enableAt;
+        }
+
+        void record(long now) {
+            for (RestrictWindow window : windows) {
+                window.record(now);
+            }
+            lastRecordAt = now;
+        }
+    }
+
+    private interface RestrictWindow {
+
+        /**
+         * 在 now 时刻 再发送一封邮件仍在限制范围内时返回 0, 否则返回 该窗口重新可发送的时间戳
+         */
+        long enableAt(long now);
+
+        /**
+         * 记录 now 时刻 发送了一封邮件
+         */
+        void record(long now);
+
+        /**
+         * 在 now 时刻 窗口内的发送数量
+         */
+        long count(long now);
+
+        /**
+         * @return 相同记录的副本
+         */
+        RestrictWindow copy();
+    }
+
+    /**
+     * 从 当前时间前的一段范围时间 到 当前时间 的滑动窗口
+     * 环中只保存最近 limitValue 次发送的时间戳, 当环已满时 最旧的一次发送仍在窗口内 则说明窗口内已有 limitValue 次发送
+     */
+    private static final class RangeTimeWindow implements RestrictWindow {
+
+        private final long windowMillis;
+        private final long[] timestamps;
+        // 最旧记录的下标
+        private int head = 0;
+        private int size = 0;
+
+        RangeTimeWindow(long windowMillis, long limitValue) {
+            if (limitValue > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("RANGE_TIME restrict limitValue too large:" + limitValue);
+            }
+            this.windowMillis = windowMillis;
+            this.timestamps = new long[(int) Math.max(limitValue, 0)];
+        }
+
+        @Override
+        public long enableAt(long now) {
+            if (size < timestamps.length) {
+                return 0L;
+            }
+            if (size == 0) {
+                // limitValue 为 0 时永远不可发送
+                return now + windowMillis;
+            }
+            // 与 Redis 实现的 ZCOUNT [now - windowMillis, now] 保持一致, 最旧的记录滑出窗口后即可发送
+            return timestamps[head] < now - windowMillis ? 0L : timestamps[head] + windowMillis + 1;
+        }
+
+        @Override
+        public void record(long now) {
+            if (timestamps.length == 0) {
+                return;
+            }
+            if (size < timestamps.length) {
+                timestamps[(head + size) % timestamps.length] = now;
+                size++;
+            } else {
+                // 覆盖最旧的记录
+                timestamps[head] = now;
+                head = (head + 1) % timestamps.length;
+            }
+        }
+
+        @Override
+        public long count(long now) {
+            // 环中的时间戳按记录顺序递增, 从最旧的记录开始跳过已滑出窗口的记录
+            int expired = 0;
+            while (expired < size && timestamps[(head + expired) % timestamps.length] < now - windowMillis) {
+                expired++;
+            }
+            return size - expired;
+        }
+
+        @Override
+        public RestrictWindow copy() {
+            RangeTimeWindow window = new RangeTimeWindow(windowMillis, timestamps.length);
+            System.arraycopy(timestamps, 0, window.timestamps, 0, timestamps.length);
+            window.head = head;
+            window.size = size;
+            return window;
+        }
+    }
+
+    /**
+     * 从 当前时间所在起始时间点 到 结束时间点 的固定窗口
+     */
+    private static final class PointTimeWindow implements RestrictWindow {
+
+        private final long windowMillis;
+        private final long limitValue;
+        private long pointAt = -1L;
+        private long count = 0L;
+
+        PointTimeWindow(long windowMillis, long limitValue) {
+            this.windowMillis = windowMillis;
+            this.limitValue = limitValue;
+        }
+
+        @Override
+        public long enableAt(long now) {
+            long currentPointAt = now - now % windowMillis;
+            return (currentPointAt == pointAt ? count : 0L) < limitValue ? 0L : currentPointAt + windowMillis;
+        }
+
+        @Override
+        public void record(long now) {
+            long currentPointAt = now - now % windowMillis;
+            if (currentPointAt != pointAt) {
+                pointAt = currentPointAt;
+                count = 0L;
+            }
+            count++;
+        }
+
+        @Override
+        public long count(long now) {
+            return now - now % windowMillis == pointAt ? count : 0L;
+        }
+
+        @Override
+        public RestrictWindow copy() {
+            PointTimeWindow window = new PointTimeWindow(windowMillis, limitValue);
+            window.pointAt = pointAt;
+            window.count = count;
+            return window;
+        }
+    }
+}
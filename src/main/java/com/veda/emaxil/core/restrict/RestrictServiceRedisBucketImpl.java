@@ -0,0 +1,175 @@
+package com.veda.emaxil.core.restrict;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendRestrict;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 基于 Redis 分桶计数 实现的限制器, 适用于发送量很大的情况
+ * 每个账户的每条限制规则使用一个 Hash, 字段为时间桶的序号 值为该桶内的发送数量, 不再为每次发送保存一条 zSet 记录
+ * RANGE_TIME 的时间范围被分为 precision 个桶, 统计时 最早的桶即使只有一部分在范围内 也整体计入,
+ * 因此只会比精确统计提前拒绝 不会超出限制, 误差不超过一个桶的时间
+ * POINT_TIME 每个时间段只有一个桶, 与精确统计相同
+ * 每次记录时刷新 Hash 的过期时间, 并删除已滑出范围的桶, 占用的内存只与 precision 有关 与发送量无关, 不需要定期清理
+ * 不支持 RestrictServiceRedisLeaseImpl 的租约, 两者不能用于同一个账户
+ * @param <A> 账户详情
+ * @param <E> 邮件详情
+ */
+@Slf4j
+public class RestrictServiceRedisBucketImpl<A extends AbstractAccount, E extends AbstractEmail> extends RestrictServiceRedisImpl<A, E> {
+
+    /**
+     * RANGE_TIME 最多的分桶数量, 统计时需要一次 HMGET 所有的桶
+     */
+    public static final int MAX_PRECISION = 1000;
+
+    /**
+     * 以 Redis 服务端的 TIME 为准 检验账户的所有限制规则, 全部通过时 才在每条规则当前的桶中计数加一
+     * KEYS[n] 第 n 条限制规则的分桶 Hash, ARGV[1] 为空串时只检验不记录, ARGV[2] RANGE_TIME 的分桶数量
+     * ARGV[3..] 每三个一组 分别为 限制时间范围毫秒, 时间配置类型, 限制配置数值, 与 KEYS 一一对应
+     * 返回 0 表示检验通过, 否则返回 该账户所有限制规则都重新可用的时间戳
+     */
+    private static final DefaultRedisScript<Long> BUCKET_CAN_SEND_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local precision = tonumber(ARGV[2]) " +
+            "local nextEnableAt = 0 " +
+            "local buckets, firstBuckets, ttls = {}, {}, {} " +
+            "for k = 1, #KEYS do " +
+            "  local i = 3 + (k - 1) * 3 " +
+            "  local windowMillis = tonumber(ARGV[i]) " +
+            "  local limitValue = tonumber(ARGV[i + 2]) " +
+            "  local count = 0 " +
+            "  local enableAt = now + windowMillis " +
+            "  if ARGV[i + 1] == 'POINT_TIME' then " +
+            "    local period = math.floor(now / windowMillis) " +
+            "    count = tonumber(redis.call('HGET', KEYS[k], period) or '0') " +
+            "    enableAt = (period + 1) * windowMillis " +
+            "    buckets[k], firstBuckets[k], ttls[k] = period, period, enableAt - now " +
+            "  else " +
+            "    local bucketMillis = math.max(1, math.ceil(windowMillis / precision)) " +
+            "    local first = math.floor((now - windowMillis) / bucketMillis) " +
+            "    local last = math.floor(now / bucketMillis) " +
+            "    local fields = {} " +
+            "    for b = first, last do fields[#fields + 1] = b end " +
+            "    local counts = redis.call('HMGET', KEYS[k], unpack(fields)) " +
+            "    for j = 1, #counts do count = count + (tonumber(counts[j]) or 0) end " +
+            "    if count >= limitValue and limitValue > 0 then " +
+            // 从最早的桶开始 依次滑出范围, 滑出后计数小于限制数值的那个桶 决定重新可用的时间
+            "      local remaining = count " +
+            "      for j = 1, #counts do " +
+            "        remaining = remaining - (tonumber(counts[j]) or 0) " +
+            "        if remaining < limitValue then enableAt = (fields[j] + 1) * bucketMillis + windowMillis break end " +
+            "      end " +
+            "    end " +
+            "    buckets[k], firstBuckets[k], ttls[k] = last, first, windowMillis + bucketMillis " +
+            "  end " +
+            "  if count >= limitValue and enableAt > nextEnableAt then nextEnableAt = enableAt end " +
+            "end " +
+            "if nextEnableAt > 0 then return nextEnableAt end " +
+            "if ARGV[1] == '' then return 0 end " +
+            "for k = 1, #KEYS do " +
+            "  redis.call('HINCRBY', KEYS[k], buckets[k], 1) " +
+            "  redis.call('PEXPIRE', KEYS[k], math.max(1, ttls[k])) " +
+            // 桶的数量超过统计范围时 删除已滑出范围的桶
+            "  if redis.call('HLEN', KEYS[k]) > buckets[k] - firstBuckets[k] + 1 then " +
+            "    for _, field in ipairs(redis.call('HKEYS', KEYS[k])) do " +
+            "      if tonumber(field) < firstBuckets[k] then redis.call('HDEL', KEYS[k], field) end " +
+            "    end " +
+            "  end " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * RANGE_TIME 的时间范围被分为的桶数量, 越大 统计越精确, 但每次检验读取的桶越多
+     */
+    @Getter
+    private int precision = 60;
+
+    public void setPrecision(int precision) {
+        if (precision < 1 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException(StrUtil.format("precision must between 1 and {}", MAX_PRECISION));
+        }
+        this.precision = precision;
+    }
+
+    /**
+     * 分桶 Hash 带有过期时间, 不再需要定期删除统计数据
+     * @param emailSendAccounts 发送账户列表
+     * @param beforeTimestamps  需要删除该时间戳 之前的统计数据
+     */
+    @Override
+    public void deleteEmailSendAccountStatistic(List<EmailSendAccount<A>> emailSendAccounts, long beforeTimestamps) {
+    }
+
+    /**
+     * 以本地时间 读取该限制规则当前范围内的桶 求和, 与 canSend 一样 最早的桶整体计入
+     * @param emailSendAccount 发送账户
+     * @param restrict 发送账户的限制规则
+     * @return 0 ~ 1 之间的比例
+     */
+    @Override
+    public double getUtilization(EmailSendAccount<A> emailSendAccount, EmailSendRestrict restrict) {
+        if (restrict.getLimitValue() <= 0) {
+            return 1D;
+        }
+        long now = System.currentTimeMillis();
+        long windowMillis = restrict.getTimeUnit().toMillis(restrict.getTimeValue());
+        List<Object> fields = new ArrayList<>();
+        if (EmailSendRestrict.TimeTypeEnum.POINT_TIME.equals(restrict.getTimeType())) {
+            fields.add(String.valueOf(now / windowMillis));
+        } else {
+            long bucketMillis = getBucketMillis(windowMillis);
+            for (long bucket = Math.floorDiv(now - windowMillis, bucketMillis); bucket <= now / bucketMillis; bucket++) {
+                fields.add(String.valueOf(bucket));
+            }
+        }
+        List<Object> counts = getStringRedisTemplate().opsForHash()
+                .multiGet(getAccountStatisticBucketKey(emailSendAccount.getId(), restrict), fields);
+        long count = counts.stream().filter(Objects::nonNull).mapToLong(value -> Long.parseLong(value.toString())).sum();
+        return Math.min(1D, (double) count / restrict.getLimitValue());
+    }
+
+    @Override
+    protected RedisScript<Long> getCanSendScript() {
+        return BUCKET_CAN_SEND_SCRIPT;
+    }
+
+    @Override
+    protected List<String> getCanSendKeys(EmailSendAccount<A> emailSendAccount) {
+        List<String> keys = new ArrayList<>(emailSendAccount.getRestricts().size());
+        for (EmailSendRestrict restrict : emailSendAccount.getRestricts()) {
+            keys.add(getAccountStatisticBucketKey(emailSendAccount.getId(), restrict));
+        }
+        return keys;
+    }
+
+    @Override
+    protected Object[] getCanSendArgs(EmailSendAccount<A> emailSendAccount, String recordMember) {
+        return getAccountScriptArgs(emailSendAccount, StrUtil.isEmpty(recordMember) ? "" : "1", String.valueOf(precision));
+    }
+
+    /**
+     * @param windowMillis RANGE_TIME 的时间范围 毫秒
+     * @return 每个桶的时间 毫秒, 与脚本中的计算相同
+     */
+    private long getBucketMillis(long windowMillis) {
+        return Math.max(1L, (windowMillis + precision - 1) / precision);
+    }
+
+    protected String getAccountStatisticBucketKey(String emailSendAccountId, EmailSendRestrict restrict) {
+        return StrUtil.format("{}-statistic-{}-{}", emailSendAccountId,
+                restrict.getTimeUnit().toMillis(restrict.getTimeValue()), restrict.getTimeType().name());
+    }
+}
@@ -1,37 +1,104 @@
 package com.veda.emaxil.core.restrict;
 
-import cn.hutool.core.date.DateTime;
-import cn.hutool.core.io.resource.StringResource;
+import cn.hutool.core.util.IdUtil;
 import cn.hutool.core.util.StrUtil;
 import com.veda.emaxil.core.entity.*;
-import com.veda.emaxil.util.RedisDistributedLock;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 
-import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class RestrictServiceRedisImpl<A extends AbstractAccount, E extends AbstractEmail> implements RestrictService<A, E> {
 
-    @Autowired
-    private RedisDistributedLock redisDistributedLock;
+    /**
+     * 在一次往返中 以 Redis 服务端的 TIME 为准 检验账户的所有限制规则, 全部通过时 才向 zSet 中添加一条发送记录
+     * 统计时包含分值在当前时间之后的记录, 它们是其它节点预留的租约 见 RestrictServiceRedisLeaseImpl
+     * KEYS[1] 账户统计 zSet, ARGV[1] 发送记录的成员 为空串时只检验不记录
+     * ARGV[2..] 每三个一组 分别为 限制时间范围毫秒, 时间配置类型, 限制配置数值
+     * 返回 0 表示检验通过, 否则返回 该账户所有限制规则都重新可用的时间戳
+     */
+    private static final DefaultRedisScript<Long> CAN_SEND_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local nextEnableAt = 0 " +
+            "for i = 2, #ARGV, 3 do " +
+            "  local windowMillis = tonumber(ARGV[i]) " +
+            "  local limitValue = tonumber(ARGV[i + 2]) " +
+            "  local startAt = now - windowMillis " +
+            "  if ARGV[i + 1] == 'POINT_TIME' then startAt = now - now % windowMillis end " +
+            "  local count = redis.call('ZCOUNT', KEYS[1], startAt, '+inf') " +
+            "  if count >= limitValue then " +
+            "    local enableAt = now + windowMillis " +
+            "    if ARGV[i + 1] == 'POINT_TIME' then " +
+            "      enableAt = startAt + windowMillis " +
+            "    elseif limitValue > 0 then " +
+            // 需要滑出窗口的最后一条记录 滑出后窗口内的记录数才会小于限制数值
+            "      local oldest = redis.call('ZRANGEBYSCORE', KEYS[1], startAt, '+inf', 'WITHSCORES', 'LIMIT', count - limitValue, 1) " +
+            "      if oldest[2] then enableAt = tonumber(oldest[2]) + windowMillis + 1 end " +
+            "    end " +
+            "    if enableAt > nextEnableAt then nextEnableAt = enableAt end " +
+            "  end " +
+            "end " +
+            "if nextEnableAt > 0 then return nextEnableAt end " +
+            "if ARGV[1] ~= '' then redis.call('ZADD', KEYS[1], now, ARGV[1]) end " +
+            "return 0", Long.class);
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
     /**
      * 更新邮件发送账户的可用状态
-     * 查询每个账户的 zSet 是否符合规则 并更改对应的 isEnable 状态
+     * 以只检验不记录的方式 对每个账户执行 getCanSendScript, 所有账户在一次管道往返中完成, 并更改对应的 isEnable 和 nextEnableAt
+     * 管道中先 SCRIPT LOAD 再 EVALSHA, 脚本未缓存时也不会返回 NOSCRIPT
      * @param emailSendAccounts 发送账户列表
      * @param isPassEnabled     是否对当前可用的邮件发送账户进行跳过 只处理不可用的
      */
     @Override
     public void updateEmailSendAccountEnable(List<EmailSendAccount<A>> emailSendAccounts, boolean isPassEnabled) {
-
+        List<EmailSendAccount<A>> checkAccounts = emailSendAccounts.stream()
+                .filter(emailSendAccount -> !isPassEnabled || !emailSendAccount.isEnable())
+                .collect(Collectors.toList());
+        if (checkAccounts.isEmpty()) {
+            return;
+        }
+        RedisScript<Long> script = getCanSendScript();
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.scriptLoad(script.getScriptAsString());
+            for (EmailSendAccount<A> emailSendAccount : checkAccounts) {
+                List<String> keys = getCanSendKeys(emailSendAccount);
+                Object[] args = getCanSendArgs(emailSendAccount, "");
+                String[] keysAndArgs = new String[keys.size() + args.length];
+                keys.toArray(keysAndArgs);
+                for (int i = 0; i < args.length; i++) {
+                    keysAndArgs[keys.size() + i] = String.valueOf(args[i]);
+                }
+                stringRedisConnection.evalSha(script.getSha1(), ReturnType.INTEGER, keys.size(), keysAndArgs);
+            }
+            return null;
+        });
+        for (int i = 0; i < checkAccounts.size(); i++) {
+            EmailSendAccount<A> emailSendAccount = checkAccounts.get(i);
+            Object result = results.get(i + 1);
+            if (!(result instanceof Number)) {
+                log.warn("check emailSendAccount:{} restricts failed, result:{}", emailSendAccount.getId(), result);
+                continue;
+            }
+            long nextEnableAt = ((Number) result).longValue();
+            emailSendAccount.setNextEnableAt(nextEnableAt);
+            emailSendAccount.setEnable(nextEnableAt == 0L);
+        }
     }
 
     /**
@@ -47,65 +114,121 @@ public class RestrictServiceRedisImpl<A extends AbstractAccount, E extends Abstr
 
     /**
      * 当前 发送账户 是否可以发送 该邮件任务
-     * 先使用 Redis 分布式锁 尝试获取该发送账户的锁, 获取锁后 验证限制规则是否符合, 如果不符合 标记该账户为不可用, 返回 false
-     * 如果符合 则向 zSet 中添加一条记录, 返回 true, 无论如何最终都会释放 该账户的分布式锁
+     * 通过一个 Lua 脚本原子的验证限制规则 并在符合时记录本次发送 (默认向 zSet 中添加一条记录), 返回 true, 无需再对账户加分布式锁
+     * 每次发送的记录成员 为任务ID 后接新的 ObjectId, 同一任务重试时 不会覆盖之前的记录 每次发送都被统计
+     * 如果不符合 标记该账户为不可用 并记录脚本计算出的下次可用时间, 返回 false
      * @param emailSendAccount 发送账户
      * @param emailSendTask    邮件任务
      * @return 是否可以发送
      */
     @Override
     public boolean canSend(EmailSendAccount<A> emailSendAccount, EmailSendTask<E> emailSendTask) {
-        String lockValue = redisDistributedLock.doLock(emailSendAccount.getId(), 5000);
-        try {
-            // 检验该账户的规则限制
-            if (checkEmailSendAccountRestricts(emailSendAccount)) {
-                // 直接添加一个记录
-                Boolean isAdded = stringRedisTemplate.opsForZSet().add(getAccountStatisticZSetKey(emailSendAccount.getId()),
-                        emailSendTask.getId(), System.currentTimeMillis());
-                log.info("add emailSendAccount statistic record:{} result:{}", emailSendTask.getId(), isAdded);
-                return true;
-            } else {
-                emailSendAccount.setEnable(false);
-                log.info("set emailSendAccount:{} disable", emailSendAccount.getId());
-                return false;
-            }
-        } finally {
-            redisDistributedLock.unlock(emailSendAccount.getId(), lockValue);
+        String recordMember = StrUtil.format("{}:{}", emailSendTask.getId(), IdUtil.objectId());
+        long nextEnableAt = checkEmailSendAccountRestricts(emailSendAccount, recordMember);
+        if (nextEnableAt == 0L) {
+            log.info("add emailSendAccount statistic record:{}", recordMember);
+            return true;
+        }
+        emailSendAccount.setNextEnableAt(nextEnableAt);
+        emailSendAccount.setEnable(false);
+        log.info("set emailSendAccount:{} disable until:{}", emailSendAccount.getId(), nextEnableAt);
+        return false;
+    }
+
+    /**
+     * 通过 ZCOUNT 统计该限制规则当前范围内的记录数量, 包含其它节点预留的租约
+     * @param emailSendAccount 发送账户
+     * @param restrict 发送账户的限制规则
+     * @return 0 ~ 1 之间的比例
+     */
+    @Override
+    public double getUtilization(EmailSendAccount<A> emailSendAccount, EmailSendRestrict restrict) {
+        long now = System.currentTimeMillis();
+        long windowMillis = restrict.getTimeUnit().toMillis(restrict.getTimeValue());
+        long startAt = EmailSendRestrict.TimeTypeEnum.POINT_TIME.equals(restrict.getTimeType()) ? now - now % windowMillis : now - windowMillis;
+        Long count = stringRedisTemplate.opsForZSet().count(getAccountStatisticZSetKey(emailSendAccount.getId()), startAt, Double.POSITIVE_INFINITY);
+        if (restrict.getLimitValue() <= 0) {
+            return 1D;
+        }
+        return Math.min(1D, (double) (Objects.isNull(count) ? 0L : count) / restrict.getLimitValue());
+    }
+
+    /**
+     * 检验该账户的规则限制
+     * @param emailSendAccount 发送账户
+     * @param recordMember 检验通过时 添加到 zSet 中的记录, 为空时只检验不记录
+     * @return 0 表示检验通过, 否则为该账户重新可用的时间戳
+     */
+    private long checkEmailSendAccountRestricts(EmailSendAccount<A> emailSendAccount, String recordMember) {
+        Long result = stringRedisTemplate.execute(getCanSendScript(), getCanSendKeys(emailSendAccount),
+                getCanSendArgs(emailSendAccount, StrUtil.nullToEmpty(recordMember)));
+        if (Objects.isNull(result)) {
+            throw new IllegalStateException(StrUtil.format("check emailSendAccount:{} restricts failed", emailSendAccount.getId()));
         }
+        return result;
+    }
+
+    /**
+     * @return 检验账户所有限制规则 并在通过时记录一次发送的脚本, 返回 0 表示通过, 否则返回账户重新可用的时间戳
+     */
+    protected RedisScript<Long> getCanSendScript() {
+        return CAN_SEND_SCRIPT;
+    }
+
+    /**
+     * @param emailSendAccount 发送账户
+     * @return getCanSendScript 的 KEYS
+     */
+    protected List<String> getCanSendKeys(EmailSendAccount<A> emailSendAccount) {
+        return Collections.singletonList(getAccountStatisticZSetKey(emailSendAccount.getId()));
+    }
+
+    /**
+     * @param emailSendAccount 发送账户
+     * @param recordMember 检验通过时 记录的发送, 为空串时只检验不记录
+     * @return getCanSendScript 的 ARGV
+     */
+    protected Object[] getCanSendArgs(EmailSendAccount<A> emailSendAccount, String recordMember) {
+        return getAccountScriptArgs(emailSendAccount, recordMember);
     }
 
-    private boolean checkEmailSendAccountRestricts(EmailSendAccount<A> emailSendAccount) {
-        long endAt = System.currentTimeMillis();
-        String statisticZSetKey = getAccountStatisticZSetKey(emailSendAccount.getId());
+    /**
+     * 以账户统计 zSet 为 KEYS[1] 执行脚本, 参数为 headArgs 后接 账户的限制规则
+     * 限制规则每三个一组 分别为 限制时间范围毫秒, 时间配置类型, 限制配置数值
+     * @param script 脚本
+     * @param emailSendAccount 发送账户
+     * @param headArgs 放在限制规则之前的参数
+     * @return 脚本执行结果
+     */
+    protected <T> T executeAccountScript(RedisScript<T> script, EmailSendAccount<A> emailSendAccount, Object... headArgs) {
+        return stringRedisTemplate.execute(script,
+                Collections.singletonList(getAccountStatisticZSetKey(emailSendAccount.getId())), getAccountScriptArgs(emailSendAccount, headArgs));
+    }
+
+    /**
+     * @param emailSendAccount 发送账户
+     * @param headArgs 放在限制规则之前的参数
+     * @return headArgs 后接 账户的限制规则 每三个一组
+     */
+    protected Object[] getAccountScriptArgs(EmailSendAccount<A> emailSendAccount, Object... headArgs) {
         List<EmailSendRestrict> restricts = emailSendAccount.getRestricts();
-        for (EmailSendRestrict restrict : restricts) {
-            Long count = 0L;
-            switch (restrict.getTimeType()) {
-                case RANGE_TIME:
-                    // 获取范围开始时间
-                    long startAt = endAt - restrict.getTimeUnit().toMillis(restrict.getTimeValue());
-                    // 统计该时间段数量
-                    count = stringRedisTemplate.opsForZSet().count(statisticZSetKey, startAt, endAt);
-                    break;
-                case POINT_TIME:
-                    // 获取距离上个时间点过去了多长时间
-                    long afterPointMillis = endAt % restrict.getTimeUnit().toMillis(restrict.getTimeValue());
-                    // 统计上个时间点到现在的时间段数量
-                    count = stringRedisTemplate.opsForZSet().count(statisticZSetKey, endAt - afterPointMillis, endAt);
-                    break;
-                default:
-                    log.warn("un support restrict timeType:{}", restrict.getTimeType());
-                    break;
-            }
-            // 如超过限制则停止后续判断 注意 是 >= 因为后续会直接添加一个记录
-            if (Objects.isNull(count) || count >= restrict.getLimitValue()) {
-                return false;
-            }
+        Object[] args = new Object[headArgs.length + restricts.size() * 3];
+        System.arraycopy(headArgs, 0, args, 0, headArgs.length);
+        for (int i = 0; i < restricts.size(); i++) {
+            EmailSendRestrict restrict = restricts.get(i);
+            int offset = headArgs.length + i * 3;
+            args[offset] = String.valueOf(restrict.getTimeUnit().toMillis(restrict.getTimeValue()));
+            args[offset + 1] = restrict.getTimeType().name();
+            args[offset + 2] = String.valueOf(restrict.getLimitValue());
         }
-        return true;
+        return args;
+    }
+
+    protected StringRedisTemplate getStringRedisTemplate() {
+        return stringRedisTemplate;
     }
 
-    private String getAccountStatisticZSetKey(String emailSendAccountId){
+    protected String getAccountStatisticZSetKey(String emailSendAccountId){
         return StrUtil.format("{}-statistic", emailSendAccountId);
     }
 }
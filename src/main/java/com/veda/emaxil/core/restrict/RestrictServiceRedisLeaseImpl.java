@@ -0,0 +1,255 @@
+package com.veda.emaxil.core.restrict;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendTask;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于 Redis 租约 实现的限制器, 适用于多个节点使用相同的发送账户的情况
+ * 节点每次向 Redis 原子的预留一批 (leaseSize 个) 发送名额, 之后在本地逐个分发, 用完或租约过期前不再访问 Redis
+ * 预留的名额以 分值为租约过期时间 的记录写入账户统计 zSet, 其它节点统计时会计入这些未来的记录 因此集群整体不会超出限制
+ * 租约过期 或 跨过 POINT_TIME 的时间点 或 节点关闭时 未使用的名额会从 zSet 中删除归还
+ * 账户在租约用完前空闲时, 由定时任务在租约过期时归还, 避免未使用的名额在其它节点的统计窗口中继续占用额度
+ * @param <A> 账户详情
+ * @param <E> 邮件详情
+ */
+@Slf4j
+public class RestrictServiceRedisLeaseImpl<A extends AbstractAccount, E extends AbstractEmail> extends RestrictServiceRedisImpl<A, E> {
+
+    /**
+     * 以 Redis 服务端的 TIME 为准 为账户预留最多 ARGV[2] 个发送名额
+     * KEYS[1] 账户统计 zSet, ARGV[1] 租约ID, ARGV[2] 期望预留的数量, ARGV[3] 租约时长毫秒
+     * ARGV[4..] 每三个一组 分别为 限制时间范围毫秒, 时间配置类型, 限制配置数值
+     * 返回 {预留数量, 租约过期时间戳, 当前时间戳}, 预留数量为 0 时 第二项为账户重新可用的时间戳
+     */
+    private static final DefaultRedisScript<List> LEASE_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local grant = tonumber(ARGV[2]) " +
+            "local expireAt = now + tonumber(ARGV[3]) " +
+            "local nextEnableAt = 0 " +
+            "for i = 4, #ARGV, 3 do " +
+            "  local windowMillis = tonumber(ARGV[i]) " +
+            "  local limitValue = tonumber(ARGV[i + 2]) " +
+            "  local startAt = now - windowMillis " +
+            "  if ARGV[i + 1] == 'POINT_TIME' then " +
+            "    startAt = now - now % windowMillis " +
+            // 租约不能跨过时间点 否则预留的名额会被记在下个时间段
+            "    if expireAt > startAt + windowMillis - 1 then expireAt = startAt + windowMillis - 1 end " +
+            "  end " +
+            "  local count = redis.call('ZCOUNT', KEYS[1], startAt, '+inf') " +
+            "  if limitValue - count < grant then grant = limitValue - count end " +
+            "  if count >= limitValue then " +
+            "    local enableAt = now + windowMillis " +
+            "    if ARGV[i + 1] == 'POINT_TIME' then " +
+            "      enableAt = startAt + windowMillis " +
+            "    elseif limitValue > 0 then " +
+            "      local oldest = redis.call('ZRANGEBYSCORE', KEYS[1], startAt, '+inf', 'WITHSCORES', 'LIMIT', count - limitValue, 1) " +
+            "      if oldest[2] then enableAt = tonumber(oldest[2]) + windowMillis + 1 end " +
+            "    end " +
+            "    if enableAt > nextEnableAt then nextEnableAt = enableAt end " +
+            "  end " +
+            "end " +
+            "if grant <= 0 then return {0, nextEnableAt, now} end " +
+            "for i = 1, grant do redis.call('ZADD', KEYS[1], expireAt, ARGV[1] .. ':' .. i) end " +
+            "return {grant, expireAt, now}", List.class);
+
+    /**
+     * 每次租约期望预留的发送名额数量
+     */
+    @Getter
+    @Setter
+    private int leaseSize = 10;
+
+    /**
+     * 租约时长 毫秒, 越长 访问 Redis 越少, 但节点间的名额分配越不均匀
+     */
+    @Getter
+    @Setter
+    private long leaseMillis = 5000L;
+
+    /**
+     * 发送账户ID 与 其当前持有的租约
+     */
+    private final Map<String, LeaseHolder> leaseHolders = new ConcurrentHashMap<>();
+
+    /**
+     * 在租约过期时 归还其未使用的名额
+     */
+    private final ScheduledExecutorService leaseSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "emaxil-lease-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 当前 发送账户 是否可以发送 该邮件任务
+     * 优先使用本地持有的租约中剩余的名额, 租约用完或过期时 归还未使用的名额并重新申请租约
+     * 申请不到任何名额时 标记该账户为不可用 并记录其下次可用时间, 返回 false
+     * @param emailSendAccount 发送账户
+     * @param emailSendTask    邮件任务
+     * @return 是否可以发送
+     */
+    @Override
+    public boolean canSend(EmailSendAccount<A> emailSendAccount, EmailSendTask<E> emailSendTask) {
+        LeaseHolder leaseHolder = leaseHolders.computeIfAbsent(emailSendAccount.getId(), id -> new LeaseHolder());
+        long nextEnableAt;
+        leaseHolder.lock.lock();
+        try {
+            Lease lease = leaseHolder.lease;
+            if (Objects.nonNull(lease) && lease.used < lease.granted && System.currentTimeMillis() < lease.localExpireAt) {
+                lease.used++;
+                return true;
+            }
+            if (Objects.nonNull(lease)) {
+                leaseHolder.lease = null;
+                returnLease(emailSendAccount.getId(), lease);
+            }
+            lease = acquireLease(emailSendAccount);
+            if (lease.granted > 0) {
+                lease.used = 1;
+                leaseHolder.lease = lease;
+                scheduleReturnLease(emailSendAccount.getId(), leaseHolder, lease);
+                return true;
+            }
+            nextEnableAt = lease.localExpireAt;
+        } finally {
+            leaseHolder.lock.unlock();
+        }
+        emailSendAccount.setNextEnableAt(nextEnableAt);
+        emailSendAccount.setEnable(false);
+        log.info("set emailSendAccount:{} disable until:{}", emailSendAccount.getId(), nextEnableAt);
+        return false;
+    }
+
+    /**
+     * 节点关闭时 归还所有租约中未使用的名额
+     */
+    @PreDestroy
+    public void returnAllLeases() {
+        leaseSweeper.shutdownNow();
+        leaseHolders.forEach((emailSendAccountId, leaseHolder) -> {
+            leaseHolder.lock.lock();
+            try {
+                if (Objects.nonNull(leaseHolder.lease)) {
+                    returnLease(emailSendAccountId, leaseHolder.lease);
+                    leaseHolder.lease = null;
+                }
+            } finally {
+                leaseHolder.lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * 在租约的本地过期时间 归还其未使用的名额, 租约在此之前已被用完替换 或已归还时 不做处理
+     * @param emailSendAccountId 发送账户ID
+     * @param leaseHolder 持有租约的账户
+     * @param lease 租约
+     */
+    private void scheduleReturnLease(String emailSendAccountId, LeaseHolder leaseHolder, Lease lease) {
+        Runnable returnExpiredLease = () -> {
+            leaseHolder.lock.lock();
+            try {
+                if (leaseHolder.lease == lease) {
+                    leaseHolder.lease = null;
+                    returnLease(emailSendAccountId, lease);
+                }
+            } finally {
+                leaseHolder.lock.unlock();
+            }
+        };
+        try {
+            leaseSweeper.schedule(returnExpiredLease, Math.max(0L, lease.localExpireAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 节点关闭时 由 returnAllLeases 归还
+            log.debug("schedule return emailSendAccount:{} lease:{} rejected", emailSendAccountId, lease.id);
+        }
+    }
+
+    /**
+     * 向 Redis 申请租约
+     * @param emailSendAccount 发送账户
+     * @return 租约 未申请到名额时 granted 为 0, localExpireAt 为账户重新可用的时间戳
+     */
+    private Lease acquireLease(EmailSendAccount<A> emailSendAccount) {
+        String leaseId = IdUtil.fastSimpleUUID();
+        List<?> result = executeAccountScript(LEASE_SCRIPT, emailSendAccount,
+                leaseId, String.valueOf(leaseSize), String.valueOf(leaseMillis));
+        if (Objects.isNull(result) || result.size() < 3) {
+            throw new IllegalStateException(StrUtil.format("acquire emailSendAccount:{} lease failed", emailSendAccount.getId()));
+        }
+        int granted = ((Number) result.get(0)).intValue();
+        long expireAt = ((Number) result.get(1)).longValue();
+        if (granted == 0) {
+            return new Lease(leaseId, 0, expireAt);
+        }
+        // 租约过期时间以 Redis 时间计算, 换算为本地时间 避免节点间的时钟偏差
+        long redisNow = ((Number) result.get(2)).longValue();
+        log.info("acquire emailSendAccount:{} lease:{} granted:{}", emailSendAccount.getId(), leaseId, granted);
+        return new Lease(leaseId, granted, System.currentTimeMillis() + expireAt - redisNow);
+    }
+
+    /**
+     * 从 zSet 中删除租约中未使用的名额
+     * @param emailSendAccountId 发送账户ID
+     * @param lease 租约
+     */
+    private void returnLease(String emailSendAccountId, Lease lease) {
+        int unused = lease.granted - lease.used;
+        if (unused <= 0) {
+            return;
+        }
+        Object[] members = new Object[unused];
+        for (int i = 0; i < unused; i++) {
+            members[i] = lease.id + ":" + (lease.used + i + 1);
+        }
+        try {
+            Long removed = getStringRedisTemplate().opsForZSet().remove(getAccountStatisticZSetKey(emailSendAccountId), members);
+            log.info("return emailSendAccount:{} lease:{} unused:{} removed:{}", emailSendAccountId, lease.id, unused, removed);
+        } catch (Exception e) {
+            // 归还失败只会让未使用的名额在滑出统计窗口前占用额度 不影响正确性
+            log.error(StrUtil.format("return emailSendAccount:{} lease:{} failed", emailSendAccountId, lease.id), e);
+        }
+    }
+
+    /**
+     * 持有锁期间会访问 Redis, 使用 ReentrantLock 而不是 synchronized, 避免虚拟线程在等待 Redis 时固定其载体线程
+     */
+    private static final class LeaseHolder {
+        private final ReentrantLock lock = new ReentrantLock();
+        private Lease lease;
+    }
+
+    private static final class Lease {
+        private final String id;
+        private final int granted;
+        private final long localExpireAt;
+        private int used = 0;
+
+        Lease(String id, int granted, long localExpireAt) {
+            this.id = id;
+            this.granted = granted;
+            this.localExpireAt = localExpireAt;
+        }
+    }
+}
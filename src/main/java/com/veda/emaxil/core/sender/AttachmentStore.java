@@ -0,0 +1,315 @@
+package com.veda.emaxil.core.sender;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.EmailAttachment;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按内容哈希存储的附件库, 多节点部署时 directory 应位于 NFS 等共享存储上
+ * 附件以 SHA-256 哈希为文件名存储, 内容相同的附件只存储一份
+ * 附件第一次被发送时 编码为 MIME base64 并存储为 哈希.b64 文件, 之后的发送 通过内存映射直接读取编码后的内容
+ * 同一附件发送给任意多个收件人 都只读取和编码一次, 映射的内容由操作系统的页缓存共享 不占用堆内存
+ */
+@Slf4j
+public class AttachmentStore {
+
+    private static final String ENCODED_SUFFIX = ".b64";
+    private static final String TEMP_PREFIX = ".tmp-";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    @Getter
+    private final Path directory;
+
+    /**
+     * 编码后附件的内存映射, 映射在 GC 回收前一直有效
+     */
+    private final Map<String, MappedByteBuffer> encodedBuffers = new ConcurrentHashMap<>();
+
+    /**
+     * 存入的次数, 其中内容已存在的次数, 编码的次数
+     */
+    private final LongAdder putCount = new LongAdder();
+    private final LongAdder duplicateCount = new LongAdder();
+    private final LongAdder encodeCount = new LongAdder();
+
+    public AttachmentStore(Path directory) {
+        if (Objects.isNull(directory)) {
+            throw new IllegalArgumentException("directory can not be null");
+        }
+        try {
+            this.directory = Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new IllegalStateException(StrUtil.format("create attachment directory:{} failed", directory), e);
+        }
+    }
+
+    /**
+     * 存入附件文件
+     * @param file 附件文件
+     * @param fileName 附件文件名, 为空时使用 file 的文件名
+     * @param contentType 附件类型, 为空时使用 application/octet-stream
+     * @return 附件的引用
+     */
+    public EmailAttachment put(Path file, String fileName, String contentType) {
+        if (Objects.isNull(file)) {
+            throw new IllegalArgumentException("file can not be null");
+        }
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            return put(inputStream, StrUtil.isBlank(fileName) ? file.getFileName().toString() : fileName, contentType);
+        } catch (IOException e) {
+            throw new IllegalStateException(StrUtil.format("read attachment file:{} failed", file), e);
+        }
+    }
+
+    /**
+     * 存入附件内容, 边复制边计算哈希 不会将内容全部读入内存
+     * @param inputStream 附件内容 由调用方关闭
+     * @param fileName 附件文件名
+     * @param contentType 附件类型, 为空时使用 application/octet-stream
+     * @return 附件的引用
+     */
+    public EmailAttachment put(InputStream inputStream, String fileName, String contentType) {
+        if (Objects.isNull(inputStream) || StrUtil.isBlank(fileName)) {
+            throw new IllegalArgumentException("inputStream or fileName can not be null");
+        }
+        Path tempFile = directory.resolve(TEMP_PREFIX + IdUtil.fastSimpleUUID());
+        try {
+            DigestInputStream digestInputStream = new DigestInputStream(inputStream, newDigest());
+            long size = Files.copy(digestInputStream, tempFile);
+            String hash = HexUtil.encodeHexStr(digestInputStream.getMessageDigest().digest());
+            Path file = directory.resolve(hash);
+            putCount.increment();
+            if (Files.exists(file)) {
+                duplicateCount.increment();
+                Files.delete(tempFile);
+            } else {
+                moveAtomically(tempFile, file);
+                log.info("store attachment:{} hash:{} size:{}", fileName, hash, size);
+            }
+            EmailAttachment emailAttachment = new EmailAttachment();
+            emailAttachment.setHash(hash);
+            emailAttachment.setFileName(fileName);
+            emailAttachment.setContentType(StrUtil.isBlank(contentType) ? DEFAULT_CONTENT_TYPE : contentType);
+            emailAttachment.setSize(size);
+            return emailAttachment;
+        } catch (IOException e) {
+            deleteQuietly(tempFile);
+            throw new IllegalStateException(StrUtil.format("store attachment:{} failed", fileName), e);
+        }
+    }
+
+    /**
+     * @param hash 附件内容的哈希
+     * @return 附件是否存在
+     */
+    public boolean contains(String hash) {
+        return StrUtil.isNotBlank(hash) && Files.exists(getFile(hash));
+    }
+
+    /**
+     * 以只读内存映射的方式 读取附件的原始内容
+     * @param hash 附件内容的哈希
+     * @return 只读的 ByteBuffer
+     */
+    public ByteBuffer read(String hash) {
+        return map(getFile(hash)).asReadOnlyBuffer();
+    }
+
+    /**
+     * 读取附件 MIME base64 编码后的内容, 第一次读取时编码并存储
+     * @param hash 附件内容的哈希
+     * @return 只读的 ByteBuffer, 每次调用返回独立的读取位置
+     */
+    public ByteBuffer readEncoded(String hash) {
+        MappedByteBuffer encodedBuffer = encodedBuffers.computeIfAbsent(hash, key -> {
+            Path encodedFile = directory.resolve(key + ENCODED_SUFFIX);
+            if (!Files.exists(encodedFile)) {
+                encode(getFile(key), encodedFile);
+            }
+            return map(encodedFile);
+        });
+        return encodedBuffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 构建附件的 MIME 部分, 内容已编码为 base64 写出时不再编码
+     * @param emailAttachment 附件的引用
+     * @return MimeBodyPart
+     * @throws MessagingException 构建失败
+     */
+    public MimeBodyPart getBodyPart(EmailAttachment emailAttachment) throws MessagingException {
+        if (Objects.isNull(emailAttachment) || StrUtil.isBlank(emailAttachment.getHash())) {
+            throw new IllegalArgumentException("emailAttachment or hash can not be null");
+        }
+        String contentType = StrUtil.isBlank(emailAttachment.getContentType()) ? DEFAULT_CONTENT_TYPE : emailAttachment.getContentType();
+        MimeBodyPart bodyPart = new PreencodedMimeBodyPart("base64");
+        bodyPart.setDataHandler(new DataHandler(new EncodedDataSource(emailAttachment.getHash(), emailAttachment.getFileName(), contentType)));
+        bodyPart.setFileName(emailAttachment.getFileName());
+        bodyPart.setDisposition(MimeBodyPart.ATTACHMENT);
+        return bodyPart;
+    }
+
+    public long getPutCount() {
+        return putCount.sum();
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    public long getEncodeCount() {
+        return encodeCount.sum();
+    }
+
+    private Path getFile(String hash) {
+        // 哈希只能为十六进制 避免访问目录之外的文件
+        if (StrUtil.isBlank(hash) || !hash.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException(StrUtil.format("invalid attachment hash:{}", hash));
+        }
+        return directory.resolve(hash);
+    }
+
+    private void encode(Path file, Path encodedFile) {
+        if (!Files.exists(file)) {
+            throw new IllegalStateException(StrUtil.format("attachment:{} not exist", file.getFileName()));
+        }
+        Path tempFile = directory.resolve(TEMP_PREFIX + IdUtil.fastSimpleUUID());
+        long start = System.currentTimeMillis();
+        try {
+            try (OutputStream outputStream = Base64.getMimeEncoder().wrap(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                Files.copy(file, outputStream);
+            }
+            moveAtomically(tempFile, encodedFile);
+        } catch (IOException e) {
+            deleteQuietly(tempFile);
+            throw new IllegalStateException(StrUtil.format("encode attachment:{} failed", file.getFileName()), e);
+        }
+        encodeCount.increment();
+        log.info("encode attachment:{} cost:{}ms", file.getFileName(), System.currentTimeMillis() - start);
+    }
+
+    private MappedByteBuffer map(Path file) {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        } catch (NoSuchFileException e) {
+            throw new IllegalStateException(StrUtil.format("attachment:{} not exist", file.getFileName()), e);
+        } catch (IOException e) {
+            throw new IllegalStateException(StrUtil.format("map attachment:{} failed", file.getFileName()), e);
+        }
+    }
+
+    /**
+     * 内容相同的文件可能被并发写入, 原子替换保证读取方不会看到写入一半的文件
+     */
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("delete attachment temp file:{} failed", file, e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    /**
+     * 从内存映射中读取编码后内容的 DataSource, 第一次读取时才编码 和 映射
+     */
+    private final class EncodedDataSource implements DataSource {
+        private final String hash;
+        private final String name;
+        private final String contentType;
+
+        EncodedDataSource(String hash, String name, String contentType) {
+            this.hash = hash;
+            this.name = name;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufferInputStream(readEncoded(hash));
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException("attachment is read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
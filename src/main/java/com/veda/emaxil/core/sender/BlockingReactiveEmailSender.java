@@ -0,0 +1,40 @@
+package com.veda.emaxil.core.sender;
+
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Objects;
+
+/**
+ * 将阻塞的 AbstractEmailSender 适配为 ReactiveEmailSender
+ * 发送在 scheduler 的线程上执行, 不会阻塞响应式管道的线程, 但每个进行中的发送仍然占用一个线程
+ * 同时进行的发送数量 受 scheduler 的线程数 和 发送实现自身的限制 (如 SmtpEmailSender.maxTransportsPerAccount) 约束
+ * @param <A> 发送账户
+ * @param <E> 发送邮件
+ */
+public class BlockingReactiveEmailSender<A extends AbstractAccount, E extends AbstractEmail> implements ReactiveEmailSender<A, E> {
+
+    private final AbstractEmailSender<A, E> emailSender;
+
+    private final Scheduler scheduler;
+
+    public BlockingReactiveEmailSender(AbstractEmailSender<A, E> emailSender) {
+        this(emailSender, Schedulers.boundedElastic());
+    }
+
+    public BlockingReactiveEmailSender(AbstractEmailSender<A, E> emailSender, Scheduler scheduler) {
+        if (Objects.isNull(emailSender) || Objects.isNull(scheduler)) {
+            throw new IllegalArgumentException("emailSender or scheduler can not be null");
+        }
+        this.emailSender = emailSender;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Mono<Void> send(A account, E email) {
+        return Mono.<Void>fromRunnable(() -> emailSender.send(account, email)).subscribeOn(scheduler);
+    }
+}
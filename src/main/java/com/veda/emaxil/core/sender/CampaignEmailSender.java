@@ -0,0 +1,149 @@
+package com.veda.emaxil.core.sender;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.CampaignEmail;
+import com.veda.emaxil.core.entity.EmailCampaign;
+import com.veda.emaxil.core.entity.SmtpAccount;
+import com.veda.emaxil.core.entity.SmtpEmail;
+import com.veda.emaxil.core.service.EmailCampaignService;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 邮件活动的发送实现
+ * 发送前按 CampaignEmail 的活动ID 获取编译后的活动模板, 渲染为 SmtpEmail 后 交给被包装的发送实现发送
+ * 编译后的模板按活动ID 缓存, 同一活动只查询和编译一次; 缓存数量超过 maxCachedCampaigns 时 淘汰任意一个活动
+ * 活动被修改后 需要调用 evict 使缓存失效
+ */
+@Slf4j
+public class CampaignEmailSender implements AbstractEmailSender<SmtpAccount, CampaignEmail> {
+
+    private final EmailCampaignService emailCampaignService;
+
+    private final AbstractEmailSender<SmtpAccount, SmtpEmail> emailSender;
+
+    /**
+     * 最多缓存的活动数量
+     */
+    @Getter
+    @Setter
+    private int maxCachedCampaigns = 1024;
+
+    private final Map<String, CompiledCampaign> compiledCampaigns = new ConcurrentHashMap<>();
+
+    /**
+     * 编译 和 渲染的次数
+     */
+    private final LongAdder compileCount = new LongAdder();
+    private final LongAdder renderCount = new LongAdder();
+
+    public CampaignEmailSender(EmailCampaignService emailCampaignService, AbstractEmailSender<SmtpAccount, SmtpEmail> emailSender) {
+        if (Objects.isNull(emailCampaignService) || Objects.isNull(emailSender)) {
+            throw new IllegalArgumentException("emailCampaignService or emailSender can not be null");
+        }
+        this.emailCampaignService = emailCampaignService;
+        this.emailSender = emailSender;
+    }
+
+    @Override
+    public void send(SmtpAccount account, CampaignEmail email) {
+        if (Objects.isNull(account) || Objects.isNull(email)) {
+            throw new IllegalArgumentException("account or email can not be null");
+        }
+        emailSender.send(account, render(email));
+    }
+
+    /**
+     * 将邮件活动中的一封邮件 渲染为完整的 SmtpEmail
+     * @param email 邮件活动中的一封邮件
+     * @return SmtpEmail
+     */
+    public SmtpEmail render(CampaignEmail email) {
+        CompiledCampaign compiledCampaign = getCompiledCampaign(email.getCampaignId());
+        EmailCampaign emailCampaign = compiledCampaign.emailCampaign;
+        SmtpEmail smtpEmail = new SmtpEmail();
+        smtpEmail.setFrom(emailCampaign.getFrom());
+        smtpEmail.setTo(email.getTo());
+        smtpEmail.setCc(emailCampaign.getCc());
+        smtpEmail.setBcc(emailCampaign.getBcc());
+        // 主题不是 HTML 不需要转义
+        smtpEmail.setSubject(compiledCampaign.subject.render(email.getVariables(), false));
+        smtpEmail.setContent(compiledCampaign.content.render(email.getVariables(), emailCampaign.isHtml()));
+        smtpEmail.setHtml(emailCampaign.isHtml());
+        smtpEmail.setAttachments(emailCampaign.getAttachments());
+        renderCount.increment();
+        return smtpEmail;
+    }
+
+    /**
+     * 使活动的缓存失效, 下次发送时重新查询和编译
+     * @param campaignId 邮件活动ID
+     */
+    public void evict(String campaignId) {
+        compiledCampaigns.remove(campaignId);
+    }
+
+    public int getCachedCount() {
+        return compiledCampaigns.size();
+    }
+
+    public long getCompileCount() {
+        return compileCount.sum();
+    }
+
+    public long getRenderCount() {
+        return renderCount.sum();
+    }
+
+    private CompiledCampaign getCompiledCampaign(String campaignId) {
+        if (StrUtil.isBlank(campaignId)) {
+            throw new IllegalArgumentException("campaignId can not be blank");
+        }
+        CompiledCampaign compiledCampaign = compiledCampaigns.get(campaignId);
+        if (Objects.nonNull(compiledCampaign)) {
+            return compiledCampaign;
+        }
+        // 查询在 computeIfAbsent 之外进行, 避免持久化访问阻塞其它活动的缓存
+        EmailCampaign emailCampaign = emailCampaignService.select(campaignId);
+        if (Objects.isNull(emailCampaign)) {
+            throw new IllegalStateException(StrUtil.format("email campaign:{} not exist", campaignId));
+        }
+        compiledCampaign = new CompiledCampaign(emailCampaign);
+        compileCount.increment();
+        evictIfFull();
+        CompiledCampaign previous = compiledCampaigns.putIfAbsent(campaignId, compiledCampaign);
+        if (Objects.isNull(previous)) {
+            log.info("compile email campaign:{} variables:{}", campaignId,
+                    compiledCampaign.subject.getVariableCount() + compiledCampaign.content.getVariableCount());
+            return compiledCampaign;
+        }
+        return previous;
+    }
+
+    private void evictIfFull() {
+        Iterator<String> iterator = compiledCampaigns.keySet().iterator();
+        while (compiledCampaigns.size() >= Math.max(1, maxCachedCampaigns) && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class CompiledCampaign {
+        private final EmailCampaign emailCampaign;
+        private final CampaignTemplate subject;
+        private final CampaignTemplate content;
+
+        CompiledCampaign(EmailCampaign emailCampaign) {
+            this.emailCampaign = emailCampaign;
+            this.subject = CampaignTemplate.compile(emailCampaign.getSubject());
+            this.content = CampaignTemplate.compile(emailCampaign.getContent());
+        }
+    }
+}
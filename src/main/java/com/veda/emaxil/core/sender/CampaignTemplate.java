@@ -0,0 +1,90 @@
+package com.veda.emaxil.core.sender;
+
+import cn.hutool.core.util.EscapeUtil;
+import cn.hutool.core.util.StrUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 编译后的邮件活动模板
+ * 编译时将模板拆分为 固定文本 和 变量名, 渲染时只需依次拼接, 不再解析模板
+ * 变量的格式为 ${name}, 未提供的变量替换为空字符串, 未闭合的 ${ 按固定文本处理
+ */
+public final class CampaignTemplate {
+
+    private static final String PREFIX = "${";
+    private static final String SUFFIX = "}";
+
+    /**
+     * 固定文本 比 变量名 多一个, 渲染结果为 texts[0] + variables[names[0]] + texts[1] + ...
+     */
+    private final String[] texts;
+    private final String[] names;
+    private final int textLength;
+
+    private CampaignTemplate(String[] texts, String[] names) {
+        this.texts = texts;
+        this.names = names;
+        int length = 0;
+        for (String text : texts) {
+            length += text.length();
+        }
+        this.textLength = length;
+    }
+
+    /**
+     * 编译模板
+     * @param template 模板 为 null 时按空字符串处理
+     * @return CampaignTemplate
+     */
+    public static CampaignTemplate compile(String template) {
+        String source = StrUtil.nullToEmpty(template);
+        List<String> texts = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            int start = source.indexOf(PREFIX, position);
+            int end = start < 0 ? -1 : source.indexOf(SUFFIX, start + PREFIX.length());
+            if (end < 0) {
+                texts.add(source.substring(position));
+                break;
+            }
+            texts.add(source.substring(position, start));
+            names.add(source.substring(start + PREFIX.length(), end).trim());
+            position = end + SUFFIX.length();
+        }
+        return new CampaignTemplate(texts.toArray(new String[0]), names.toArray(new String[0]));
+    }
+
+    /**
+     * 渲染模板
+     * @param variables 变量 可以为 null
+     * @param escapeHtml 是否对变量进行 HTML 转义
+     * @return 渲染结果
+     */
+    public String render(Map<String, String> variables, boolean escapeHtml) {
+        if (names.length == 0) {
+            return texts[0];
+        }
+        StringBuilder builder = new StringBuilder(textLength + names.length * 16);
+        builder.append(texts[0]);
+        for (int i = 0; i < names.length; i++) {
+            String value = Objects.isNull(variables) ? null : variables.get(names[i]);
+            if (StrUtil.isNotEmpty(value)) {
+                builder.append(escapeHtml ? EscapeUtil.escapeHtml4(value) : value);
+            }
+            builder.append(texts[i + 1]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return 模板中的变量数量
+     */
+    public int getVariableCount() {
+        return names.length;
+    }
+}
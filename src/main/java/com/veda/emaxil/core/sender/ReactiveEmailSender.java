@@ -0,0 +1,35 @@
+package com.veda.emaxil.core.sender;
+
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 非阻塞的邮件发送接口
+ * 阻塞的 AbstractEmailSender 实现可以通过 BlockingReactiveEmailSender 适配
+ * @param <A> 发送账户
+ * @param <E> 发送邮件
+ */
+public interface ReactiveEmailSender<A extends AbstractAccount, E extends AbstractEmail> {
+
+    /**
+     * 使用 该账户 发送 该邮件, 实现不能阻塞调用线程
+     * 订阅后开始发送, 发送成功时完成, 发送失败时以异常结束
+     * @param account 发送账户
+     * @param email 发送邮件
+     * @return 发送结果
+     */
+    Mono<Void> send(A account, E email);
+
+    /**
+     * 以 CompletableFuture 的形式发送, 供非 Reactor 的调用方使用
+     * @param account 发送账户
+     * @param email 发送邮件
+     * @return 发送结果
+     */
+    default CompletableFuture<Void> sendAsync(A account, E email) {
+        return send(account, email).toFuture();
+    }
+}
@@ -0,0 +1,357 @@
+package com.veda.emaxil.core.sender;
+
+import cn.hutool.core.collection.CollectionUtil;
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.EmaxilMetrics;
+import com.veda.emaxil.core.entity.EmailAttachment;
+import com.veda.emaxil.core.entity.SmtpAccount;
+import com.veda.emaxil.core.entity.SmtpEmail;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.PreDestroy;
+import javax.mail.*;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于 JavaMail 的 SMTP 邮件发送实现
+ * 每个发送账户维护一个有上限的 已认证 Transport 连接池, 一个连接上连续发送多封邮件, 避免每封邮件都进行 TCP, TLS 和 AUTH 握手
+ * 连接在发送出错 或 发送数量达到 maxMessagesPerTransport 或 空闲超过 maxIdleMillis 时 被关闭并在下次使用时重新建立
+ * 最近归还的连接优先被使用, 多余的连接会因空闲超时而被回收
+ * 账户的密码 加密方式或超时时间 被重新加载修改后, 旧的连接池被关闭 以新的配置重新建立连接
+ */
+@Slf4j
+public class SmtpEmailSender implements AbstractEmailSender<SmtpAccount, SmtpEmail> {
+
+    /**
+     * 连接空闲超过该时间 再次使用前 通过 NOOP 检查其是否仍然可用 毫秒
+     */
+    private static final long NOOP_CHECK_IDLE_MILLIS = 5000L;
+
+    /**
+     * 每个账户最多同时打开的连接数量, 一般服务商会限制单个账户的并发连接数
+     */
+    @Getter
+    @Setter
+    private int maxTransportsPerAccount = 2;
+
+    /**
+     * 每个连接最多发送的邮件数量, 达到后关闭连接, 一般服务商会限制单个会话的发送数量
+     */
+    @Getter
+    @Setter
+    private int maxMessagesPerTransport = 100;
+
+    /**
+     * 连接最长的空闲时间 毫秒, 超过后不再使用, 应小于服务商断开空闲连接的时间
+     */
+    @Getter
+    @Setter
+    private long maxIdleMillis = 30000L;
+
+    /**
+     * 等待账户可用连接的最长时间 毫秒
+     */
+    @Getter
+    @Setter
+    private long borrowTimeoutMillis = 60000L;
+
+    /**
+     * 附件库, 发送带附件的邮件时必须设置
+     */
+    @Getter
+    @Setter
+    private AttachmentStore attachmentStore;
+
+    private final Map<String, TransportPool> transportPools = new ConcurrentHashMap<>();
+
+    /**
+     * 握手 (连接 + 认证) 的次数 和 累计耗时
+     */
+    private final LongAdder handshakeCount = new LongAdder();
+    private final LongAdder handshakeMillis = new LongAdder();
+
+    /**
+     * 发送的次数 和 累计耗时
+     */
+    private final LongAdder sendCount = new LongAdder();
+    private final LongAdder sendMillis = new LongAdder();
+
+    public SmtpEmailSender() {
+        EmaxilMetrics.functionTimer("emaxil.smtp.handshake", this, SmtpEmailSender::getHandshakeCount,
+                SmtpEmailSender::getHandshakeMillis, TimeUnit.MILLISECONDS);
+        EmaxilMetrics.functionTimer("emaxil.smtp.send", this, SmtpEmailSender::getSendCount,
+                SmtpEmailSender::getSendMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void send(SmtpAccount account, SmtpEmail email) {
+        if (Objects.isNull(account) || Objects.isNull(email)) {
+            throw new IllegalArgumentException("account or email can not be null");
+        }
+        TransportPool transportPool = getTransportPool(account);
+        PooledTransport pooledTransport = transportPool.borrow();
+        boolean isBroken = true;
+        try {
+            MimeMessage message = buildMessage(transportPool.session, account, email);
+            long start = System.currentTimeMillis();
+            pooledTransport.transport.sendMessage(message, message.getAllRecipients());
+            long elapsed = System.currentTimeMillis() - start;
+            sendCount.increment();
+            sendMillis.add(elapsed);
+            pooledTransport.messageCount++;
+            isBroken = false;
+            log.debug("smtp account:{} send to:{} cost:{}ms", account.getUsername(), email.getTo(), elapsed);
+        } catch (MessagingException e) {
+            throw new IllegalStateException(StrUtil.format("smtp account:{} send to:{} failed", account.getUsername(), email.getTo()), e);
+        } finally {
+            transportPool.giveBack(pooledTransport, isBroken);
+        }
+    }
+
+    /**
+     * 构建 MIME 邮件, 有附件时构建为 multipart/mixed, 子类可覆盖以支持其它内容
+     * @param session 账户的会话
+     * @param account 发送账户
+     * @param email 邮件
+     * @return MimeMessage
+     * @throws MessagingException 构建失败
+     */
+    protected MimeMessage buildMessage(Session session, SmtpAccount account, SmtpEmail email) throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(StrUtil.isNotBlank(email.getFrom()) ? email.getFrom()
+                : StrUtil.isNotBlank(account.getFrom()) ? account.getFrom() : account.getUsername()));
+        message.setRecipients(Message.RecipientType.TO, toAddresses(email.getTo()));
+        message.setRecipients(Message.RecipientType.CC, toAddresses(email.getCc()));
+        message.setRecipients(Message.RecipientType.BCC, toAddresses(email.getBcc()));
+        message.setSubject(email.getSubject(), "UTF-8");
+        if (CollectionUtil.isEmpty(email.getAttachments())) {
+            setBody(message, email);
+        } else {
+            message.setContent(buildMultipart(email));
+        }
+        message.setSentDate(new Date());
+        return message;
+    }
+
+    /**
+     * 正文 和 附件组成的 multipart/mixed, 附件内容从 AttachmentStore 中读取已编码的内容
+     */
+    private MimeMultipart buildMultipart(SmtpEmail email) throws MessagingException {
+        if (Objects.isNull(attachmentStore)) {
+            throw new IllegalStateException("attachmentStore is not set, can not send email with attachments");
+        }
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        MimeBodyPart bodyPart = new MimeBodyPart();
+        setBody(bodyPart, email);
+        multipart.addBodyPart(bodyPart);
+        for (EmailAttachment emailAttachment : email.getAttachments()) {
+            multipart.addBodyPart(attachmentStore.getBodyPart(emailAttachment));
+        }
+        return multipart;
+    }
+
+    private void setBody(MimePart part, SmtpEmail email) throws MessagingException {
+        if (email.isHtml()) {
+            part.setContent(StrUtil.nullToEmpty(email.getContent()), "text/html;charset=UTF-8");
+        } else {
+            part.setText(StrUtil.nullToEmpty(email.getContent()), "UTF-8");
+        }
+    }
+
+    public long getHandshakeCount() {
+        return handshakeCount.sum();
+    }
+
+    public long getHandshakeMillis() {
+        return handshakeMillis.sum();
+    }
+
+    public long getSendCount() {
+        return sendCount.sum();
+    }
+
+    public long getSendMillis() {
+        return sendMillis.sum();
+    }
+
+    /**
+     * 关闭所有连接
+     */
+    @PreDestroy
+    public void close() {
+        transportPools.values().forEach(TransportPool::close);
+        transportPools.clear();
+    }
+
+    private Address[] toAddresses(List<String> addresses) throws MessagingException {
+        if (CollectionUtil.isEmpty(addresses)) {
+            return null;
+        }
+        Address[] result = new Address[addresses.size()];
+        for (int i = 0; i < addresses.size(); i++) {
+            result[i] = new InternetAddress(addresses.get(i));
+        }
+        return result;
+    }
+
+    private String getPoolKey(SmtpAccount account) {
+        return StrUtil.format("{}:{}:{}", account.getHost(), account.getPort(), account.getUsername());
+    }
+
+    /**
+     * 连接相关的配置, 与连接池建立时的配置不同时 需要重新建立连接池
+     */
+    private static String getSettings(SmtpAccount account) {
+        return StrUtil.format("{}:{}:{}:{}:{}", account.getPassword(), account.isSsl(), account.isStartTls(),
+                account.getConnectTimeoutMillis(), account.getTimeoutMillis());
+    }
+
+    /**
+     * 获取账户的连接池, 账户的连接配置发生变化时 关闭旧的连接池, 旧连接池中正在使用的连接 归还时关闭
+     */
+    private TransportPool getTransportPool(SmtpAccount account) {
+        String settings = getSettings(account);
+        TransportPool transportPool = transportPools.get(getPoolKey(account));
+        if (Objects.nonNull(transportPool) && transportPool.settings.equals(settings)) {
+            return transportPool;
+        }
+        return transportPools.compute(getPoolKey(account), (key, oldTransportPool) -> {
+            if (Objects.nonNull(oldTransportPool)) {
+                if (oldTransportPool.settings.equals(settings)) {
+                    return oldTransportPool;
+                }
+                oldTransportPool.close();
+                log.info("smtp account:{} settings changed, close transport pool", account.getUsername());
+            }
+            return new TransportPool(account, settings);
+        });
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            log.debug("close smtp transport failed", e);
+        }
+    }
+
+    /**
+     * 单个账户的连接池
+     */
+    private final class TransportPool {
+        private final SmtpAccount account;
+        private final String settings;
+        private final Session session;
+        private final String protocol;
+        private final Semaphore permits;
+        private final LinkedBlockingDeque<PooledTransport> idleTransports = new LinkedBlockingDeque<>();
+        private volatile boolean closed = false;
+
+        TransportPool(SmtpAccount account, String settings) {
+            this.account = account;
+            this.settings = settings;
+            this.protocol = account.isSsl() ? "smtps" : "smtp";
+            Properties properties = new Properties();
+            properties.put(StrUtil.format("mail.{}.auth", protocol), String.valueOf(StrUtil.isNotBlank(account.getPassword())));
+            properties.put(StrUtil.format("mail.{}.connectiontimeout", protocol), String.valueOf(account.getConnectTimeoutMillis()));
+            properties.put(StrUtil.format("mail.{}.timeout", protocol), String.valueOf(account.getTimeoutMillis()));
+            properties.put(StrUtil.format("mail.{}.writetimeout", protocol), String.valueOf(account.getTimeoutMillis()));
+            properties.put(StrUtil.format("mail.{}.starttls.enable", protocol), String.valueOf(account.isStartTls()));
+            this.session = Session.getInstance(properties);
+            this.permits = new Semaphore(Math.max(1, maxTransportsPerAccount));
+        }
+
+        PooledTransport borrow() {
+            try {
+                if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException(StrUtil.format("smtp account:{} borrow transport timeout", account.getUsername()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(StrUtil.format("smtp account:{} borrow transport interrupted", account.getUsername()), e);
+            }
+            try {
+                PooledTransport pooledTransport;
+                while (Objects.nonNull(pooledTransport = idleTransports.pollFirst())) {
+                    long idleMillis = System.currentTimeMillis() - pooledTransport.returnedAt;
+                    if (idleMillis <= maxIdleMillis && (idleMillis < NOOP_CHECK_IDLE_MILLIS || pooledTransport.transport.isConnected())) {
+                        return pooledTransport;
+                    }
+                    closeQuietly(pooledTransport.transport);
+                }
+                return connect();
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        void giveBack(PooledTransport pooledTransport, boolean isBroken) {
+            try {
+                if (isBroken || closed || pooledTransport.messageCount >= maxMessagesPerTransport) {
+                    closeQuietly(pooledTransport.transport);
+                    log.debug("smtp account:{} recycle transport broken:{} messages:{}", account.getUsername(), isBroken, pooledTransport.messageCount);
+                } else {
+                    pooledTransport.returnedAt = System.currentTimeMillis();
+                    idleTransports.offerFirst(pooledTransport);
+                    // 归还时连接池已被关闭 关闭刚归还的连接
+                    if (closed) {
+                        close();
+                    }
+                }
+            } finally {
+                permits.release();
+            }
+        }
+
+        void close() {
+            closed = true;
+            PooledTransport pooledTransport;
+            while (Objects.nonNull(pooledTransport = idleTransports.pollFirst())) {
+                closeQuietly(pooledTransport.transport);
+            }
+        }
+
+        private PooledTransport connect() {
+            long start = System.currentTimeMillis();
+            Transport transport = null;
+            try {
+                transport = session.getTransport(protocol);
+                transport.connect(account.getHost(), account.getPort(), account.getUsername(), account.getPassword());
+            } catch (MessagingException e) {
+                if (Objects.nonNull(transport)) {
+                    closeQuietly(transport);
+                }
+                throw new IllegalStateException(StrUtil.format("smtp account:{} connect {}:{} failed",
+                        account.getUsername(), account.getHost(), account.getPort()), e);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            handshakeCount.increment();
+            handshakeMillis.add(elapsed);
+            log.info("smtp account:{} connect {}:{} cost:{}ms", account.getUsername(), account.getHost(), account.getPort(), elapsed);
+            return new PooledTransport(transport);
+        }
+    }
+
+    private static final class PooledTransport {
+        private final Transport transport;
+        private int messageCount = 0;
+        private long returnedAt;
+
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
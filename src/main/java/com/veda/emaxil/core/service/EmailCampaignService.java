@@ -0,0 +1,22 @@
+package com.veda.emaxil.core.service;
+
+import com.veda.emaxil.core.entity.EmailCampaign;
+
+/**
+ * 邮件活动持久化接口
+ */
+public interface EmailCampaignService {
+
+    /**
+     * 持久化邮件活动 查询
+     * @param id 邮件活动ID
+     * @return 邮件活动 不存在时返回 null
+     */
+    EmailCampaign select(String id);
+
+    /**
+     * 持久化邮件活动 插入
+     * @param emailCampaign 邮件活动
+     */
+    void insert(EmailCampaign emailCampaign);
+}
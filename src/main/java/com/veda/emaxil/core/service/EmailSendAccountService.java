@@ -16,4 +16,13 @@ public interface EmailSendAccountService<A extends AbstractAccount> {
      * @return 所有可使用的邮件发送账户
      */
     List<EmailSendAccount<A>> selectAllEnabled();
+
+    /**
+     * 获取邮件发送账户的版本号, 账户 或其限制规则 任意变化时 版本号随之变化
+     * EmaxilCore 重新加载账户时 版本号未变化则不再查询和比较所有账户, 返回 null 表示不提供版本号 每次都查询和比较
+     * @return 版本号
+     */
+    default Long selectVersion() {
+        return null;
+    }
 }
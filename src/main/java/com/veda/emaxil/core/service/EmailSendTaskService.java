@@ -3,6 +3,8 @@ package com.veda.emaxil.core.service;
 import com.veda.emaxil.core.entity.AbstractEmail;
 import com.veda.emaxil.core.entity.EmailSendTask;
 
+import java.util.List;
+
 /**
  * 邮件内容持久化接口
  * @param <E> 邮件
@@ -22,9 +24,25 @@ public interface EmailSendTaskService<E extends AbstractEmail> {
      */
     void insert(EmailSendTask<E> emailSendTask);
 
+    /**
+     * 持久化邮件内容 批量插入, 持久化实现可覆盖为一条批量语句
+     * @param emailSendTasks 邮件发送任务
+     */
+    default void insertAll(List<EmailSendTask<E>> emailSendTasks) {
+        emailSendTasks.forEach(this::insert);
+    }
+
     /**
      * 持久化邮件内容 更新
      * @param emailSendTask 邮件发送任务
      */
     void update(EmailSendTask<E> emailSendTask);
+
+    /**
+     * 持久化邮件内容 批量更新, 持久化实现可覆盖为一条批量语句
+     * @param emailSendTasks 邮件发送任务 同一任务只出现一次
+     */
+    default void updateAll(List<EmailSendTask<E>> emailSendTasks) {
+        emailSendTasks.forEach(this::update);
+    }
 }
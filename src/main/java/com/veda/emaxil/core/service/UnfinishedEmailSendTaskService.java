@@ -0,0 +1,21 @@
+package com.veda.emaxil.core.service;
+
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendTask;
+
+import java.util.List;
+
+/**
+ * 未完成的邮件发送任务 查询接口
+ * LocalEmailSendTaskProducer 启动时 通过其重新加载上次退出前未完成的任务, 使用 LocalEmailSendTaskProducer 时必须提供该接口的 Bean
+ * 一般由 EmailSendTaskService 的持久化实现 同时实现, 未提供时 注入失败 应用无法启动
+ * @param <E> 邮件
+ */
+public interface UnfinishedEmailSendTaskService<E extends AbstractEmail> {
+
+    /**
+     * 获取所有未完成的邮件发送任务: 未发送, 发送中, 以及发送失败 且未超过重试次数的任务
+     * @return 未完成的邮件发送任务
+     */
+    List<EmailSendTask<E>> selectAllUnfinished();
+}
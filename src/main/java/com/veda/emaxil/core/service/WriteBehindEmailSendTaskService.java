@@ -0,0 +1,312 @@
+package com.veda.emaxil.core.service;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.EmaxilMetrics;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendTask;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.veda.emaxil.core.entity.EmailSendTask.StatusEnum.*;
+
+/**
+ * 邮件发送任务状态的 延迟批量写入
+ * 包装一个 EmailSendTaskService, update 只记录任务的最新状态, 同一任务在写入前的多次状态变化 合并为一次写入
+ * 积压的任务数量达到 batchSize 或 距离上次写入超过 flushIntervalMillis 时, 通过 updateAll 批量写入
+ * 查询时优先返回尚未写入的最新状态, insert 和 insertAll 直接调用被包装的服务
+ * 使用时将其声明为 EmailSendTaskService 的主 Bean, 例如:
+ * new WriteBehindEmailSendTaskService<>(emailSendTaskServiceImpl, Durability.GROUP_COMMIT)
+ * @param <E> 邮件
+ */
+@Slf4j
+public class WriteBehindEmailSendTaskService<E extends AbstractEmail> implements EmailSendTaskService<E> {
+
+    /**
+     * 状态写入的持久性
+     */
+    public enum Durability {
+        /**
+         * 所有状态都延迟写入, update 立即返回, 节点异常退出时 最近 flushIntervalMillis 内的状态变化会丢失
+         */
+        ASYNC,
+        /**
+         * 发送中 状态延迟写入, 发送成功 和 发送失败 的 update 等待其所在的批次写入完成后返回, 写入失败或超时时抛出异常
+         * 抛出异常时 该状态仍保留在待写入的任务中 由之后的批次重试写入, 消费者不会将写入失败的发送成功 当作发送失败重试
+         * 多个线程的最终状态合并在同一批次中写入
+         */
+        GROUP_COMMIT,
+        /**
+         * 不延迟写入, 每次 update 直接调用被包装的服务
+         */
+        SYNC,
+    }
+
+    /**
+     * GROUP_COMMIT 等待批次写入完成的最长时间 毫秒
+     */
+    private static final long COMMIT_TIMEOUT_MILLIS = 60000L;
+
+    private final EmailSendTaskService<E> emailSendTaskService;
+
+    @Getter
+    private final Durability durability;
+
+    /**
+     * 积压的任务数量达到该值时 立即写入
+     */
+    @Getter
+    private final int batchSize;
+
+    /**
+     * 两次写入的最长间隔 毫秒
+     */
+    @Getter
+    private final long flushIntervalMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 尚未写入的任务状态, 及 等待当前批次写入完成的结果
+     */
+    private Map<String, EmailSendTask<E>> pendingTasks = new LinkedHashMap<>();
+    private CompletableFuture<Void> pendingCommit = new CompletableFuture<>();
+
+    /**
+     * 正在写入的任务状态, 写入完成前 查询仍返回这些状态
+     */
+    private Map<String, EmailSendTask<E>> flushingTasks = Collections.emptyMap();
+
+    /**
+     * 保证同一时刻只有一个批次在写入, 避免同一任务的新旧状态被乱序写入
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final ScheduledExecutorService flushExecutor;
+
+    /**
+     * 状态更新的次数, 合并掉的次数, 批量写入的次数 和 写入的任务数量
+     */
+    private final LongAdder updateCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder flushedTaskCount = new LongAdder();
+
+    public WriteBehindEmailSendTaskService(EmailSendTaskService<E> emailSendTaskService, Durability durability) {
+        this(emailSendTaskService, durability, 500, 50L);
+    }
+
+    public WriteBehindEmailSendTaskService(EmailSendTaskService<E> emailSendTaskService, Durability durability, int batchSize, long flushIntervalMillis) {
+        if (Objects.isNull(emailSendTaskService) || Objects.isNull(durability)) {
+            throw new IllegalArgumentException("emailSendTaskService or durability can not be null");
+        }
+        if (batchSize <= 0 || flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("batchSize and flushIntervalMillis must be positive");
+        }
+        this.emailSendTaskService = emailSendTaskService;
+        this.durability = durability;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("emaxil-write-behind-"));
+        flushExecutor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        EmaxilMetrics.gauge("emaxil.write.behind.pending", this, WriteBehindEmailSendTaskService::getPendingCount);
+        EmaxilMetrics.functionCounter("emaxil.write.behind.updates", this, WriteBehindEmailSendTaskService::getUpdateCount);
+        EmaxilMetrics.functionCounter("emaxil.write.behind.coalesced", this, WriteBehindEmailSendTaskService::getCoalescedCount);
+        EmaxilMetrics.functionCounter("emaxil.write.behind.flushes", this, WriteBehindEmailSendTaskService::getFlushCount);
+        EmaxilMetrics.functionCounter("emaxil.write.behind.flushed.tasks", this, WriteBehindEmailSendTaskService::getFlushedTaskCount);
+    }
+
+    @Override
+    public EmailSendTask<E> select(String id) {
+        lock.lock();
+        try {
+            EmailSendTask<E> pendingTask = pendingTasks.getOrDefault(id, flushingTasks.get(id));
+            if (Objects.nonNull(pendingTask)) {
+                return copy(pendingTask);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return emailSendTaskService.select(id);
+    }
+
+    @Override
+    public void insert(EmailSendTask<E> emailSendTask) {
+        emailSendTaskService.insert(emailSendTask);
+    }
+
+    @Override
+    public void insertAll(List<EmailSendTask<E>> emailSendTasks) {
+        emailSendTaskService.insertAll(emailSendTasks);
+    }
+
+    @Override
+    public void update(EmailSendTask<E> emailSendTask) {
+        updateAll(Collections.singletonList(emailSendTask));
+    }
+
+    @Override
+    public void updateAll(List<EmailSendTask<E>> emailSendTasks) {
+        updateCount.add(emailSendTasks.size());
+        if (Durability.SYNC == durability) {
+            emailSendTaskService.updateAll(emailSendTasks);
+            return;
+        }
+        CompletableFuture<Void> commit;
+        boolean isFull;
+        lock.lock();
+        try {
+            for (EmailSendTask<E> emailSendTask : emailSendTasks) {
+                if (Objects.nonNull(pendingTasks.put(emailSendTask.getId(), copy(emailSendTask)))) {
+                    coalescedCount.increment();
+                }
+            }
+            commit = pendingCommit;
+            isFull = pendingTasks.size() >= batchSize;
+        } finally {
+            lock.unlock();
+        }
+        if (isFull) {
+            flushExecutor.execute(this::flushQuietly);
+        }
+        if (Durability.GROUP_COMMIT == durability && emailSendTasks.stream().anyMatch(this::isFinalStatus)) {
+            awaitCommit(commit, emailSendTasks);
+        }
+    }
+
+    /**
+     * 立即写入所有积压的任务状态
+     * 写入失败时 未被更新状态覆盖的任务 保留到下一次写入
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            Map<String, EmailSendTask<E>> flushTasks;
+            CompletableFuture<Void> commit;
+            lock.lock();
+            try {
+                if (pendingTasks.isEmpty()) {
+                    return;
+                }
+                flushTasks = pendingTasks;
+                commit = pendingCommit;
+                flushingTasks = flushTasks;
+                pendingTasks = new LinkedHashMap<>();
+                pendingCommit = new CompletableFuture<>();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                emailSendTaskService.updateAll(new ArrayList<>(flushTasks.values()));
+                flushCount.increment();
+                flushedTaskCount.add(flushTasks.size());
+                commit.complete(null);
+            } catch (RuntimeException e) {
+                lock.lock();
+                try {
+                    flushTasks.forEach(pendingTasks::putIfAbsent);
+                } finally {
+                    lock.unlock();
+                }
+                commit.completeExceptionally(e);
+                throw e;
+            } finally {
+                lock.lock();
+                try {
+                    flushingTasks = Collections.emptyMap();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 写入所有积压的任务状态 并停止定期写入
+     */
+    @PreDestroy
+    public void close() {
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(COMMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * @return 尚未写入的任务数量
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pendingTasks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getUpdateCount() {
+        return updateCount.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    public long getFlushCount() {
+        return flushCount.sum();
+    }
+
+    public long getFlushedTaskCount() {
+        return flushedTaskCount.sum();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("write behind email send tasks failed", e);
+        }
+    }
+
+    private void awaitCommit(CompletableFuture<Void> commit, List<EmailSendTask<E>> emailSendTasks) {
+        String ids = emailSendTasks.size() == 1 ? emailSendTasks.get(0).getId() : StrUtil.format("{} tasks", emailSendTasks.size());
+        try {
+            commit.get(COMMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(StrUtil.format("email send task:{} update failed", ids), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(StrUtil.format("email send task:{} update timeout", ids), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(StrUtil.format("email send task:{} update interrupted", ids), e);
+        }
+    }
+
+    private boolean isFinalStatus(EmailSendTask<E> emailSendTask) {
+        return SEND_SUCCESS.equals(emailSendTask.getStatus()) || SEND_FAILURE.equals(emailSendTask.getStatus());
+    }
+
+    /**
+     * 记录任务当前的状态, 调用方之后对任务的修改 不影响待写入的状态
+     */
+    private EmailSendTask<E> copy(EmailSendTask<E> emailSendTask) {
+        EmailSendTask<E> copy = new EmailSendTask<>(emailSendTask.getId(), emailSendTask.getPriority());
+        copy.setEmail(emailSendTask.getEmail());
+        copy.setStatus(emailSendTask.getStatus());
+        copy.setRetryCount(emailSendTask.getRetryCount());
+        copy.setRetryLimit(emailSendTask.getRetryLimit());
+        copy.setErrorMessage(emailSendTask.getErrorMessage());
+        return copy;
+    }
+}
@@ -0,0 +1,51 @@
+package com.veda.emaxil.util;
+
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * 汇总所有 emaxil. 开头的指标, 通过 /actuator/emaxil 一次查看 队列 限制器 账户调度 锁 和 发送 的状态
+ * 用于判断吞吐量受限于 发送配额, Redis, 锁 还是 SMTP
+ */
+@Component
+@Endpoint(id = "emaxil")
+public class EmaxilEndpoint {
+
+    private static final String PREFIX = "emaxil.";
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    /**
+     * @return 指标名称 与 该名称下每组标签的测量值, 按名称排序
+     */
+    @ReadOperation
+    public Map<String, List<Map<String, Object>>> metrics() {
+        MeterRegistry registry = Objects.isNull(meterRegistry) ? Metrics.globalRegistry : meterRegistry;
+        Map<String, List<Map<String, Object>>> metrics = new TreeMap<>();
+        for (Meter meter : registry.getMeters()) {
+            String name = meter.getId().getName();
+            if (!name.startsWith(PREFIX)) {
+                continue;
+            }
+            Map<String, Object> sample = new LinkedHashMap<>();
+            for (Tag tag : meter.getId().getTags()) {
+                sample.put(tag.getKey(), tag.getValue());
+            }
+            for (Measurement measurement : meter.measure()) {
+                sample.put(measurement.getStatistic().getTagValueRepresentation(), measurement.getValue());
+            }
+            metrics.computeIfAbsent(name, key -> new ArrayList<>()).add(sample);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,122 @@
+package com.veda.emaxil.util;
+
+import java.util.List;
+
+/**
+ * 较可靠消息队列接口
+ * 队列消息出队消费后 需要 进行 ACK, 否则超时将重新回原队列中
+ * 通过配置 emaxil.queue.type 选择实现: list 为 RedisMessageQueue, stream 为 RedisStreamMessageQueue
+ */
+public interface MessageQueue {
+
+    /**
+     * 非阻塞的 将 值 推送到消息队列中
+     * @param queueName 队列名称
+     * @param value 字符串值
+     * @return QueueValue
+     */
+    RedisMessageQueue.QueueValue addValue(String queueName, String value);
+
+    /**
+     * 非阻塞的 将 多个值 批量推送到消息队列中, 只需一次或少量几次往返
+     * @param queueName 队列名称
+     * @param values 字符串值
+     * @return 与 values 顺序对应的 QueueValue
+     */
+    List<RedisMessageQueue.QueueValue> addValues(String queueName, List<String> values);
+
+    /**
+     * 阻塞的获取队列弹出的值
+     * @param queueName 队列名称
+     * @return 出队的值 该对象用于 ACK 时使用
+     */
+    RedisMessageQueue.QueueValue getValue(String queueName);
+
+    /**
+     * 批量获取队列弹出的值, 队列为空时最多阻塞等待 timeoutMillis, 有消息时立即返回 最多 maxCount 个
+     * @param queueName 队列名称
+     * @param maxCount 最多获取的数量
+     * @param timeoutMillis 队列为空时的最长等待时间 毫秒
+     * @return 出队的值 超时返回空列表
+     */
+    List<RedisMessageQueue.QueueValue> getValues(String queueName, int maxCount, long timeoutMillis);
+
+    /**
+     * 按 queueNames 的顺序 依次从多个队列中批量获取弹出的值, 所有队列都为空时最多阻塞等待 timeoutMillis
+     * 返回值的 queueName 为其出队的队列, ACK 时需使用该队列名称
+     * @param queueNames 队列名称 靠前的队列优先出队
+     * @param maxCount 最多获取的数量
+     * @param timeoutMillis 所有队列都为空时的最长等待时间 毫秒
+     * @return 出队的值 超时返回空列表
+     */
+    List<RedisMessageQueue.QueueValue> getValues(List<String> queueNames, int maxCount, long timeoutMillis);
+
+    /**
+     * 将 值 放入延迟队列, 到期后由 pumpDelayedValues 推送到消息队列中
+     * @param queueName 队列名称
+     * @param value 字符串值
+     * @param delayMillis 延迟时间 毫秒
+     * @return QueueValue
+     */
+    RedisMessageQueue.QueueValue addDelayedValue(String queueName, String value, long delayMillis);
+
+    /**
+     * 将延迟队列中 已到期的消息 推送到消息队列中
+     * 该方法应被定时任务定期执行, 多个节点同时执行也是安全的
+     * @param queueName 队列名称
+     * @return 推送的消息数量
+     */
+    int pumpDelayedValues(String queueName);
+
+    /**
+     * 用于在 getValue 后成功消费消息的 消费确认
+     * 确认后消息才会真正离队, 否则超时后会被重新放置回原队列再次等待消费
+     * @param queueName 队列名称
+     * @param queueValue 队列值
+     * @return 是否确认成功
+     */
+    boolean ackValue(String queueName, RedisMessageQueue.QueueValue queueValue);
+
+    /**
+     * 批量的 消费确认
+     * @param queueName 队列名称
+     * @param queueValues 队列值
+     * @return 确认成功的数量
+     */
+    int ackValues(String queueName, List<RedisMessageQueue.QueueValue> queueValues);
+
+    /**
+     * 延长消息的 ACK 截止时间, 用于消费耗时较长时 避免消息被当作超时重新入队
+     * @param queueName 队列名称
+     * @param queueValue 队列值
+     * @return 是否延长成功, 消息已被确认 或 已超时重新入队时 返回 false
+     */
+    boolean extendValue(String queueName, RedisMessageQueue.QueueValue queueValue);
+
+    /**
+     * 对超过 ACK 超时时间仍未进行 ACK 的消息进行清理, 将他们放回原消息队列中
+     * 该方法应被定时任务定期执行, 多个节点同时执行也是安全的
+     * @param queueName 原队列名称
+     */
+    void ackClean(String queueName);
+
+    /**
+     * 获取队列中等待消费的消息数量, 不包含已出队 未 ACK 的消息
+     * @param queueName 队列名称
+     * @return 消息数量
+     */
+    long size(String queueName);
+
+    /**
+     * 获取已出队 尚未 ACK 的消息数量
+     * @param queueName 队列名称
+     * @return 消息数量
+     */
+    long ackSize(String queueName);
+
+    /**
+     * 消息出队后 需要在该时间内 ACK 或 延长, 否则会被 ackClean 重新放回原队列
+     * @return ACK 超时时间 毫秒
+     */
+    long getAckTimeoutMillis();
+}
@@ -0,0 +1,90 @@
+package com.veda.emaxil.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * 按许可数量 限制同时处理数量的分发器
+ * 分发线程只在有空闲许可时 按空闲许可的数量 (最多 maxBatchSize 个) 获取元素, 每个元素交给执行器处理, 处理完成后归还许可
+ * 获取的元素少于许可时 立即归还多余的许可, 获取的元素不会在本地排队等待
+ * @param <T> 元素
+ */
+@Slf4j
+public class PermitDispatcher<T> implements Runnable {
+
+    /**
+     * 按数量获取元素, 没有元素时 可阻塞等待一段时间 后返回空列表
+     */
+    @FunctionalInterface
+    public interface Source<T> {
+        List<T> take(int maxCount) throws Exception;
+    }
+
+    private final Semaphore permits;
+
+    private final int maxBatchSize;
+
+    private final Source<T> source;
+
+    private final Executor executor;
+
+    private final Consumer<T> handler;
+
+    /**
+     * @param concurrency 同时处理的最大数量
+     * @param maxBatchSize 每次获取的最大数量
+     * @param source 元素来源
+     * @param executor 处理元素的执行器
+     * @param handler 元素的处理, 抛出的异常只记录日志
+     */
+    public PermitDispatcher(int concurrency, int maxBatchSize, Source<T> source, Executor executor, Consumer<T> handler) {
+        if (concurrency <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("concurrency and maxBatchSize must be positive");
+        }
+        this.permits = new Semaphore(concurrency);
+        this.maxBatchSize = maxBatchSize;
+        this.source = source;
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * 持续分发 直到线程被中断
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            int acquired = 0;
+            try {
+                permits.acquire();
+                acquired = 1;
+                // 有空闲的许可时 一次多获取一些
+                while (acquired < maxBatchSize && permits.tryAcquire()) {
+                    acquired++;
+                }
+                for (T element : source.take(acquired)) {
+                    executor.execute(() -> {
+                        try {
+                            handler.accept(element);
+                        } catch (Exception e) {
+                            log.error("dispatch element failed", e);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                    acquired--;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("dispatch take failed", e);
+            } finally {
+                permits.release(acquired);
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.veda.emaxil.util;
+
+import cn.hutool.core.collection.CollectionUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于 MessageQueue 实现的 多优先级消息队列
+ * 每个优先级对应一个独立的队列 (通道), 优先级数值越小越优先, 0 为最高优先级, 超出范围的优先级归入最低优先级通道
+ * 通道 0 使用原队列名称, 其余通道名称为 {queueName}-p{priority}
+ * 每次出队时 先按策略决定各通道的顺序, 再由 MessageQueue 按该顺序 依次从各通道中取出消息
+ * STRICT: 总是优先出队高优先级通道, 低优先级通道有积压 且超过 maxWaitMillis 未被服务时 临时提升为最先出队 避免饥饿
+ * WEIGHTED: 在有积压的通道中 按权重进行平滑加权轮询 选出最先出队的通道, 其余通道按优先级顺序补足
+ */
+@Slf4j
+public class PriorityMessageQueue {
+
+    /**
+     * 通道积压数量的刷新间隔 毫秒
+     */
+    private static final long DEPTH_REFRESH_MILLIS = 1000L;
+
+    /**
+     * 出队策略
+     */
+    public enum Policy {
+        /**
+         * 严格优先级 带饥饿提升
+         */
+        STRICT,
+        /**
+         * 平滑加权轮询
+         */
+        WEIGHTED,
+    }
+
+    private final MessageQueue messageQueue;
+
+    @Getter
+    private final String queueName;
+
+    @Getter
+    private final Policy policy;
+
+    /**
+     * 低优先级通道 最长未被服务的时间 毫秒, 仅 STRICT 策略使用
+     */
+    @Getter
+    private final long maxWaitMillis;
+
+    private final Lane[] lanes;
+
+    private final List<String> laneNames;
+
+    /**
+     * 平滑加权轮询 各通道的当前权重
+     */
+    private final long[] currentWeights;
+
+    private final AtomicLong depthRefreshedAt = new AtomicLong(0L);
+
+    /**
+     * 单个优先级通道的统计数据
+     */
+    @Getter
+    public static class LaneStat {
+        private final String queueName;
+        private final int priority;
+        private final int weight;
+        /**
+         * 通道中等待消费的消息数量
+         */
+        private final long depth;
+        /**
+         * 最近一次出队的消息 从入队到出队等待的时间 毫秒
+         */
+        private final long lastWaitMillis;
+        /**
+         * 通道累计出队的消息数量
+         */
+        private final long dequeued;
+
+        LaneStat(Lane lane) {
+            this.queueName = lane.queueName;
+            this.priority = lane.priority;
+            this.weight = lane.weight;
+            this.depth = lane.depth;
+            this.lastWaitMillis = lane.lastWaitMillis;
+            this.dequeued = lane.dequeued.sum();
+        }
+    }
+
+    /**
+     * @param messageQueue 承载各通道的消息队列
+     * @param queueName 队列名称
+     * @param levels 优先级数量
+     * @param policy 出队策略
+     * @param weights 各优先级的权重, 为空时 第 i 个优先级的权重为 2 的 (levels - 1 - i) 次方
+     * @param maxWaitMillis 低优先级通道 最长未被服务的时间 毫秒
+     */
+    public PriorityMessageQueue(MessageQueue messageQueue, String queueName, int levels, Policy policy, int[] weights, long maxWaitMillis) {
+        if (Objects.isNull(messageQueue) || StrUtil.isBlank(queueName) || Objects.isNull(policy)) {
+            throw new IllegalArgumentException("messageQueue, queueName or policy can not be null");
+        }
+        if (levels <= 0) {
+            throw new IllegalArgumentException("levels must be positive");
+        }
+        if (Objects.nonNull(weights) && weights.length != levels) {
+            throw new IllegalArgumentException(StrUtil.format("weights length:{} not equals levels:{}", weights.length, levels));
+        }
+        this.messageQueue = messageQueue;
+        this.queueName = queueName;
+        this.policy = policy;
+        this.maxWaitMillis = maxWaitMillis;
+        this.lanes = new Lane[levels];
+        List<String> names = new ArrayList<>(levels);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < levels; i++) {
+            int weight = Objects.isNull(weights) ? 1 << Math.min(levels - 1 - i, 16) : weights[i];
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weights must be positive");
+            }
+            lanes[i] = new Lane(i == 0 ? queueName : StrUtil.format("{}-p{}", queueName, i), i, weight, now);
+            names.add(lanes[i].queueName);
+        }
+        this.laneNames = Collections.unmodifiableList(names);
+        this.currentWeights = new long[levels];
+    }
+
+    /**
+     * 获取优先级对应的通道名称
+     * @param priority 优先级 数值越小越优先
+     * @return 通道名称
+     */
+    public String getLaneName(int priority) {
+        return lanes[Math.max(0, Math.min(priority, lanes.length - 1))].queueName;
+    }
+
+    /**
+     * @return 所有通道名称 按优先级从高到低
+     */
+    public List<String> getLaneNames() {
+        return laneNames;
+    }
+
+    /**
+     * 将 值 推送到优先级对应的通道中
+     * @param priority 优先级
+     * @param value 字符串值
+     * @return QueueValue
+     */
+    public RedisMessageQueue.QueueValue addValue(int priority, String value) {
+        return messageQueue.addValue(getLaneName(priority), value);
+    }
+
+    /**
+     * 将 多个值 批量推送到优先级对应的通道中
+     * @param priority 优先级
+     * @param values 字符串值
+     * @return 与 values 顺序对应的 QueueValue
+     */
+    public List<RedisMessageQueue.QueueValue> addValues(int priority, List<String> values) {
+        return messageQueue.addValues(getLaneName(priority), values);
+    }
+
+    /**
+     * 将 值 放入优先级对应通道的延迟队列, 到期后由 pumpDelayedValues 推送到该通道中
+     * @param priority 优先级
+     * @param value 字符串值
+     * @param delayMillis 延迟时间 毫秒
+     * @return QueueValue
+     */
+    public RedisMessageQueue.QueueValue addDelayedValue(int priority, String value, long delayMillis) {
+        return messageQueue.addDelayedValue(getLaneName(priority), value, delayMillis);
+    }
+
+    /**
+     * 将所有通道的延迟队列中 已到期的消息 推送到各自的通道中
+     * @return 推送的消息数量
+     */
+    public int pumpDelayedValues() {
+        int count = 0;
+        for (Lane lane : lanes) {
+            count += messageQueue.pumpDelayedValues(lane.queueName);
+        }
+        return count;
+    }
+
+    /**
+     * 按出队策略决定的通道顺序 批量获取弹出的值
+     * @param maxCount 最多获取的数量
+     * @param timeoutMillis 所有通道都为空时的最长等待时间 毫秒
+     * @return 出队的值 超时返回空列表
+     */
+    public List<RedisMessageQueue.QueueValue> getValues(int maxCount, long timeoutMillis) {
+        refreshLaneDepthsIfStale();
+        List<String> order = getLaneOrder();
+        List<RedisMessageQueue.QueueValue> queueValues = messageQueue.getValues(order, maxCount, timeoutMillis);
+        recordDequeued(queueValues);
+        return queueValues;
+    }
+
+    /**
+     * 记录出队的值 更新其所在通道的服务时间 等待时间和出队数量
+     * 不经过 getValues 出队时 (如使用 ReactiveRedisMessageQueue 按 getLaneOrder 的顺序出队) 需要调用该方法 以保持出队策略和统计数据有效
+     * @param queueValues 出队的值
+     */
+    public void recordDequeued(List<RedisMessageQueue.QueueValue> queueValues) {
+        long now = System.currentTimeMillis();
+        for (RedisMessageQueue.QueueValue queueValue : queueValues) {
+            Lane lane = lanes[laneNames.indexOf(queueValue.getQueueName())];
+            lane.lastServedAt = now;
+            if (Objects.nonNull(queueValue.getTimestamp())) {
+                lane.lastWaitMillis = Math.max(0L, now - queueValue.getTimestamp());
+            }
+            lane.dequeued.increment();
+        }
+    }
+
+    /**
+     * 批量的 消费确认, 按消息出队的通道分别确认
+     * @param queueValues 队列值
+     * @return 确认成功的数量
+     */
+    public int ackValues(List<RedisMessageQueue.QueueValue> queueValues) {
+        if (CollectionUtil.isEmpty(queueValues)) {
+            return 0;
+        }
+        Map<String, List<RedisMessageQueue.QueueValue>> laneValues = new LinkedHashMap<>();
+        for (RedisMessageQueue.QueueValue queueValue : queueValues) {
+            laneValues.computeIfAbsent(getQueueName(queueValue), name -> new ArrayList<>()).add(queueValue);
+        }
+        int count = 0;
+        for (Map.Entry<String, List<RedisMessageQueue.QueueValue>> entry : laneValues.entrySet()) {
+            count += messageQueue.ackValues(entry.getKey(), entry.getValue());
+        }
+        return count;
+    }
+
+    /**
+     * 延长消息的 ACK 截止时间
+     * @param queueValue 队列值
+     * @return 是否延长成功
+     */
+    public boolean extendValue(RedisMessageQueue.QueueValue queueValue) {
+        return messageQueue.extendValue(getQueueName(queueValue), queueValue);
+    }
+
+    /**
+     * 对所有通道中 超时未进行 ACK 的消息进行清理
+     */
+    public void ackClean() {
+        for (Lane lane : lanes) {
+            messageQueue.ackClean(lane.queueName);
+        }
+    }
+
+    /**
+     * @return 消息出队后 需要在该时间内 ACK 或 延长
+     */
+    public long getAckTimeoutMillis() {
+        return messageQueue.getAckTimeoutMillis();
+    }
+
+    /**
+     * 获取通道中 已出队 尚未 ACK 的消息数量
+     * @param laneName 通道名称
+     * @return 消息数量
+     */
+    public long ackSize(String laneName) {
+        return messageQueue.ackSize(laneName);
+    }
+
+    /**
+     * 立即刷新各通道的积压数量
+     */
+    public void refreshLaneDepths() {
+        long now = System.currentTimeMillis();
+        depthRefreshedAt.set(now);
+        for (Lane lane : lanes) {
+            lane.depth = messageQueue.size(lane.queueName);
+            // 空闲的通道 视为一直被服务, 新消息到达时不会立刻被当作饥饿
+            if (lane.depth == 0) {
+                lane.lastServedAt = now;
+            }
+        }
+    }
+
+    /**
+     * 获取各通道的统计数据 供监控使用
+     * @return 按优先级从高到低的通道统计
+     */
+    public List<LaneStat> getLaneStats() {
+        List<LaneStat> laneStats = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) {
+            laneStats.add(new LaneStat(lane));
+        }
+        return laneStats;
+    }
+
+    /**
+     * 按出队策略 决定本次出队时各通道的顺序, 不会刷新积压数量 需要定期调用 refreshLaneDepths
+     * @return 通道名称 靠前的通道优先出队
+     */
+    public List<String> getLaneOrder() {
+        if (lanes.length == 1) {
+            return laneNames;
+        }
+        int first = policy == Policy.WEIGHTED ? selectWeightedLane() : selectStarvingLane();
+        if (first <= 0) {
+            return laneNames;
+        }
+        List<String> order = new ArrayList<>(lanes.length);
+        order.add(lanes[first].queueName);
+        for (Lane lane : lanes) {
+            if (lane.priority != first) {
+                order.add(lane.queueName);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * 选出有积压 且最久未被服务 超过 maxWaitMillis 的低优先级通道
+     * @return 通道序号, 没有饥饿的通道时 返回 0
+     */
+    private int selectStarvingLane() {
+        long now = System.currentTimeMillis();
+        int starving = 0;
+        long oldestServedAt = Long.MAX_VALUE;
+        for (int i = 1; i < lanes.length; i++) {
+            Lane lane = lanes[i];
+            if (lane.depth > 0 && now - lane.lastServedAt > maxWaitMillis && lane.lastServedAt < oldestServedAt) {
+                starving = i;
+                oldestServedAt = lane.lastServedAt;
+            }
+        }
+        if (starving > 0) {
+            log.debug("queue:{} lane:{} starving, promote it", queueName, lanes[starving].queueName);
+        }
+        return starving;
+    }
+
+    /**
+     * 平滑加权轮询 只在有积压的通道中选择, 积压数量未知 (都为 0) 时 在所有通道中选择
+     * @return 通道序号
+     */
+    private synchronized int selectWeightedLane() {
+        boolean hasDepth = false;
+        for (Lane lane : lanes) {
+            hasDepth |= lane.depth > 0;
+        }
+        int selected = -1;
+        long totalWeight = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            if (hasDepth && lanes[i].depth <= 0) {
+                continue;
+            }
+            currentWeights[i] += lanes[i].weight;
+            totalWeight += lanes[i].weight;
+            if (selected < 0 || currentWeights[i] > currentWeights[selected]) {
+                selected = i;
+            }
+        }
+        currentWeights[selected] -= totalWeight;
+        return selected;
+    }
+
+    private void refreshLaneDepthsIfStale() {
+        long refreshedAt = depthRefreshedAt.get();
+        if (System.currentTimeMillis() - refreshedAt < DEPTH_REFRESH_MILLIS) {
+            return;
+        }
+        // 只由一个线程刷新
+        if (depthRefreshedAt.compareAndSet(refreshedAt, System.currentTimeMillis())) {
+            try {
+                refreshLaneDepths();
+            } catch (Exception e) {
+                log.error(StrUtil.format("queue:{} refresh lane depths failed", queueName), e);
+            }
+        }
+    }
+
+    private String getQueueName(RedisMessageQueue.QueueValue queueValue) {
+        if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getQueueName())) {
+            throw new IllegalArgumentException("queueValue or queueName can not be null");
+        }
+        return queueValue.getQueueName();
+    }
+
+    private static final class Lane {
+        private final String queueName;
+        private final int priority;
+        private final int weight;
+        private final LongAdder dequeued = new LongAdder();
+        private volatile long depth = 0L;
+        private volatile long lastServedAt;
+        private volatile long lastWaitMillis = 0L;
+
+        Lane(String queueName, int priority, int weight, long lastServedAt) {
+            this.queueName = queueName;
+            this.priority = priority;
+            this.weight = weight;
+            this.lastServedAt = lastServedAt;
+        }
+    }
+}
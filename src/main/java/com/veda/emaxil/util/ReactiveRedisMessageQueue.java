@@ -0,0 +1,121 @@
+package com.veda.emaxil.util;
+
+import cn.hutool.core.collection.CollectionUtil;
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson.JSON;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+
+/**
+ * 基于 ReactiveStringRedisTemplate 的 RedisMessageQueue 非阻塞访问
+ * 与 RedisMessageQueue 使用相同的数据结构和 Lua 脚本, 两者可以同时操作同一个队列
+ * 响应式连接是多个请求共享的, 因此不提供阻塞等待的出队, 队列为空时由调用方自行延迟后重试
+ */
+@Component
+@ConditionalOnProperty(prefix = "emaxil.queue", name = "type", havingValue = "list", matchIfMissing = true)
+public class ReactiveRedisMessageQueue {
+
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    /**
+     * 消息出队后 需要在该时间内 ACK 或 延长截止时间, 否则会被 ackClean 重新放回原队列
+     */
+    @Getter
+    @Value("${emaxil.queue.ack-timeout-millis:600000}")
+    private long ackTimeoutMillis = 600000L;
+
+    /**
+     * 按 queueNames 的顺序 依次从多个队列中非阻塞的获取弹出的值
+     * @param queueNames 队列名称 靠前的队列优先出队
+     * @param maxCount 最多获取的数量
+     * @return 出队的值 所有队列都为空时 返回空列表
+     */
+    public Mono<List<RedisMessageQueue.QueueValue>> getValues(List<String> queueNames, int maxCount) {
+        if (CollectionUtil.isEmpty(queueNames) || queueNames.stream().anyMatch(StrUtil::isBlank)) {
+            return Mono.error(new IllegalArgumentException("queueNames can not be blank"));
+        }
+        if (maxCount <= 0) {
+            return Mono.error(new IllegalArgumentException("maxCount must be positive"));
+        }
+        List<String> keys = new ArrayList<>(queueNames.size() * 3);
+        for (String queueName : queueNames) {
+            keys.add(queueName);
+            keys.add(RedisMessageQueue.getAckQueueName(queueName));
+            keys.add(RedisMessageQueue.getNotifyQueueName(queueName));
+        }
+        return reactiveStringRedisTemplate.execute(RedisMessageQueue.POP_VALUES_SCRIPT, keys,
+                Arrays.asList(String.valueOf(maxCount), String.valueOf(ackTimeoutMillis)))
+                .collectList()
+                .map(results -> {
+                    // 脚本返回的列表 可能被展开为多个元素 也可能作为一个元素
+                    List<?> values = results.size() == 1 && results.get(0) instanceof List ? (List<?>) results.get(0) : results;
+                    List<RedisMessageQueue.QueueValue> queueValues = new ArrayList<>(values.size() / 2);
+                    for (int i = 0; i + 1 < values.size(); i += 2) {
+                        RedisMessageQueue.QueueValue queueValue = JSON.parseObject(String.valueOf(values.get(i + 1)), RedisMessageQueue.QueueValue.class);
+                        queueValue.setQueueName(queueNames.get(((Number) values.get(i)).intValue()));
+                        queueValues.add(queueValue);
+                    }
+                    return queueValues;
+                });
+    }
+
+    /**
+     * 消费确认, 使用 queueValue 出队时所在的队列
+     * @param queueValue 队列值
+     * @return 是否确认成功
+     */
+    public Mono<Boolean> ackValue(RedisMessageQueue.QueueValue queueValue) {
+        if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getQueueName())) {
+            return Mono.error(new IllegalArgumentException("queueValue or queueName can not be null"));
+        }
+        return reactiveStringRedisTemplate.execute(RedisMessageQueue.ACK_VALUES_SCRIPT,
+                Arrays.asList(queueValue.getQueueName(), RedisMessageQueue.getAckQueueName(queueValue.getQueueName())),
+                Collections.singletonList(JSON.toJSONString(queueValue)))
+                .next()
+                .map(result -> result == 1L)
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * 延长消息的 ACK 截止时间 为当前时间 + ackTimeoutMillis
+     * @param queueValue 队列值
+     * @return 是否延长成功
+     */
+    public Mono<Boolean> extendValue(RedisMessageQueue.QueueValue queueValue) {
+        if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getQueueName())) {
+            return Mono.error(new IllegalArgumentException("queueValue or queueName can not be null"));
+        }
+        return reactiveStringRedisTemplate.execute(RedisMessageQueue.EXTEND_VALUE_SCRIPT,
+                Collections.singletonList(RedisMessageQueue.getAckQueueName(queueValue.getQueueName())),
+                Arrays.asList(JSON.toJSONString(queueValue), String.valueOf(ackTimeoutMillis)))
+                .next()
+                .map(result -> result == 1L)
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * 将 值 放入延迟队列, 到期后由 MessageQueue.pumpDelayedValues 推送到消息队列中
+     * @param queueName 队列名称
+     * @param value 字符串值
+     * @param delayMillis 延迟时间 毫秒
+     * @return QueueValue
+     */
+    public Mono<RedisMessageQueue.QueueValue> addDelayedValue(String queueName, String value, long delayMillis) {
+        if (StrUtil.isBlank(queueName) || StrUtil.isBlank(value)) {
+            return Mono.error(new IllegalArgumentException("queueName or value can not be blank"));
+        }
+        RedisMessageQueue.QueueValue queueValue = new RedisMessageQueue.QueueValue(value, System.currentTimeMillis());
+        return reactiveStringRedisTemplate.execute(RedisMessageQueue.ADD_DELAYED_VALUE_SCRIPT,
+                Collections.singletonList(RedisMessageQueue.getDelayQueueName(queueName)),
+                Arrays.asList(JSON.toJSONString(queueValue), String.valueOf(Math.max(0L, delayMillis))))
+                .then(Mono.just(queueValue));
+    }
+}
@@ -1,25 +1,64 @@
 package com.veda.emaxil.util;
 
 import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.EmaxilMetrics;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
+import org.springframework.data.redis.connection.Message;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 基于 单节点 Redis 实现分布式锁
+ * 同一节点内 竞争同一个锁的线程先通过该锁名称的本地锁排队, 每个节点同一时刻只有一个线程会为同一个锁访问 Redis
+ * 本地锁只在竞争期间持有, Redis 加锁成功 或放弃等待后立即释放, 因此锁可以在任意线程中释放, 租约过期未释放也不会阻塞本节点
+ * 获取失败时 按锁的剩余时间和带抖动的指数退避等待, 锁被释放时 通过 Redis 发布订阅提前唤醒等待者
+ * 租约时长不大于 0 时 由看门狗线程定期续期, 每次加锁成功都会得到一个递增的 fencing token 供持有者校验
  * @author derick.jin 2019-12-30 18:58:00
  * @version 1.0
  **/
 @Slf4j
 @Component
 public class RedisDistributedLock {
+
+    /**
+     * 锁释放时 发布锁名称的频道
+     */
+    private static final String UNLOCK_CHANNEL = "emaxil-lock-unlock";
+
+
+    private static final long MIN_BACKOFF_MILLIS = 5L;
+    private static final long MAX_BACKOFF_MILLIS = 500L;
+
+    /**
+     * 加锁成功返回 fencing token, 失败返回 锁剩余时间的相反数
+     * KEYS[1] 锁名称, KEYS[2] fencing token 计数器, ARGV[1] 锁内容, ARGV[2] 租约时长 毫秒
+     */
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return redis.call('incr', KEYS[2]) end " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl > 0 then return -ttl end " +
+            "return 0", Long.class);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end", Long.class);
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
@@ -27,20 +66,140 @@ public class RedisDistributedLock {
     private DefaultRedisScript<Long> redisScript;
 
     /**
-     * 加锁
+     * 看门狗模式下的租约时长 毫秒, 每 1/3 租约时长续期一次
+     */
+    @Setter
+    private long watchdogLeaseMillis = 30000L;
+
+    /**
+     * 正在竞争的锁名称 与 其本地锁, 没有线程竞争时移除
+     */
+    private final ConcurrentHashMap<String, LocalLock> localLocks = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "emaxil-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile RedisMessageListenerContainer unlockListenerContainer;
+
+    /**
+     * 已获取的锁
+     */
+    @Getter
+    public static class Lock {
+        private final String name;
+        private final String value;
+        /**
+         * 每次加锁成功递增, 持有者可通过 validateFencingToken 校验期间是否有其它持有者
+         */
+        private final long fencingToken;
+        private volatile ScheduledFuture<?> renewal;
+
+        private Lock(String name, String value, long fencingToken) {
+            this.name = name;
+            this.value = value;
+            this.fencingToken = fencingToken;
+        }
+    }
+
+    /**
+     * 加锁 一直等待直到成功
      * @param lockName 锁名称
      * @param timeoutMillis 锁超时时间 毫秒
      * @return 锁内容
      */
     public String doLock(String lockName, long timeoutMillis) {
+        Lock lock = tryLock(lockName, -1, timeoutMillis);
+        if (Objects.isNull(lock)) {
+            throw new IllegalStateException(StrUtil.format("do lock:{} interrupted", lockName));
+        }
+        return lock.getValue();
+    }
+
+    /**
+     * 尝试加锁, 可以在任意线程中释放
+     * @param lockName 锁名称
+     * @param waitMillis 最长等待时间 毫秒, 小于 0 表示一直等待
+     * @param leaseMillis 锁超时时间 毫秒, 不大于 0 表示由看门狗自动续期 直到释放
+     * @return 获取的锁, 超时或被中断时返回 null
+     */
+    public Lock tryLock(String lockName, long waitMillis, long leaseMillis) {
+        long startNanos = System.nanoTime();
+        Lock lock = null;
+        try {
+            lock = acquire(lockName, waitMillis, leaseMillis);
+            return lock;
+        } finally {
+            EmaxilMetrics.record(EmaxilMetrics.histogramTimer("emaxil.lock.wait",
+                    "result", Objects.nonNull(lock) ? "acquired" : "failed"), startNanos);
+        }
+    }
+
+    private Lock acquire(String lockName, long waitMillis, long leaseMillis) {
+        long deadline = waitMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + waitMillis;
+        boolean isWatchdog = leaseMillis <= 0;
+        long lease = isWatchdog ? watchdogLeaseMillis : leaseMillis;
+        LocalLock localLock = retainLocalLock(lockName);
+        try {
+            // 本节点内先排队 只有获取本地锁的线程才会访问 Redis
+            try {
+                if (waitMillis < 0) {
+                    localLock.lock.lockInterruptibly();
+                } else if (!localLock.lock.tryLock(waitMillis, TimeUnit.MILLISECONDS)) {
+                    log.debug("try lock:{} local timeout", lockName);
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            try {
+                return compete(lockName, localLock, deadline, isWatchdog, lease);
+            } finally {
+                localLock.lock.unlock();
+            }
+        } finally {
+            releaseLocalLock(lockName);
+        }
+    }
+
+    /**
+     * 持有本地锁时 在 Redis 中竞争直到加锁成功 或超时
+     */
+    private Lock compete(String lockName, LocalLock localLock, long deadline, boolean isWatchdog, long lease) {
         String lockValue = IdUtil.fastSimpleUUID();
+        long backoff = MIN_BACKOFF_MILLIS;
         while (true) {
-            Boolean isAbsent = stringRedisTemplate.opsForValue().setIfAbsent(lockName, lockValue, timeoutMillis, TimeUnit.MILLISECONDS);
-            if (Objects.nonNull(isAbsent) && isAbsent) {
-                log.info("do lock:{} success", lockName);
-                return lockValue;
+            long unlockVersion = localLock.getUnlockVersion();
+            Long result = stringRedisTemplate.execute(LOCK_SCRIPT, Arrays.asList(lockName, getFencingTokenKey(lockName)),
+                    lockValue, String.valueOf(lease));
+            if (Objects.nonNull(result) && result > 0) {
+                Lock lock = new Lock(lockName, lockValue, result);
+                if (isWatchdog) {
+                    lock.renewal = watchdog.scheduleAtFixedRate(() -> renew(lock, lease), lease / 3, lease / 3, TimeUnit.MILLISECONDS);
+                }
+                log.debug("do lock:{} success fencingToken:{}", lockName, result);
+                return lock;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                log.debug("try lock:{} timeout", lockName);
+                return null;
+            }
+            // 带抖动的指数退避, 不超过锁的剩余时间 和 剩余等待时间
+            long sleep = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+            if (Objects.nonNull(result) && result < 0) {
+                sleep = Math.min(sleep, -result);
             }
-            log.info("do lock:{} retry", lockName);
+            subscribeUnlock();
+            if (!localLock.awaitUnlock(unlockVersion, Math.max(1, Math.min(sleep, remaining)))) {
+                return null;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            EmaxilMetrics.counter("emaxil.lock.retries").increment();
+            log.debug("do lock:{} retry", lockName);
         }
     }
 
@@ -51,17 +210,173 @@ public class RedisDistributedLock {
      * @return 是否解锁成功
      */
     public boolean unlock(String lockName, String lockValue) {
-        // 使用 Lua 脚本 保证获取 和 删除是一组原子操作
+        // 使用 Lua 脚本 保证获取 和 删除是一组原子操作, 删除成功后发布解锁消息
         Long result = stringRedisTemplate.execute(redisScript, Arrays.asList(lockName, lockValue));
-        log.info("un lock:{} finish:{}", lockName, result);
+        log.debug("un lock:{} finish:{}", lockName, result);
         return !Objects.isNull(result) && result == 1L;
     }
 
+    /**
+     * 解锁 并停止看门狗续期
+     * @param lock 获取的锁
+     * @return 是否解锁成功
+     */
+    public boolean unlock(Lock lock) {
+        ScheduledFuture<?> renewal = lock.renewal;
+        if (Objects.nonNull(renewal)) {
+            renewal.cancel(false);
+        }
+        return unlock(lock.getName(), lock.getValue());
+    }
+
+    /**
+     * 校验 fencingToken 是否仍是该锁最新一次加锁得到的, 用于持有者在执行有副作用的操作前确认没有被其它持有者取代
+     * @param lockName 锁名称
+     * @param fencingToken 加锁时得到的 fencing token
+     * @return 是否仍是最新的持有者
+     */
+    public boolean validateFencingToken(String lockName, long fencingToken) {
+        String current = stringRedisTemplate.opsForValue().get(getFencingTokenKey(lockName));
+        return Objects.nonNull(current) && Long.parseLong(current) == fencingToken;
+    }
+
     @Bean
     public DefaultRedisScript<Long> defaultRedisScript() {
         DefaultRedisScript<Long> defaultRedisScript = new DefaultRedisScript<>();
         defaultRedisScript.setResultType(Long.class);
-        defaultRedisScript.setScriptText("if redis.call('get', KEYS[1]) == KEYS[2] then return redis.call('del', KEYS[1]) else return 0 end");
+        defaultRedisScript.setScriptText("if redis.call('get', KEYS[1]) == KEYS[2] then " +
+                "redis.call('del', KEYS[1]) redis.call('publish', '" + UNLOCK_CHANNEL + "', KEYS[1]) return 1 " +
+                "else return 0 end");
         return defaultRedisScript;
     }
+
+    @PreDestroy
+    public void destroy() throws Exception {
+        watchdog.shutdownNow();
+        if (Objects.nonNull(unlockListenerContainer)) {
+            unlockListenerContainer.destroy();
+        }
+    }
+
+    private void renew(Lock lock, long lease) {
+        try {
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(lock.getName()), lock.getValue(), String.valueOf(lease));
+            if (Objects.isNull(result) || result == 0L) {
+                log.warn("renew lock:{} failed, lock is lost", lock.getName());
+                lock.renewal.cancel(false);
+            }
+        } catch (Exception e) {
+            log.error(StrUtil.format("renew lock:{} error", lock.getName()), e);
+        }
+    }
+
+    /**
+     * 首次需要等待时 才订阅解锁消息
+     */
+    private void subscribeUnlock() {
+        if (Objects.nonNull(unlockListenerContainer)) {
+            return;
+        }
+        synchronized (this) {
+            if (Objects.nonNull(unlockListenerContainer)) {
+                return;
+            }
+            RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+            container.setConnectionFactory(Objects.requireNonNull(stringRedisTemplate.getConnectionFactory()));
+            container.afterPropertiesSet();
+            container.start();
+            container.addMessageListener((Message message, byte[] pattern) -> {
+                LocalLock localLock = localLocks.get(new String(message.getBody(), StandardCharsets.UTF_8));
+                if (Objects.nonNull(localLock)) {
+                    localLock.signalUnlock();
+                }
+            }, new ChannelTopic(UNLOCK_CHANNEL));
+            unlockListenerContainer = container;
+        }
+    }
+
+    /**
+     * 获取该锁名称的本地锁 并增加引用计数, 使用后必须通过 releaseLocalLock 释放
+     */
+    private LocalLock retainLocalLock(String lockName) {
+        return localLocks.compute(lockName, (name, localLock) -> {
+            LocalLock retained = Objects.isNull(localLock) ? new LocalLock() : localLock;
+            retained.references++;
+            return retained;
+        });
+    }
+
+    /**
+     * 减少引用计数, 没有线程竞争该锁时 移除其本地锁
+     */
+    private void releaseLocalLock(String lockName) {
+        localLocks.computeIfPresent(lockName, (name, localLock) -> --localLock.references == 0 ? null : localLock);
+    }
+
+    /**
+     * @return 正在竞争的锁名称数量
+     */
+    public int getCompetingCount() {
+        return localLocks.size();
+    }
+
+    private String getFencingTokenKey(String lockName) {
+        return StrUtil.format("{}-fencing", lockName);
+    }
+
+    /**
+     * 一个锁名称的本地锁 及 该锁收到的解锁通知
+     */
+    private static final class LocalLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * 正在竞争该锁的线程数量, 只在 localLocks 的 compute 中修改
+         */
+        private int references = 0;
+        /**
+         * 解锁通知使用独立的 ReentrantLock 和 Condition 而不是 synchronized 和 wait, 等待时不会固定虚拟线程的载体线程
+         */
+        private final ReentrantLock signalLock = new ReentrantLock();
+        private final Condition unlocked = signalLock.newCondition();
+        private long unlockVersion = 0L;
+
+        long getUnlockVersion() {
+            signalLock.lock();
+            try {
+                return unlockVersion;
+            } finally {
+                signalLock.unlock();
+            }
+        }
+
+        void signalUnlock() {
+            signalLock.lock();
+            try {
+                unlockVersion++;
+                unlocked.signalAll();
+            } finally {
+                signalLock.unlock();
+            }
+        }
+
+        /**
+         * 等待解锁通知 或 超时
+         * @return 被中断时返回 false
+         */
+        boolean awaitUnlock(long unlockVersion, long timeoutMillis) {
+            signalLock.lock();
+            try {
+                if (this.unlockVersion != unlockVersion) {
+                    return true;
+                }
+                unlocked.await(timeoutMillis, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                signalLock.unlock();
+            }
+        }
+    }
 }
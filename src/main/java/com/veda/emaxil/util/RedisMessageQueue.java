@@ -1,48 +1,202 @@
 package com.veda.emaxil.util;
 
 import cn.hutool.core.collection.CollectionUtil;
+import cn.hutool.core.util.IdUtil;
 import cn.hutool.core.util.StrUtil;
 import com.alibaba.fastjson.JSON;
-import lombok.AllArgsConstructor;
+import com.alibaba.fastjson.annotation.JSONField;
 import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 基于 Redis 实现的 较可靠消息队列
  * 队列消息出队消费后 需要 进行 ACK, 否则超时将重新回原队列中
+ * 出队的消息记录在以 ACK 截止时间为分值的 ACK 有序集合中, 出队 ACK 和 超时重新入队 都由 Lua 脚本原子完成,
+ * 多个节点之间并发的 ACK 与 超时清理 不会互相干扰, 清理的代价只与已超时的消息数量有关
+ * 队列为空时 消费者阻塞在通知列表上, 推送消息 或 取出消息后队列仍有剩余时 会向通知列表放入一个令牌唤醒下一个消费者
+ * 旧版本使用 ack-{队列} 列表记录出队的消息, 该列表由 ackClean 按旧版本的规则继续清理, 升级时正在消费的消息不会丢失
  * @author Derick S.Jin 2019/12/30
  */
 @Slf4j
 @Component
-public class RedisMessageQueue {
+@ConditionalOnProperty(prefix = "emaxil.queue", name = "type", havingValue = "list", matchIfMissing = true)
+public class RedisMessageQueue implements MessageQueue {
+
+    /**
+     * 批量推送时 每条 LPUSH 命令携带的最大消息数量
+     */
+    private static final int PUSH_BATCH_SIZE = 1000;
+
+    /**
+     * 每次超时清理脚本最多重新入队的消息数量
+     */
+    private static final int CLEAN_BATCH_SIZE = 100;
+
+    /**
+     * getValue 每次阻塞等待的时长 毫秒
+     */
+    private static final long BLOCK_MILLIS = 60000L;
+
+    /**
+     * 按顺序 依次从每组 KEYS (原队列, ACK 有序集合, 通知列表) 的原队列尾部 共取出最多 ARGV[1] 个消息
+     * 以 Redis 时间 + ARGV[2] 毫秒为截止时间 放入对应的 ACK 有序集合, 原队列中仍有剩余消息时 向其通知列表放入令牌 唤醒其它等待的消费者
+     * 返回 {队列序号, 消息, 队列序号, 消息 ...}, 队列序号从 0 开始
+     */
+    static final DefaultRedisScript<List> POP_VALUES_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local deadline = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) + tonumber(ARGV[2]) " +
+            "local remaining = tonumber(ARGV[1]) " +
+            "local values = {} " +
+            "for k = 1, #KEYS, 3 do " +
+            "  if remaining <= 0 then break end " +
+            "  local popped = 0 " +
+            "  while popped < remaining do " +
+            "    local value = redis.call('RPOP', KEYS[k]) " +
+            "    if not value then break end " +
+            "    redis.call('ZADD', KEYS[k + 1], deadline, value) " +
+            "    table.insert(values, (k - 1) / 3) table.insert(values, value) " +
+            "    popped = popped + 1 " +
+            "  end " +
+            "  remaining = remaining - popped " +
+            "  if popped > 0 and redis.call('LLEN', KEYS[k]) > 0 then " +
+            "    redis.call('LPUSH', KEYS[k + 2], 1) redis.call('LTRIM', KEYS[k + 2], 0, 0) " +
+            "  end " +
+            "end " +
+            "return values", List.class);
+
+    /**
+     * 确认 ARGV 中的消息: 从 ACK 有序集合 KEYS[2] 中移除, 不存在时 可能已被重新放置回原队列 KEYS[1] 中 从原队列移除
+     * 返回确认成功的数量
+     */
+    static final DefaultRedisScript<Long> ACK_VALUES_SCRIPT = new DefaultRedisScript<>(
+            "local count = 0 " +
+            "for _, value in ipairs(ARGV) do " +
+            "  if redis.call('ZREM', KEYS[2], value) == 1 or redis.call('LREM', KEYS[1], 0, value) > 0 then count = count + 1 end " +
+            "end " +
+            "return count", Long.class);
+
+    /**
+     * 仍未 ACK 的消息 将截止时间延长为 Redis 时间 + ARGV[2] 毫秒, 返回是否延长成功
+     */
+    static final DefaultRedisScript<Long> EXTEND_VALUE_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local deadline = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) + tonumber(ARGV[2]) " +
+            "if redis.call('ZSCORE', KEYS[1], ARGV[1]) then redis.call('ZADD', KEYS[1], deadline, ARGV[1]) return 1 end " +
+            "return 0", Long.class);
+
+    /**
+     * 将 ACK 有序集合 KEYS[2] 中 截止时间早于 Redis 时间的 最多 ARGV[1] 个消息 放回原队列 KEYS[1] 的出队端
+     * 并向通知列表 KEYS[3] 放入令牌, 返回重新入队的数量
+     */
+    private static final DefaultRedisScript<Long> REQUEUE_VALUES_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local values = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', now, 'LIMIT', 0, tonumber(ARGV[1])) " +
+            "for _, value in ipairs(values) do " +
+            "  redis.call('ZREM', KEYS[2], value) " +
+            "  redis.call('RPUSH', KEYS[1], value) " +
+            "end " +
+            "if #values > 0 then redis.call('LPUSH', KEYS[3], 1) redis.call('LTRIM', KEYS[3], 0, 0) end " +
+            "return #values", Long.class);
+
+    /**
+     * 旧版本的 ACK 列表 KEYS[2] 中 入队时间早于 Redis 时间 - ARGV[1] 毫秒的消息 放回原队列 KEYS[1] 的出队端
+     * 并向通知列表 KEYS[3] 放入令牌, 未超时的消息 仍留在列表中 等待旧版本的消费者 ACK, 返回重新入队的数量
+     */
+    private static final DefaultRedisScript<Long> REQUEUE_LEGACY_VALUES_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('TYPE', KEYS[2]).ok ~= 'list' then return 0 end " +
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local expireAt = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) - tonumber(ARGV[1]) " +
+            "local count = 0 " +
+            "for _, value in ipairs(redis.call('LRANGE', KEYS[2], 0, -1)) do " +
+            "  local ok, message = pcall(cjson.decode, value) " +
+            "  if not ok or type(message) ~= 'table' or type(message.timestamp) ~= 'number' or message.timestamp < expireAt then " +
+            "    if redis.call('LREM', KEYS[2], 1, value) > 0 then redis.call('RPUSH', KEYS[1], value) count = count + 1 end " +
+            "  end " +
+            "end " +
+            "if count > 0 then redis.call('LPUSH', KEYS[3], 1) redis.call('LTRIM', KEYS[3], 0, 0) end " +
+            "return count", Long.class);
+
+    /**
+     * 以 Redis 时间 + ARGV[2] 毫秒为到期时间 将消息 ARGV[1] 放入延迟有序集合 KEYS[1]
+     */
+    static final DefaultRedisScript<Long> ADD_DELAYED_VALUE_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local dueAt = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) + tonumber(ARGV[2]) " +
+            "return redis.call('ZADD', KEYS[1], dueAt, ARGV[1])", Long.class);
+
+    /**
+     * 将延迟有序集合 KEYS[1] 中 到期时间早于 Redis 时间的 最多 ARGV[1] 个消息 推送到队列 KEYS[2] 的入队端
+     * 并向通知列表 KEYS[3] 放入令牌, 返回推送的数量
+     */
+    private static final DefaultRedisScript<Long> PUMP_DELAYED_VALUES_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local values = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', now, 'LIMIT', 0, tonumber(ARGV[1])) " +
+            "for _, value in ipairs(values) do " +
+            "  redis.call('ZREM', KEYS[1], value) " +
+            "  redis.call('LPUSH', KEYS[2], value) " +
+            "end " +
+            "if #values > 0 then redis.call('LPUSH', KEYS[3], 1) redis.call('LTRIM', KEYS[3], 0, 0) end " +
+            "return #values", Long.class);
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
     /**
-     * 这里加锁主要是 应对 处于超时临界点的即将超时数据的ACK清理 可能存在的并发问题
-     * 可能会发生 一个消费者在数据即将超时时刚好获取该数据 在进行处理, 还未进行ACK,
-     * 与此同时, 另一个异步清理超时未ACK的线程发现它超时了, 将其重新放回原队列, 这就可能导致重复消费的问题
-     * 这里使用读写锁只适用于单节点的项目, 如果是分布式的情况则应该改为 分布式读写锁
-     * 分布式读写锁我还没有基于Redis实现过, 有机会我再优化此处吧, 一般来说可以将超时时间
-     * 设置的比较长来规避这个问题, 或者对消息的处理进行防止重复处理的验证, 我这里因为是邮件发送
-     * 在发送前会更新邮件发送任务的状态, 因此此锁对业务的影响不大, 我也是出于多想才加上的
+     * 消息出队后 需要在该时间内 ACK 或 延长截止时间, 否则会被 ackClean 重新放回原队列
      */
-    private ReentrantReadWriteLock ackQueueReadWriteLock = new ReentrantReadWriteLock(true);
+    @Getter
+    @Value("${emaxil.queue.ack-timeout-millis:600000}")
+    private long ackTimeoutMillis = 600000L;
 
     @Data
-    @AllArgsConstructor
+    @NoArgsConstructor
     public static class QueueValue {
         private String value;
         private Long timestamp;
+        /**
+         * 消息的唯一标识, 使相同的值 在同一时间戳下 也能成为不同的消息, 旧版本的消息 没有该字段
+         */
+        private String uniqueId;
+        /**
+         * 消息在队列中的ID 由不以 JSON 整体标识消息的实现使用, 不参与序列化
+         */
+        @JSONField(serialize = false, deserialize = false)
+        private String id;
+        /**
+         * 消息出队时所在的队列名称, 从多个队列中获取时 用于 ACK 到对应的队列, 不参与序列化
+         */
+        @JSONField(serialize = false, deserialize = false)
+        private String queueName;
+
+        public QueueValue(String value, Long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.uniqueId = IdUtil.objectId();
+        }
     }
 
     /**
@@ -51,18 +205,49 @@ public class RedisMessageQueue {
      * @param value 字符串值
      * @return QueueValue
      */
+    @Override
     public QueueValue addValue(String queueName, String value) {
-        if (StrUtil.isBlank(queueName) || StrUtil.isBlank(value)) {
-            throw new IllegalArgumentException("queueName or value can not be blank");
+        return addValues(queueName, Collections.singletonList(value)).get(0);
+    }
+
+    /**
+     * 非阻塞的 将 多个值 批量推送到消息队列中
+     * 每 PUSH_BATCH_SIZE 个值合并为一条 LPUSH, 与通知令牌一起 通过管道一次发送
+     * @param queueName 队列名称
+     * @param values 字符串值
+     * @return 与 values 顺序对应的 QueueValue
+     */
+    @Override
+    public List<QueueValue> addValues(String queueName, List<String> values) {
+        if (StrUtil.isBlank(queueName) || CollectionUtil.isEmpty(values)) {
+            throw new IllegalArgumentException("queueName or values can not be blank");
         }
-        // 将值和时间戳一起构建成为消息 时间戳是为了清理 ACK 队列超时未确认的消息的
-        QueueValue queueValue = new QueueValue(value, System.currentTimeMillis());
-        // 序列号为 JSON 后将其推送到队列中
-        Long result = stringRedisTemplate.opsForList().leftPush(queueName, JSON.toJSONString(queueValue));
-        if (Objects.isNull(result) || result == 0) {
-            throw new IllegalStateException(StrUtil.format("queue:{} leftPush:{} failed", queueName, value));
+        // 将值 时间戳和唯一标识一起构建成为消息, 同一批次中相同的值 也是不同的消息 各自 ACK
+        long timestamp = System.currentTimeMillis();
+        List<QueueValue> queueValues = new ArrayList<>(values.size());
+        String[] jsonValues = new String[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            if (StrUtil.isBlank(values.get(i))) {
+                throw new IllegalArgumentException("value can not be blank");
+            }
+            QueueValue queueValue = new QueueValue(values.get(i), timestamp);
+            queueValues.add(queueValue);
+            jsonValues[i] = JSON.toJSONString(queueValue);
         }
-        return queueValue;
+        String notifyQueueName = getNotifyQueueName(queueName);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (int from = 0; from < jsonValues.length; from += PUSH_BATCH_SIZE) {
+                stringRedisConnection.lPush(queueName, Arrays.copyOfRange(jsonValues, from, Math.min(from + PUSH_BATCH_SIZE, jsonValues.length)));
+            }
+            stringRedisConnection.lPush(notifyQueueName, "1");
+            stringRedisConnection.lTrim(notifyQueueName, 0, 0);
+            return null;
+        });
+        if (results.stream().anyMatch(Objects::isNull)) {
+            throw new IllegalStateException(StrUtil.format("queue:{} leftPush:{} values failed", queueName, values.size()));
+        }
+        return queueValues;
     }
 
     /**
@@ -70,104 +255,269 @@ public class RedisMessageQueue {
      * @param queueName 队列名称
      * @return 出队的值 该对象用于 ACK 时使用
      */
+    @Override
     public QueueValue getValue(String queueName) {
-        if (StrUtil.isBlank(queueName)) {
-            throw new IllegalArgumentException("queueName can not be blank");
-        }
         // 无限制的 等待获取消息
         while (true) {
             // 每次等待 60s 如果没有则继续等待
-            String value = stringRedisTemplate.opsForList().rightPopAndLeftPush(queueName, getAckQueueName(queueName), 60, TimeUnit.SECONDS);
-            if (StrUtil.isNotBlank(value)) {
-                // 获取消息后将其 反序列化
-                return JSON.parseObject(value, QueueValue.class);
+            List<QueueValue> queueValues = getValues(queueName, 1, BLOCK_MILLIS);
+            if (!queueValues.isEmpty()) {
+                return queueValues.get(0);
             }
         }
     }
 
+    /**
+     * 批量获取队列弹出的值
+     * @param queueName 队列名称
+     * @param maxCount 最多获取的数量
+     * @param timeoutMillis 队列为空时的最长等待时间 毫秒, 不大于 0 时不等待
+     * @return 出队的值 超时返回空列表
+     */
+    @Override
+    public List<QueueValue> getValues(String queueName, int maxCount, long timeoutMillis) {
+        return getValues(Collections.singletonList(queueName), maxCount, timeoutMillis);
+    }
+
+    /**
+     * 按 queueNames 的顺序 依次从多个队列中批量获取弹出的值
+     * 通过 Lua 脚本原子的将最多 maxCount 个消息移动到各自的 ACK 有序集合, 所有队列都为空时 阻塞在它们的通知列表上等待新消息
+     * @param queueNames 队列名称 靠前的队列优先出队
+     * @param maxCount 最多获取的数量
+     * @param timeoutMillis 所有队列都为空时的最长等待时间 毫秒, 不大于 0 时不等待
+     * @return 出队的值 超时返回空列表
+     */
+    @Override
+    public List<QueueValue> getValues(List<String> queueNames, int maxCount, long timeoutMillis) {
+        if (CollectionUtil.isEmpty(queueNames) || queueNames.stream().anyMatch(StrUtil::isBlank)) {
+            throw new IllegalArgumentException("queueNames can not be blank");
+        }
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount must be positive");
+        }
+        List<String> keys = new ArrayList<>(queueNames.size() * 3);
+        String[] notifyQueueNames = new String[queueNames.size()];
+        for (int i = 0; i < queueNames.size(); i++) {
+            notifyQueueNames[i] = getNotifyQueueName(queueNames.get(i));
+            keys.add(queueNames.get(i));
+            keys.add(getAckQueueName(queueNames.get(i)));
+            keys.add(notifyQueueNames[i]);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            List<?> values = stringRedisTemplate.execute(POP_VALUES_SCRIPT, keys, String.valueOf(maxCount), String.valueOf(ackTimeoutMillis));
+            if (CollectionUtil.isNotEmpty(values)) {
+                List<QueueValue> queueValues = new ArrayList<>(values.size() / 2);
+                for (int i = 0; i + 1 < values.size(); i += 2) {
+                    // 获取消息后将其 反序列化
+                    QueueValue queueValue = JSON.parseObject(String.valueOf(values.get(i + 1)), QueueValue.class);
+                    queueValue.setQueueName(queueNames.get(((Number) values.get(i)).intValue()));
+                    queueValues.add(queueValue);
+                }
+                return queueValues;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return Collections.emptyList();
+            }
+            // 等待任一队列的通知令牌, 被唤醒后重新尝试取出消息 (可能已被其它消费者取走)
+            int timeoutSeconds = (int) Math.max(1L, (remaining + 999) / 1000);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    ((StringRedisConnection) connection).bLPop(timeoutSeconds, notifyQueueNames));
+        }
+    }
+
     /**
      * 用于在 getValue 后成功消费消息的 消费确认
-     * 确认后消息才会真正离队, 否则超时后会被后台线程重新放置回原队列再次等待消费
+     * 确认后消息才会真正离队, 否则超时后会被 ackClean 重新放置回原队列再次等待消费
      * @param queueName 队列名称
      * @param queueValue 队列值
      * @return 是否确认成功
      */
+    @Override
     public boolean ackValue(String queueName, QueueValue queueValue) {
+        return ackValues(queueName, Collections.singletonList(queueValue)) == 1;
+    }
+
+    /**
+     * 批量的 消费确认, 所有消息在一个 Lua 脚本中确认
+     * @param queueName 队列名称
+     * @param queueValues 队列值
+     * @return 确认成功的数量
+     */
+    @Override
+    public int ackValues(String queueName, List<QueueValue> queueValues) {
         if (StrUtil.isBlank(queueName)) {
             throw new IllegalArgumentException("queueName can not be blank");
         }
-        if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getValue()) || Objects.isNull(queueValue.getTimestamp())) {
-            throw new IllegalArgumentException("queueValue or fields can not be null");
-        }
-        String value = JSON.toJSONString(queueValue);
-        // 多线程执行该方法并不会互斥
-        ackQueueReadWriteLock.readLock().lock();
-        try {
-            // 将消息从 ACK 队列中移除
-            Long result = stringRedisTemplate.opsForList().remove(getAckQueueName(queueName), 0, value);
-            // ACK 队列中已经没有该元素 可能被重新放置回原队列中
-            if (Objects.nonNull(result) && result == 0) {
-                // 将消息从原队列中移除
-                result = stringRedisTemplate.opsForList().remove(queueName, 0, value);
-                if (Objects.nonNull(result) && result == 0) {
-                    // 如果原队列中也没有则返回 false 表示未 ACK 成功
-                    return false;
-                }
+        if (CollectionUtil.isEmpty(queueValues)) {
+            return 0;
+        }
+        Object[] values = new Object[queueValues.size()];
+        for (int i = 0; i < queueValues.size(); i++) {
+            QueueValue queueValue = queueValues.get(i);
+            if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getValue()) || Objects.isNull(queueValue.getTimestamp())) {
+                throw new IllegalArgumentException("queueValue or fields can not be null");
             }
-            // 其它情况下认为 ACK 成功
-            return true;
-        } finally {
-            ackQueueReadWriteLock.readLock().unlock();
+            values[i] = JSON.toJSONString(queueValue);
         }
+        Long result = stringRedisTemplate.execute(ACK_VALUES_SCRIPT, Arrays.asList(queueName, getAckQueueName(queueName)), values);
+        return Objects.isNull(result) ? 0 : result.intValue();
     }
 
     /**
-     * 对超时未进行 ACK 的消息进行清理, 将他们放回原消息队列中
-     * 该方法应被一个定时任务线程定期执行 确保 timeoutMills 足够的长 不会影响正常的 ACK 确认
+     * 延长消息的 ACK 截止时间 为当前时间 + ackTimeoutMillis, 用于消费耗时较长时 避免消息被重新入队
+     * @param queueName 队列名称
+     * @param queueValue 队列值
+     * @return 是否延长成功, 消息已被确认 或 已超时重新入队时 返回 false
+     */
+    @Override
+    public boolean extendValue(String queueName, QueueValue queueValue) {
+        if (StrUtil.isBlank(queueName) || Objects.isNull(queueValue)) {
+            throw new IllegalArgumentException("queueName or queueValue can not be null");
+        }
+        Long result = stringRedisTemplate.execute(EXTEND_VALUE_SCRIPT, Collections.singletonList(getAckQueueName(queueName)),
+                JSON.toJSONString(queueValue), String.valueOf(ackTimeoutMillis));
+        return Objects.nonNull(result) && result == 1L;
+    }
+
+    /**
+     * 对超过截止时间仍未进行 ACK 的消息进行清理, 将他们放回原消息队列的出队端 优先再次消费
+     * 该方法应被一个定时任务线程定期执行, 多个节点同时执行也是安全的
      * @param queueName 原队列名称
-     * @param timeoutMills 超时时间 毫秒
      */
-    public void ackClean(String queueName, long timeoutMills){
+    @Override
+    public void ackClean(String queueName){
         if (StrUtil.isBlank(queueName)) {
             throw new IllegalArgumentException("queueName can not be blank");
         }
-        // 获取 ACK 队列的所有数据 通常不会很多 约等于消费者数量
-        String ackQueueName = getAckQueueName(queueName);
-        // 在执行 ACK 清理时, 其它线程无法再进行 ACK 确认操作
-        // 同理 其它线程在进行确认时 无法进行清理 公平的 减少碰撞概率
-        ackQueueReadWriteLock.writeLock().lock();
-        try {
-            List<String> values = stringRedisTemplate.opsForList().range(ackQueueName, 0, -1);
-            // 如果 ACK 队列 无数据则跳过 表明没有 ACK 异常 也没有正在消费的消息
-            if (CollectionUtil.isEmpty(values)) {
-                return;
+        String notifyQueueName = getNotifyQueueName(queueName);
+        Long legacyCount = stringRedisTemplate.execute(REQUEUE_LEGACY_VALUES_SCRIPT,
+                Arrays.asList(queueName, getLegacyAckQueueName(queueName), notifyQueueName), String.valueOf(ackTimeoutMillis));
+        if (Objects.nonNull(legacyCount) && legacyCount > 0) {
+            log.info("queue:{} legacy ack clean requeue:{}", queueName, legacyCount);
+        }
+        List<String> keys = Arrays.asList(queueName, getAckQueueName(queueName), notifyQueueName);
+        long count = 0;
+        while (true) {
+            Long result = stringRedisTemplate.execute(REQUEUE_VALUES_SCRIPT, keys, String.valueOf(CLEAN_BATCH_SIZE));
+            if (Objects.isNull(result) || result == 0) {
+                break;
             }
-            long currentTimeMillis = System.currentTimeMillis();
-            // 开始事务
-            stringRedisTemplate.multi();
-            for (String value : values) {
-                QueueValue queueValue = JSON.parseObject(value, QueueValue.class);
-                // 属于超时未 ACK 的消息 需要重回原队列
-                if (currentTimeMillis - queueValue.getTimestamp() > timeoutMills) {
-                    // 从 ACK 队列中移除
-                    stringRedisTemplate.opsForList().remove(ackQueueName, 0, value);
-                    // 重新入原队列
-                    stringRedisTemplate.opsForList().leftPush(queueName, value);
-                }
+            count += result;
+            if (result < CLEAN_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (count > 0) {
+            log.info("queue:{} ack clean requeue:{}", queueName, count);
+        }
+    }
+
+    /**
+     * 将 值 放入延迟队列, 到期后由 pumpDelayedValues 推送到消息队列中
+     * @param queueName 队列名称
+     * @param value 字符串值
+     * @param delayMillis 延迟时间 毫秒
+     * @return QueueValue
+     */
+    @Override
+    public QueueValue addDelayedValue(String queueName, String value, long delayMillis) {
+        if (StrUtil.isBlank(queueName) || StrUtil.isBlank(value)) {
+            throw new IllegalArgumentException("queueName or value can not be blank");
+        }
+        QueueValue queueValue = new QueueValue(value, System.currentTimeMillis());
+        Long result = stringRedisTemplate.execute(ADD_DELAYED_VALUE_SCRIPT, Collections.singletonList(getDelayQueueName(queueName)),
+                JSON.toJSONString(queueValue), String.valueOf(Math.max(0L, delayMillis)));
+        if (Objects.isNull(result)) {
+            throw new IllegalStateException(StrUtil.format("queue:{} add delayed value:{} failed", queueName, value));
+        }
+        return queueValue;
+    }
+
+    /**
+     * 将延迟队列中 已到期的消息 推送到消息队列中, 该方法应被定时任务定期执行, 多个节点同时执行也是安全的
+     * @param queueName 队列名称
+     * @return 推送的消息数量
+     */
+    @Override
+    public int pumpDelayedValues(String queueName) {
+        if (StrUtil.isBlank(queueName)) {
+            throw new IllegalArgumentException("queueName can not be blank");
+        }
+        List<String> keys = Arrays.asList(getDelayQueueName(queueName), queueName, getNotifyQueueName(queueName));
+        int count = 0;
+        while (true) {
+            Long result = stringRedisTemplate.execute(PUMP_DELAYED_VALUES_SCRIPT, keys, String.valueOf(CLEAN_BATCH_SIZE));
+            if (Objects.isNull(result) || result == 0) {
+                break;
+            }
+            count += result;
+            if (result < CLEAN_BATCH_SIZE) {
+                break;
             }
-            // 提交事务
-            log.info("queue:{} ack clean exec result:{}", queueName, stringRedisTemplate.exec());
-        } finally {
-            ackQueueReadWriteLock.writeLock().unlock();
         }
+        if (count > 0) {
+            log.debug("queue:{} pump delayed values:{}", queueName, count);
+        }
+        return count;
     }
 
     /**
-     * 根据原队列名称 获取 ACK 队列名称
+     * 获取队列中等待消费的消息数量
+     * @param queueName 队列名称
+     * @return 消息数量
+     */
+    @Override
+    public long size(String queueName) {
+        Long size = stringRedisTemplate.opsForList().size(queueName);
+        return Objects.isNull(size) ? 0L : size;
+    }
+
+    /**
+     * 获取 ACK 有序集合中 已出队 尚未确认的消息数量
+     * @param queueName 队列名称
+     * @return 消息数量
+     */
+    @Override
+    public long ackSize(String queueName) {
+        Long size = stringRedisTemplate.opsForZSet().zCard(getAckQueueName(queueName));
+        return Objects.isNull(size) ? 0L : size;
+    }
+
+    /**
+     * 根据原队列名称 获取 ACK 有序集合名称
+     * @param queueName 原队列名称
+     * @return ACK 有序集合名称
+     */
+    static String getAckQueueName(String queueName){
+        return StrUtil.format("ack-z-{}", queueName);
+    }
+
+    /**
+     * 根据原队列名称 获取 旧版本的 ACK 列表名称
      * @param queueName 原队列名称
-     * @return 超时队列名称
+     * @return ACK 列表名称
      */
-    private String getAckQueueName(String queueName){
+    static String getLegacyAckQueueName(String queueName){
         return StrUtil.format("ack-{}", queueName);
     }
+
+    /**
+     * 根据原队列名称 获取 通知列表名称
+     * @param queueName 原队列名称
+     * @return 通知列表名称
+     */
+    static String getNotifyQueueName(String queueName){
+        return StrUtil.format("notify-{}", queueName);
+    }
+
+    /**
+     * 根据原队列名称 获取 延迟有序集合名称
+     * @param queueName 原队列名称
+     * @return 延迟有序集合名称
+     */
+    static String getDelayQueueName(String queueName){
+        return StrUtil.format("delay-{}", queueName);
+    }
 }
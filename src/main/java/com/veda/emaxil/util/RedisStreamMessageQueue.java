@@ -0,0 +1,507 @@
+package com.veda.emaxil.util;
+
+import cn.hutool.core.collection.CollectionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson.JSON;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于 Redis Stream 消费组 实现的 较可靠消息队列
+ * 消息出队时由 XREADGROUP 记入当前节点消费者的待确认列表, ACK 时 XACK 并 XDEL, 与队列积压的长度无关
+ * 超时未 ACK 的消息由 ackClean 通过 XAUTOCLAIM 取回 并重新追加到队列尾部, 需要 Redis 6.2 及以上版本
+ * 消费者名称在重启后保持不变, 节点关闭时 没有待确认消息的消费者 会从消费组中删除, 避免消费组中残留无用的消费者
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "emaxil.queue", name = "type", havingValue = "stream")
+public class RedisStreamMessageQueue implements MessageQueue {
+
+    /**
+     * 所有节点共用的消费组名称
+     */
+    private static final String GROUP_NAME = "emaxil";
+
+    private static final String VALUE_FIELD = "value";
+    private static final String TIMESTAMP_FIELD = "timestamp";
+
+    /**
+     * 每次阻塞等待消息的时长
+     */
+    private static final Duration BLOCK_DURATION = Duration.ofSeconds(10);
+
+    /**
+     * 每次 ackClean 脚本最多取回的消息数量
+     */
+    private static final int CLEAN_BATCH_SIZE = 100;
+
+    /**
+     * 创建消费组 消费组已存在时忽略
+     */
+    private static final DefaultRedisScript<Long> CREATE_GROUP_SCRIPT = new DefaultRedisScript<>(
+            "local ok = pcall(redis.call, 'XGROUP', 'CREATE', KEYS[1], ARGV[1], '0', 'MKSTREAM') " +
+            "if ok then return 1 end return 0", Long.class);
+
+    /**
+     * 确认并删除消息 ARGV[1] 消费组名称, ARGV[2..] 消息ID, 返回确认成功的数量
+     */
+    private static final DefaultRedisScript<Long> ACK_SCRIPT = new DefaultRedisScript<>(
+            "local result = redis.call('XACK', KEYS[1], unpack(ARGV)) " +
+            "redis.call('XDEL', KEYS[1], unpack(ARGV, 2)) " +
+            "return result", Long.class);
+
+    /**
+     * 取回空闲超过 ARGV[3] 毫秒的待确认消息, 重新追加到队列尾部后 确认并删除原消息
+     * 返回 {下次扫描的游标, 重新入队的数量}
+     */
+    private static final DefaultRedisScript<List> CLEAN_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local result = redis.call('XAUTOCLAIM', KEYS[1], ARGV[1], ARGV[2], ARGV[3], ARGV[4], 'COUNT', ARGV[5]) " +
+            "local count = 0 " +
+            "for _, entry in ipairs(result[2]) do " +
+            "  if entry[2] then redis.call('XADD', KEYS[1], '*', unpack(entry[2])) count = count + 1 end " +
+            "  redis.call('XACK', KEYS[1], ARGV[1], entry[1]) " +
+            "  redis.call('XDEL', KEYS[1], entry[1]) " +
+            "end " +
+            "return {result[1], count}", List.class);
+
+    /**
+     * 将仍待确认的消息 ARGV[3] 转移给当前消费者 并重置其空闲时间, 返回是否成功
+     */
+    private static final DefaultRedisScript<Long> EXTEND_SCRIPT = new DefaultRedisScript<>(
+            "return #redis.call('XCLAIM', KEYS[1], ARGV[1], ARGV[2], 0, ARGV[3], 'JUSTID')", Long.class);
+
+    /**
+     * 消息确认时会被删除, 因此 队列长度 减去 待确认数量 即为尚未被消费组读取的消息数量
+     */
+    private static final DefaultRedisScript<Long> SIZE_SCRIPT = new DefaultRedisScript<>(
+            "local size = redis.call('XLEN', KEYS[1]) - redis.call('XPENDING', KEYS[1], ARGV[1])[1] " +
+            "if size < 0 then return 0 end return size", Long.class);
+
+    /**
+     * 消费者 ARGV[2] 没有待确认的消息时 将其从消费组 ARGV[1] 中删除, 返回 1 表示已删除
+     * 仍有待确认消息的消费者 保留到其消息被 ackClean 取回, 避免这些消息从待确认列表中丢失
+     */
+    private static final DefaultRedisScript<Long> DELETE_CONSUMER_SCRIPT = new DefaultRedisScript<>(
+            "if #redis.call('XPENDING', KEYS[1], ARGV[1], '-', '+', 1, ARGV[2]) > 0 then return 0 end " +
+            "redis.call('XGROUP', 'DELCONSUMER', KEYS[1], ARGV[1], ARGV[2]) " +
+            "return 1", Long.class);
+
+    /**
+     * 展开 XPENDING 的概要信息 返回 {消费者名称, 待确认数量, ...}
+     */
+    private static final DefaultRedisScript<List> PENDING_SCRIPT = new DefaultRedisScript<>(
+            "local result = redis.call('XPENDING', KEYS[1], ARGV[1]) " +
+            "local pending = {} " +
+            "if result[4] then " +
+            "  for _, consumer in ipairs(result[4]) do " +
+            "    table.insert(pending, consumer[1]) table.insert(pending, consumer[2]) " +
+            "  end " +
+            "end " +
+            "return pending", List.class);
+
+    /**
+     * 以 Redis 时间 + ARGV[2] 毫秒为到期时间 将消息 ARGV[1] 放入延迟有序集合 KEYS[1]
+     */
+    private static final DefaultRedisScript<Long> ADD_DELAYED_VALUE_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local dueAt = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) + tonumber(ARGV[2]) " +
+            "return redis.call('ZADD', KEYS[1], dueAt, ARGV[1])", Long.class);
+
+    /**
+     * 将延迟有序集合 KEYS[1] 中 到期时间早于 Redis 时间的 最多 ARGV[1] 个消息 追加到队列 KEYS[2], 返回追加的数量
+     */
+    private static final DefaultRedisScript<Long> PUMP_DELAYED_VALUES_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local values = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', now, 'LIMIT', 0, tonumber(ARGV[1])) " +
+            "for _, value in ipairs(values) do " +
+            "  local queueValue = cjson.decode(value) " +
+            "  redis.call('ZREM', KEYS[1], value) " +
+            "  redis.call('XADD', KEYS[2], '*', '" + VALUE_FIELD + "', queueValue.value, '" + TIMESTAMP_FIELD + "', string.format('%d', queueValue.timestamp)) " +
+            "end " +
+            "return #values", Long.class);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 待确认消息空闲超过该时间 会被 ackClean 重新追加到队列尾部
+     */
+    @Getter
+    @Value("${emaxil.queue.ack-timeout-millis:600000}")
+    private long ackTimeoutMillis = 600000L;
+
+    /**
+     * 当前节点在消费组中的消费者名称, 每个消费者拥有独立的待确认列表
+     * 同一主机上运行多个节点时 需要为每个节点配置不同的名称, 未配置时使用本机地址
+     */
+    @Value("${emaxil.queue.consumer-name:}")
+    private String consumerName;
+
+    /**
+     * 已确认创建消费组的队列
+     */
+    private final Set<String> groupCreatedQueues = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public RedisMessageQueue.QueueValue addValue(String queueName, String value) {
+        if (StrUtil.isBlank(queueName) || StrUtil.isBlank(value)) {
+            throw new IllegalArgumentException("queueName or value can not be blank");
+        }
+        RedisMessageQueue.QueueValue queueValue = new RedisMessageQueue.QueueValue(value, System.currentTimeMillis());
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put(VALUE_FIELD, value);
+        fields.put(TIMESTAMP_FIELD, String.valueOf(queueValue.getTimestamp()));
+        RecordId recordId = stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(queueName).ofMap(fields));
+        if (Objects.isNull(recordId)) {
+            throw new IllegalStateException(StrUtil.format("queue:{} xadd:{} failed", queueName, value));
+        }
+        queueValue.setId(recordId.getValue());
+        return queueValue;
+    }
+
+    /**
+     * 通过管道 批量 XADD
+     * @param queueName 队列名称
+     * @param values 字符串值
+     * @return 与 values 顺序对应的 QueueValue
+     */
+    @Override
+    public List<RedisMessageQueue.QueueValue> addValues(String queueName, List<String> values) {
+        if (StrUtil.isBlank(queueName) || CollectionUtil.isEmpty(values)) {
+            throw new IllegalArgumentException("queueName or values can not be blank");
+        }
+        long timestamp = System.currentTimeMillis();
+        List<RedisMessageQueue.QueueValue> queueValues = new ArrayList<>(values.size());
+        for (String value : values) {
+            if (StrUtil.isBlank(value)) {
+                throw new IllegalArgumentException("value can not be blank");
+            }
+            queueValues.add(new RedisMessageQueue.QueueValue(value, timestamp));
+        }
+        List<Object> recordIds = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (RedisMessageQueue.QueueValue queueValue : queueValues) {
+                Map<String, String> fields = new HashMap<>(4);
+                fields.put(VALUE_FIELD, queueValue.getValue());
+                fields.put(TIMESTAMP_FIELD, String.valueOf(timestamp));
+                stringRedisConnection.xAdd(StreamRecords.newRecord().in(queueName).ofStrings(fields));
+            }
+            return null;
+        });
+        for (int i = 0; i < queueValues.size(); i++) {
+            Object recordId = recordIds.get(i);
+            if (Objects.isNull(recordId)) {
+                throw new IllegalStateException(StrUtil.format("queue:{} xadd:{} failed", queueName, values.get(i)));
+            }
+            queueValues.get(i).setId(recordId instanceof RecordId ? ((RecordId) recordId).getValue() : String.valueOf(recordId));
+        }
+        return queueValues;
+    }
+
+    @Override
+    public RedisMessageQueue.QueueValue getValue(String queueName) {
+        if (StrUtil.isBlank(queueName)) {
+            throw new IllegalArgumentException("queueName can not be blank");
+        }
+        createGroupIfAbsent(queueName);
+        // 无限制的 等待获取消息
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(GROUP_NAME, getConsumerName()),
+                    StreamReadOptions.empty().count(1).block(BLOCK_DURATION),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed()));
+            if (CollectionUtil.isNotEmpty(records)) {
+                return toQueueValue(records.get(0));
+            }
+        }
+    }
+
+    @Override
+    public List<RedisMessageQueue.QueueValue> getValues(String queueName, int maxCount, long timeoutMillis) {
+        return getValues(Collections.singletonList(queueName), maxCount, timeoutMillis);
+    }
+
+    /**
+     * 先按顺序 非阻塞的依次从各队列读取, 直到取满 maxCount 个
+     * 所有队列都为空时 对所有队列进行一次阻塞读取, 此时每个队列最多返回一个消息
+     * @param queueNames 队列名称 靠前的队列优先出队
+     * @param maxCount 最多获取的数量
+     * @param timeoutMillis 所有队列都为空时的最长等待时间 毫秒
+     * @return 出队的值 超时返回空列表
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<RedisMessageQueue.QueueValue> getValues(List<String> queueNames, int maxCount, long timeoutMillis) {
+        if (CollectionUtil.isEmpty(queueNames) || queueNames.stream().anyMatch(StrUtil::isBlank)) {
+            throw new IllegalArgumentException("queueNames can not be blank");
+        }
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount must be positive");
+        }
+        List<RedisMessageQueue.QueueValue> queueValues = new ArrayList<>();
+        for (String queueName : queueNames) {
+            createGroupIfAbsent(queueName);
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(GROUP_NAME, getConsumerName()), StreamReadOptions.empty().count(maxCount - queueValues.size()),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed()));
+            if (CollectionUtil.isNotEmpty(records)) {
+                for (MapRecord<String, Object, Object> record : records) {
+                    queueValues.add(toQueueValue(record));
+                }
+            }
+            if (queueValues.size() >= maxCount) {
+                break;
+            }
+        }
+        if (!queueValues.isEmpty() || timeoutMillis <= 0) {
+            return queueValues;
+        }
+        StreamOffset<String>[] streamOffsets = new StreamOffset[queueNames.size()];
+        for (int i = 0; i < queueNames.size(); i++) {
+            streamOffsets[i] = StreamOffset.create(queueNames.get(i), ReadOffset.lastConsumed());
+        }
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                Consumer.from(GROUP_NAME, getConsumerName()), StreamReadOptions.empty().count(1).block(Duration.ofMillis(timeoutMillis)), streamOffsets);
+        if (CollectionUtil.isNotEmpty(records)) {
+            for (MapRecord<String, Object, Object> record : records) {
+                queueValues.add(toQueueValue(record));
+            }
+        }
+        return queueValues;
+    }
+
+    @Override
+    public boolean ackValue(String queueName, RedisMessageQueue.QueueValue queueValue) {
+        if (StrUtil.isBlank(queueName)) {
+            throw new IllegalArgumentException("queueName can not be blank");
+        }
+        if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getId())) {
+            throw new IllegalArgumentException("queueValue or id can not be null");
+        }
+        Long result = stringRedisTemplate.execute(ACK_SCRIPT, Collections.singletonList(queueName), GROUP_NAME, queueValue.getId());
+        return Objects.nonNull(result) && result == 1L;
+    }
+
+    @Override
+    public int ackValues(String queueName, List<RedisMessageQueue.QueueValue> queueValues) {
+        if (StrUtil.isBlank(queueName)) {
+            throw new IllegalArgumentException("queueName can not be blank");
+        }
+        if (CollectionUtil.isEmpty(queueValues)) {
+            return 0;
+        }
+        Object[] args = new Object[queueValues.size() + 1];
+        args[0] = GROUP_NAME;
+        for (int i = 0; i < queueValues.size(); i++) {
+            RedisMessageQueue.QueueValue queueValue = queueValues.get(i);
+            if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getId())) {
+                throw new IllegalArgumentException("queueValue or id can not be null");
+            }
+            args[i + 1] = queueValue.getId();
+        }
+        Long result = stringRedisTemplate.execute(ACK_SCRIPT, Collections.singletonList(queueName), args);
+        return Objects.isNull(result) ? 0 : result.intValue();
+    }
+
+    /**
+     * 重置待确认消息的空闲时间, 消息同时转移到当前消费者的待确认列表
+     * @param queueName 队列名称
+     * @param queueValue 队列值
+     * @return 是否延长成功
+     */
+    @Override
+    public boolean extendValue(String queueName, RedisMessageQueue.QueueValue queueValue) {
+        if (StrUtil.isBlank(queueName)) {
+            throw new IllegalArgumentException("queueName can not be blank");
+        }
+        if (Objects.isNull(queueValue) || StrUtil.isBlank(queueValue.getId())) {
+            throw new IllegalArgumentException("queueValue or id can not be null");
+        }
+        Long result = stringRedisTemplate.execute(EXTEND_SCRIPT, Collections.singletonList(queueName),
+                GROUP_NAME, getConsumerName(), queueValue.getId());
+        return Objects.nonNull(result) && result == 1L;
+    }
+
+    /**
+     * 将所有消费者中 空闲超过 ackTimeoutMillis 的待确认消息 重新追加到队列尾部
+     * @param queueName 原队列名称
+     */
+    @Override
+    public void ackClean(String queueName) {
+        if (StrUtil.isBlank(queueName)) {
+            throw new IllegalArgumentException("queueName can not be blank");
+        }
+        createGroupIfAbsent(queueName);
+        String cursor = "0-0";
+        long count = 0;
+        do {
+            List<?> result = stringRedisTemplate.execute(CLEAN_SCRIPT, Collections.singletonList(queueName),
+                    GROUP_NAME, getConsumerName(), String.valueOf(ackTimeoutMillis), cursor, String.valueOf(CLEAN_BATCH_SIZE));
+            if (CollectionUtil.isEmpty(result)) {
+                break;
+            }
+            cursor = String.valueOf(result.get(0));
+            count += ((Number) result.get(1)).longValue();
+        } while (!"0-0".equals(cursor));
+        if (count > 0) {
+            log.info("queue:{} ack clean requeue:{}", queueName, count);
+        }
+    }
+
+    /**
+     * 将 值 放入延迟队列, 到期后由 pumpDelayedValues 追加到队列尾部
+     * @param queueName 队列名称
+     * @param value 字符串值
+     * @param delayMillis 延迟时间 毫秒
+     * @return QueueValue
+     */
+    @Override
+    public RedisMessageQueue.QueueValue addDelayedValue(String queueName, String value, long delayMillis) {
+        if (StrUtil.isBlank(queueName) || StrUtil.isBlank(value)) {
+            throw new IllegalArgumentException("queueName or value can not be blank");
+        }
+        RedisMessageQueue.QueueValue queueValue = new RedisMessageQueue.QueueValue(value, System.currentTimeMillis());
+        Long result = stringRedisTemplate.execute(ADD_DELAYED_VALUE_SCRIPT, Collections.singletonList(getDelayQueueName(queueName)),
+                JSON.toJSONString(queueValue), String.valueOf(Math.max(0L, delayMillis)));
+        if (Objects.isNull(result)) {
+            throw new IllegalStateException(StrUtil.format("queue:{} add delayed value:{} failed", queueName, value));
+        }
+        return queueValue;
+    }
+
+    /**
+     * 将延迟队列中 已到期的消息 推送到消息队列中, 该方法应被定时任务定期执行, 多个节点同时执行也是安全的
+     * @param queueName 队列名称
+     * @return 推送的消息数量
+     */
+    @Override
+    public int pumpDelayedValues(String queueName) {
+        if (StrUtil.isBlank(queueName)) {
+            throw new IllegalArgumentException("queueName can not be blank");
+        }
+        List<String> keys = Arrays.asList(getDelayQueueName(queueName), queueName);
+        int count = 0;
+        while (true) {
+            Long result = stringRedisTemplate.execute(PUMP_DELAYED_VALUES_SCRIPT, keys, String.valueOf(CLEAN_BATCH_SIZE));
+            if (Objects.isNull(result) || result == 0) {
+                break;
+            }
+            count += result;
+            if (result < CLEAN_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (count > 0) {
+            log.debug("queue:{} pump delayed values:{}", queueName, count);
+        }
+        return count;
+    }
+
+    /**
+     * 获取队列中尚未被消费组读取的消息数量
+     * @param queueName 队列名称
+     * @return 消息数量
+     */
+    @Override
+    public long size(String queueName) {
+        createGroupIfAbsent(queueName);
+        Long size = stringRedisTemplate.execute(SIZE_SCRIPT, Collections.singletonList(queueName), GROUP_NAME);
+        return Objects.isNull(size) ? 0L : size;
+    }
+
+    /**
+     * 获取消费组中 所有消费者的待确认消息数量之和
+     * @param queueName 队列名称
+     * @return 消息数量
+     */
+    @Override
+    public long ackSize(String queueName) {
+        return getPendingCounts(queueName).values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * 获取每个消费者的待确认消息数量 供运维查看
+     * @param queueName 队列名称
+     * @return 消费者名称 与 待确认数量
+     */
+    public Map<String, Long> getPendingCounts(String queueName) {
+        createGroupIfAbsent(queueName);
+        List<?> result = stringRedisTemplate.execute(PENDING_SCRIPT, Collections.singletonList(queueName), GROUP_NAME);
+        Map<String, Long> pendingCounts = new LinkedHashMap<>();
+        if (Objects.nonNull(result)) {
+            for (int i = 0; i + 1 < result.size(); i += 2) {
+                pendingCounts.put(String.valueOf(result.get(i)), Long.valueOf(String.valueOf(result.get(i + 1))));
+            }
+        }
+        return pendingCounts;
+    }
+
+    public String getConsumerName() {
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = NetUtil.getLocalhostStr();
+        }
+        return consumerName;
+    }
+
+    /**
+     * 节点关闭时 从使用过的队列的消费组中 删除没有待确认消息的当前消费者
+     */
+    @PreDestroy
+    public void deleteConsumer() {
+        for (String queueName : groupCreatedQueues) {
+            try {
+                Long result = stringRedisTemplate.execute(DELETE_CONSUMER_SCRIPT, Collections.singletonList(queueName), GROUP_NAME, getConsumerName());
+                log.info("queue:{} delete consumer:{} result:{}", queueName, getConsumerName(), result);
+            } catch (Exception e) {
+                log.error(StrUtil.format("queue:{} delete consumer:{} failed", queueName, getConsumerName()), e);
+            }
+        }
+    }
+
+    private void createGroupIfAbsent(String queueName) {
+        if (groupCreatedQueues.contains(queueName)) {
+            return;
+        }
+        Long result = stringRedisTemplate.execute(CREATE_GROUP_SCRIPT, Collections.singletonList(queueName), GROUP_NAME);
+        log.info("queue:{} create group:{} result:{}", queueName, GROUP_NAME, result);
+        groupCreatedQueues.add(queueName);
+    }
+
+    private RedisMessageQueue.QueueValue toQueueValue(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> fields = record.getValue();
+        Object timestamp = fields.get(TIMESTAMP_FIELD);
+        RedisMessageQueue.QueueValue queueValue = new RedisMessageQueue.QueueValue(String.valueOf(fields.get(VALUE_FIELD)),
+                Objects.isNull(timestamp) ? record.getId().getTimestamp() : Long.valueOf(String.valueOf(timestamp)));
+        queueValue.setId(record.getId().getValue());
+        queueValue.setQueueName(record.getStream());
+        return queueValue;
+    }
+
+    /**
+     * 根据原队列名称 获取 延迟有序集合名称
+     * @param queueName 原队列名称
+     * @return 延迟有序集合名称
+     */
+    private String getDelayQueueName(String queueName){
+        return StrUtil.format("delay-{}", queueName);
+    }
+}
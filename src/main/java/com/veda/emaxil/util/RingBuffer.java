@@ -0,0 +1,267 @@
+package com.veda.emaxil.util;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 有界 多生产者 多消费者 的环形缓冲区
+ * 容量为 2 的幂 且至少为 2, 槽位在创建时预先分配, 每个槽位有一个序号: 等于写入位置时可写, 等于写入位置 + 1 时可读
+ * 生产者和消费者都只通过 CAS 推进各自的位置, 不使用锁; 消费者可以一次 CAS 取走连续的多个元素
+ * 缓冲区满 或 空时 按 WaitStrategy 等待
+ * @param <T> 元素
+ */
+public class RingBuffer<T> {
+
+    /**
+     * 缓冲区满 或 空时的等待策略, 越靠前 延迟越低 但占用的 CPU 越多
+     */
+    public enum WaitStrategy {
+        /**
+         * 一直自旋
+         */
+        BUSY_SPIN,
+        /**
+         * 自旋一段时间后 让出 CPU
+         */
+        YIELDING,
+        /**
+         * 自旋 让出 CPU 后 每次挂起 SLEEP_NANOS
+         */
+        SLEEPING,
+        /**
+         * 自旋一段时间后 挂起直到被唤醒, 生产和消费时需要检查是否有等待的线程
+         */
+        BLOCKING,
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * BLOCKING 策略下 单次挂起的最长时间, 防止唤醒信号丢失时 线程长时间挂起
+     */
+    private static final long MAX_BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+
+    /**
+     * 下一个写入 和 读取的位置
+     */
+    private final AtomicLong tail = new AtomicLong(0L);
+    private final AtomicLong head = new AtomicLong(0L);
+
+    private final WaitStrategy waitStrategy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger(0);
+
+    /**
+     * @param capacity 容量 向上取整为 2 的幂
+     * @param waitStrategy 等待策略
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        if (Objects.isNull(waitStrategy)) {
+            throw new IllegalArgumentException("waitStrategy can not be null");
+        }
+        // 只有一个槽位时 可读与下一轮可写的序号相同, 因此至少需要 2 个槽位
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 放入元素 缓冲区满时立即返回
+     * @param element 元素
+     * @return 是否放入成功
+     */
+    public boolean offer(T element) {
+        if (Objects.isNull(element)) {
+            throw new IllegalArgumentException("element can not be null");
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.lazySet(index, position + 1);
+                    signal(notEmpty);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // 该槽位上一轮的元素还未被取走 缓冲区已满
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * 放入元素 缓冲区满时按等待策略等待, 用于对生产者施加背压
+     * @param element 元素
+     * @param timeoutMillis 最长等待时间 毫秒
+     * @return 是否放入成功, 超时或被中断时返回 false
+     */
+    public boolean offer(T element, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeoutMillis));
+        for (int attempt = 0; ; attempt++) {
+            if (offer(element)) {
+                return true;
+            }
+            if (!await(attempt, deadline, notFull, () -> size() < capacity())) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 取出最多 maxCount 个连续的元素 缓冲区空时立即返回
+     * @param collection 取出的元素放入该集合
+     * @param maxCount 最多取出的数量
+     * @return 取出的数量
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> collection, int maxCount) {
+        long position = head.get();
+        while (true) {
+            int count = 0;
+            while (count < maxCount && sequences.get((int) (position + count) & mask) == position + count + 1) {
+                count++;
+            }
+            if (count == 0) {
+                long current = head.get();
+                if (current == position) {
+                    return 0;
+                }
+                // 被其它消费者取走 重新读取
+                position = current;
+                continue;
+            }
+            if (head.compareAndSet(position, position + count)) {
+                for (int i = 0; i < count; i++) {
+                    int index = (int) (position + i) & mask;
+                    collection.add((T) elements[index]);
+                    elements[index] = null;
+                    sequences.lazySet(index, position + i + mask + 1);
+                }
+                signal(notFull);
+                return count;
+            }
+            position = head.get();
+        }
+    }
+
+    /**
+     * 取出最多 maxCount 个连续的元素 缓冲区空时按等待策略等待
+     * @param collection 取出的元素放入该集合
+     * @param maxCount 最多取出的数量
+     * @param timeoutMillis 最长等待时间 毫秒
+     * @return 取出的数量, 超时或被中断时返回 0
+     */
+    public int drainTo(Collection<? super T> collection, int maxCount, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeoutMillis));
+        for (int attempt = 0; ; attempt++) {
+            int count = drainTo(collection, maxCount);
+            if (count > 0) {
+                return count;
+            }
+            if (!await(attempt, deadline, notEmpty, () -> size() > 0)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return 缓冲区中的元素数量 并发修改时为近似值
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0L, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * 按等待策略等待一次
+     * @param attempt 已等待的次数
+     * @param deadline 截止时间 System.nanoTime
+     * @param condition BLOCKING 策略下 挂起等待的条件
+     * @param isReady BLOCKING 策略下 挂起前再次检查 避免错过挂起前的唤醒
+     * @return 是否可以继续尝试, 超时或被中断时返回 false
+     */
+    private boolean await(int attempt, long deadline, Condition condition, BooleanSupplier isReady) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || attempt < SPIN_TRIES) {
+            return true;
+        }
+        if (waitStrategy == WaitStrategy.YIELDING || attempt < YIELD_TRIES) {
+            Thread.yield();
+            return true;
+        }
+        if (waitStrategy == WaitStrategy.SLEEPING) {
+            LockSupport.parkNanos(this, Math.min(remaining, SLEEP_NANOS));
+            return true;
+        }
+        lock.lock();
+        try {
+            waiters.incrementAndGet();
+            if (!isReady.getAsBoolean()) {
+                condition.awaitNanos(Math.min(remaining, MAX_BLOCK_NANOS));
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 有挂起等待的线程时 唤醒它们
+     */
+    private void signal(Condition condition) {
+        if (waiters.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
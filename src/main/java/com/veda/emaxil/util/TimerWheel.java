@@ -0,0 +1,106 @@
+package com.veda.emaxil.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 哈希时间轮, 按到期时间所在的刻度 把元素放入 2 的幂个槽位中, 添加 和 到期都是 O(1)
+ * 任意线程都可以 schedule, 元素先放入一个并发队列, 由 advance 的线程转移到槽位中, 因此槽位不需要同步
+ * advance 必须由同一个线程 周期性调用, 每次返回所有 到期刻度不晚于当前刻度 的元素
+ * 到期时间超过一圈的元素 留在槽位中 直到其所在的那一圈
+ * @param <T> 元素
+ */
+public class TimerWheel<T> {
+
+    private final long tickMillis;
+    private final int mask;
+    private final List<Timeout<T>>[] buckets;
+
+    private final ConcurrentLinkedQueue<Timeout<T>> pendings = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 已处理到的刻度, 仅由 advance 的线程访问
+     */
+    private long lastTick = -1L;
+
+    /**
+     * @param tickMillis 刻度 毫秒, 元素最多比到期时间晚一个刻度返回
+     * @param wheelSize 槽位数量, 向上取整为 2 的幂
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.buckets = new List[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * 添加一个在 dueAt 到期的元素, 同一元素可以被添加多次 每次都会返回
+     * @param element 元素
+     * @param dueAt 到期时间戳 毫秒
+     */
+    public void schedule(T element, long dueAt) {
+        // 向上取整 元素不会早于到期时间返回
+        pendings.offer(new Timeout<>(element, (dueAt + tickMillis - 1) / tickMillis));
+    }
+
+    /**
+     * 推进到 now 所在的刻度
+     * @param now 当前时间戳 毫秒
+     * @return 到期的元素, 跨越多个刻度时 不保证按到期时间排序
+     */
+    public List<T> advance(long now) {
+        long currentTick = now / tickMillis;
+        if (lastTick < 0) {
+            lastTick = currentTick - 1;
+        }
+        List<T> expired = Collections.emptyList();
+        for (Timeout<T> timeout = pendings.poll(); timeout != null; timeout = pendings.poll()) {
+            if (timeout.dueTick <= currentTick) {
+                expired = add(expired, timeout.element);
+            } else {
+                buckets[(int) (timeout.dueTick & mask)].add(timeout);
+            }
+        }
+        // 间隔超过一圈时 每个槽位只需处理一次
+        long fromTick = Math.max(lastTick + 1, currentTick - mask);
+        for (long tick = fromTick; tick <= currentTick; tick++) {
+            Iterator<Timeout<T>> iterator = buckets[(int) (tick & mask)].iterator();
+            while (iterator.hasNext()) {
+                Timeout<T> timeout = iterator.next();
+                if (timeout.dueTick <= currentTick) {
+                    expired = add(expired, timeout.element);
+                    iterator.remove();
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, currentTick);
+        return expired;
+    }
+
+    private static <T> List<T> add(List<T> elements, T element) {
+        List<T> result = elements.isEmpty() ? new ArrayList<>() : elements;
+        result.add(element);
+        return result;
+    }
+
+    private static final class Timeout<T> {
+        private final T element;
+        private final long dueTick;
+
+        private Timeout(T element, long dueTick) {
+            this.element = element;
+            this.dueTick = dueTick;
+        }
+    }
+}
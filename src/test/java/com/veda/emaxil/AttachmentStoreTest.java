@@ -0,0 +1,69 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.EmailAttachment;
+import com.veda.emaxil.core.sender.AttachmentStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AttachmentStoreTest {
+
+    @Test
+    public void deduplicateByContent(@TempDir Path directory) throws Exception {
+        AttachmentStore attachmentStore = new AttachmentStore(directory);
+        byte[] content = "brochure".getBytes(StandardCharsets.UTF_8);
+        Path file = directory.resolve("source.txt");
+        Files.write(file, content);
+
+        EmailAttachment first = attachmentStore.put(file, null, "text/plain");
+        EmailAttachment second = attachmentStore.put(new ByteArrayInputStream(content), "copy.txt", null);
+        assertEquals(first.getHash(), second.getHash());
+        assertEquals("source.txt", first.getFileName());
+        assertEquals("application/octet-stream", second.getContentType());
+        assertEquals(content.length, second.getSize());
+        assertEquals(2, attachmentStore.getPutCount());
+        assertEquals(1, attachmentStore.getDuplicateCount());
+        assertTrue(attachmentStore.contains(first.getHash()));
+
+        ByteBuffer buffer = attachmentStore.read(first.getHash());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertArrayEquals(content, bytes);
+    }
+
+    @Test
+    public void encodeOnce(@TempDir Path directory) {
+        AttachmentStore attachmentStore = new AttachmentStore(directory);
+        byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        String hash = attachmentStore.put(new ByteArrayInputStream(content), "data.bin", null).getHash();
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = attachmentStore.readEncoded(hash);
+            byte[] encoded = new byte[buffer.remaining()];
+            buffer.get(encoded);
+            assertArrayEquals(content, Base64.getMimeDecoder().decode(encoded));
+        }
+        assertEquals(1, attachmentStore.getEncodeCount());
+        // 编码后的内容已存储 新的实例不需要重新编码
+        AttachmentStore reopened = new AttachmentStore(directory);
+        reopened.readEncoded(hash);
+        assertEquals(0, reopened.getEncodeCount());
+    }
+
+    @Test
+    public void rejectInvalidHash(@TempDir Path directory) {
+        AttachmentStore attachmentStore = new AttachmentStore(directory);
+        assertThrows(IllegalArgumentException.class, () -> attachmentStore.read("../secret"));
+        assertThrows(IllegalStateException.class, () -> attachmentStore.readEncoded("abcdef"));
+    }
+}
@@ -0,0 +1,55 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.SmtpAccount;
+import com.veda.emaxil.core.entity.SmtpEmail;
+import com.veda.emaxil.core.sender.BlockingReactiveEmailSender;
+import com.veda.emaxil.core.sender.ReactiveEmailSender;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockingReactiveEmailSenderTest {
+
+    @Test
+    public void sendOffCallerThread() {
+        AtomicReference<String> senderThread = new AtomicReference<>();
+        ReactiveEmailSender<SmtpAccount, SmtpEmail> sender = new BlockingReactiveEmailSender<>(
+                (account, email) -> senderThread.set(Thread.currentThread().getName()));
+        StepVerifier.create(sender.send(new SmtpAccount(), new SmtpEmail())).verifyComplete();
+        assertNotEquals(Thread.currentThread().getName(), senderThread.get());
+        assertTrue(senderThread.get().startsWith("boundedElastic"), senderThread.get());
+    }
+
+    @Test
+    public void sendFailurePropagates() {
+        ReactiveEmailSender<SmtpAccount, SmtpEmail> sender = new BlockingReactiveEmailSender<>((account, email) -> {
+            throw new IllegalStateException("rejected");
+        });
+        StepVerifier.create(sender.send(new SmtpAccount(), new SmtpEmail()))
+                .expectErrorMessage("rejected")
+                .verify();
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> sender.sendAsync(new SmtpAccount(), new SmtpEmail()).get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void blockingSendsRunConcurrently() {
+        ReactiveEmailSender<SmtpAccount, SmtpEmail> sender = new BlockingReactiveEmailSender<>((account, email) -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        long start = System.currentTimeMillis();
+        StepVerifier.create(Flux.range(0, 8).flatMap(i -> sender.send(new SmtpAccount(), new SmtpEmail()))).verifyComplete();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+}
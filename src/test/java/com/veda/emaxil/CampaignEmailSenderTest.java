@@ -0,0 +1,98 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.CampaignEmail;
+import com.veda.emaxil.core.entity.EmailCampaign;
+import com.veda.emaxil.core.entity.SmtpAccount;
+import com.veda.emaxil.core.entity.SmtpEmail;
+import com.veda.emaxil.core.sender.CampaignEmailSender;
+import com.veda.emaxil.core.sender.CampaignTemplate;
+import com.veda.emaxil.core.service.EmailCampaignService;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CampaignEmailSenderTest {
+
+    @Test
+    public void renderTemplate() {
+        CampaignTemplate template = CampaignTemplate.compile("Hi ${name}, your code is ${ code }. ${missing}${unclosed");
+        Map<String, String> variables = new HashMap<>();
+        variables.put("name", "<Tom>");
+        variables.put("code", "42");
+        assertEquals(3, template.getVariableCount());
+        assertEquals("Hi <Tom>, your code is 42. ${unclosed", template.render(variables, false));
+        assertEquals("Hi &lt;Tom&gt;, your code is 42. ${unclosed", template.render(variables, true));
+        assertEquals("plain", CampaignTemplate.compile("plain").render(null, true));
+    }
+
+    @Test
+    public void renderCampaignEmail() {
+        EmailCampaign campaign = new EmailCampaign();
+        campaign.setId("c1");
+        campaign.setFrom("news@example.com");
+        campaign.setSubject("Hello ${name}");
+        campaign.setContent("<p>Dear ${name}</p>");
+        campaign.setHtml(true);
+        InMemoryEmailCampaignService campaignService = new InMemoryEmailCampaignService();
+        campaignService.insert(campaign);
+        List<SmtpEmail> sent = new ArrayList<>();
+        CampaignEmailSender sender = new CampaignEmailSender(campaignService, (account, email) -> sent.add(email));
+
+        for (int i = 0; i < 100; i++) {
+            sender.send(new SmtpAccount(), CampaignEmail.of("c1", Collections.singletonList("user" + i + "@example.com"),
+                    Collections.singletonMap("name", "A&B " + i)));
+        }
+        assertEquals(100, sent.size());
+        assertEquals("Hello A&B 7", sent.get(7).getSubject());
+        assertEquals("<p>Dear A&amp;B 7</p>", sent.get(7).getContent());
+        assertEquals("news@example.com", sent.get(7).getFrom());
+        assertEquals(Collections.singletonList("user7@example.com"), sent.get(7).getTo());
+        assertTrue(sent.get(7).isHtml());
+        // 同一活动只查询和编译一次
+        assertEquals(1, campaignService.selectCount.get());
+        assertEquals(1, sender.getCompileCount());
+        assertEquals(100, sender.getRenderCount());
+
+        sender.evict("c1");
+        sender.render(CampaignEmail.of("c1", Collections.emptyList(), null));
+        assertEquals(2, campaignService.selectCount.get());
+        assertThrows(IllegalStateException.class, () -> sender.render(CampaignEmail.of("c2", Collections.emptyList(), null)));
+    }
+
+    @Test
+    public void evictWhenCacheFull() {
+        InMemoryEmailCampaignService campaignService = new InMemoryEmailCampaignService();
+        for (int i = 0; i < 10; i++) {
+            EmailCampaign campaign = new EmailCampaign();
+            campaign.setId("c" + i);
+            campaign.setSubject("s" + i);
+            campaignService.insert(campaign);
+        }
+        CampaignEmailSender sender = new CampaignEmailSender(campaignService, (account, email) -> { });
+        sender.setMaxCachedCampaigns(4);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("s" + i, sender.render(CampaignEmail.of("c" + i, Collections.emptyList(), null)).getSubject());
+        }
+        assertEquals(4, sender.getCachedCount());
+    }
+
+    private static class InMemoryEmailCampaignService implements EmailCampaignService {
+        private final Map<String, EmailCampaign> campaigns = new ConcurrentHashMap<>();
+        private final AtomicInteger selectCount = new AtomicInteger();
+
+        @Override
+        public EmailCampaign select(String id) {
+            selectCount.incrementAndGet();
+            return campaigns.get(id);
+        }
+
+        @Override
+        public void insert(EmailCampaign emailCampaign) {
+            campaigns.put(emailCampaign.getId(), emailCampaign);
+        }
+    }
+}
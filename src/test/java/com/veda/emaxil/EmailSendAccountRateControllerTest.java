@@ -0,0 +1,99 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.EmailSendAccountRateController;
+import com.veda.emaxil.core.EmailSendAccountRateController.Signal;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendConfig;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailSendAccountRateControllerTest {
+
+    private final EmailSendAccountRateController<AbstractAccount> controller = new EmailSendAccountRateController<>();
+
+    private final EmailSendAccount<AbstractAccount> account = new EmailSendAccount<>("a", null, null, Collections.emptyList());
+
+    @Test
+    public void classify() {
+        controller.configure(new EmailSendConfig());
+        assertEquals(Signal.THROTTLED, controller.classify(new IllegalStateException("421 4.7.0 service not available")));
+        assertEquals(Signal.THROTTLED, controller.classify(new IllegalStateException("smtp account:a send to:b failed",
+                new IllegalStateException("452 4.5.3 Too many recipients"))));
+        assertEquals(Signal.THROTTLED, controller.classify(new IllegalStateException("Rate limit exceeded")));
+        assertEquals(Signal.SLOW, controller.classify(new IllegalStateException("send failed", new SocketTimeoutException("Read timed out"))));
+        assertEquals(Signal.FAILURE, controller.classify(new IllegalStateException("550 5.1.1 mailbox unavailable")));
+        // 账户ID 等其它数字不视为响应码
+        assertEquals(Signal.FAILURE, controller.classify(new IllegalStateException("account:421x send failed")));
+    }
+
+    @Test
+    public void holdAccountAtMaxConcurrency() {
+        controller.configure(new EmailSendConfig());
+        assertEquals(0L, controller.acquire(account, 2));
+        // 达到并发上限 账户继续被占用
+        assertEquals(-1L, controller.acquire(account, 2));
+        assertEquals(2, controller.getInFlight(account));
+        // 有发送完成时 释放被继续占用的账户, 之后的归还不再释放
+        assertEquals(0L, controller.release(account));
+        assertEquals(-1L, controller.release(account));
+        assertEquals(0, controller.getInFlight(account));
+    }
+
+    @Test
+    public void additiveIncreaseMultiplicativeDecrease() {
+        EmailSendConfig emailSendConfig = new EmailSendConfig();
+        emailSendConfig.setAdaptiveRate(true);
+        emailSendConfig.setAdaptiveRateInitial(10D);
+        emailSendConfig.setAdaptiveRateIncrease(1D);
+        controller.configure(emailSendConfig);
+        long now = System.currentTimeMillis();
+        // 初始并发上限为 1, 按 10/s 的速率 100ms 后可再被占用
+        assertEquals(-1L, controller.acquire(account, 4));
+        long dueAt = controller.release(account);
+        assertTrue(dueAt >= now + 100 && dueAt < System.currentTimeMillis() + 200, "dueAt " + (dueAt - now));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Signal.SUCCESS, controller.record(account, TimeUnit.MILLISECONDS.toNanos(5), null));
+        }
+        double increased = controller.getRate(account);
+        assertEquals(11D, increased, 0.05D);
+        assertEquals(4, controller.getConcurrencyLimit(account));
+
+        assertEquals(Signal.THROTTLED, controller.record(account, TimeUnit.MILLISECONDS.toNanos(5),
+                new IllegalStateException("421 service not available")));
+        assertEquals(increased / 2, controller.getRate(account), 1e-9);
+        assertEquals(2, controller.getConcurrencyLimit(account));
+        // 同一批进行中的发送 短时间内的多次限流只减小一次
+        controller.record(account, TimeUnit.MILLISECONDS.toNanos(5), new IllegalStateException("450 try again later"));
+        assertEquals(increased / 2, controller.getRate(account), 1e-9);
+        // 与账户速率无关的失败 不调整
+        assertEquals(Signal.FAILURE, controller.record(account, TimeUnit.MILLISECONDS.toNanos(5),
+                new IllegalStateException("550 mailbox unavailable")));
+        assertEquals(increased / 2, controller.getRate(account), 1e-9);
+    }
+
+    @Test
+    public void decreaseWhenLatencyRises() {
+        EmailSendConfig emailSendConfig = new EmailSendConfig();
+        emailSendConfig.setAdaptiveRate(true);
+        controller.configure(emailSendConfig);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Signal.SUCCESS, controller.record(account, TimeUnit.MILLISECONDS.toNanos(10), null));
+        }
+        double rate = controller.getRate(account);
+        // 单次耗时波动 不视为变慢
+        assertEquals(Signal.SUCCESS, controller.record(account, TimeUnit.MILLISECONDS.toNanos(100), null));
+        Signal signal = Signal.SUCCESS;
+        for (int i = 0; i < 50 && Signal.SUCCESS.equals(signal); i++) {
+            signal = controller.record(account, TimeUnit.MILLISECONDS.toNanos(100), null);
+        }
+        assertEquals(Signal.SLOW, signal);
+        assertTrue(controller.getRate(account) < rate);
+    }
+}
@@ -0,0 +1,111 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.EmailSendAccountScheduler;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+
+import static com.veda.emaxil.RestrictTestSupport.newAccount;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailSendAccountSchedulerTest {
+
+    private final EmailSendAccountScheduler<AbstractAccount> scheduler = new EmailSendAccountScheduler<>();
+
+    @Test
+    public void claimInRoundRobin() {
+        EmailSendAccount<AbstractAccount> a = newAccount("a", true);
+        EmailSendAccount<AbstractAccount> b = newAccount("b", true);
+        scheduler.schedule(a);
+        scheduler.schedule(b);
+        EmailSendAccount<AbstractAccount> first = scheduler.claim(0);
+        assertSame(a, first);
+        // 被占用的账户不会被再次占用
+        assertSame(b, scheduler.claim(0));
+        assertNull(scheduler.claim(0));
+        scheduler.release(a, 0L);
+        scheduler.release(b, 0L);
+        assertSame(a, scheduler.claim(0));
+        scheduler.release(a, 0L);
+        assertSame(b, scheduler.claim(0));
+    }
+
+    @Test
+    public void claimWaitsUntilDue() {
+        EmailSendAccount<AbstractAccount> a = newAccount("a", true);
+        scheduler.schedule(a);
+        scheduler.release(scheduler.claim(0), System.currentTimeMillis() + 200);
+        assertNull(scheduler.claim(50));
+        long start = System.currentTimeMillis();
+        assertSame(a, scheduler.claim(1000));
+        long waited = System.currentTimeMillis() - start;
+        assertTrue(waited >= 100 && waited < 500, "waited " + waited);
+    }
+
+    @Test
+    public void releaseWakesWaiter() throws Exception {
+        EmailSendAccount<AbstractAccount> a = newAccount("a", true);
+        scheduler.schedule(a);
+        EmailSendAccount<AbstractAccount> claimed = scheduler.claim(0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.currentTimeMillis();
+            Future<EmailSendAccount<AbstractAccount>> waiter = executor.submit(() -> scheduler.claim(5000));
+            Thread.sleep(100);
+            scheduler.release(claimed, 0L);
+            assertSame(a, waiter.get(1, TimeUnit.SECONDS));
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void refreshEnabledAccount() {
+        EmailSendAccount<AbstractAccount> a = newAccount("a", false);
+        a.setNextEnableAt(System.currentTimeMillis() + 3600_000);
+        scheduler.schedule(a);
+        assertNull(scheduler.claim(0));
+        a.setEnable(true);
+        scheduler.refresh();
+        assertSame(a, scheduler.claim(0));
+    }
+
+    @Test
+    public void replaceAndRemoveIdleAccount() {
+        EmailSendAccount<AbstractAccount> a = newAccount("a", true);
+        EmailSendAccount<AbstractAccount> b = newAccount("b", true);
+        scheduler.schedule(a);
+        scheduler.schedule(b);
+        EmailSendAccount<AbstractAccount> replaced = newAccount("a", true);
+        scheduler.replace(replaced);
+        scheduler.remove(b);
+        assertEquals(1, scheduler.getIdleCount());
+        assertSame(replaced, scheduler.claim(0));
+        assertNull(scheduler.claim(0));
+    }
+
+    @Test
+    public void replaceAndRemoveClaimedAccount() {
+        EmailSendAccount<AbstractAccount> a = newAccount("a", true);
+        EmailSendAccount<AbstractAccount> b = newAccount("b", true);
+        scheduler.schedule(a);
+        scheduler.schedule(b);
+        assertSame(a, scheduler.claim(0));
+        assertSame(b, scheduler.claim(0));
+        EmailSendAccount<AbstractAccount> replaced = newAccount("a", true);
+        scheduler.replace(replaced);
+        scheduler.remove(b);
+        // 被占用的账户 在释放时被替换或移除, 释放时可以传入任意一个实例
+        scheduler.release(a, 0L);
+        scheduler.release(b, 0L);
+        assertSame(replaced, scheduler.claim(0));
+        assertNull(scheduler.claim(0));
+        // 被移除后 重新加入的账户
+        EmailSendAccount<AbstractAccount> added = newAccount("b", true);
+        scheduler.schedule(added);
+        assertSame(added, scheduler.claim(0));
+    }
+}
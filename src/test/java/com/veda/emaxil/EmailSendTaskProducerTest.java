@@ -0,0 +1,82 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.ProduceResult;
+import com.veda.emaxil.core.entity.SmtpEmail;
+import com.veda.emaxil.core.producer.AbstractEmailSendTaskProducer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailSendTaskProducerTest {
+
+    @Test
+    public void produceAllInChunks() {
+        RecordingProducer producer = new RecordingProducer();
+        List<Integer> chunkIndexes = new ArrayList<>();
+        ProduceResult result = producer.produceAll(IntStream.range(0, 2500).mapToObj(i -> newEmail("user" + i)),
+                1, chunk -> chunkIndexes.add(chunk.getIndex()));
+        assertEquals(2500, result.getTotal());
+        assertEquals(2500, result.getProduced());
+        assertEquals(0, result.getFailed());
+        assertEquals(3, result.getChunkCount());
+        assertEquals(2500, producer.produced.size());
+        // 回调按分块顺序调用
+        assertEquals(Arrays.asList(0, 1, 2), chunkIndexes);
+    }
+
+    @Test
+    public void reportPartialFailure() {
+        RecordingProducer producer = new RecordingProducer();
+        List<SmtpEmail> emails = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            emails.add(i == 1200 ? null : newEmail("user" + i));
+        }
+        ProduceResult result = producer.produceAll(emails);
+        assertEquals(1500, result.getTotal());
+        assertEquals(1499, result.getProduced());
+        assertEquals(1, result.getFailed());
+        assertEquals(1, result.getFailedChunks().size());
+        assertEquals(1, result.getFailedChunks().get(0).getIndex());
+        assertEquals("email can not be null", result.getFailedChunks().get(0).getErrorMessage());
+    }
+
+    @Test
+    public void listenerFailureDoesNotStopProduce() {
+        RecordingProducer producer = new RecordingProducer();
+        ProduceResult result = producer.produceAll(IntStream.range(0, 2001).mapToObj(i -> newEmail("user" + i)), 0, chunk -> {
+            throw new IllegalStateException("listener failed");
+        });
+        assertEquals(2001, result.getProduced());
+        assertEquals(3, result.getChunkCount());
+    }
+
+    private static SmtpEmail newEmail(String to) {
+        SmtpEmail email = new SmtpEmail();
+        email.setTo(Collections.singletonList(to + "@example.com"));
+        return email;
+    }
+
+    private static class RecordingProducer implements AbstractEmailSendTaskProducer<SmtpEmail> {
+        private final List<SmtpEmail> produced = new ArrayList<>();
+
+        @Override
+        public void produce(SmtpEmail email) {
+            produce(email, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void produce(SmtpEmail email, int priority) {
+            if (Objects.isNull(email)) {
+                throw new IllegalArgumentException("email can not be null");
+            }
+            produced.add(email);
+        }
+    }
+}
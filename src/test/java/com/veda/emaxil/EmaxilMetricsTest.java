@@ -0,0 +1,72 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.EmaxilMetrics;
+import com.veda.emaxil.util.EmaxilEndpoint;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.veda.emaxil.RestrictTestSupport.newAccount;
+import static com.veda.emaxil.RestrictTestSupport.provider;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmaxilMetricsTest {
+
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        EmaxilMetrics.setRegistry(registry);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        EmaxilMetrics.setMaxAccountTags(100);
+        EmaxilMetrics.setRegistry(Metrics.globalRegistry);
+    }
+
+    @Test
+    public void capAccountTags() {
+        EmaxilMetrics.setMaxAccountTags(2);
+        assertEquals("a", EmaxilMetrics.accountTag(newAccount("a")));
+        assertEquals("b", EmaxilMetrics.accountTag(newAccount("b")));
+        assertEquals(EmaxilMetrics.OTHER, EmaxilMetrics.accountTag(newAccount("c")));
+        // 已分配标签的账户 继续使用其ID
+        assertEquals("a", EmaxilMetrics.accountTag(newAccount("a")));
+        assertEquals(EmaxilMetrics.UNKNOWN, EmaxilMetrics.providerTag(newAccount("a")));
+        assertEquals("163", EmaxilMetrics.providerTag(newAccount("a", provider("163"))));
+    }
+
+    @Test
+    public void cacheMeters() {
+        EmaxilMetrics.histogramTimer("emaxil.send", "provider", "163", "outcome", "success").record(10, TimeUnit.MILLISECONDS);
+        EmaxilMetrics.record(EmaxilMetrics.histogramTimer("emaxil.send", "provider", "163", "outcome", "success"), System.nanoTime());
+        EmaxilMetrics.counter("emaxil.send.account", "account", "a", "outcome", "success").increment();
+        assertSame(EmaxilMetrics.timer("emaxil.restrict.can.send"), EmaxilMetrics.timer("emaxil.restrict.can.send"));
+        assertEquals(2, registry.get("emaxil.send").tag("provider", "163").timer().count());
+        assertEquals(1D, registry.get("emaxil.send.account").tag("account", "a").counter().count());
+    }
+
+    @Test
+    public void endpointListsEmaxilMeters() {
+        EmaxilMetrics.counter("emaxil.restrict.rejected", "account", "a", "result", "rejected").increment(3);
+        EmaxilMetrics.gauge("emaxil.queue.depth", this, test -> 42D, "lane", "email-send-task-queue");
+        registry.counter("jvm.other").increment();
+        EmaxilEndpoint endpoint = new EmaxilEndpoint();
+        ReflectionTestUtils.setField(endpoint, "meterRegistry", registry);
+
+        Map<String, List<Map<String, Object>>> metrics = endpoint.metrics();
+        assertFalse(metrics.containsKey("jvm.other"));
+        assertEquals(3D, metrics.get("emaxil.restrict.rejected").get(0).get("count"));
+        assertEquals("a", metrics.get("emaxil.restrict.rejected").get(0).get("account"));
+        assertEquals(42D, metrics.get("emaxil.queue.depth").get(0).get("value"));
+    }
+}
@@ -0,0 +1,448 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.EmaxilCore;
+import com.veda.emaxil.core.consumer.AbstractEmailSendTaskConsumer;
+import com.veda.emaxil.core.consumer.LocalEmailSendTaskConsumer;
+import com.veda.emaxil.core.consumer.RedisMqEmailSendTaskConsumer;
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.producer.AbstractEmailSendTaskProducer;
+import com.veda.emaxil.core.producer.LocalEmailSendTaskProducer;
+import com.veda.emaxil.core.producer.RedisMqEmailSendTaskProducer;
+import com.veda.emaxil.core.restrict.RestrictServiceLocalImpl;
+import com.veda.emaxil.core.restrict.RestrictServiceRedisBucketImpl;
+import com.veda.emaxil.core.restrict.RestrictServiceRedisImpl;
+import com.veda.emaxil.core.service.EmailSendAccountService;
+import com.veda.emaxil.core.service.EmailSendConfigService;
+import com.veda.emaxil.core.service.EmailSendTaskService;
+import com.veda.emaxil.core.service.UnfinishedEmailSendTaskService;
+import com.veda.emaxil.util.RedisMessageQueue;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.veda.emaxil.core.entity.EmailSendTask.StatusEnum.*;
+
+/**
+ * 离线的端到端负载测试: 以 SimulatedEmailSender 作为服务商 启动 EmaxilCore, 生产者, 消费者 和 限制器
+ * 生产 backlog 封邮件后 等待所有任务完成, 统计 持续吞吐量, 配额使用率, 端到端延迟, 以及 重复和丢失的发送
+ * LOCAL 模式使用 本地环形缓冲区 和 RestrictServiceLocalImpl, 不需要任何外部服务
+ * REDIS 模式使用 RedisMessageQueue 和 RestrictServiceRedisImpl (bucketPrecision 大于 0 时为 RestrictServiceRedisBucketImpl), 连接 -Demaxil.load.redis=host:port 的 14 号库 并在开始前清空, 未设置该属性时 跳过 REDIS 模式的场景
+ * 服务商的配额与限制规则相同 以真实时间统计, 限制规则可以使用 秒级的时间范围 代替 小时 和 天 的配额
+ * reloadAfterMillis 大于 0 时 在消费过程中 增加账户 并调整线程池大小, 模拟高峰期不停止发送地扩容
+ */
+@Slf4j
+public class LoadHarness {
+
+    private static final long POLL_MILLIS = 10L;
+
+    public enum Mode {
+        LOCAL,
+        REDIS,
+    }
+
+    /**
+     * 负载场景
+     */
+    @Data
+    public static class Scenario {
+        private Mode mode = Mode.LOCAL;
+        /**
+         * 发送账户数量, 每个账户使用相同的限制规则
+         */
+        private int accountCount = 8;
+        private List<EmailSendRestrict> restricts = new ArrayList<>();
+        /**
+         * 积压的邮件数量
+         */
+        private int backlog = 1000;
+        private int threadPoolSize = 16;
+        private double latencyMedianMillis = 5D;
+        private double latencyP99Millis = 50D;
+        private double transientFailureRate = 0D;
+        private double permanentFailureRate = 0D;
+        private int retryLimit = 3;
+        private long retryBaseDelayMillis = 100L;
+        /**
+         * 是否按模拟服务商的响应 自适应调整账户的发送速率, 见 EmailSendConfig.adaptiveRate
+         */
+        private boolean adaptiveRate = false;
+        /**
+         * REDIS 模式下 大于 0 时使用分桶计数的 RestrictServiceRedisBucketImpl, 为其 precision
+         */
+        private int bucketPrecision = 0;
+        /**
+         * 大于 0 时 生产完成后经过该时间 将账户增加到 reloadAccountCount 个 并重新加载, 同时将线程池调整为 reloadThreadPoolSize
+         */
+        private long reloadAfterMillis = 0L;
+        private int reloadAccountCount = 16;
+        private int reloadThreadPoolSize = 32;
+        /**
+         * 等待所有任务完成的最长时间 毫秒
+         */
+        private long timeoutMillis = 60000L;
+
+        /**
+         * 添加一条限制规则
+         */
+        public Scenario restrict(EmailSendRestrict.TimeTypeEnum timeType, long timeValue, TimeUnit timeUnit, long limitValue) {
+            EmailSendRestrict restrict = new EmailSendRestrict();
+            restrict.setTimeType(timeType);
+            restrict.setTimeValue(timeValue);
+            restrict.setTimeUnit(timeUnit);
+            restrict.setLimitValue(limitValue);
+            restrict.setLimitType(EmailSendRestrict.LimitTypeEnum.COUNT_LIMIT);
+            restricts.add(restrict);
+            return this;
+        }
+    }
+
+    /**
+     * 负载测试结果
+     */
+    @Data
+    public static class Report {
+        private Mode mode;
+        private int backlog;
+        /**
+         * 被服务商接受的邮件数量 不含重复, 重复接受的次数
+         */
+        private long delivered;
+        private long duplicates;
+        /**
+         * 重试次数用完后 最终发送失败的邮件数量
+         */
+        private long failed;
+        /**
+         * 既未被接受 也未最终失败的邮件数量, 包括 超时未完成 和 标记为发送成功但服务商未接受的邮件
+         */
+        private long lost;
+        private long elapsedMillis;
+        /**
+         * 持续吞吐量 封/秒
+         */
+        private double throughput;
+        /**
+         * 服务商接受的次数 占 运行期间所有账户配额之和 的比例
+         */
+        private double quotaUtilization;
+        private long attempts;
+        private long quotaRejected;
+        private long transientFailures;
+        private long permanentFailures;
+        /**
+         * 从生产到第一次被服务商接受的延迟 毫秒
+         */
+        private double p50LatencyMillis;
+        private double p99LatencyMillis;
+        private double maxLatencyMillis;
+        /**
+         * 结束时的账户快照版本, 重新加载后新增账户被接受的次数, 以及常驻线程池的消费者线程数量
+         */
+        private long accountSnapshotVersion;
+        private long reloadedAccountAccepted;
+        private int poolConsumerCount;
+
+        @Override
+        public String toString() {
+            return StrUtil.format("mode:{} backlog:{} delivered:{} failed:{} duplicates:{} lost:{} elapsed:{}ms throughput:{}/s " +
+                            "quotaUtilization:{} attempts:{} quotaRejected:{} transientFailures:{} permanentFailures:{} " +
+                            "latency p50:{}ms p99:{}ms max:{}ms accountSnapshotVersion:{} reloadedAccountAccepted:{} poolConsumerCount:{}",
+                    mode, backlog, delivered, failed, duplicates, lost, elapsedMillis, String.format("%.1f", throughput),
+                    String.format("%.3f", quotaUtilization), attempts, quotaRejected, transientFailures, permanentFailures,
+                    String.format("%.1f", p50LatencyMillis), String.format("%.1f", p99LatencyMillis), String.format("%.1f", maxLatencyMillis),
+                    accountSnapshotVersion, reloadedAccountAccepted, poolConsumerCount);
+        }
+    }
+
+    private LoadHarness() {
+    }
+
+    /**
+     * 运行负载场景
+     * @param scenario 负载场景
+     * @return 负载测试结果
+     */
+    @SuppressWarnings("unchecked")
+    public static Report run(Scenario scenario) {
+        if (Objects.isNull(scenario) || scenario.getRestricts().isEmpty() || scenario.getBacklog() <= 0 || scenario.getAccountCount() <= 0) {
+            throw new IllegalArgumentException("scenario must have restricts, positive backlog and accountCount");
+        }
+        SimulatedEmailSender emailSender = new SimulatedEmailSender(scenario.getBacklog());
+        emailSender.setLatencyMedianMillis(scenario.getLatencyMedianMillis());
+        emailSender.setLatencyP99Millis(scenario.getLatencyP99Millis());
+        emailSender.setTransientFailureRate(scenario.getTransientFailureRate());
+        emailSender.setPermanentFailureRate(scenario.getPermanentFailureRate());
+        InMemoryEmailSendTaskService emailSendTaskService = new InMemoryEmailSendTaskService();
+        List<EmailSendAccount<SimulatedEmailSender.Account>> emailSendAccounts = new CopyOnWriteArrayList<>(
+                newEmailSendAccounts(scenario, 0, scenario.getAccountCount()));
+        try (AnnotationConfigApplicationContext context = newContext(scenario, emailSender, emailSendTaskService, emailSendAccounts)) {
+            AbstractEmailSendTaskProducer<SimulatedEmailSender.Email> producer = context.getBean(AbstractEmailSendTaskProducer.class);
+            Core core = context.getBean(Core.class);
+            long startNanos = System.nanoTime();
+            ProduceResult produceResult = producer.produceAll(IntStream.range(0, scenario.getBacklog())
+                    .mapToObj(index -> new SimulatedEmailSender.Email(index, System.nanoTime())));
+            if (produceResult.getFailed() > 0) {
+                throw new IllegalStateException(StrUtil.format("produce {} emails failed", produceResult.getFailed()));
+            }
+            long deadline = System.currentTimeMillis() + scenario.getTimeoutMillis();
+            long reloadAt = scenario.getReloadAfterMillis() > 0 ? System.currentTimeMillis() + scenario.getReloadAfterMillis() : Long.MAX_VALUE;
+            List<EmailSendAccount<SimulatedEmailSender.Account>> reloadedAccounts = Collections.emptyList();
+            while (emailSendTaskService.getFinishedCount() < scenario.getBacklog() && System.currentTimeMillis() < deadline) {
+                if (System.currentTimeMillis() >= reloadAt) {
+                    reloadAt = Long.MAX_VALUE;
+                    reloadedAccounts = newEmailSendAccounts(scenario, scenario.getAccountCount(), scenario.getReloadAccountCount());
+                    emailSendAccounts.addAll(reloadedAccounts);
+                    core.reloadEmailSendAccounts();
+                    EmailSendConfig emailSendConfig = newEmailSendConfig(scenario);
+                    emailSendConfig.setThreadPoolSize(scenario.getReloadThreadPoolSize());
+                    core.updateEmailSendConfig(emailSendConfig);
+                }
+                sleep();
+            }
+            long endNanos = emailSendTaskService.getFinishedCount() < scenario.getBacklog() ? System.nanoTime() : emailSendTaskService.getLastFinishedNanos();
+            Report report = report(scenario, emailSender, emailSendTaskService, endNanos - startNanos);
+            report.setAccountSnapshotVersion(core.getEmailSendAccountSnapshot().getVersion());
+            report.setReloadedAccountAccepted(reloadedAccounts.stream().mapToLong(emailSendAccount -> emailSendAccount.getAccount().getAcceptedCount()).sum());
+            Map<String, AbstractEmailSendTaskConsumer> consumers = context.getBeansOfType(AbstractEmailSendTaskConsumer.class);
+            report.setPoolConsumerCount(consumers.values().stream().mapToInt(AbstractEmailSendTaskConsumer::getPoolConsumerCount).sum());
+            log.info("load harness report {}", report);
+            return report;
+        }
+    }
+
+    private static EmailSendConfig newEmailSendConfig(Scenario scenario) {
+        EmailSendConfig emailSendConfig = new EmailSendConfig();
+        emailSendConfig.setThreadPoolSize(scenario.getThreadPoolSize());
+        emailSendConfig.setRetryLimit(scenario.getRetryLimit());
+        emailSendConfig.setRetryBaseDelayMillis(scenario.getRetryBaseDelayMillis());
+        emailSendConfig.setRetryMaxDelayMillis(scenario.getRetryBaseDelayMillis() * 8);
+        emailSendConfig.setPriorityLevels(1);
+        emailSendConfig.setAdaptiveRate(scenario.isAdaptiveRate());
+        return emailSendConfig;
+    }
+
+    /**
+     * @return 序号在 [from, to) 之间的账户
+     */
+    private static List<EmailSendAccount<SimulatedEmailSender.Account>> newEmailSendAccounts(Scenario scenario, int from, int to) {
+        EmailServiceProvider provider = new EmailServiceProvider();
+        provider.setName("simulated");
+        List<EmailSendAccount<SimulatedEmailSender.Account>> emailSendAccounts = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            String id = "load-" + i;
+            emailSendAccounts.add(new EmailSendAccount<>(id, new SimulatedEmailSender.Account(id, scenario.getRestricts()),
+                    provider, scenario.getRestricts()));
+        }
+        return emailSendAccounts;
+    }
+
+    private static AnnotationConfigApplicationContext newContext(Scenario scenario, SimulatedEmailSender emailSender,
+                                                                 InMemoryEmailSendTaskService emailSendTaskService,
+                                                                 List<EmailSendAccount<SimulatedEmailSender.Account>> emailSendAccounts) {
+        EmailSendConfig emailSendConfig = newEmailSendConfig(scenario);
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.registerBean(EmailSendConfigService.class, () -> new EmailSendConfigService() {
+            @Override
+            public EmailSendConfig select() {
+                return emailSendConfig;
+            }
+
+            @Override
+            public void update(EmailSendConfig emailSendConfig) {
+            }
+        });
+        context.registerBean(EmailSendAccountService.class, () -> (EmailSendAccountService<SimulatedEmailSender.Account>) () -> new ArrayList<>(emailSendAccounts));
+        context.registerBean(InMemoryEmailSendTaskService.class, () -> emailSendTaskService);
+        context.registerBean(SimulatedEmailSender.class, () -> emailSender);
+        if (Mode.REDIS == scenario.getMode()) {
+            LettuceConnectionFactory connectionFactory = RedisTestSupport.connect();
+            // 消费者启动前 清空上次运行留下的队列 和 统计数据
+            RedisConnection connection = connectionFactory.getConnection();
+            try {
+                connection.flushDb();
+            } finally {
+                connection.close();
+            }
+            context.registerBean(LettuceConnectionFactory.class, () -> connectionFactory);
+            context.registerBean(StringRedisTemplate.class, () -> new StringRedisTemplate(connectionFactory));
+            context.registerBean(RedisMessageQueue.class);
+            if (scenario.getBucketPrecision() > 0) {
+                context.registerBean(RestrictServiceRedisBucketImpl.class, () -> {
+                    RestrictServiceRedisBucketImpl<SimulatedEmailSender.Account, SimulatedEmailSender.Email> restrictService = new RestrictServiceRedisBucketImpl<>();
+                    restrictService.setPrecision(scenario.getBucketPrecision());
+                    return restrictService;
+                });
+            } else {
+                context.registerBean(RestrictServiceRedisImpl.class);
+            }
+            context.registerBean(Core.class);
+            context.registerBean(RedisConsumer.class);
+            context.registerBean(RedisProducer.class);
+        } else {
+            context.registerBean(RestrictServiceLocalImpl.class);
+            context.registerBean(Core.class);
+            context.registerBean(LocalConsumer.class);
+            context.registerBean(LocalProducer.class);
+        }
+        context.refresh();
+        return context;
+    }
+
+    private static Report report(Scenario scenario, SimulatedEmailSender emailSender,
+                                 InMemoryEmailSendTaskService emailSendTaskService, long elapsedNanos) {
+        Report report = new Report();
+        report.setMode(scenario.getMode());
+        report.setBacklog(scenario.getBacklog());
+        long[] latencies = new long[scenario.getBacklog()];
+        int latencyCount = 0;
+        for (EmailSendTask<SimulatedEmailSender.Email> emailSendTask : emailSendTaskService.getAll()) {
+            SimulatedEmailSender.Email email = emailSendTask.getEmail();
+            int acceptCount = emailSender.getAcceptCount(email.getIndex());
+            if (acceptCount > 0) {
+                report.setDelivered(report.getDelivered() + 1);
+                report.setDuplicates(report.getDuplicates() + acceptCount - 1);
+                latencies[latencyCount++] = emailSender.getAcceptedAtNanos(email.getIndex()) - email.getProducedAtNanos();
+            } else if (SEND_FAILURE.equals(emailSendTask.getStatus()) && emailSendTask.getRetryCount() >= emailSendTask.getRetryLimit()) {
+                report.setFailed(report.getFailed() + 1);
+            }
+        }
+        report.setLost(scenario.getBacklog() - report.getDelivered() - report.getFailed());
+        report.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        double elapsedSeconds = Math.max(1L, elapsedNanos) / 1e9;
+        report.setThroughput(report.getDelivered() / elapsedSeconds);
+        report.setQuotaUtilization((report.getDelivered() + report.getDuplicates()) / (double) getQuotaCapacity(scenario, elapsedNanos));
+        report.setAttempts(emailSender.getAttemptCount());
+        report.setQuotaRejected(emailSender.getQuotaRejectedCount());
+        report.setTransientFailures(emailSender.getTransientFailureCount());
+        report.setPermanentFailures(emailSender.getPermanentFailureCount());
+        Arrays.sort(latencies, 0, latencyCount);
+        if (latencyCount > 0) {
+            report.setP50LatencyMillis(percentile(latencies, latencyCount, 0.50) / 1e6);
+            report.setP99LatencyMillis(percentile(latencies, latencyCount, 0.99) / 1e6);
+            report.setMaxLatencyMillis(latencies[latencyCount - 1] / 1e6);
+        }
+        return report;
+    }
+
+    /**
+     * 运行期间 所有账户最多可发送的数量: 每条限制规则在每个时间范围内可发送 limitValue 封, 账户取其中最小的一条
+     * 按初始的账户数量计算, 重新加载时新增的账户不计入
+     */
+    private static long getQuotaCapacity(Scenario scenario, long elapsedNanos) {
+        long capacity = Long.MAX_VALUE;
+        for (EmailSendRestrict restrict : scenario.getRestricts()) {
+            long windowNanos = restrict.getTimeUnit().toNanos(restrict.getTimeValue());
+            long windows = (elapsedNanos + windowNanos - 1) / windowNanos;
+            capacity = Math.min(capacity, Math.max(1L, windows) * restrict.getLimitValue());
+        }
+        return Math.max(1L, capacity * scenario.getAccountCount());
+    }
+
+    private static long percentile(long[] sorted, int count, double quantile) {
+        return sorted[Math.min(count - 1, (int) Math.ceil(quantile * count) - 1)];
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("load harness interrupted", e);
+        }
+    }
+
+    /**
+     * 指定泛型参数的核心组件, 使 @Autowired 字段能按泛型匹配到模拟的 发送者 和 任务持久化
+     */
+    static class Core extends EmaxilCore<SimulatedEmailSender.Account, SimulatedEmailSender.Email> {
+    }
+
+    static class LocalConsumer extends LocalEmailSendTaskConsumer<SimulatedEmailSender.Account, SimulatedEmailSender.Email> {
+    }
+
+    static class LocalProducer extends LocalEmailSendTaskProducer<SimulatedEmailSender.Email> {
+    }
+
+    static class RedisConsumer extends RedisMqEmailSendTaskConsumer<SimulatedEmailSender.Account, SimulatedEmailSender.Email> {
+    }
+
+    static class RedisProducer extends RedisMqEmailSendTaskProducer<SimulatedEmailSender.Email> {
+    }
+
+    /**
+     * 模拟数据库的任务持久化, 读写都复制任务 与真实持久化一样 消费者对任务的修改需要 update 后才可见
+     * 记录 发送成功 或 重试次数用完后发送失败 的任务数量, 以及最后一个任务完成的时间
+     */
+    static class InMemoryEmailSendTaskService implements EmailSendTaskService<SimulatedEmailSender.Email>,
+            UnfinishedEmailSendTaskService<SimulatedEmailSender.Email> {
+        private final Map<String, EmailSendTask<SimulatedEmailSender.Email>> emailSendTasks = new ConcurrentHashMap<>();
+        private final Set<String> finishedIds = ConcurrentHashMap.newKeySet();
+        private final AtomicLong lastFinishedNanos = new AtomicLong(0L);
+
+        @Override
+        public EmailSendTask<SimulatedEmailSender.Email> select(String id) {
+            EmailSendTask<SimulatedEmailSender.Email> emailSendTask = emailSendTasks.get(id);
+            if (Objects.isNull(emailSendTask)) {
+                throw new IllegalStateException(StrUtil.format("email send task:{} not exist", id));
+            }
+            return copy(emailSendTask);
+        }
+
+        @Override
+        public void insert(EmailSendTask<SimulatedEmailSender.Email> emailSendTask) {
+            emailSendTasks.put(emailSendTask.getId(), copy(emailSendTask));
+        }
+
+        @Override
+        public void update(EmailSendTask<SimulatedEmailSender.Email> emailSendTask) {
+            emailSendTasks.put(emailSendTask.getId(), copy(emailSendTask));
+            boolean isFinished = SEND_SUCCESS.equals(emailSendTask.getStatus()) ||
+                    (SEND_FAILURE.equals(emailSendTask.getStatus()) && emailSendTask.getRetryCount() >= emailSendTask.getRetryLimit());
+            if (isFinished && finishedIds.add(emailSendTask.getId())) {
+                lastFinishedNanos.accumulateAndGet(System.nanoTime(), Math::max);
+            }
+        }
+
+        @Override
+        public List<EmailSendTask<SimulatedEmailSender.Email>> selectAllUnfinished() {
+            return emailSendTasks.values().stream()
+                    .filter(emailSendTask -> !finishedIds.contains(emailSendTask.getId()))
+                    .map(InMemoryEmailSendTaskService::copy)
+                    .collect(Collectors.toList());
+        }
+
+        int getFinishedCount() {
+            return finishedIds.size();
+        }
+
+        long getLastFinishedNanos() {
+            return lastFinishedNanos.get();
+        }
+
+        Collection<EmailSendTask<SimulatedEmailSender.Email>> getAll() {
+            return emailSendTasks.values();
+        }
+
+        private static EmailSendTask<SimulatedEmailSender.Email> copy(EmailSendTask<SimulatedEmailSender.Email> emailSendTask) {
+            EmailSendTask<SimulatedEmailSender.Email> copy = new EmailSendTask<>(emailSendTask.getId(), emailSendTask.getPriority());
+            copy.setEmail(emailSendTask.getEmail());
+            copy.setStatus(emailSendTask.getStatus());
+            copy.setRetryCount(emailSendTask.getRetryCount());
+            copy.setRetryLimit(emailSendTask.getRetryLimit());
+            copy.setErrorMessage(emailSendTask.getErrorMessage());
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.EmailSendRestrict;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadHarnessTest {
+
+    @Test
+    public void local() {
+        assertNoDuplicateOrLost(LoadHarness.run(newScenario(LoadHarness.Mode.LOCAL)));
+    }
+
+    @Test
+    public void localAdaptive() {
+        LoadHarness.Scenario scenario = newScenario(LoadHarness.Mode.LOCAL);
+        scenario.setAdaptiveRate(true);
+        assertNoDuplicateOrLost(LoadHarness.run(scenario));
+    }
+
+    @Test
+    public void localReload() {
+        LoadHarness.Scenario scenario = newScenario(LoadHarness.Mode.LOCAL);
+        scenario.setBacklog(1600);
+        scenario.setReloadAfterMillis(1000L);
+        scenario.setReloadAccountCount(16);
+        scenario.setReloadThreadPoolSize(32);
+        LoadHarness.Report report = LoadHarness.run(scenario);
+        assertNoDuplicateOrLost(report);
+        // 新增的账户 在不停止消费的情况下 参与发送
+        assertEquals(2L, report.getAccountSnapshotVersion(), report.toString());
+        assertTrue(report.getReloadedAccountAccepted() > 0, report.toString());
+        assertEquals(32, report.getPoolConsumerCount(), report.toString());
+    }
+
+    @Test
+    public void redis() {
+        RedisTestSupport.assumeRedis();
+        assertNoDuplicateOrLost(LoadHarness.run(newScenario(LoadHarness.Mode.REDIS)));
+    }
+
+    @Test
+    public void redisBucket() {
+        RedisTestSupport.assumeRedis();
+        LoadHarness.Scenario scenario = newScenario(LoadHarness.Mode.REDIS);
+        scenario.setBucketPrecision(10);
+        assertNoDuplicateOrLost(LoadHarness.run(scenario));
+    }
+
+    /**
+     * 8 个账户, 每个账户每秒最多 25 封 (代替每小时的配额), 每 2 秒的时间段内最多 40 封 (代替每天的配额)
+     * 5% 的发送临时失败, 1% 的邮件永久失败
+     */
+    private LoadHarness.Scenario newScenario(LoadHarness.Mode mode) {
+        LoadHarness.Scenario scenario = new LoadHarness.Scenario()
+                .restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 1, TimeUnit.SECONDS, 25)
+                .restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 2, TimeUnit.SECONDS, 40);
+        scenario.setMode(mode);
+        scenario.setAccountCount(8);
+        scenario.setBacklog(800);
+        scenario.setThreadPoolSize(16);
+        scenario.setTransientFailureRate(0.05);
+        scenario.setPermanentFailureRate(0.01);
+        return scenario;
+    }
+
+    private void assertNoDuplicateOrLost(LoadHarness.Report report) {
+        assertEquals(0, report.getDuplicates(), report.toString());
+        assertEquals(0, report.getLost(), report.toString());
+        assertEquals(report.getBacklog(), report.getDelivered() + report.getFailed(), report.toString());
+        // 永久失败的邮件 重试后仍然失败
+        assertTrue(report.getFailed() > 0, report.toString());
+        assertTrue(report.getThroughput() > 0, report.toString());
+        assertTrue(report.getP99LatencyMillis() >= report.getP50LatencyMillis(), report.toString());
+    }
+}
@@ -0,0 +1,132 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.util.PermitDispatcher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PermitDispatcherTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void boundedConcurrency() throws Exception {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+        for (int i = 0; i < 200; i++) {
+            queue.add(i);
+        }
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        List<Integer> maxCounts = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(200);
+        PermitDispatcher<Integer> dispatcher = new PermitDispatcher<>(8, 4, maxCount -> {
+            maxCounts.add(maxCount);
+            return take(queue, maxCount);
+        }, executor, element -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(2);
+            running.decrementAndGet();
+            done.countDown();
+        });
+        executor.execute(dispatcher);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 8, "running " + maxRunning.get());
+        // 每次获取的数量 不超过空闲许可 和 maxBatchSize
+        assertTrue(maxCounts.stream().allMatch(maxCount -> maxCount >= 1 && maxCount <= 4));
+    }
+
+    @Test
+    public void unusedPermitsAreReleased() throws Exception {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+        CountDownLatch handled = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger lastMaxCount = new AtomicInteger(0);
+        PermitDispatcher<Integer> dispatcher = new PermitDispatcher<>(10, 10, maxCount -> {
+            lastMaxCount.set(maxCount);
+            return take(queue, maxCount);
+        }, executor, element -> {
+            handled.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(dispatcher);
+        queue.add(1);
+        queue.add(2);
+        queue.add(3);
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        // 获取到的元素少于许可时 多余的许可立即归还, 只有处理中的元素占用许可
+        awaitMaxCount(lastMaxCount, 7);
+        release.countDown();
+        awaitMaxCount(lastMaxCount, 10);
+    }
+
+    @Test
+    public void permitsAreReleasedOnFailure() throws Exception {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+        for (int i = 0; i < 20; i++) {
+            queue.add(i);
+        }
+        AtomicInteger takes = new AtomicInteger(0);
+        AtomicInteger lastMaxCount = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(20);
+        PermitDispatcher<Integer> dispatcher = new PermitDispatcher<>(4, 4, maxCount -> {
+            lastMaxCount.set(maxCount);
+            // 获取失败时 不丢失许可
+            if (takes.incrementAndGet() % 3 == 0) {
+                throw new IllegalStateException("take failed");
+            }
+            return take(queue, maxCount);
+        }, executor, element -> {
+            done.countDown();
+            // 处理失败时 不丢失许可
+            throw new IllegalStateException("handle failed");
+        });
+        executor.execute(dispatcher);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        awaitMaxCount(lastMaxCount, 4);
+    }
+
+    private static List<Integer> take(BlockingQueue<Integer> queue, int maxCount) throws InterruptedException {
+        List<Integer> elements = new ArrayList<>(maxCount);
+        Integer first = queue.poll(20, TimeUnit.MILLISECONDS);
+        if (first != null) {
+            elements.add(first);
+            queue.drainTo(elements, maxCount - 1);
+        }
+        return elements;
+    }
+
+    /**
+     * 分发线程每次获取时 请求的数量等于当时空闲的许可数量, 等待其等于 expected
+     */
+    private static void awaitMaxCount(AtomicInteger lastMaxCount, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lastMaxCount.get() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, lastMaxCount.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
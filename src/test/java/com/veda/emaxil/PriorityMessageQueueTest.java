@@ -0,0 +1,156 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.util.MessageQueue;
+import com.veda.emaxil.util.PriorityMessageQueue;
+import com.veda.emaxil.util.RedisMessageQueue;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PriorityMessageQueueTest {
+
+    private final InMemoryMessageQueue messageQueue = new InMemoryMessageQueue();
+
+    @Test
+    public void strictServesHigherPriorityFirst() {
+        PriorityMessageQueue queue = new PriorityMessageQueue(messageQueue, "q", 3, PriorityMessageQueue.Policy.STRICT, null, 60000);
+        assertEquals(Arrays.asList("q", "q-p1", "q-p2"), queue.getLaneNames());
+        assertEquals("q-p2", queue.getLaneName(99));
+        queue.addValues(2, Arrays.asList("bulk-0", "bulk-1"));
+        queue.addValue(0, "reset-password");
+        List<RedisMessageQueue.QueueValue> queueValues = queue.getValues(2, 0);
+        assertEquals("reset-password", queueValues.get(0).getValue());
+        assertEquals("q", queueValues.get(0).getQueueName());
+        assertEquals("bulk-0", queueValues.get(1).getValue());
+        assertEquals("q-p2", queueValues.get(1).getQueueName());
+        assertEquals(2, queue.ackValues(queueValues));
+    }
+
+    @Test
+    public void strictPromotesStarvingLane() throws InterruptedException {
+        PriorityMessageQueue queue = new PriorityMessageQueue(messageQueue, "q", 2, PriorityMessageQueue.Policy.STRICT, null, 50);
+        queue.addValue(1, "low");
+        queue.refreshLaneDepths();
+        for (int i = 0; i < 10; i++) {
+            queue.addValue(0, "high-" + i);
+        }
+        assertEquals("high-0", queue.getValues(1, 0).get(0).getValue());
+        Thread.sleep(100);
+        queue.refreshLaneDepths();
+        assertEquals("low", queue.getValues(1, 0).get(0).getValue());
+        assertEquals("high-1", queue.getValues(1, 0).get(0).getValue());
+    }
+
+    @Test
+    public void weightedSharesByWeight() {
+        PriorityMessageQueue queue = new PriorityMessageQueue(messageQueue, "q", 2, PriorityMessageQueue.Policy.WEIGHTED, new int[]{3, 1}, 0);
+        for (int i = 0; i < 100; i++) {
+            queue.addValue(0, "high-" + i);
+            queue.addValue(1, "low-" + i);
+        }
+        queue.refreshLaneDepths();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            counts.merge(queue.getValues(1, 0).get(0).getQueueName(), 1, Integer::sum);
+        }
+        assertEquals(30, counts.get("q").intValue());
+        assertEquals(10, counts.get("q-p1").intValue());
+        List<PriorityMessageQueue.LaneStat> laneStats = queue.getLaneStats();
+        assertEquals(30, laneStats.get(0).getDequeued());
+        assertEquals(100, laneStats.get(1).getDepth());
+    }
+
+    /**
+     * 只用于测试的 单线程 内存消息队列
+     */
+    private static class InMemoryMessageQueue implements MessageQueue {
+
+        private final Map<String, Deque<RedisMessageQueue.QueueValue>> queues = new HashMap<>();
+
+        @Override
+        public RedisMessageQueue.QueueValue addValue(String queueName, String value) {
+            RedisMessageQueue.QueueValue queueValue = new RedisMessageQueue.QueueValue(value, System.currentTimeMillis());
+            queues.computeIfAbsent(queueName, name -> new ArrayDeque<>()).addLast(queueValue);
+            return queueValue;
+        }
+
+        @Override
+        public List<RedisMessageQueue.QueueValue> addValues(String queueName, List<String> values) {
+            List<RedisMessageQueue.QueueValue> queueValues = new ArrayList<>();
+            for (String value : values) {
+                queueValues.add(addValue(queueName, value));
+            }
+            return queueValues;
+        }
+
+        @Override
+        public RedisMessageQueue.QueueValue getValue(String queueName) {
+            return getValues(queueName, 1, 0).get(0);
+        }
+
+        @Override
+        public List<RedisMessageQueue.QueueValue> getValues(String queueName, int maxCount, long timeoutMillis) {
+            return getValues(Collections.singletonList(queueName), maxCount, timeoutMillis);
+        }
+
+        @Override
+        public List<RedisMessageQueue.QueueValue> getValues(List<String> queueNames, int maxCount, long timeoutMillis) {
+            List<RedisMessageQueue.QueueValue> queueValues = new ArrayList<>();
+            for (String queueName : queueNames) {
+                Deque<RedisMessageQueue.QueueValue> queue = queues.getOrDefault(queueName, new ArrayDeque<>());
+                while (queueValues.size() < maxCount && !queue.isEmpty()) {
+                    RedisMessageQueue.QueueValue queueValue = queue.pollFirst();
+                    queueValue.setQueueName(queueName);
+                    queueValues.add(queueValue);
+                }
+            }
+            return queueValues;
+        }
+
+        @Override
+        public RedisMessageQueue.QueueValue addDelayedValue(String queueName, String value, long delayMillis) {
+            return addValue(queueName, value);
+        }
+
+        @Override
+        public int pumpDelayedValues(String queueName) {
+            return 0;
+        }
+
+        @Override
+        public boolean ackValue(String queueName, RedisMessageQueue.QueueValue queueValue) {
+            return true;
+        }
+
+        @Override
+        public int ackValues(String queueName, List<RedisMessageQueue.QueueValue> queueValues) {
+            return queueValues.size();
+        }
+
+        @Override
+        public boolean extendValue(String queueName, RedisMessageQueue.QueueValue queueValue) {
+            return true;
+        }
+
+        @Override
+        public void ackClean(String queueName) {
+        }
+
+        @Override
+        public long size(String queueName) {
+            return queues.getOrDefault(queueName, new ArrayDeque<>()).size();
+        }
+
+        @Override
+        public long ackSize(String queueName) {
+            return 0L;
+        }
+
+        @Override
+        public long getAckTimeoutMillis() {
+            return 60000L;
+        }
+    }
+}
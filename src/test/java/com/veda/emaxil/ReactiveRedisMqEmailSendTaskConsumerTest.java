@@ -0,0 +1,112 @@
+package com.veda.emaxil;
+
+import com.alibaba.fastjson.JSON;
+import com.veda.emaxil.core.consumer.ReactiveRedisMqEmailSendTaskConsumer;
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.restrict.RestrictServiceLocalImpl;
+import com.veda.emaxil.core.service.EmailSendAccountService;
+import com.veda.emaxil.core.service.EmailSendConfigService;
+import com.veda.emaxil.util.PriorityMessageQueue;
+import com.veda.emaxil.util.ReactiveRedisMessageQueue;
+import com.veda.emaxil.util.RedisMessageQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 连接 -Demaxil.load.redis=host:port 的 14 号库 并在开始前清空, 未设置时跳过, 见 RedisTestSupport
+ */
+public class ReactiveRedisMqEmailSendTaskConsumerTest {
+
+    private AnnotationConfigApplicationContext context;
+
+    @AfterEach
+    public void close() {
+        if (Objects.nonNull(context)) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void dequeueOnlyFreeSlots() throws InterruptedException {
+        LettuceConnectionFactory connectionFactory = RedisTestSupport.connect();
+        RedisConnection connection = connectionFactory.getConnection();
+        try {
+            connection.flushDb();
+        } finally {
+            connection.close();
+        }
+        LoadHarness.InMemoryEmailSendTaskService emailSendTaskService = new LoadHarness.InMemoryEmailSendTaskService();
+        context = newContext(connectionFactory, emailSendTaskService, 2);
+        ReactiveConsumer consumer = context.getBean(ReactiveConsumer.class);
+        PriorityMessageQueue priorityMessageQueue = consumer.getPriorityMessageQueue();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            EmailSendTask<SimulatedEmailSender.Email> emailSendTask = new EmailSendTask<>(String.valueOf(i), 0);
+            emailSendTask.setStatus(EmailSendTask.StatusEnum.UN_SEND);
+            emailSendTaskService.insert(emailSendTask);
+            values.add(JSON.toJSONString(EmailSendTaskDTO.of(emailSendTask)));
+        }
+        priorityMessageQueue.addValues(0, values);
+
+        // 账户一直不可用, 消费中的任务等待账户时 不再出队, 其余消息留在队列中 不会在本地等到 ACK 超时
+        Thread.sleep(1000);
+        String laneName = priorityMessageQueue.getLaneName(0);
+        assertEquals(2L, priorityMessageQueue.ackSize(laneName));
+        assertEquals(8L, context.getBean(RedisMessageQueue.class).size(laneName));
+    }
+
+    private static AnnotationConfigApplicationContext newContext(LettuceConnectionFactory connectionFactory,
+                                                                 LoadHarness.InMemoryEmailSendTaskService emailSendTaskService,
+                                                                 int reactiveConcurrency) {
+        EmailSendConfig emailSendConfig = new EmailSendConfig();
+        emailSendConfig.setThreadPoolSize(1);
+        emailSendConfig.setPriorityLevels(1);
+        emailSendConfig.setReactiveConcurrency(reactiveConcurrency);
+        // 限制数值为 0 的账户 一直不可发送
+        List<EmailSendRestrict> restricts = Collections.singletonList(
+                RestrictTestSupport.restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, TimeUnit.HOURS.toMillis(1), 0));
+        EmailSendAccount<SimulatedEmailSender.Account> emailSendAccount = new EmailSendAccount<>("blocked",
+                new SimulatedEmailSender.Account("blocked", restricts), new EmailServiceProvider(), restricts);
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.registerBean(EmailSendConfigService.class, () -> new EmailSendConfigService() {
+            @Override
+            public EmailSendConfig select() {
+                return emailSendConfig;
+            }
+
+            @Override
+            public void update(EmailSendConfig emailSendConfig) {
+            }
+        });
+        context.registerBean(EmailSendAccountService.class, () -> (EmailSendAccountService<SimulatedEmailSender.Account>) () -> Collections.singletonList(emailSendAccount));
+        context.registerBean(LoadHarness.InMemoryEmailSendTaskService.class, () -> emailSendTaskService);
+        context.registerBean(SimulatedEmailSender.class, () -> new SimulatedEmailSender(10));
+        context.registerBean(LettuceConnectionFactory.class, () -> connectionFactory);
+        context.registerBean(StringRedisTemplate.class, () -> new StringRedisTemplate(connectionFactory));
+        context.registerBean(ReactiveStringRedisTemplate.class, () -> new ReactiveStringRedisTemplate(connectionFactory));
+        context.registerBean(RedisMessageQueue.class);
+        context.registerBean(ReactiveRedisMessageQueue.class);
+        context.registerBean(RestrictServiceLocalImpl.class);
+        context.registerBean(LoadHarness.Core.class);
+        context.registerBean(ReactiveConsumer.class);
+        context.refresh();
+        return context;
+    }
+
+    static class ReactiveConsumer extends ReactiveRedisMqEmailSendTaskConsumer<SimulatedEmailSender.Account, SimulatedEmailSender.Email> {
+    }
+}
@@ -0,0 +1,173 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.util.IdUtil;
+import com.veda.emaxil.util.RedisDistributedLock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 连接 -Demaxil.load.redis=host:port 的 14 号库, 未设置时跳过, 见 RedisTestSupport
+ */
+public class RedisDistributedLockTest {
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RedisDistributedLock redisDistributedLock;
+
+    private final List<String> lockNames = new ArrayList<>();
+
+    @BeforeEach
+    public void connect() {
+        connectionFactory = RedisTestSupport.connect();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        redisDistributedLock = new RedisDistributedLock();
+        ReflectionTestUtils.setField(redisDistributedLock, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(redisDistributedLock, "redisScript", redisDistributedLock.defaultRedisScript());
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        if (Objects.isNull(connectionFactory)) {
+            return;
+        }
+        redisDistributedLock.destroy();
+        lockNames.forEach(lockName -> {
+            stringRedisTemplate.delete(lockName);
+            stringRedisTemplate.delete(lockName + "-fencing");
+        });
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void mutualExclusion() throws Exception {
+        String lockName = newLockName();
+        AtomicInteger holders = new AtomicInteger(0);
+        AtomicInteger maxHolders = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                futures.add(executor.submit(() -> {
+                    String lockValue = redisDistributedLock.doLock(lockName, 5000);
+                    maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                    holders.decrementAndGet();
+                    assertTrue(redisDistributedLock.unlock(lockName, lockValue));
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, maxHolders.get());
+        assertEquals(0, redisDistributedLock.getCompetingCount());
+    }
+
+    @Test
+    public void tryLockTimeout() {
+        String lockName = newLockName();
+        RedisDistributedLock.Lock lock = redisDistributedLock.tryLock(lockName, 0, 10000);
+        assertNotNull(lock);
+        long start = System.currentTimeMillis();
+        assertNull(redisDistributedLock.tryLock(lockName, 200, 10000));
+        long waited = System.currentTimeMillis() - start;
+        assertTrue(waited >= 200 && waited < 2000, "waited " + waited);
+        assertTrue(redisDistributedLock.unlock(lock));
+    }
+
+    @Test
+    public void unlockWakesWaiter() throws Exception {
+        String lockName = newLockName();
+        RedisDistributedLock.Lock lock = redisDistributedLock.tryLock(lockName, 0, 60000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<RedisDistributedLock.Lock> waiter = executor.submit(() -> redisDistributedLock.tryLock(lockName, 10000, 60000));
+            // 等待者退避到上限后 只能通过解锁消息提前唤醒
+            Thread.sleep(1500);
+            long start = System.currentTimeMillis();
+            assertTrue(redisDistributedLock.unlock(lock));
+            RedisDistributedLock.Lock acquired = waiter.get(5, TimeUnit.SECONDS);
+            assertNotNull(acquired);
+            assertTrue(System.currentTimeMillis() - start < 400, "woken after " + (System.currentTimeMillis() - start));
+            assertTrue(acquired.getFencingToken() > lock.getFencingToken());
+            redisDistributedLock.unlock(acquired);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void unlockFromAnotherThread() throws Exception {
+        String lockName = newLockName();
+        String otherName = newLockName();
+        RedisDistributedLock.Lock lock = redisDistributedLock.tryLock(lockName, 0, 60000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // 持有锁期间 不阻塞本节点的其它锁
+            assertNotNull(executor.submit(() -> redisDistributedLock.tryLock(otherName, 0, 60000)).get(5, TimeUnit.SECONDS));
+            assertTrue(executor.submit(() -> redisDistributedLock.unlock(lock)).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertNotNull(redisDistributedLock.tryLock(lockName, 0, 60000));
+        assertEquals(0, redisDistributedLock.getCompetingCount());
+    }
+
+    @Test
+    public void expiredLeaseDoesNotBlock() throws Exception {
+        String lockName = newLockName();
+        assertNotNull(redisDistributedLock.tryLock(lockName, 0, 200));
+        // 租约过期 且未解锁时 可再次加锁
+        assertNotNull(redisDistributedLock.tryLock(lockName, 2000, 200));
+    }
+
+    @Test
+    public void fencingToken() {
+        String lockName = newLockName();
+        RedisDistributedLock.Lock first = redisDistributedLock.tryLock(lockName, 0, 60000);
+        assertTrue(redisDistributedLock.validateFencingToken(lockName, first.getFencingToken()));
+        redisDistributedLock.unlock(first);
+        RedisDistributedLock.Lock second = redisDistributedLock.tryLock(lockName, 0, 60000);
+        assertEquals(first.getFencingToken() + 1, second.getFencingToken());
+        assertFalse(redisDistributedLock.validateFencingToken(lockName, first.getFencingToken()));
+        assertTrue(redisDistributedLock.validateFencingToken(lockName, second.getFencingToken()));
+        redisDistributedLock.unlock(second);
+    }
+
+    @Test
+    public void watchdogRenewal() throws Exception {
+        redisDistributedLock.setWatchdogLeaseMillis(300L);
+        String lockName = newLockName();
+        RedisDistributedLock.Lock lock = redisDistributedLock.tryLock(lockName, 0, 0);
+        assertNotNull(lock);
+        // 超过多个租约时长后 仍被持有
+        Thread.sleep(1000);
+        assertEquals(lock.getValue(), stringRedisTemplate.opsForValue().get(lockName));
+        assertNull(redisDistributedLock.tryLock(lockName, 100, 0));
+        assertTrue(redisDistributedLock.unlock(lock));
+        // 解锁后停止续期
+        Thread.sleep(200);
+        assertNull(stringRedisTemplate.opsForValue().get(lockName));
+    }
+
+    private String newLockName() {
+        String lockName = "lock-test-" + IdUtil.fastSimpleUUID();
+        lockNames.add(lockName);
+        return lockName;
+    }
+}
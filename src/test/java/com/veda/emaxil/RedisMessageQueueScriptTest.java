@@ -0,0 +1,214 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.util.IdUtil;
+import com.alibaba.fastjson.JSON;
+import com.veda.emaxil.util.RedisMessageQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 直接验证 RedisMessageQueue 的 Lua 脚本
+ * 连接 -Demaxil.load.redis=host:port 的 14 号库, 未设置时跳过, 见 RedisTestSupport
+ */
+public class RedisMessageQueueScriptTest {
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RedisMessageQueue redisMessageQueue;
+
+    private final List<String> queueNames = new ArrayList<>();
+
+    @BeforeEach
+    public void connect() {
+        connectionFactory = RedisTestSupport.connect();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        redisMessageQueue = new RedisMessageQueue();
+        ReflectionTestUtils.setField(redisMessageQueue, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @AfterEach
+    public void deleteQueues() {
+        if (Objects.isNull(connectionFactory)) {
+            return;
+        }
+        queueNames.forEach(queueName -> stringRedisTemplate.delete(Arrays.asList(queueName, "ack-z-" + queueName,
+                "ack-" + queueName, "notify-" + queueName, "delay-" + queueName)));
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void duplicateValuesAreDistinctMessages() {
+        String queueName = newQueueName();
+        List<RedisMessageQueue.QueueValue> added = redisMessageQueue.addValues(queueName, Arrays.asList("same", "same", "same"));
+        assertEquals(3, added.stream().map(RedisMessageQueue.QueueValue::getUniqueId).distinct().count());
+
+        List<RedisMessageQueue.QueueValue> queueValues = redisMessageQueue.getValues(queueName, 10, 0);
+        assertEquals(3, queueValues.size());
+        assertEquals(3, redisMessageQueue.ackSize(queueName));
+        // 确认其中一个 不影响另外两个的跟踪
+        assertTrue(redisMessageQueue.ackValue(queueName, queueValues.get(0)));
+        assertFalse(redisMessageQueue.ackValue(queueName, queueValues.get(0)));
+        assertEquals(2, redisMessageQueue.ackSize(queueName));
+        assertEquals(2, redisMessageQueue.ackValues(queueName, queueValues.subList(1, 3)));
+        assertEquals(0, redisMessageQueue.ackSize(queueName));
+    }
+
+    @Test
+    public void batchCrossesPushBatchSize() {
+        String queueName = newQueueName();
+        List<String> values = IntStream.range(0, 2500).mapToObj(String::valueOf).collect(Collectors.toList());
+        List<RedisMessageQueue.QueueValue> added = redisMessageQueue.addValues(queueName, values);
+        assertEquals(values, added.stream().map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toList()));
+        assertEquals(2500, redisMessageQueue.size(queueName));
+
+        // 先推送的先出队
+        List<RedisMessageQueue.QueueValue> queueValues = new ArrayList<>();
+        while (queueValues.size() < values.size()) {
+            List<RedisMessageQueue.QueueValue> batch = redisMessageQueue.getValues(queueName, 700, 0);
+            assertFalse(batch.isEmpty());
+            queueValues.addAll(batch);
+        }
+        assertEquals(values, queueValues.stream().map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toList()));
+        assertTrue(queueValues.stream().allMatch(queueValue -> queueName.equals(queueValue.getQueueName())));
+        assertEquals(0, redisMessageQueue.size(queueName));
+        assertEquals(2500, redisMessageQueue.ackSize(queueName));
+        assertEquals(2500, redisMessageQueue.ackValues(queueName, queueValues));
+        assertEquals(0, redisMessageQueue.ackSize(queueName));
+    }
+
+    @Test
+    public void getValuesFromMultipleQueues() {
+        String high = newQueueName();
+        String low = newQueueName();
+        redisMessageQueue.addValues(low, Arrays.asList("l0", "l1", "l2"));
+        redisMessageQueue.addValues(high, Arrays.asList("h0", "h1"));
+
+        // 靠前的队列优先出队, 不足时 从后面的队列补足
+        List<RedisMessageQueue.QueueValue> queueValues = redisMessageQueue.getValues(Arrays.asList(high, low), 4, 0);
+        assertEquals(Arrays.asList("h0", "h1", "l0", "l1"), queueValues.stream().map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toList()));
+        assertEquals(Arrays.asList(high, high, low, low), queueValues.stream().map(RedisMessageQueue.QueueValue::getQueueName).collect(Collectors.toList()));
+        assertEquals(2, redisMessageQueue.ackSize(high));
+        assertEquals(2, redisMessageQueue.ackSize(low));
+        assertEquals(1, redisMessageQueue.size(low));
+
+        for (RedisMessageQueue.QueueValue queueValue : queueValues) {
+            assertTrue(redisMessageQueue.ackValue(queueValue.getQueueName(), queueValue));
+        }
+        assertEquals(0, redisMessageQueue.ackSize(high));
+        assertEquals(0, redisMessageQueue.ackSize(low));
+        assertTrue(redisMessageQueue.getValues(Collections.singletonList(high), 4, 0).isEmpty());
+    }
+
+    @Test
+    public void expiredValuesAreRequeuedToHead() throws InterruptedException {
+        String queueName = newQueueName();
+        ReflectionTestUtils.setField(redisMessageQueue, "ackTimeoutMillis", 200L);
+        redisMessageQueue.addValues(queueName, Arrays.asList("a", "b", "c"));
+        List<RedisMessageQueue.QueueValue> queueValues = redisMessageQueue.getValues(queueName, 2, 0);
+        assertEquals(Arrays.asList("a", "b"), queueValues.stream().map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toList()));
+
+        // 未到截止时间 不重新入队
+        redisMessageQueue.ackClean(queueName);
+        assertEquals(2, redisMessageQueue.ackSize(queueName));
+        Thread.sleep(400);
+        redisMessageQueue.ackClean(queueName);
+        assertEquals(0, redisMessageQueue.ackSize(queueName));
+        assertEquals(3, redisMessageQueue.size(queueName));
+        // 重新入队的消息 放在出队端 优先于尚未消费的消息
+        List<RedisMessageQueue.QueueValue> requeued = redisMessageQueue.getValues(queueName, 3, 0);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), requeued.subList(0, 2).stream().map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toSet()));
+        assertEquals("c", requeued.get(2).getValue());
+        assertEquals(queueValues.stream().map(RedisMessageQueue.QueueValue::getUniqueId).collect(Collectors.toSet()),
+                requeued.subList(0, 2).stream().map(RedisMessageQueue.QueueValue::getUniqueId).collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void extendValueDefersRequeue() throws InterruptedException {
+        String queueName = newQueueName();
+        ReflectionTestUtils.setField(redisMessageQueue, "ackTimeoutMillis", 300L);
+        redisMessageQueue.addValue(queueName, "a");
+        RedisMessageQueue.QueueValue queueValue = redisMessageQueue.getValues(queueName, 1, 0).get(0);
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(150);
+            assertTrue(redisMessageQueue.extendValue(queueName, queueValue));
+            redisMessageQueue.ackClean(queueName);
+        }
+        // 不断延长时 超过多个超时时长 仍未重新入队
+        assertEquals(1, redisMessageQueue.ackSize(queueName));
+        assertEquals(0, redisMessageQueue.size(queueName));
+        assertTrue(redisMessageQueue.ackValue(queueName, queueValue));
+        // 已确认的消息 不能再延长
+        assertFalse(redisMessageQueue.extendValue(queueName, queueValue));
+
+        redisMessageQueue.addValue(queueName, "b");
+        RedisMessageQueue.QueueValue expired = redisMessageQueue.getValues(queueName, 1, 0).get(0);
+        Thread.sleep(400);
+        redisMessageQueue.ackClean(queueName);
+        // 已超时重新入队的消息 不能再延长
+        assertFalse(redisMessageQueue.extendValue(queueName, expired));
+    }
+
+    @Test
+    public void ackFallsBackToRequeuedValue() throws InterruptedException {
+        String queueName = newQueueName();
+        ReflectionTestUtils.setField(redisMessageQueue, "ackTimeoutMillis", 100L);
+        redisMessageQueue.addValue(queueName, "a");
+        RedisMessageQueue.QueueValue queueValue = redisMessageQueue.getValues(queueName, 1, 0).get(0);
+        Thread.sleep(300);
+        redisMessageQueue.ackClean(queueName);
+        assertEquals(0, redisMessageQueue.ackSize(queueName));
+        assertEquals(1, redisMessageQueue.size(queueName));
+        // ACK 有序集合中已没有该消息 从原队列中移除
+        assertTrue(redisMessageQueue.ackValue(queueName, queueValue));
+        assertEquals(0, redisMessageQueue.size(queueName));
+        assertFalse(redisMessageQueue.ackValue(queueName, queueValue));
+    }
+
+    @Test
+    public void legacyAckListIsRequeuedAfterTimeout() {
+        String queueName = newQueueName();
+        ReflectionTestUtils.setField(redisMessageQueue, "ackTimeoutMillis", 60000L);
+        // 旧版本出队 尚未 ACK 的消息, 没有 uniqueId
+        String expired = JSON.toJSONString(new LegacyValue("expired", System.currentTimeMillis() - 120000L));
+        String consuming = JSON.toJSONString(new LegacyValue("consuming", System.currentTimeMillis()));
+        stringRedisTemplate.opsForList().leftPushAll("ack-" + queueName, expired, consuming);
+
+        redisMessageQueue.ackClean(queueName);
+        // 超时的消息重新入队, 未超时的消息 留给旧版本的消费者 ACK
+        assertEquals(Collections.singletonList(consuming), stringRedisTemplate.opsForList().range("ack-" + queueName, 0, -1));
+        List<RedisMessageQueue.QueueValue> queueValues = redisMessageQueue.getValues(queueName, 10, 0);
+        assertEquals(1, queueValues.size());
+        assertEquals("expired", queueValues.get(0).getValue());
+        assertNull(queueValues.get(0).getUniqueId());
+        assertEquals(1, redisMessageQueue.ackSize(queueName));
+        assertTrue(redisMessageQueue.ackValue(queueName, queueValues.get(0)));
+    }
+
+    private String newQueueName() {
+        String queueName = "queue-test-" + IdUtil.fastSimpleUUID();
+        queueNames.add(queueName);
+        return queueName;
+    }
+
+    public static class LegacyValue {
+        public String value;
+        public Long timestamp;
+
+        LegacyValue(String value, Long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.util.IdUtil;
+import com.veda.emaxil.util.RedisMessageQueue;
+import com.veda.emaxil.util.RedisStreamMessageQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 需要 Redis 6.2 及以上版本
+ * 连接 -Demaxil.load.redis=host:port 的 14 号库, 未设置时跳过, 见 RedisTestSupport
+ */
+public class RedisStreamMessageQueueTest {
+
+    /**
+     * 返回消费组 ARGV[1] 中的消费者名称
+     */
+    private static final DefaultRedisScript<List> CONSUMERS_SCRIPT = new DefaultRedisScript<>(
+            "local names = {} " +
+            "for _, consumer in ipairs(redis.call('XINFO', 'CONSUMERS', KEYS[1], ARGV[1])) do " +
+            "  for i = 1, #consumer, 2 do if consumer[i] == 'name' then table.insert(names, consumer[i + 1]) end end " +
+            "end " +
+            "return names", List.class);
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RedisStreamMessageQueue messageQueue;
+
+    private final List<String> queueNames = new ArrayList<>();
+
+    @BeforeEach
+    public void connect() {
+        connectionFactory = RedisTestSupport.connect();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        messageQueue = newMessageQueue("stream-test-consumer");
+    }
+
+    @AfterEach
+    public void deleteQueues() {
+        if (Objects.isNull(connectionFactory)) {
+            return;
+        }
+        queueNames.forEach(queueName -> stringRedisTemplate.delete(Arrays.asList(queueName, "delay-" + queueName)));
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void addGetAck() {
+        String queueName = newQueueName();
+        messageQueue.addValues(queueName, Arrays.asList("a", "a", "b"));
+        assertEquals(3, messageQueue.size(queueName));
+        List<RedisMessageQueue.QueueValue> queueValues = messageQueue.getValues(queueName, 10, 0);
+        assertEquals(Arrays.asList("a", "a", "b"), queueValues.stream().map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toList()));
+        assertEquals(3, queueValues.stream().map(RedisMessageQueue.QueueValue::getId).distinct().count());
+        assertEquals(0, messageQueue.size(queueName));
+        assertEquals(3, messageQueue.ackSize(queueName));
+        assertEquals(Collections.singletonMap("stream-test-consumer", 3L), messageQueue.getPendingCounts(queueName));
+
+        // XACK 后 XDEL, 队列中不再保留已确认的消息
+        assertEquals(3, messageQueue.ackValues(queueName, queueValues));
+        assertEquals(0, messageQueue.ackSize(queueName));
+        assertEquals(0L, stringRedisTemplate.opsForStream().size(queueName));
+        assertFalse(messageQueue.ackValue(queueName, queueValues.get(0)));
+    }
+
+    @Test
+    public void reclaimIdlePendingValues() throws InterruptedException {
+        String queueName = newQueueName();
+        ReflectionTestUtils.setField(messageQueue, "ackTimeoutMillis", 200L);
+        messageQueue.addValues(queueName, Arrays.asList("a", "b"));
+        List<RedisMessageQueue.QueueValue> queueValues = messageQueue.getValues(queueName, 2, 0);
+        assertTrue(messageQueue.ackValue(queueName, queueValues.get(1)));
+
+        // 未超时 不取回
+        messageQueue.ackClean(queueName);
+        assertEquals(1, messageQueue.ackSize(queueName));
+        Thread.sleep(400);
+        // 其它节点的 ackClean 也能取回该消费者超时的消息
+        RedisStreamMessageQueue otherQueue = newMessageQueue("stream-test-other");
+        ReflectionTestUtils.setField(otherQueue, "ackTimeoutMillis", 200L);
+        otherQueue.ackClean(queueName);
+        assertEquals(0, messageQueue.ackSize(queueName));
+        assertEquals(1, messageQueue.size(queueName));
+        // 取回的消息以新的ID 重新入队, 原消息已被删除 不能再 ACK
+        assertFalse(messageQueue.ackValue(queueName, queueValues.get(0)));
+        List<RedisMessageQueue.QueueValue> requeued = messageQueue.getValues(queueName, 10, 0);
+        assertEquals(1, requeued.size());
+        assertEquals("a", requeued.get(0).getValue());
+        assertEquals(queueValues.get(0).getTimestamp(), requeued.get(0).getTimestamp());
+        assertNotEquals(queueValues.get(0).getId(), requeued.get(0).getId());
+        assertTrue(messageQueue.ackValue(queueName, requeued.get(0)));
+    }
+
+    @Test
+    public void extendValueDefersReclaim() throws InterruptedException {
+        String queueName = newQueueName();
+        ReflectionTestUtils.setField(messageQueue, "ackTimeoutMillis", 300L);
+        messageQueue.addValue(queueName, "a");
+        RedisMessageQueue.QueueValue queueValue = messageQueue.getValues(queueName, 1, 0).get(0);
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(150);
+            assertTrue(messageQueue.extendValue(queueName, queueValue));
+            messageQueue.ackClean(queueName);
+        }
+        assertEquals(1, messageQueue.ackSize(queueName));
+        assertEquals(0, messageQueue.size(queueName));
+        assertTrue(messageQueue.ackValue(queueName, queueValue));
+        assertFalse(messageQueue.extendValue(queueName, queueValue));
+    }
+
+    @Test
+    public void delayedValues() throws InterruptedException {
+        String queueName = newQueueName();
+        messageQueue.addDelayedValue(queueName, "later", 300);
+        messageQueue.addDelayedValue(queueName, "later", 300);
+        messageQueue.addDelayedValue(queueName, "now", 0);
+        assertEquals(1, messageQueue.pumpDelayedValues(queueName));
+        assertEquals(Collections.singletonList("now"), messageQueue.getValues(queueName, 10, 0).stream()
+                .map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toList()));
+        Thread.sleep(400);
+        // 相同的值 是不同的延迟消息
+        assertEquals(2, messageQueue.pumpDelayedValues(queueName));
+        assertEquals(0, messageQueue.pumpDelayedValues(queueName));
+        List<RedisMessageQueue.QueueValue> queueValues = messageQueue.getValues(queueName, 10, 0);
+        assertEquals(Arrays.asList("later", "later"), queueValues.stream().map(RedisMessageQueue.QueueValue::getValue).collect(Collectors.toList()));
+        assertTrue(queueValues.stream().allMatch(queueValue -> Objects.nonNull(queueValue.getTimestamp())));
+    }
+
+    @Test
+    public void deleteConsumerWithoutPending() {
+        String queueName = newQueueName();
+        messageQueue.addValue(queueName, "a");
+        RedisMessageQueue.QueueValue queueValue = messageQueue.getValues(queueName, 1, 0).get(0);
+        // 仍有待确认消息时 保留消费者
+        messageQueue.deleteConsumer();
+        assertEquals(Collections.singletonList("stream-test-consumer"), getConsumers(queueName));
+        assertTrue(messageQueue.ackValue(queueName, queueValue));
+        messageQueue.deleteConsumer();
+        assertTrue(getConsumers(queueName).isEmpty());
+
+        // 重启后使用相同的消费者名称
+        RedisStreamMessageQueue restarted = newMessageQueue("stream-test-consumer");
+        restarted.addValue(queueName, "b");
+        assertEquals(1, restarted.getValues(queueName, 1, 0).size());
+        assertEquals(Collections.singletonList("stream-test-consumer"), getConsumers(queueName));
+    }
+
+    private RedisStreamMessageQueue newMessageQueue(String consumerName) {
+        RedisStreamMessageQueue redisStreamMessageQueue = new RedisStreamMessageQueue();
+        ReflectionTestUtils.setField(redisStreamMessageQueue, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(redisStreamMessageQueue, "consumerName", consumerName);
+        return redisStreamMessageQueue;
+    }
+
+    private List<String> getConsumers(String queueName) {
+        List<?> names = stringRedisTemplate.execute(CONSUMERS_SCRIPT, Collections.singletonList(queueName), "emaxil");
+        return Objects.requireNonNull(names).stream().map(String::valueOf).collect(Collectors.toList());
+    }
+
+    private String newQueueName() {
+        String queueName = "stream-test-" + IdUtil.fastSimpleUUID();
+        queueNames.add(queueName);
+        return queueName;
+    }
+}
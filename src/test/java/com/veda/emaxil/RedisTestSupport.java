@@ -0,0 +1,42 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 需要 Redis 的测试 连接 -Demaxil.load.redis=host:port 的 14 号库, 测试可能清空该库
+ * 未设置该属性时 跳过这些测试, 避免默认的 mvn test 修改开发者本地的 Redis
+ */
+final class RedisTestSupport {
+
+    static final String REDIS_PROPERTY = "emaxil.load.redis";
+
+    static final int REDIS_DATABASE = 14;
+
+    private RedisTestSupport() {
+    }
+
+    /**
+     * 未设置 emaxil.load.redis 时 跳过当前测试
+     */
+    static void assumeRedis() {
+        assumeTrue(StrUtil.isNotBlank(System.getProperty(REDIS_PROPERTY)), "-D" + REDIS_PROPERTY + "=host:port not set, skip redis test");
+    }
+
+    /**
+     * @return 已初始化的连接工厂, 使用后需要 destroy
+     */
+    static LettuceConnectionFactory connect() {
+        assumeRedis();
+        String address = System.getProperty(REDIS_PROPERTY);
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                StrUtil.subBefore(address, ":", true), Integer.parseInt(StrUtil.subAfter(address, ":", true)));
+        configuration.setDatabase(REDIS_DATABASE);
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        return connectionFactory;
+    }
+}
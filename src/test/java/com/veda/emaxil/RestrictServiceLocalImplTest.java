@@ -0,0 +1,120 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.EmaxilCore;
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.restrict.RestrictServiceLocalImpl;
+import com.veda.emaxil.core.service.EmailSendAccountService;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.veda.emaxil.RestrictTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RestrictServiceLocalImplTest {
+
+    private final RestrictServiceLocalImpl<AbstractAccount, AbstractEmail> restrictService = new RestrictServiceLocalImpl<>();
+
+    @Test
+    public void rangeTimeRestrict() throws InterruptedException {
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 200, 3));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(restrictService.canSend(account, new EmailSendTask<>(String.valueOf(i), 0)));
+        }
+        assertFalse(restrictService.canSend(account, new EmailSendTask<>("3", 0)));
+        assertFalse(account.isEnable());
+        // 窗口滑过后 重新可用
+        Thread.sleep(250);
+        List<EmailSendAccount<AbstractAccount>> accounts = Collections.singletonList(account);
+        restrictService.updateEmailSendAccountEnable(accounts, true);
+        assertTrue(account.isEnable());
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("4", 0)));
+    }
+
+    @Test
+    public void pointTimeRestrict() {
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 3600_000, 2));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("1", 0)));
+        assertFalse(restrictService.canSend(account, new EmailSendTask<>("2", 0)));
+    }
+
+    @Test
+    public void allRestrictsMustPass() {
+        EmailSendAccount<AbstractAccount> account = newAccount(
+                restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 5),
+                restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 3600_000, 1));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        assertFalse(restrictService.canSend(account, new EmailSendTask<>("1", 0)));
+    }
+
+    @Test
+    public void deleteStatistic() {
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 1));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        List<EmailSendAccount<AbstractAccount>> accounts = Collections.singletonList(account);
+        restrictService.deleteEmailSendAccountStatistic(accounts, System.currentTimeMillis() + 1);
+        restrictService.updateEmailSendAccountEnable(accounts, false);
+        assertTrue(account.isEnable());
+    }
+
+    @Test
+    public void utilization() throws InterruptedException {
+        EmailSendRestrict rangeRestrict = restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 200, 4);
+        EmailSendRestrict pointRestrict = restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 3600_000, 10);
+        EmailSendAccount<AbstractAccount> account = newAccount(rangeRestrict, pointRestrict);
+        assertEquals(0D, restrictService.getUtilization(account, rangeRestrict));
+        for (int i = 0; i < 2; i++) {
+            assertTrue(restrictService.canSend(account, new EmailSendTask<>(String.valueOf(i), 0)));
+        }
+        assertEquals(0.5D, restrictService.getUtilization(account, rangeRestrict));
+        assertEquals(0.2D, restrictService.getUtilization(account, pointRestrict), 1e-9);
+        // 窗口滑过后 使用比例归零
+        Thread.sleep(250);
+        assertEquals(0D, restrictService.getUtilization(account, rangeRestrict));
+        assertTrue(Double.isNaN(restrictService.getUtilization(account, restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 1, 1))));
+    }
+
+    @Test
+    public void reloadKeepsStatistic() {
+        List<EmailSendAccount<SmtpAccount>> loadedAccounts = new ArrayList<>();
+        loadedAccounts.add(newSmtpAccount("password", restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 2)));
+        EmaxilCore<SmtpAccount, AbstractEmail> core = new EmaxilCore<>();
+        RestrictServiceLocalImpl<SmtpAccount, AbstractEmail> smtpRestrictService = new RestrictServiceLocalImpl<>();
+        ReflectionTestUtils.setField(core, "restrictService", smtpRestrictService);
+        ReflectionTestUtils.setField(core, "emailSendAccountService", (EmailSendAccountService<SmtpAccount>) () -> new ArrayList<>(loadedAccounts));
+        assertTrue(core.reloadEmailSendAccounts());
+        EmailSendAccount<SmtpAccount> account = core.getEmailSendAccounts().get(0);
+        assertTrue(smtpRestrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        assertTrue(smtpRestrictService.canSend(account, new EmailSendTask<>("1", 0)));
+
+        // 只修改密码 以新实例替换后 已发送的统计数据保留
+        loadedAccounts.set(0, newSmtpAccount("new-password", restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 2)));
+        assertTrue(core.reloadEmailSendAccounts());
+        EmailSendAccount<SmtpAccount> replaced = core.getEmailSendAccounts().get(0);
+        assertNotSame(account, replaced);
+        assertFalse(replaced.isEnable());
+        assertFalse(smtpRestrictService.canSend(replaced, new EmailSendTask<>("2", 0)));
+        // 仍在发送中的旧实例 与新实例 共用同一份统计数据
+        assertFalse(smtpRestrictService.canSend(account, new EmailSendTask<>("3", 0)));
+        assertFalse(smtpRestrictService.canSend(replaced, new EmailSendTask<>("4", 0)));
+
+        // 增加限制规则时 未变化的规则 保留其统计窗口
+        loadedAccounts.set(0, newSmtpAccount("new-password", restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 2),
+                restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 3600_000, 100)));
+        assertTrue(core.reloadEmailSendAccounts());
+        assertFalse(smtpRestrictService.canSend(core.getEmailSendAccounts().get(0), new EmailSendTask<>("5", 0)));
+    }
+
+    private static EmailSendAccount<SmtpAccount> newSmtpAccount(String password, EmailSendRestrict... restricts) {
+        SmtpAccount smtpAccount = new SmtpAccount();
+        smtpAccount.setHost("smtp.example.com");
+        smtpAccount.setUsername("sender@example.com");
+        smtpAccount.setPassword(password);
+        return new EmailSendAccount<>("account", smtpAccount, new EmailServiceProvider(), Arrays.asList(restricts));
+    }
+}
@@ -0,0 +1,105 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.restrict.RestrictServiceRedisBucketImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static com.veda.emaxil.RestrictTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 连接 -Demaxil.load.redis=host:port 的 14 号库, 未设置时跳过, 见 RedisTestSupport
+ */
+public class RestrictServiceRedisBucketImplTest {
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final RestrictServiceRedisBucketImpl<AbstractAccount, AbstractEmail> restrictService = new RestrictServiceRedisBucketImpl<>();
+
+    @BeforeEach
+    public void connect() {
+        connectionFactory = RedisTestSupport.connect();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        ReflectionTestUtils.setField(restrictService, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @AfterEach
+    public void deleteStatistics() {
+        if (Objects.isNull(connectionFactory)) {
+            return;
+        }
+        RestrictTestSupport.deleteStatistics(stringRedisTemplate);
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void rangeTimeRestrict() throws InterruptedException {
+        restrictService.setPrecision(10);
+        EmailSendRestrict restrict = restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 1000, 3);
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(restrictService.canSend(account, new EmailSendTask<>(String.valueOf(i), 0)));
+        }
+        assertFalse(restrictService.canSend(account, new EmailSendTask<>("3", 0)));
+        assertFalse(account.isEnable());
+        // 最早的桶滑出范围后 重新可用, 最多晚一个桶的时间
+        long nextEnableAt = account.getNextEnableAt();
+        assertTrue(nextEnableAt > start + 1000 && nextEnableAt <= System.currentTimeMillis() + 1100, "nextEnableAt " + (nextEnableAt - start));
+        assertEquals(1D, restrictService.getUtilization(account, restrict), 1e-9);
+
+        restrictService.updateEmailSendAccountEnable(Collections.singletonList(account), true);
+        assertFalse(account.isEnable());
+        Thread.sleep(Math.max(0L, nextEnableAt - System.currentTimeMillis()) + 50);
+        restrictService.updateEmailSendAccountEnable(Collections.singletonList(account), true);
+        assertTrue(account.isEnable());
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("4", 0)));
+
+        String key = bucketKey(account, restrict);
+        Long ttl = stringRedisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+        assertTrue(ttl > 0 && ttl <= 1100, "ttl " + ttl);
+    }
+
+    @Test
+    public void memoryIndependentOfVolume() throws InterruptedException {
+        restrictService.setPrecision(3);
+        EmailSendRestrict rangeRestrict = restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 300, 1000);
+        EmailSendRestrict pointRestrict = restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 3600_000, 1000);
+        EmailSendAccount<AbstractAccount> account = newAccount(rangeRestrict, pointRestrict);
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 10; j++) {
+                assertTrue(restrictService.canSend(account, new EmailSendTask<>(i + "-" + j, 0)));
+            }
+            Thread.sleep(40);
+        }
+        // 300ms 分为 3 个 100ms 的桶, 滑出范围的桶被删除
+        assertTrue(stringRedisTemplate.opsForHash().size(bucketKey(account, rangeRestrict)) <= 5);
+        assertEquals(1L, stringRedisTemplate.opsForHash().size(bucketKey(account, pointRestrict)));
+        assertEquals(0.2D, restrictService.getUtilization(account, pointRestrict), 1e-9);
+        // 只统计最近 300ms 和 最早的一个桶内的发送
+        double rangeUtilization = restrictService.getUtilization(account, rangeRestrict);
+        assertTrue(rangeUtilization > 0D && rangeUtilization < 0.2D, "utilization " + rangeUtilization);
+    }
+
+    @Test
+    public void rejectInvalidPrecision() {
+        assertThrows(IllegalArgumentException.class, () -> restrictService.setPrecision(0));
+        assertThrows(IllegalArgumentException.class, () -> restrictService.setPrecision(RestrictServiceRedisBucketImpl.MAX_PRECISION + 1));
+    }
+
+    private static String bucketKey(EmailSendAccount<AbstractAccount> account, EmailSendRestrict restrict) {
+        return StrUtil.format("{}-statistic-{}-{}", account.getId(), restrict.getTimeValue(), restrict.getTimeType().name());
+    }
+}
@@ -0,0 +1,130 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.restrict.RestrictServiceRedisImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static com.veda.emaxil.RestrictTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 连接 -Demaxil.load.redis=host:port 的 14 号库, 未设置时跳过, 见 RedisTestSupport
+ */
+public class RestrictServiceRedisImplTest {
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final RestrictServiceRedisImpl<AbstractAccount, AbstractEmail> restrictService = new RestrictServiceRedisImpl<>();
+
+    @BeforeEach
+    public void connect() {
+        connectionFactory = RedisTestSupport.connect();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        ReflectionTestUtils.setField(restrictService, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @AfterEach
+    public void deleteStatistics() {
+        if (Objects.isNull(connectionFactory)) {
+            return;
+        }
+        RestrictTestSupport.deleteStatistics(stringRedisTemplate);
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void updateEmailSendAccountEnableInOnePipeline() throws InterruptedException {
+        EmailSendAccount<AbstractAccount> shortWindow = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 300, 2));
+        EmailSendAccount<AbstractAccount> longWindow = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 3600_000, 1));
+        EmailSendAccount<AbstractAccount> unused = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 1));
+        List<EmailSendAccount<AbstractAccount>> accounts = Arrays.asList(shortWindow, longWindow, unused);
+        // 启动时检验所有账户
+        restrictService.updateEmailSendAccountEnable(accounts, false);
+        assertTrue(accounts.stream().allMatch(EmailSendAccount::isEnable));
+
+        assertTrue(restrictService.canSend(shortWindow, new EmailSendTask<>("0", 0)));
+        assertTrue(restrictService.canSend(shortWindow, new EmailSendTask<>("1", 0)));
+        assertFalse(restrictService.canSend(shortWindow, new EmailSendTask<>("2", 0)));
+        assertTrue(restrictService.canSend(longWindow, new EmailSendTask<>("3", 0)));
+        assertFalse(restrictService.canSend(longWindow, new EmailSendTask<>("4", 0)));
+        long shortNextEnableAt = shortWindow.getNextEnableAt();
+        assertTrue(shortNextEnableAt > System.currentTimeMillis());
+
+        // 窗口滑过之前 仍不可用, 检验不添加发送记录
+        restrictService.updateEmailSendAccountEnable(accounts, true);
+        assertFalse(shortWindow.isEnable());
+        assertEquals(shortNextEnableAt, shortWindow.getNextEnableAt());
+        assertEquals(2L, stringRedisTemplate.opsForZSet().zCard(shortWindow.getId() + "-statistic"));
+
+        Thread.sleep(Math.max(0L, shortNextEnableAt - System.currentTimeMillis()) + 50);
+        restrictService.updateEmailSendAccountEnable(accounts, true);
+        assertTrue(shortWindow.isEnable());
+        assertEquals(0L, shortWindow.getNextEnableAt());
+        assertFalse(longWindow.isEnable());
+        assertTrue(longWindow.getNextEnableAt() > System.currentTimeMillis());
+        assertTrue(unused.isEnable());
+    }
+
+    @Test
+    public void canSendChecksEveryRestrict() {
+        // 所有规则都通过时 记录本次发送
+        EmailSendAccount<AbstractAccount> rangeLimited = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 10_000, 2),
+                restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 3600_000, 100));
+        long now = System.currentTimeMillis();
+        String key = rangeLimited.getId() + "-statistic";
+        stringRedisTemplate.opsForZSet().add(key, "old", now - 20_000);
+        stringRedisTemplate.opsForZSet().add(key, "a", now - 3000);
+        assertTrue(restrictService.canSend(rangeLimited, new EmailSendTask<>("b", 0)));
+        assertEquals(3L, stringRedisTemplate.opsForZSet().zCard(key));
+
+        // 任一规则不通过时 不记录, 重新可用时间为 使窗口内记录数小于限制数值 需要滑出的记录 滑出窗口的时间
+        stringRedisTemplate.opsForZSet().add(key, "c", now - 2000);
+        assertFalse(restrictService.canSend(rangeLimited, new EmailSendTask<>("d", 0)));
+        assertFalse(rangeLimited.isEnable());
+        assertEquals(4L, stringRedisTemplate.opsForZSet().zCard(key));
+        double slideOut = stringRedisTemplate.opsForZSet().score(key, "c");
+        assertEquals((long) slideOut + 10_000 + 1, rangeLimited.getNextEnableAt());
+
+        // POINT_TIME 不通过时 在下个时间段开始时重新可用
+        EmailSendAccount<AbstractAccount> pointLimited = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 100),
+                restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 10_000, 1));
+        awayFromPeriodEnd(10_000);
+        assertTrue(restrictService.canSend(pointLimited, new EmailSendTask<>("0", 0)));
+        assertFalse(restrictService.canSend(pointLimited, new EmailSendTask<>("1", 0)));
+        assertEquals(0, pointLimited.getNextEnableAt() % 10_000);
+        assertTrue(pointLimited.getNextEnableAt() > System.currentTimeMillis());
+        assertTrue(pointLimited.getNextEnableAt() <= System.currentTimeMillis() + 10_000);
+
+        // 多条规则不通过时 取最晚的重新可用时间
+        EmailSendAccount<AbstractAccount> bothLimited = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 1),
+                restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 10_000, 1));
+        assertTrue(restrictService.canSend(bothLimited, new EmailSendTask<>("0", 0)));
+        assertFalse(restrictService.canSend(bothLimited, new EmailSendTask<>("1", 0)));
+        double sent = stringRedisTemplate.opsForZSet().rangeWithScores(bothLimited.getId() + "-statistic", 0, 0).iterator().next().getScore();
+        assertEquals((long) sent + 3600_000 + 1, bothLimited.getNextEnableAt());
+        assertEquals(1L, stringRedisTemplate.opsForZSet().zCard(bothLimited.getId() + "-statistic"));
+    }
+
+    @Test
+    public void retriedTaskIsCountedAgain() {
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 2));
+        EmailSendTask<AbstractEmail> emailSendTask = new EmailSendTask<>("0", 0);
+        // 同一任务重试 落在同一账户时 每次发送都记录
+        assertTrue(restrictService.canSend(account, emailSendTask));
+        emailSendTask.setRetryCount(1);
+        assertTrue(restrictService.canSend(account, emailSendTask));
+        assertEquals(2L, stringRedisTemplate.opsForZSet().zCard(account.getId() + "-statistic"));
+        assertFalse(restrictService.canSend(account, emailSendTask));
+    }
+}
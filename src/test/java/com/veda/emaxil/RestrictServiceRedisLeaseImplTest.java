@@ -0,0 +1,120 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.*;
+import com.veda.emaxil.core.restrict.RestrictServiceRedisLeaseImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Objects;
+import java.util.Set;
+
+import static com.veda.emaxil.RestrictTestSupport.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 连接 -Demaxil.load.redis=host:port 的 14 号库, 未设置时跳过, 见 RedisTestSupport
+ */
+public class RestrictServiceRedisLeaseImplTest {
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final RestrictServiceRedisLeaseImpl<AbstractAccount, AbstractEmail> restrictService = new RestrictServiceRedisLeaseImpl<>();
+
+    @BeforeEach
+    public void connect() {
+        connectionFactory = RedisTestSupport.connect();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        ReflectionTestUtils.setField(restrictService, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @AfterEach
+    public void deleteStatistics() {
+        if (Objects.isNull(connectionFactory)) {
+            return;
+        }
+        restrictService.returnAllLeases();
+        RestrictTestSupport.deleteStatistics(stringRedisTemplate);
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void grantIsClampedToRemainingQuota() {
+        restrictService.setLeaseSize(10);
+        restrictService.setLeaseMillis(60000L);
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 3));
+        // 只预留剩余的 3 个名额
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        assertEquals(3L, zCard(account));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("1", 0)));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("2", 0)));
+        assertEquals(3L, zCard(account));
+
+        // 用完后 申请不到名额, 重新可用时间为 最早的记录滑出窗口的时间
+        long before = System.currentTimeMillis();
+        assertFalse(restrictService.canSend(account, new EmailSendTask<>("3", 0)));
+        assertFalse(account.isEnable());
+        double oldest = stringRedisTemplate.opsForZSet().rangeWithScores(account.getId() + "-statistic", 0, 0).iterator().next().getScore();
+        assertEquals((long) oldest + 3600_000 + 1, account.getNextEnableAt());
+        assertTrue(account.getNextEnableAt() > before + 3600_000);
+        assertEquals(3L, zCard(account));
+    }
+
+    @Test
+    public void leaseIsCappedAtPointTimePeriodEnd() {
+        restrictService.setLeaseSize(5);
+        restrictService.setLeaseMillis(3600_000L);
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 10_000, 100));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        Set<ZSetOperations.TypedTuple<String>> records = stringRedisTemplate.opsForZSet().rangeWithScores(account.getId() + "-statistic", 0, -1);
+        assertEquals(5, records.size());
+        // 预留的名额 记在当前时间段的最后一毫秒, 不会被记入下个时间段
+        for (ZSetOperations.TypedTuple<String> record : records) {
+            long score = record.getScore().longValue();
+            assertEquals(10_000 - 1, score % 10_000);
+            assertTrue(score < System.currentTimeMillis() + 10_000);
+        }
+    }
+
+    @Test
+    public void nextEnableAtWhenNothingGranted() {
+        restrictService.setLeaseSize(10);
+        restrictService.setLeaseMillis(60000L);
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.POINT_TIME, 10_000, 1));
+        awayFromPeriodEnd(10_000);
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        assertEquals(1L, zCard(account));
+        // POINT_TIME 用完后 在下个时间段开始时重新可用
+        assertFalse(restrictService.canSend(account, new EmailSendTask<>("1", 0)));
+        assertEquals(0, account.getNextEnableAt() % 10_000);
+        assertTrue(account.getNextEnableAt() > System.currentTimeMillis());
+        assertTrue(account.getNextEnableAt() <= System.currentTimeMillis() + 10_000);
+    }
+
+    @Test
+    public void expiredLeaseIsReturnedWhenIdle() throws InterruptedException {
+        restrictService.setLeaseSize(5);
+        restrictService.setLeaseMillis(300L);
+        EmailSendAccount<AbstractAccount> account = newAccount(restrict(EmailSendRestrict.TimeTypeEnum.RANGE_TIME, 3600_000, 100));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("0", 0)));
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("1", 0)));
+        assertEquals(5L, zCard(account));
+        // 账户空闲 租约过期后 未使用的名额被归还, 已使用的保留
+        Thread.sleep(800);
+        assertEquals(2L, zCard(account));
+        // 归还后 再次发送时 申请新的租约
+        assertTrue(restrictService.canSend(account, new EmailSendTask<>("2", 0)));
+        assertEquals(7L, zCard(account));
+    }
+
+    private long zCard(EmailSendAccount<AbstractAccount> account) {
+        Long size = stringRedisTemplate.opsForZSet().zCard(account.getId() + "-statistic");
+        return Objects.isNull(size) ? 0L : size;
+    }
+}
@@ -0,0 +1,91 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.IdUtil;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.EmailSendAccount;
+import com.veda.emaxil.core.entity.EmailSendRestrict;
+import com.veda.emaxil.core.entity.EmailServiceProvider;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 限制规则 与 发送账户相关测试 共用的构造方法
+ */
+final class RestrictTestSupport {
+
+    /**
+     * 生成的账户 id 前缀, 需要 Redis 的测试 按该前缀删除统计数据
+     */
+    static final String ACCOUNT_ID_PREFIX = "restrict-test-";
+
+    private RestrictTestSupport() {
+    }
+
+    /**
+     * @return 以毫秒为单位 按发送次数限制的规则
+     */
+    static EmailSendRestrict restrict(EmailSendRestrict.TimeTypeEnum timeType, long millis, long limit) {
+        EmailSendRestrict restrict = new EmailSendRestrict();
+        restrict.setTimeType(timeType);
+        restrict.setTimeUnit(TimeUnit.MILLISECONDS);
+        restrict.setTimeValue(millis);
+        restrict.setLimitType(EmailSendRestrict.LimitTypeEnum.COUNT_LIMIT);
+        restrict.setLimitValue(limit);
+        return restrict;
+    }
+
+    /**
+     * @return id 唯一的账户, Redis 中不会残留其他测试的统计数据
+     */
+    static EmailSendAccount<AbstractAccount> newAccount(EmailSendRestrict... restricts) {
+        return newAccount(ACCOUNT_ID_PREFIX + IdUtil.fastSimpleUUID(), restricts);
+    }
+
+    static EmailSendAccount<AbstractAccount> newAccount(String id, EmailSendRestrict... restricts) {
+        return newAccount(id, new EmailServiceProvider(), restricts);
+    }
+
+    static EmailSendAccount<AbstractAccount> newAccount(String id, EmailServiceProvider provider, EmailSendRestrict... restricts) {
+        return new EmailSendAccount<>(id, new AbstractAccount() {}, provider, Arrays.asList(restricts));
+    }
+
+    static EmailSendAccount<AbstractAccount> newAccount(String id, boolean isEnable) {
+        EmailSendAccount<AbstractAccount> account = newAccount(id);
+        account.setEnable(isEnable);
+        return account;
+    }
+
+    static EmailServiceProvider provider(String name) {
+        EmailServiceProvider provider = new EmailServiceProvider();
+        provider.setName(name);
+        return provider;
+    }
+
+    /**
+     * 删除 newAccount 生成的账户 在 Redis 中的统计数据
+     */
+    static void deleteStatistics(StringRedisTemplate stringRedisTemplate) {
+        Set<String> keys = stringRedisTemplate.keys(ACCOUNT_ID_PREFIX + "*");
+        if (CollUtil.isNotEmpty(keys)) {
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    /**
+     * 距离当前时间段结束不足 1s 时 等待到下个时间段, 避免测试跨过时间点
+     */
+    static void awayFromPeriodEnd(long periodMillis) {
+        long remaining = periodMillis - System.currentTimeMillis() % periodMillis;
+        if (remaining < 1000) {
+            try {
+                Thread.sleep(remaining + 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
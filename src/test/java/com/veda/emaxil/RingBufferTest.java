@@ -0,0 +1,103 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.util.RingBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RingBufferTest {
+
+    @Test
+    public void offerAndDrainInOrder() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(3, RingBuffer.WaitStrategy.BLOCKING);
+        assertEquals(4, ringBuffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        // 缓冲区已满
+        assertFalse(ringBuffer.offer(4));
+        List<Integer> values = new ArrayList<>();
+        assertEquals(3, ringBuffer.drainTo(values, 3));
+        assertEquals(Arrays.asList(0, 1, 2), values);
+        assertTrue(ringBuffer.offer(4));
+        assertEquals(2, ringBuffer.drainTo(values, 10));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), values);
+        assertEquals(0, ringBuffer.size());
+        assertEquals(0, ringBuffer.drainTo(values, 10));
+    }
+
+    @Test
+    public void offerWaitsForSpace() throws Exception {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(1, RingBuffer.WaitStrategy.BLOCKING);
+        assertEquals(2, ringBuffer.capacity());
+        assertTrue(ringBuffer.offer(-1));
+        assertTrue(ringBuffer.offer(0));
+        long start = System.currentTimeMillis();
+        assertFalse(ringBuffer.offer(1, 50));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> producer = executor.submit(() -> ringBuffer.offer(1, 5000));
+            Thread.sleep(50);
+            List<Integer> values = new ArrayList<>();
+            ringBuffer.drainTo(values, 1);
+            assertTrue(producer.get(1, TimeUnit.SECONDS));
+            assertEquals(2, ringBuffer.drainTo(values, 2, 1000));
+            assertEquals(Arrays.asList(-1, 0, 1), values);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws Exception {
+        for (RingBuffer.WaitStrategy waitStrategy : RingBuffer.WaitStrategy.values()) {
+            assertNoLossOrDuplicate(waitStrategy);
+        }
+    }
+
+    private void assertNoLossOrDuplicate(RingBuffer.WaitStrategy waitStrategy) throws Exception {
+        int producers = 3, consumers = 3, perProducer = 5000;
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(64, waitStrategy);
+        AtomicIntegerArray received = new AtomicIntegerArray(producers * perProducer);
+        ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                int base = p * perProducer;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        assertTrue(ringBuffer.offer(base + i, 10000));
+                    }
+                }));
+            }
+            CountDownLatch done = new CountDownLatch(producers * perProducer);
+            for (int c = 0; c < consumers; c++) {
+                executor.submit(() -> {
+                    List<Integer> batch = new ArrayList<>();
+                    while (!Thread.currentThread().isInterrupted()) {
+                        batch.clear();
+                        ringBuffer.drainTo(batch, 16, 100);
+                        for (Integer value : batch) {
+                            received.incrementAndGet(value);
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS), waitStrategy.name());
+            for (int i = 0; i < received.length(); i++) {
+                assertEquals(1, received.get(i), waitStrategy + " value " + i);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
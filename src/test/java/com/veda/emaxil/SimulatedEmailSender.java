@@ -0,0 +1,220 @@
+package com.veda.emaxil;
+
+import cn.hutool.core.util.StrUtil;
+import com.veda.emaxil.core.entity.AbstractAccount;
+import com.veda.emaxil.core.entity.AbstractEmail;
+import com.veda.emaxil.core.entity.EmailSendRestrict;
+import com.veda.emaxil.core.sender.AbstractEmailSender;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 模拟的邮件服务商, 供 LoadHarness 使用
+ * 每次发送的耗时服从对数正态分布, 由 中位数 和 p99 确定
+ * 发送完成时 按账户的配额检验, 以服务商接受的时间统计, 超出时拒绝 相当于返回 452
+ * 按 transientFailureRate 随机产生临时失败 相当于返回 421, 按 permanentFailureRate 固定选出一部分邮件 每次发送都永久失败 相当于返回 550
+ * 记录每封邮件被接受的次数 和 第一次被接受的时间
+ */
+public class SimulatedEmailSender implements AbstractEmailSender<SimulatedEmailSender.Account, SimulatedEmailSender.Email> {
+
+    /**
+     * 标准正态分布的 99% 分位数
+     */
+    private static final double Z99 = 2.3263;
+
+    /**
+     * 发送耗时的中位数 和 p99 毫秒
+     */
+    @Getter
+    @Setter
+    private double latencyMedianMillis = 5D;
+    @Getter
+    @Setter
+    private double latencyP99Millis = 50D;
+
+    /**
+     * 每次发送 临时失败的概率
+     */
+    @Getter
+    @Setter
+    private double transientFailureRate = 0D;
+
+    /**
+     * 永久失败的邮件比例
+     */
+    @Getter
+    @Setter
+    private double permanentFailureRate = 0D;
+
+    /**
+     * 每封邮件被接受的次数 和 第一次被接受的 System.nanoTime, 以邮件序号为下标
+     */
+    private final AtomicIntegerArray acceptCounts;
+    private final AtomicLongArray acceptedAtNanos;
+
+    private final LongAdder attemptCount = new LongAdder();
+    private final LongAdder quotaRejectedCount = new LongAdder();
+    private final LongAdder transientFailureCount = new LongAdder();
+    private final LongAdder permanentFailureCount = new LongAdder();
+
+    /**
+     * @param capacity 邮件数量, 邮件序号需小于该值
+     */
+    public SimulatedEmailSender(int capacity) {
+        this.acceptCounts = new AtomicIntegerArray(capacity);
+        this.acceptedAtNanos = new AtomicLongArray(capacity);
+    }
+
+    @Override
+    public void send(Account account, Email email) {
+        attemptCount.increment();
+        sleep(nextLatencyNanos());
+        if (isPermanentFailure(email.getIndex())) {
+            permanentFailureCount.increment();
+            throw new IllegalStateException(StrUtil.format("550 mailbox unavailable: email {}", email.getIndex()));
+        }
+        if (ThreadLocalRandom.current().nextDouble() < transientFailureRate) {
+            transientFailureCount.increment();
+            throw new IllegalStateException(StrUtil.format("421 service not available: account {}", account.getId()));
+        }
+        if (!account.tryAccept(System.currentTimeMillis())) {
+            quotaRejectedCount.increment();
+            throw new IllegalStateException(StrUtil.format("452 quota exceeded: account {}", account.getId()));
+        }
+        long now = System.nanoTime();
+        if (acceptCounts.getAndIncrement(email.getIndex()) == 0) {
+            acceptedAtNanos.set(email.getIndex(), now);
+        }
+    }
+
+    /**
+     * 按邮件序号固定选出的永久失败邮件, 重试也不会成功
+     * @param index 邮件序号
+     * @return 是否永久失败
+     */
+    public boolean isPermanentFailure(int index) {
+        // 序号的哈希均匀分布在 [0, 1) 中
+        long hash = (index + 1) * 0x9E3779B97F4A7C15L;
+        return (double) (hash >>> 11) / (1L << 53) < permanentFailureRate;
+    }
+
+    public int getAcceptCount(int index) {
+        return acceptCounts.get(index);
+    }
+
+    public long getAcceptedAtNanos(int index) {
+        return acceptedAtNanos.get(index);
+    }
+
+    public long getAttemptCount() {
+        return attemptCount.sum();
+    }
+
+    public long getQuotaRejectedCount() {
+        return quotaRejectedCount.sum();
+    }
+
+    public long getTransientFailureCount() {
+        return transientFailureCount.sum();
+    }
+
+    public long getPermanentFailureCount() {
+        return permanentFailureCount.sum();
+    }
+
+    private long nextLatencyNanos() {
+        double median = Math.max(0D, latencyMedianMillis);
+        if (median == 0D) {
+            return 0L;
+        }
+        double sigma = latencyP99Millis > median ? Math.log(latencyP99Millis / median) / Z99 : 0D;
+        double millis = median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian());
+        return (long) (Math.min(millis, latencyP99Millis * 10) * 1000000L);
+    }
+
+    private static void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("simulated send interrupted", e);
+        }
+    }
+
+    /**
+     * 服务商一侧的账户, 配额与 emaxil 中该账户的限制规则相同 但以接受时间统计
+     */
+    @Getter
+    public static class Account extends AbstractAccount {
+        private final String id;
+        private final List<EmailSendRestrict> quotas;
+        private final ArrayDeque<Long>[] acceptedAts;
+        /**
+         * 该账户被接受的次数
+         */
+        private long acceptedCount = 0L;
+
+        @SuppressWarnings("unchecked")
+        public Account(String id, List<EmailSendRestrict> quotas) {
+            this.id = id;
+            this.quotas = quotas;
+            this.acceptedAts = new ArrayDeque[quotas.size()];
+            for (int i = 0; i < acceptedAts.length; i++) {
+                acceptedAts[i] = new ArrayDeque<>();
+            }
+        }
+
+        /**
+         * 所有配额都未用完时 记录一次接受
+         * @param now 当前时间戳 毫秒
+         * @return 是否接受
+         */
+        public synchronized long getAcceptedCount() {
+            return acceptedCount;
+        }
+
+        synchronized boolean tryAccept(long now) {
+            for (int i = 0; i < quotas.size(); i++) {
+                EmailSendRestrict quota = quotas.get(i);
+                long windowMillis = quota.getTimeUnit().toMillis(quota.getTimeValue());
+                // RANGE_TIME 统计 (now - windowMillis, now], POINT_TIME 统计当前时间段
+                long startAt = EmailSendRestrict.TimeTypeEnum.POINT_TIME.equals(quota.getTimeType()) ?
+                        now - now % windowMillis : now - windowMillis + 1;
+                ArrayDeque<Long> accepted = acceptedAts[i];
+                while (!accepted.isEmpty() && accepted.peekFirst() < startAt) {
+                    accepted.pollFirst();
+                }
+                if (accepted.size() >= quota.getLimitValue()) {
+                    return false;
+                }
+            }
+            for (ArrayDeque<Long> accepted : acceptedAts) {
+                accepted.addLast(now);
+            }
+            acceptedCount++;
+            return true;
+        }
+    }
+
+    /**
+     * 负载测试的邮件, index 为邮件序号, producedAtNanos 为生产时的 System.nanoTime
+     */
+    @Getter
+    public static class Email extends AbstractEmail {
+        private final int index;
+        private final long producedAtNanos;
+
+        public Email(int index, long producedAtNanos) {
+            this.index = index;
+            this.producedAtNanos = producedAtNanos;
+        }
+    }
+}
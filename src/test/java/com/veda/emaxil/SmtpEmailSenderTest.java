@@ -0,0 +1,159 @@
+package com.veda.emaxil;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import cn.hutool.core.io.IoUtil;
+import com.veda.emaxil.core.entity.EmailAttachment;
+import com.veda.emaxil.core.entity.SmtpAccount;
+import com.veda.emaxil.core.entity.SmtpEmail;
+import com.veda.emaxil.core.sender.AttachmentStore;
+import com.veda.emaxil.core.sender.SmtpEmailSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.mail.BodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SmtpEmailSenderTest {
+
+    private GreenMail greenMail;
+
+    private SmtpEmailSender emailSender;
+
+    private SmtpAccount account;
+
+    @BeforeEach
+    public void setUp() {
+        greenMail = new GreenMail(ServerSetupTest.SMTP);
+        greenMail.start();
+        greenMail.setUser("sender@emaxil.test", "sender", "secret");
+        emailSender = new SmtpEmailSender();
+        account = new SmtpAccount();
+        account.setHost("127.0.0.1");
+        account.setPort(ServerSetupTest.SMTP.getPort());
+        account.setUsername("sender");
+        account.setPassword("secret");
+        account.setFrom("sender@emaxil.test");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        emailSender.close();
+        greenMail.stop();
+    }
+
+    @Test
+    public void reuseTransport() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            emailSender.send(account, email("to" + i + "@emaxil.test", "subject " + i));
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 5));
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertEquals(5, messages.length);
+        assertEquals("subject 0", messages[0].getSubject());
+        assertEquals(1, emailSender.getHandshakeCount());
+        assertEquals(5, emailSender.getSendCount());
+    }
+
+    @Test
+    public void recycleAfterMessageLimit() {
+        emailSender.setMaxMessagesPerTransport(2);
+        for (int i = 0; i < 5; i++) {
+            emailSender.send(account, email("to@emaxil.test", "subject " + i));
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 5));
+        assertEquals(3, emailSender.getHandshakeCount());
+    }
+
+    @Test
+    public void boundedTransportsPerAccount() throws Exception {
+        emailSender.setMaxTransportsPerAccount(2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 40; i++) {
+            executor.execute(() -> emailSender.send(account, email("to@emaxil.test", "concurrent")));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertTrue(greenMail.waitForIncomingEmail(5000, 40));
+        assertTrue(emailSender.getHandshakeCount() <= 2, "handshakes " + emailSender.getHandshakeCount());
+    }
+
+    @Test
+    public void authFailure() {
+        account.setPassword("wrong");
+        assertThrows(IllegalStateException.class, () -> emailSender.send(account, email("to@emaxil.test", "subject")));
+        assertEquals(0, emailSender.getHandshakeCount());
+    }
+
+    @Test
+    public void reconnectAfterSettingsChanged() {
+        emailSender.send(account, email("to@emaxil.test", "subject 0"));
+        // 重新加载后的账户 不再使用以旧密码认证的连接
+        SmtpAccount reloaded = new SmtpAccount();
+        reloaded.setHost(account.getHost());
+        reloaded.setPort(account.getPort());
+        reloaded.setUsername(account.getUsername());
+        reloaded.setPassword("wrong");
+        assertThrows(IllegalStateException.class, () -> emailSender.send(reloaded, email("to@emaxil.test", "subject 1")));
+        reloaded.setPassword("secret");
+        reloaded.setTimeoutMillis(20000);
+        emailSender.send(reloaded, email("to@emaxil.test", "subject 2"));
+        emailSender.send(reloaded, email("to@emaxil.test", "subject 3"));
+        assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+        assertEquals(2, emailSender.getHandshakeCount());
+    }
+
+    @Test
+    public void sendWithAttachment(@TempDir Path directory) throws Exception {
+        AttachmentStore attachmentStore = new AttachmentStore(directory);
+        emailSender.setAttachmentStore(attachmentStore);
+        byte[] content = new byte[100000];
+        new Random(1).nextBytes(content);
+        EmailAttachment attachment = attachmentStore.put(new ByteArrayInputStream(content), "brochure.pdf", "application/pdf");
+        for (int i = 0; i < 3; i++) {
+            SmtpEmail email = email("to" + i + "@emaxil.test", "attachment " + i);
+            email.setAttachments(Collections.singletonList(attachment));
+            emailSender.send(account, email);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertEquals(3, messages.length);
+        MimeMultipart multipart = (MimeMultipart) messages[2].getContent();
+        assertEquals(2, multipart.getCount());
+        assertEquals("hello", multipart.getBodyPart(0).getContent());
+        BodyPart attachmentPart = multipart.getBodyPart(1);
+        assertEquals("brochure.pdf", attachmentPart.getFileName());
+        assertArrayEquals(content, IoUtil.readBytes(attachmentPart.getInputStream()));
+        // 附件只编码一次
+        assertEquals(1, attachmentStore.getEncodeCount());
+    }
+
+    @Test
+    public void attachmentWithoutStore() {
+        SmtpEmail email = email("to@emaxil.test", "subject");
+        EmailAttachment attachment = new EmailAttachment();
+        attachment.setHash("00");
+        email.setAttachments(Collections.singletonList(attachment));
+        assertThrows(IllegalStateException.class, () -> emailSender.send(account, email));
+    }
+
+    private SmtpEmail email(String to, String subject) {
+        SmtpEmail email = new SmtpEmail();
+        email.setTo(Collections.singletonList(to));
+        email.setSubject(subject);
+        email.setContent("hello");
+        return email;
+    }
+}
@@ -0,0 +1,53 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.util.TimerWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimerWheelTest {
+
+    @Test
+    public void expireByTick() {
+        TimerWheel<String> timerWheel = new TimerWheel<>(10, 8);
+        timerWheel.schedule("a", 1025);
+        timerWheel.schedule("b", 1000);
+        timerWheel.schedule("c", 1040);
+        // 已到期的元素 立即返回
+        assertEquals(Collections.singletonList("b"), timerWheel.advance(1000));
+        // 不早于到期时间返回
+        assertTrue(timerWheel.advance(1029).isEmpty());
+        assertEquals(Collections.singletonList("a"), timerWheel.advance(1030));
+        assertTrue(timerWheel.advance(1039).isEmpty());
+        assertEquals(Collections.singletonList("c"), timerWheel.advance(1049));
+    }
+
+    @Test
+    public void expireAfterRounds() {
+        TimerWheel<String> timerWheel = new TimerWheel<>(10, 8);
+        timerWheel.advance(1000);
+        // 一圈为 80ms, 与 1000 落在同一槽位 但在之后的第三圈
+        timerWheel.schedule("later", 1240);
+        timerWheel.schedule("sooner", 1010);
+        for (long now = 1010; now < 1240; now += 10) {
+            assertEquals(now == 1010 ? Collections.singletonList("sooner") : Collections.emptyList(), timerWheel.advance(now));
+        }
+        assertEquals(Collections.singletonList("later"), timerWheel.advance(1240));
+    }
+
+    @Test
+    public void skipTicks() {
+        TimerWheel<String> timerWheel = new TimerWheel<>(10, 8);
+        timerWheel.advance(1000);
+        timerWheel.schedule("a", 1030);
+        timerWheel.schedule("b", 1500);
+        timerWheel.advance(1001);
+        // 长时间未推进时 跨越多圈的到期元素一次返回
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(timerWheel.advance(2000)));
+        assertTrue(timerWheel.advance(3000).isEmpty());
+    }
+}
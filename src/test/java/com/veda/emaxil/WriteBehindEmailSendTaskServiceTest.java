@@ -0,0 +1,168 @@
+package com.veda.emaxil;
+
+import com.veda.emaxil.core.entity.EmailSendTask;
+import com.veda.emaxil.core.entity.SmtpEmail;
+import com.veda.emaxil.core.service.EmailSendTaskService;
+import com.veda.emaxil.core.service.WriteBehindEmailSendTaskService;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.veda.emaxil.core.entity.EmailSendTask.StatusEnum.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindEmailSendTaskServiceTest {
+
+    private final InMemoryEmailSendTaskService delegate = new InMemoryEmailSendTaskService();
+
+    @Test
+    public void coalesceStatusTransitions() {
+        WriteBehindEmailSendTaskService<SmtpEmail> service = new WriteBehindEmailSendTaskService<>(
+                delegate, WriteBehindEmailSendTaskService.Durability.ASYNC, 100, 60000L);
+        try {
+            EmailSendTask<SmtpEmail> task = newTask("a");
+            task.setStatus(SENDING);
+            service.update(task);
+            task.setStatus(SEND_SUCCESS);
+            service.update(task);
+            // 写入前 查询返回最新的状态
+            assertEquals(UN_SEND, delegate.tasks.get("a").getStatus());
+            assertEquals(SEND_SUCCESS, service.select("a").getStatus());
+            service.flush();
+            assertEquals(1, delegate.batches.size());
+            assertEquals(1, delegate.batches.get(0).size());
+            assertEquals(SEND_SUCCESS, delegate.tasks.get("a").getStatus());
+            assertEquals(2, service.getUpdateCount());
+            assertEquals(1, service.getCoalescedCount());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void flushWhenBatchIsFull() throws InterruptedException {
+        WriteBehindEmailSendTaskService<SmtpEmail> service = new WriteBehindEmailSendTaskService<>(
+                delegate, WriteBehindEmailSendTaskService.Durability.ASYNC, 10, 60000L);
+        try {
+            for (int i = 0; i < 10; i++) {
+                EmailSendTask<SmtpEmail> task = newTask("t" + i);
+                task.setStatus(SENDING);
+                service.update(task);
+            }
+            for (int i = 0; i < 100 && service.getFlushCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, service.getFlushCount());
+            assertEquals(10, delegate.batches.get(0).size());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void groupCommitWaitsForFinalStatus() {
+        WriteBehindEmailSendTaskService<SmtpEmail> service = new WriteBehindEmailSendTaskService<>(
+                delegate, WriteBehindEmailSendTaskService.Durability.GROUP_COMMIT, 100, 20L);
+        try {
+            EmailSendTask<SmtpEmail> task = newTask("a");
+            task.setStatus(SENDING);
+            service.update(task);
+            assertTrue(delegate.batches.isEmpty());
+            task.setStatus(SEND_FAILURE);
+            task.setErrorMessage("rejected");
+            service.update(task);
+            // 最终状态的 update 返回时 已经写入
+            assertEquals(SEND_FAILURE, delegate.tasks.get("a").getStatus());
+            assertEquals("rejected", delegate.tasks.get("a").getErrorMessage());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void failedGroupCommitKeepsFinalStatusPending() throws InterruptedException {
+        WriteBehindEmailSendTaskService<SmtpEmail> service = new WriteBehindEmailSendTaskService<>(
+                delegate, WriteBehindEmailSendTaskService.Durability.GROUP_COMMIT, 100, 20L);
+        try {
+            EmailSendTask<SmtpEmail> task = newTask("a");
+            task.setStatus(SEND_SUCCESS);
+            delegate.isAvailable = false;
+            assertThrows(IllegalStateException.class, () -> service.update(task));
+            // 写入失败的发送成功 仍待写入, 查询返回发送成功 不会被当作未完成的任务再次发送
+            assertEquals(1, service.getPendingCount());
+            assertEquals(SEND_SUCCESS, service.select("a").getStatus());
+            delegate.isAvailable = true;
+            for (int i = 0; i < 100 && service.getPendingCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(SEND_SUCCESS, delegate.tasks.get("a").getStatus());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void failedFlushIsRetried() {
+        WriteBehindEmailSendTaskService<SmtpEmail> service = new WriteBehindEmailSendTaskService<>(
+                delegate, WriteBehindEmailSendTaskService.Durability.ASYNC, 100, 60000L);
+        try {
+            EmailSendTask<SmtpEmail> task = newTask("a");
+            task.setStatus(SEND_SUCCESS);
+            service.update(task);
+            delegate.isAvailable = false;
+            assertThrows(IllegalStateException.class, service::flush);
+            assertEquals(1, service.getPendingCount());
+            delegate.isAvailable = true;
+            service.flush();
+            assertEquals(0, service.getPendingCount());
+            assertEquals(SEND_SUCCESS, delegate.tasks.get("a").getStatus());
+        } finally {
+            service.close();
+        }
+    }
+
+    private EmailSendTask<SmtpEmail> newTask(String id) {
+        EmailSendTask<SmtpEmail> stored = new EmailSendTask<>(id, 0);
+        stored.setStatus(UN_SEND);
+        delegate.tasks.put(id, stored);
+        EmailSendTask<SmtpEmail> task = new EmailSendTask<>(id, 0);
+        task.setStatus(UN_SEND);
+        return task;
+    }
+
+    /**
+     * 只用于测试的 内存持久化, 记录每次批量更新的任务
+     */
+    private static class InMemoryEmailSendTaskService implements EmailSendTaskService<SmtpEmail> {
+
+        private final Map<String, EmailSendTask<SmtpEmail>> tasks = new ConcurrentHashMap<>();
+        private final List<List<EmailSendTask<SmtpEmail>>> batches = new CopyOnWriteArrayList<>();
+        private volatile boolean isAvailable = true;
+
+        @Override
+        public EmailSendTask<SmtpEmail> select(String id) {
+            return tasks.get(id);
+        }
+
+        @Override
+        public void insert(EmailSendTask<SmtpEmail> emailSendTask) {
+            tasks.put(emailSendTask.getId(), emailSendTask);
+        }
+
+        @Override
+        public void update(EmailSendTask<SmtpEmail> emailSendTask) {
+            updateAll(Collections.singletonList(emailSendTask));
+        }
+
+        @Override
+        public void updateAll(List<EmailSendTask<SmtpEmail>> emailSendTasks) {
+            if (!isAvailable) {
+                throw new IllegalStateException("database unavailable");
+            }
+            batches.add(new ArrayList<>(emailSendTasks));
+            emailSendTasks.forEach(emailSendTask -> tasks.put(emailSendTask.getId(), emailSendTask));
+        }
+    }
+}